@@ -15,7 +15,9 @@
 */
 package org.xflatdb.xflat;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 
@@ -36,6 +38,15 @@ public interface KeyValueTable {
     public <T> void add(String key, T row)
             throws DuplicateKeyException;
     
+    /**
+     * Inserts each key value pair as a row in the table, in one pass over the
+     * table.  If any key already exists, none of the rows are inserted.
+     * @param rows The values to insert as XML, by key.  Values cannot be null.
+     * @throws DuplicateKeyException if a row with any of the given keys already exists.
+     */
+    public <T> void addAll(Map<String, T> rows)
+            throws DuplicateKeyException;
+    
     /**
      * Puts a value with the given key in the database.  If the value already
      * exists, it is overwritten.
@@ -45,6 +56,14 @@ public interface KeyValueTable {
      */
     public <T> void set(String key, T row);
     
+    /**
+     * Puts each value with its key in the database, in one pass over the
+     * table.  Values that already exist are overwritten.
+     * @param <T>
+     * @param rows The new values for the rows, by key.  Values cannot be null.
+     */
+    public <T> void setAll(Map<String, T> rows);
+    
     /**
      * Puts a value with the given key in the database.  If the value already
      * exists, it is overwritten and the old value is returned.
@@ -119,6 +138,14 @@ public interface KeyValueTable {
     public void delete(String key)
             throws KeyNotFoundException;
     
+    /**
+     * Deletes the rows associated to the given keys, in one pass over the
+     * table.  Keys that do not exist are skipped.
+     * @param keys The keys of the rows to delete.
+     * @return the number of rows that were deleted.
+     */
+    public int deleteByKeys(Collection<String> keys);
+    
     /**
      * Deletes all rows matching the given query.
      * @param query The query selecting elements to delete.
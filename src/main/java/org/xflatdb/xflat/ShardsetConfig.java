@@ -15,7 +15,10 @@
 */
 package org.xflatdb.xflat;
 
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import org.xflatdb.xflat.query.IntervalProvider;
+import org.xflatdb.xflat.query.ResizableIntervalProvider;
 import org.jdom2.xpath.XPathExpression;
 import org.jdom2.xpath.XPathFactory;
 import org.xflatdb.xflat.query.XPathQuery;
@@ -29,14 +32,29 @@ import org.xflatdb.xflat.util.XPathExpressionEqualityMatcher;
 public class ShardsetConfig<T> {
     
     private ShardsetConfig(){
-        
+        this.queryParallelism = 4;
+        this.queryPrefetch = 100;
+        this.orderedQueries = true;
+        this.writeParallelism = 4;
     }
     
     private ShardsetConfig(ShardsetConfig other){
         this.shardPropertyClass  = other.shardPropertyClass;
         this.shardPropertySelector = other.shardPropertySelector;
         this.intervalProvider = other.intervalProvider;
-        
+        this.isId = other.isId;
+        this.queryParallelism = other.queryParallelism;
+        this.queryPrefetch = other.queryPrefetch;
+        this.orderedQueries = other.orderedQueries;
+        this.writeParallelism = other.writeParallelism;
+        this.maxShardRows = other.maxShardRows;
+        this.maxShardBytes = other.maxShardBytes;
+        this.minShardRows = other.minShardRows;
+        this.retentionMillis = other.retentionMillis;
+        this.maxOpenShards = other.maxOpenShards;
+        this.maxOpenShardBytes = other.maxOpenShardBytes;
+        this.warmUpShards = other.warmUpShards;
+        this.warmUpOrder = other.warmUpOrder;
     }
     
     private Class<T> shardPropertyClass;
@@ -74,6 +92,354 @@ public class ShardsetConfig<T> {
         return this.isId;
     }
     
+    private int queryParallelism;
+    /**
+     * Gets the maximum number of shards that one query scans concurrently
+     * on the database's executor service.  Defaults to 4.
+     * @see #withQueryParallelism(int) 
+     */
+    public int getQueryParallelism(){
+        return queryParallelism;
+    }
+    /**
+     * Sets the maximum number of shards that one query scans concurrently.
+     * A value of 1 scans the shards one after another.
+     * @param queryParallelism The number of shards to scan at a time, at least 1.
+     * @return A new instance with the QueryParallelism property set.
+     */
+    public ShardsetConfig<T> withQueryParallelism(int queryParallelism){
+        if(queryParallelism < 1){
+            throw new IllegalArgumentException("queryParallelism must be at least 1");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.queryParallelism = queryParallelism;
+        return ret;
+    }
+    
+    private int queryPrefetch;
+    /**
+     * Gets the number of rows that a shard scan may read ahead of the query's
+     * reader before it waits for the reader to catch up.  Defaults to 100.
+     * @see #withQueryPrefetch(int) 
+     */
+    public int getQueryPrefetch(){
+        return queryPrefetch;
+    }
+    /**
+     * Sets the number of rows that a shard scan may read ahead of the query's reader.
+     * At most {@link #getQueryParallelism()} times this many rows are buffered per query.
+     * @param queryPrefetch The number of rows to buffer per shard, at least 1.
+     * @return A new instance with the QueryPrefetch property set.
+     */
+    public ShardsetConfig<T> withQueryPrefetch(int queryPrefetch){
+        if(queryPrefetch < 1){
+            throw new IllegalArgumentException("queryPrefetch must be at least 1");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.queryPrefetch = queryPrefetch;
+        return ret;
+    }
+    
+    private boolean orderedQueries;
+    /**
+     * Gets whether queries across several shards return the rows of each shard
+     * in interval order, as if the shards were scanned one after another.
+     * Defaults to true.
+     * @see #withOrderedQueries(boolean) 
+     */
+    public boolean isOrderedQueries(){
+        return orderedQueries;
+    }
+    /**
+     * Sets whether queries across several shards return rows in interval order.
+     * When false, rows are returned as soon as any shard produces them, so a slow
+     * shard does not hold up rows that are already available from other shards.
+     * @param orderedQueries true to return rows in interval order.
+     * @return A new instance with the OrderedQueries property set.
+     */
+    public ShardsetConfig<T> withOrderedQueries(boolean orderedQueries){
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.orderedQueries = orderedQueries;
+        return ret;
+    }
+    
+    private int writeParallelism;
+    /**
+     * Gets the maximum number of shards that one update or delete by query
+     * modifies concurrently.  Defaults to 4.
+     * @see #withWriteParallelism(int) 
+     */
+    public int getWriteParallelism(){
+        return writeParallelism;
+    }
+    /**
+     * Sets the maximum number of shards that one update or delete by query
+     * modifies concurrently.  The shards are modified in the transaction of the
+     * calling thread.  A value of 1 modifies the shards one after another.
+     * @param writeParallelism The number of shards to modify at a time, at least 1.
+     * @return A new instance with the WriteParallelism property set.
+     */
+    public ShardsetConfig<T> withWriteParallelism(int writeParallelism){
+        if(writeParallelism < 1){
+            throw new IllegalArgumentException("writeParallelism must be at least 1");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.writeParallelism = writeParallelism;
+        return ret;
+    }
+    
+    private int maxShardRows = 0;
+    /**
+     * Gets the number of rows above which a shard is split in two.
+     * Defaults to 0, which never splits a shard by its row count.
+     * @see #withMaxShardRows(int) 
+     */
+    public int getMaxShardRows(){
+        return maxShardRows;
+    }
+    /**
+     * Sets the number of rows above which a shard is split in two.  The row count
+     * of a shard is known from the summary it saves when it spins down, so only
+     * shards that are not in use are split by their row count.
+     * Requires a {@link ResizableIntervalProvider}.
+     * @param maxShardRows The maximum rows per shard, or 0 to not split by row count.
+     * @return A new instance with the MaxShardRows property set.
+     */
+    public ShardsetConfig<T> withMaxShardRows(int maxShardRows){
+        if(maxShardRows < 0){
+            throw new IllegalArgumentException("maxShardRows cannot be negative");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.maxShardRows = maxShardRows;
+        ret.checkResizable();
+        return ret;
+    }
+    
+    private long maxShardBytes = 0;
+    /**
+     * Gets the file size in bytes above which a shard is split in two.
+     * Defaults to 0, which never splits a shard by its file size.
+     * @see #withMaxShardBytes(long) 
+     */
+    public long getMaxShardBytes(){
+        return maxShardBytes;
+    }
+    /**
+     * Sets the file size in bytes above which a shard is split in two.
+     * Requires a {@link ResizableIntervalProvider}.
+     * @param maxShardBytes The maximum file size per shard, or 0 to not split by file size.
+     * @return A new instance with the MaxShardBytes property set.
+     */
+    public ShardsetConfig<T> withMaxShardBytes(long maxShardBytes){
+        if(maxShardBytes < 0){
+            throw new IllegalArgumentException("maxShardBytes cannot be negative");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.maxShardBytes = maxShardBytes;
+        ret.checkResizable();
+        return ret;
+    }
+    
+    private int minShardRows = 0;
+    /**
+     * Gets the number of rows below which two adjacent shards are merged into one.
+     * Defaults to 0, which never merges shards.
+     * @see #withMinShardRows(int) 
+     */
+    public int getMinShardRows(){
+        return minShardRows;
+    }
+    /**
+     * Sets the number of rows below which two adjacent shards are merged into one.
+     * Both shards must have fewer rows than this, and the merged shard must not
+     * exceed the maximum rows or bytes.  Like splitting by row count, only shards
+     * that are not in use are merged.
+     * Requires a {@link ResizableIntervalProvider}.
+     * @param minShardRows The minimum rows per shard, or 0 to never merge shards.
+     * @return A new instance with the MinShardRows property set.
+     */
+    public ShardsetConfig<T> withMinShardRows(int minShardRows){
+        if(minShardRows < 0){
+            throw new IllegalArgumentException("minShardRows cannot be negative");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.minShardRows = minShardRows;
+        ret.checkResizable();
+        return ret;
+    }
+    
+    /**
+     * Gets whether the sharded engine should split and merge shards in the background,
+     * which is true if any of the max shard rows, max shard bytes, or min shard rows are set.
+     */
+    public boolean isRebalancing(){
+        return maxShardRows > 0 || maxShardBytes > 0 || minShardRows > 0;
+    }
+    
+    private void checkResizable(){
+        if(isRebalancing() && !(intervalProvider instanceof ResizableIntervalProvider)){
+            throw new IllegalArgumentException("Splitting or merging shards requires a ResizableIntervalProvider");
+        }
+    }
+    
+    private long retentionMillis = 0;
+    /**
+     * Gets how long in milliseconds rows are kept, measured from the timestamp
+     * in their shard property.  Defaults to 0, which keeps rows forever.
+     * @see #withRetention(long, java.util.concurrent.TimeUnit) 
+     */
+    public long getRetentionMillis(){
+        return retentionMillis;
+    }
+    /**
+     * Sets how long rows are kept, measured from the timestamp in their shard property.
+     * Once the end of a shard's interval is older than this, the whole shard
+     * file is deleted without reading it.  Requires a shard property class of
+     * {@link Long} or {@link Date}, usually with a {@link org.xflatdb.xflat.query.TimeIntervalProvider}.
+     * @param duration How long to keep rows, or 0 to keep rows forever.
+     * @param unit The unit of the duration.
+     * @return A new instance with the Retention property set.
+     */
+    public ShardsetConfig<T> withRetention(long duration, TimeUnit unit){
+        if(duration < 0){
+            throw new IllegalArgumentException("duration cannot be negative");
+        }
+        if(duration > 0 && !Long.class.equals(shardPropertyClass) && !Date.class.equals(shardPropertyClass)){
+            throw new IllegalArgumentException("Retention requires a shard property class of Long or Date");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.retentionMillis = unit.toMillis(duration);
+        return ret;
+    }
+    
+    private int maxOpenShards = 0;
+    /**
+     * Gets the number of shards that may be spun up at once.
+     * Defaults to 0, which does not limit the open shards.
+     * @see #withMaxOpenShards(int) 
+     */
+    public int getMaxOpenShards(){
+        return maxOpenShards;
+    }
+    /**
+     * Sets the number of shards that may be spun up at once.  When more shards
+     * than this are open, the least recently used shards without uncommitted
+     * data are spun down before their inactivity timeout.
+     * @param maxOpenShards The maximum open shards, or 0 to not limit the open shards.
+     * @return A new instance with the MaxOpenShards property set.
+     */
+    public ShardsetConfig<T> withMaxOpenShards(int maxOpenShards){
+        if(maxOpenShards < 0){
+            throw new IllegalArgumentException("maxOpenShards cannot be negative");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.maxOpenShards = maxOpenShards;
+        return ret;
+    }
+    
+    private long maxOpenShardBytes = 0;
+    /**
+     * Gets the total file size in bytes of the shards that may be spun up at once.
+     * Defaults to 0, which does not limit the open shards by size.
+     * @see #withMaxOpenShardBytes(long) 
+     */
+    public long getMaxOpenShardBytes(){
+        return maxOpenShardBytes;
+    }
+    /**
+     * Sets the total file size in bytes of the shards that may be spun up at once.
+     * An open shard holds its whole file in memory, so this is an estimate of
+     * the heap used by the open shards.  When the open shards are larger than this,
+     * the least recently used shards without uncommitted data are spun down
+     * before their inactivity timeout.
+     * @param maxOpenShardBytes The maximum size of the open shards, or 0 to not limit their size.
+     * @return A new instance with the MaxOpenShardBytes property set.
+     */
+    public ShardsetConfig<T> withMaxOpenShardBytes(long maxOpenShardBytes){
+        if(maxOpenShardBytes < 0){
+            throw new IllegalArgumentException("maxOpenShardBytes cannot be negative");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.maxOpenShardBytes = maxOpenShardBytes;
+        return ret;
+    }
+    
+    /**
+     * Gets whether the number or size of open shards is limited.
+     */
+    public boolean isOpenShardsLimited(){
+        return maxOpenShards > 0 || maxOpenShardBytes > 0;
+    }
+    
+    /**
+     * The order in which shards are chosen to be warmed up when the database starts.
+     * @see ShardsetConfig#withWarmUp(int, org.xflatdb.xflat.ShardsetConfig.WarmUpOrder) 
+     */
+    public enum WarmUpOrder {
+        /**
+         * Warms up the shards whose files were most recently written.
+         */
+        MostRecent,
+        /**
+         * Warms up the shards that were accessed most often, as counted
+         * by the sharded table and saved with its metadata.
+         */
+        MostAccessed
+    }
+    
+    private int warmUpShards = 0;
+    /**
+     * Gets the number of shards that are spun up when the database starts.
+     * Defaults to 0, which spins up shards only as they are needed.
+     * @see #withWarmUp(int, org.xflatdb.xflat.ShardsetConfig.WarmUpOrder) 
+     */
+    public int getWarmUpShards(){
+        return warmUpShards;
+    }
+    
+    private WarmUpOrder warmUpOrder = WarmUpOrder.MostRecent;
+    /**
+     * Gets the order in which shards are chosen to be warmed up.
+     * Defaults to {@link WarmUpOrder#MostRecent}.
+     * @see #withWarmUp(int, org.xflatdb.xflat.ShardsetConfig.WarmUpOrder) 
+     */
+    public WarmUpOrder getWarmUpOrder(){
+        return warmUpOrder;
+    }
+    
+    /**
+     * Sets the number of existing shards that are spun up in parallel on the
+     * executor service when the database starts, so that the first requests
+     * after a restart don't each have to wait for a shard to be read.
+     * The warmed up shards are spun down after their inactivity timeout like
+     * any other shard, and no more than {@link #getMaxOpenShards() } are warmed up.
+     * @param shards The number of shards to warm up, or 0 to not warm up any shards.
+     * @param order How to choose which shards to warm up.
+     * @return A new instance with the WarmUpShards and WarmUpOrder properties set.
+     */
+    public ShardsetConfig<T> withWarmUp(int shards, WarmUpOrder order){
+        if(shards < 0){
+            throw new IllegalArgumentException("shards cannot be negative");
+        }
+        if(order == null){
+            throw new IllegalArgumentException("order cannot be null");
+        }
+        
+        ShardsetConfig<T> ret = new ShardsetConfig<>(this);
+        ret.warmUpShards = shards;
+        ret.warmUpOrder = order;
+        return ret;
+    }
+    
     /**
      * Creates a ShardsetConfig describing a table sharded by ID.  The shard selector
      * will use the {@link XPathQuery#Id} expression.
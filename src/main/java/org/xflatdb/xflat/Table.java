@@ -15,7 +15,10 @@
 */
 package org.xflatdb.xflat;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 
@@ -37,6 +40,17 @@ public interface Table<T> {
     public void insert(T row)
             throws DuplicateKeyException, XFlatException;
     
+    /**
+     * Inserts each object as a row in the database, in one pass over the
+     * table.  Objects without an ID are assigned one as by {@link #insert(java.lang.Object) }.
+     * If any row already exists, none of the rows are inserted.
+     * @param rows The values to insert as XML.
+     * @throws DuplicateKeyException if any row already exists
+     * @throws XFlatException if some other error occurs
+     */
+    public void insertAll(Collection<? extends T> rows)
+            throws DuplicateKeyException, XFlatException;
+    
     //READ
     /**
      * Finds one value by ID
@@ -76,6 +90,21 @@ public interface Table<T> {
     public List<T> findAll(XPathQuery query)
             throws XFlatException;
     
+    /**
+     * Gets a cursor over the values selected by the projection from each row
+     * matching the Xpath query.  Only the projected values are copied out of each
+     * row, and the row is never converted to the table's type, so this is much
+     * cheaper than {@link #find(org.xflatdb.xflat.query.XPathQuery) } when only
+     * a few values of each row are needed.
+     * @param <U> The type of the projection's result.
+     * @param query The query to match.
+     * @param projection The projection selecting the values to read from each row.
+     * @return A cursor over the projected values of each matching row.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public <U> Cursor<U> find(XPathQuery query, Projection<U> projection)
+            throws XFlatException;
+    
     //UPDATE
     /**
      * Replaces a value with the new value by ID.  This is the same as "Save"
@@ -109,6 +138,15 @@ public interface Table<T> {
     public boolean upsert(T newValue)
             throws XFlatException;
     
+    /**
+     * Updates or inserts each row by ID, in one pass over the table.
+     * @param newValues The new values to replace or insert.
+     * @return the number of rows that were inserted.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public int upsertAll(Collection<? extends T> newValues)
+            throws XFlatException;
+    
     /**
      * Applies an update to the data in a given row.
      * @param id The ID of the row to match.
@@ -141,6 +179,16 @@ public interface Table<T> {
     public void delete(Object id)
             throws KeyNotFoundException, XFlatException;
     
+    /**
+     * Deletes the rows with the given IDs, in one pass over the table.
+     * IDs that do not exist are skipped.
+     * @param ids The IDs of the rows to delete.
+     * @return the number of rows that were deleted.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public int deleteByIds(Collection<?> ids)
+            throws XFlatException;
+    
     /**
      * Deletes all rows matching the given query.
      * @param query The query selecting elements to delete.
@@ -149,4 +197,95 @@ public interface Table<T> {
      */
     public int deleteAll(XPathQuery query)
             throws XFlatException;
+    
+    
+    //ASYNCHRONOUS
+    /*
+     * The asynchronous write methods apply the write immediately, in the
+     * current transaction context, and throw the same exceptions as their
+     * synchronous counterparts.  They return without waiting for the data to
+     * be saved to disk; the returned Future completes once it has been.
+     * Inside a transaction the data is saved when the transaction commits,
+     * so the returned Future is already complete.
+     */
+    
+    /**
+     * Inserts an object as a row in the database, without waiting for the
+     * row to be saved to disk.
+     * @param row The value to insert as XML.
+     * @return A Future that completes when the row has been saved to disk.
+     * @throws DuplicateKeyException if the row already exists
+     * @throws XFlatException if some other error occurs
+     */
+    public Future<Void> insertAsync(T row)
+            throws DuplicateKeyException, XFlatException;
+    
+    /**
+     * Replaces a value with the new value by ID, without waiting for the
+     * value to be saved to disk.
+     * @param newValue The new value to replace the old value.
+     * @return A Future that completes when the value has been saved to disk.
+     * @throws KeyNotFoundException if the ID of the newValue is null or 
+     * no row with that ID exists in the database
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Void> replaceAsync(T newValue)
+            throws KeyNotFoundException, XFlatException;
+    
+    /**
+     * Updates or inserts the row by ID, without waiting for the value to be
+     * saved to disk.
+     * @param newValue The new value to replace or insert.
+     * @return A Future yielding the value {@link #upsert(java.lang.Object) } 
+     * would return, which completes when the value has been saved to disk.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Boolean> upsertAsync(T newValue)
+            throws XFlatException;
+    
+    /**
+     * Applies an update to the data in a given row, without waiting for the
+     * row to be saved to disk.
+     * @param id The ID of the row to match.
+     * @param update The update to apply.
+     * @return A Future yielding the value {@link #update(java.lang.Object, org.xflatdb.xflat.query.XPathUpdate) }
+     * would return, which completes when the row has been saved to disk.
+     * @throws KeyNotFoundException if the row does not exist.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Boolean> updateAsync(Object id, XPathUpdate update)
+            throws KeyNotFoundException, XFlatException;
+    
+    /**
+     * Applies an update to all data matching a given query, without waiting
+     * for the rows to be saved to disk.
+     * @param query The query to match.
+     * @param update The update to apply to each matching row.
+     * @return A Future yielding the number of rows that were updated, which
+     * completes when the rows have been saved to disk.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Integer> updateAsync(XPathQuery query, XPathUpdate update)
+            throws XFlatException;
+    
+    /**
+     * Deletes the row with the given ID, without waiting for the deletion
+     * to be saved to disk.
+     * @param id The ID of the row to delete.
+     * @return A Future that completes when the deletion has been saved to disk.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Void> deleteAsync(Object id)
+            throws KeyNotFoundException, XFlatException;
+    
+    /**
+     * Deletes all rows matching the given query, without waiting for the
+     * deletion to be saved to disk.
+     * @param query The query selecting elements to delete.
+     * @return A Future yielding the number of rows that were deleted, which
+     * completes when the deletion has been saved to disk.
+     * @throws XFlatException if some IO or other error occurs
+     */
+    public Future<Integer> deleteAllAsync(XPathQuery query)
+            throws XFlatException;
 }
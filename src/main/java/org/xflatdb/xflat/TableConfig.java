@@ -37,12 +37,16 @@ public class TableConfig {
         this.idGenerator = null;
         this.inactivityShutdownMs = 3000;
         this.shardsetConfig = null;
+        this.conversionPrefetch = 0;
+        this.nearCacheSize = 0;
     }
     
     private TableConfig(TableConfig other){
         this.idGenerator = other.idGenerator;
         this.inactivityShutdownMs = other.inactivityShutdownMs;
         this.shardsetConfig = other.shardsetConfig;
+        this.conversionPrefetch = other.conversionPrefetch;
+        this.nearCacheSize = other.nearCacheSize;
     }
     
     private Class<? extends IdGenerator> idGenerator;
@@ -102,6 +106,70 @@ public class TableConfig {
         return ret;
     }
     
+    private int conversionPrefetch;
+    /**
+     * Gets the number of rows that cursors over this table convert ahead of the reader
+     * on the database's thread pool, or 0 if each row is converted as it is read.
+     * @see #withConversionPrefetch(int) 
+     */
+    public int getConversionPrefetch(){
+        return conversionPrefetch;
+    }
+    /**
+     * Sets that the cursors returned by queries on this table convert their rows
+     * in parallel on the database's thread pool, up to the given number of rows
+     * ahead of the reader.  The values are still returned in the order of the rows.
+     * <p/>
+     * This speeds up reading large result sets of POJOs on machines with many cores,
+     * at the cost of converting up to that many rows which are never read if the
+     * cursor is closed early.
+     * @param conversionPrefetch The maximum number of rows converted ahead of
+     * the reader, or 0 to convert each row as it is read.
+     * @return A new instance with the conversionPrefetch property set.
+     */
+    public TableConfig withConversionPrefetch(int conversionPrefetch){
+        if(conversionPrefetch < 0){
+            throw new IllegalArgumentException("conversionPrefetch cannot be negative");
+        }
+        
+        TableConfig ret = new TableConfig(this);
+        ret.conversionPrefetch = conversionPrefetch;
+        return ret;
+    }
+    
+    private int nearCacheSize;
+    /**
+     * Gets the maximum number of converted objects kept in this table's near cache,
+     * or 0 if the table has no near cache.
+     * @see #withNearCache(int) 
+     */
+    public int getNearCacheSize(){
+        return nearCacheSize;
+    }
+    /**
+     * Sets that this table keeps the objects converted by {@link Table#find(java.lang.Object) }
+     * and {@link KeyValueTable#get(java.lang.String, java.lang.Class) } in a cache,
+     * so that reading a row again does not convert it again until a new value is
+     * committed to the row.  The least recently read rows are evicted to keep
+     * at most the given number of objects.
+     * <p/>
+     * Every read of a cached row returns the same object, so this should only be
+     * used for tables of immutable types, or types which the application copies
+     * before modifying.
+     * @param maxEntries The maximum number of objects in the cache, or 0 for no cache.
+     * @return A new instance with the nearCacheSize property set.
+     * @see org.xflatdb.xflat.db.XFlatDatabase#getNearCacheStatistics(java.lang.String) 
+     */
+    public TableConfig withNearCache(int maxEntries){
+        if(maxEntries < 0){
+            throw new IllegalArgumentException("maxEntries cannot be negative");
+        }
+        
+        TableConfig ret = new TableConfig(this);
+        ret.nearCacheSize = maxEntries;
+        return ret;
+    }
+    
     //TODO: future configuration options
     
     /**
@@ -116,6 +184,8 @@ public class TableConfig {
         int hash = 5;
         hash = 29 * hash + Objects.hashCode(this.idGenerator);
         hash = 29 * hash + (int) (this.inactivityShutdownMs ^ (this.inactivityShutdownMs >>> 32));
+        hash = 29 * hash + this.conversionPrefetch;
+        hash = 29 * hash + this.nearCacheSize;
         return hash;
     }
 
@@ -134,6 +204,12 @@ public class TableConfig {
         if (this.inactivityShutdownMs != other.inactivityShutdownMs) {
             return false;
         }
+        if (this.conversionPrefetch != other.conversionPrefetch) {
+            return false;
+        }
+        if (this.nearCacheSize != other.nearCacheSize) {
+            return false;
+        }
         return true;
     }
 
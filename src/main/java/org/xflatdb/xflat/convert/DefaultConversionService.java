@@ -15,22 +15,30 @@
 */
 package org.xflatdb.xflat.convert;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The default implementation of {@link ConversionService}.  This conversion
  * service manages a mapping of conversions to their converters, and can perform
  * no conversions initially.
+ * <p/>
+ * The mapping is never modified once it is published; adding or removing a converter
+ * replaces it with a modified copy.  Looking up a converter is then a single
+ * volatile read and two hash lookups, without locking, since conversions are
+ * made for every node a query selects while converters are rarely added.
  * @author gordon
  */
 public class DefaultConversionService implements ConversionService {
     
-    private Map<Class<?>, ConverterEntry<?>> converters = new HashMap<>();
+    /** 
+     * The converters by target class, then by source class.  A null source class
+     * maps to the converter for null values.  Replaced on every change, never modified.
+     */
+    private volatile Map<Class<?>, Map<Class<?>, Converter<?, ?>>> converters = Collections.emptyMap();
     
-    private ReadWriteLock converterLock = new ReentrantReadWriteLock();
+    private final Object writeSyncRoot = new Object();
 
     /**
      * Creates a new DefaultConversionService with no registered conversions.
@@ -40,49 +48,39 @@ public class DefaultConversionService implements ConversionService {
     
     @Override
     public boolean canConvert(Class<?> source, Class<?> target) {
-        converterLock.readLock().lock();
-        try{
-            ConverterEntry<?> entry = converters.get(target);
-            if(entry == null)
-                return false;
+        Map<Class<?>, Converter<?, ?>> entry = converters.get(target);
+        if(entry == null || source == null)
+            return false;
 
-            return entry.hasConverter(source);
-        }finally{
-            converterLock.readLock().unlock();
-        }
+        return entry.containsKey(source);
     }
 
     @Override
     public <T> T convert(Object source, Class<T> target) throws ConversionException {        
         Converter<?, ?> converter;
         
-        converterLock.readLock().lock();
-        try{
-            ConverterEntry<T> entry = (ConverterEntry<T>)converters.get(target);
-            if(entry == null){
-                if(source == null){
-                    //no special converter for null, just convert to null.
-                    return null;
-                }
-                //else
-                throw new ConversionNotSupportedException("No converters for target " + target);
+        Map<Class<?>, Converter<?, ?>> entry = converters.get(target);
+        if(entry == null){
+            if(source == null){
+                //no special converter for null, just convert to null.
+                return null;
             }
+            //else
+            throw new ConversionNotSupportedException("No converters for target " + target);
+        }
 
-            if(source == null){
-                converter = entry.getNullConverter();
-                if(converter == null){
-                    //no special converter for null, assume null
-                    return null;
-                }
+        if(source == null){
+            converter = entry.get(null);
+            if(converter == null){
+                //no special converter for null, assume null
+                return null;
             }
-            else{
-                converter = entry.getConverter(source.getClass());
-                if(converter == null){
-                    throw new ConversionNotSupportedException("No converter for source type " + source.getClass());
-                }
+        }
+        else{
+            converter = entry.get(source.getClass());
+            if(converter == null){
+                throw new ConversionNotSupportedException("No converter for source type " + source.getClass());
             }
-        }finally{
-            converterLock.readLock().unlock();
         }
         
         return ((Converter<Object, T>)converter).convert(source);
@@ -90,139 +88,36 @@ public class DefaultConversionService implements ConversionService {
 
     @Override
     public <S, T> void addConverter(Class<S> sourceType, Class<T> targetType, Converter<? super S, ? extends T> converter) {
-        ConverterEntry<T> entry;
-        
-        converterLock.readLock().lock();
-        try{
+        synchronized(writeSyncRoot){
+            Map<Class<?>, Map<Class<?>, Converter<?, ?>>> newConverters = new HashMap<>(this.converters);
             
-            entry = (ConverterEntry<T>)this.converters.get(targetType);
+            Map<Class<?>, Converter<?, ?>> entry = newConverters.get(targetType);
+            entry = entry == null ? new HashMap<Class<?>, Converter<?, ?>>() : new HashMap<>(entry);
+            entry.put(sourceType, converter);
+            newConverters.put(targetType, entry);
             
-        }finally{
-            converterLock.readLock().unlock();
+            this.converters = newConverters;
         }
-        
-        if(entry == null){
-            converterLock.writeLock().lock();
-            try{
-                //doublecheck after locking
-                entry = (ConverterEntry<T>)this.converters.get(targetType);
-                if(entry == null){
-                    entry = new ConverterEntry(targetType);
-                    this.converters.put(targetType, entry);
-                }
-            }finally{
-                converterLock.writeLock().unlock();
-            }
-        }
-            
-        //concurrency managed by the entry
-        entry.putConverter(sourceType, converter);
     }
 
     @Override
     public void removeConverter(Class<?> sourceType, Class<?> targetType) {
-        ConverterEntry<?> entry;
-        converterLock.readLock().lock();
-        try{
-            entry = this.converters.get(targetType);
-        }finally{
-            converterLock.readLock().unlock();
-        }
-        
-        if(entry == null)
-            return;
-
-        //concurrency managed by the entry
-        boolean isEmpty = entry.removeConverter(sourceType);
-        if(isEmpty){
-            converterLock.writeLock().lock();
-            try{
-                //doublecheck inside lock
-                if(entry.isEmpty()){
-                    this.converters.remove(targetType);
-                }
-            }finally{
-                converterLock.writeLock().unlock();
-            }
-        }
-    }
-    
-    private static class ConverterEntry<T>
-    {   
-        private Class<T> targetClass;
-        public Class<T> getTargetClass(){
-            return targetClass;
-        }
-        
-        private Map<Class<?>, Converter<?, ?>> converters = new HashMap<>();
-        
-        private Converter<?, ?> nullConverter;
-        
-        public ConverterEntry(Class<T> targetClass){
-            this.targetClass = targetClass;
-        }
-        
-        /**
-         * Gets a converter for the source class to the target class
-         * defined by this entry.
-         * @param <S> The generic type of the source class.
-         * @param clazz The source class
-         * @return A converter for the source class to this entry's target class
-         */
-        public synchronized <S> Converter<?, ?> getConverter(Class<S> clazz){
-            Converter<?, ?> ret = converters.get(clazz);
-            
-            return ret;
-        }
-        
-        /**
-         * Gets the converter for a null object.
-         * @return 
-         */
-        public synchronized Converter<?, ?> getNullConverter(){
-            return nullConverter;
-        }
-        
-        /**
-         * Returns true iff this entry has a converter for the source class
-         * @param clazz
-         * @return 
-         */
-        public synchronized boolean hasConverter(Class<?> clazz){
-            return converters.containsKey(clazz);
-        }
-        
-        /**
-         * Sets a converter
-         * @param <S>
-         * @param clazz
-         * @param converter 
-         */
-        public synchronized <S> void putConverter(Class<S> clazz, Converter<? super S, ? extends T> converter){
-            if(clazz == null){
-                nullConverter = converter;
+        synchronized(writeSyncRoot){
+            Map<Class<?>, Converter<?, ?>> entry = this.converters.get(targetType);
+            if(entry == null || !entry.containsKey(sourceType))
                 return;
-            }
             
-            this.converters.put(clazz, converter);
-        }
-        
-        /**
-         * Removes the converter associated with the given class
-         * @param clazz 
-         */
-        public synchronized boolean removeConverter(Class<?> clazz){
-            if(clazz == null){
-                nullConverter = null;
-                return this.converters.isEmpty();
+            Map<Class<?>, Map<Class<?>, Converter<?, ?>>> newConverters = new HashMap<>(this.converters);
+            entry = new HashMap<>(entry);
+            entry.remove(sourceType);
+            if(entry.isEmpty()){
+                newConverters.remove(targetType);
             }
-                
-            this.converters.remove(clazz);
-            return this.converters.isEmpty() && nullConverter == null;
-        }
-        
-        public synchronized boolean isEmpty(){
-            return this.converters.isEmpty() && nullConverter == null;
+            else{
+                newConverters.put(targetType, entry);
+            }
+            
+            this.converters = newConverters;
         }
     }
 }
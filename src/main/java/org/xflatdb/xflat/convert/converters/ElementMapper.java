@@ -0,0 +1,927 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.convert.converters;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAnyAttribute;
+import javax.xml.bind.annotation.XmlAnyElement;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementRef;
+import javax.xml.bind.annotation.XmlElementRefs;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlElements;
+import javax.xml.bind.annotation.XmlEnumValue;
+import javax.xml.bind.annotation.XmlList;
+import javax.xml.bind.annotation.XmlMixed;
+import javax.xml.bind.annotation.XmlNsForm;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlSchema;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.XmlValue;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.ConversionNotSupportedException;
+
+/**
+ * Maps the objects of one class directly to and from JDOM Elements, following
+ * the JAXB annotations on the class the way a JAXB marshaller would.
+ * <p/>
+ * The class is introspected once, when the mapper is created, into a list of
+ * properties with method handles bound to their getters and setters or fields.
+ * Mapping an object then only walks that list, building or reading the Element
+ * without going through an XML stream or an intermediate Document.
+ * <p/>
+ * Only the common subset of JAXB is supported: {@link XmlRootElement}, {@link XmlType#propOrder()},
+ * {@link XmlAccessorType}, {@link XmlTransient}, {@link XmlElement}, {@link XmlAttribute},
+ * {@link XmlValue}, {@link XmlElementWrapper}, {@link XmlEnumValue} and the
+ * {@link XmlSchema} namespace of the package.  Properties may be strings, primitives
+ * and their wrappers, BigInteger, BigDecimal, Date, enums, other mappable classes,
+ * or collections of these.  An element property may also be a {@link Lazy} of a
+ * single one of these, which is converted when first accessed.  Classes using
+ * anything else cannot be mapped.
+ * @author Gordon
+ */
+class ElementMapper<T> {
+    
+    private final Class<T> type;
+    
+    private MethodHandle constructor;
+    
+    private String name;
+    private Namespace namespace;
+    
+    private final List<Property> attributes = new ArrayList<>();
+    private final List<Property> elements = new ArrayList<>();
+    private Property value;
+    
+    /** The element properties by the qualified name of the child they read. */
+    private final Map<String, Property> elementsByName = new HashMap<>();
+    
+    /** The prefixed namespaces of attributes, by URI. */
+    private final Map<String, Namespace> attributeNamespaces = new HashMap<>();
+    
+    private ElementMapper(Class<T> type){
+        this.type = type;
+    }
+    
+    /**
+     * Gets the class mapped by this mapper.
+     */
+    public Class<T> getType(){
+        return type;
+    }
+    
+    /**
+     * Creates a mapper for the given class, and for the classes of its properties.
+     * @param type The class to map.
+     * @param mappers The mappers already created, which are used for the classes
+     * of properties.  Every new mapper is added to this map, even if a later mapper fails.
+     * @return The mapper for the class.
+     * @throws ConversionNotSupportedException if the class or one of its properties cannot be mapped.
+     */
+    static <U> ElementMapper<U> create(Class<U> type, Map<Class<?>, ElementMapper<?>> mappers) throws ConversionNotSupportedException{
+        Map<Class<?>, ElementMapper<?>> building = new HashMap<>();
+        ElementMapper<U> ret = create(type, mappers, building);
+        
+        //only add the mappers once they are all complete
+        mappers.putAll(building);
+        return ret;
+    }
+    
+    @SuppressWarnings("unchecked") //each mapper is kept under the type it maps
+    private static <U> ElementMapper<U> create(Class<U> type, Map<Class<?>, ElementMapper<?>> mappers, Map<Class<?>, ElementMapper<?>> building) 
+            throws ConversionNotSupportedException
+    {
+        ElementMapper<U> ret = (ElementMapper<U>)mappers.get(type);
+        if(ret == null){
+            ret = (ElementMapper<U>)building.get(type);
+        }
+        if(ret != null){
+            return ret;
+        }
+        
+        ret = new ElementMapper<>(type);
+        //put it in first so that classes can refer to themselves
+        building.put(type, ret);
+        ret.introspect(mappers, building);
+        return ret;
+    }
+    
+    /**
+     * Converts the object to an Element named by the class's root element.
+     */
+    public Element toElement(T pojo) throws ConversionException{
+        Element ret = new Element(name, namespace);
+        write(pojo, ret);
+        return ret;
+    }
+    
+    /**
+     * Creates an object and reads its properties from the given element.
+     * The name of the element is not checked.
+     */
+    public T fromElement(Element source) throws ConversionException{
+        T ret = newInstance();
+        read(source, ret);
+        return ret;
+    }
+    
+    private T newInstance() throws ConversionException{
+        try {
+            return type.cast((Object)constructor.invokeExact());
+        } catch (Error err){
+            throw err;
+        } catch (Throwable t) {
+            throw new ConversionException("Unable to create instance of " + type, t);
+        }
+    }
+    
+    private void write(Object pojo, Element target) throws ConversionException{
+        for(Property p : attributes){
+            Object v = p.get(pojo);
+            if(v != null){
+                target.setAttribute(p.name, format(v), p.namespace);
+            }
+        }
+        
+        if(value != null){
+            Object v = value.get(pojo);
+            if(v != null){
+                target.setText(format(v));
+            }
+        }
+        
+        for(Property p : elements){
+            Object v = p.get(pojo);
+            if(v == null){
+                continue;
+            }
+            
+            if(p.lazy){
+                Element unloaded = ((Lazy<?>)v).getSource();
+                if(unloaded != null){
+                    //never loaded, so store it as it was read
+                    target.addContent(unloaded.clone());
+                    continue;
+                }
+                v = ((Lazy<?>)v).get();
+                if(v == null){
+                    continue;
+                }
+            }
+            
+            Element parent = target;
+            if(p.wrapperName != null){
+                parent = new Element(p.wrapperName, p.wrapperNamespace);
+                target.addContent(parent);
+            }
+            
+            if(p.collection){
+                for(Object item : (Collection<?>)v){
+                    if(item != null){
+                        parent.addContent(p.toElement(item));
+                    }
+                }
+            }
+            else{
+                parent.addContent(p.toElement(v));
+            }
+        }
+    }
+    
+    private void read(Element source, Object pojo) throws ConversionException{
+        for(Property p : attributes){
+            Attribute attr = source.getAttribute(p.name, p.namespace);
+            if(attr != null){
+                p.set(pojo, parse(attr.getValue(), p.itemType));
+            }
+        }
+        
+        if(value != null){
+            value.set(pojo, parse(source.getText(), value.itemType));
+        }
+        
+        if(elementsByName.isEmpty()){
+            return;
+        }
+        
+        Map<Property, Collection<Object>> collections = null;
+        for(Element child : source.getChildren()){
+            Property p = elementsByName.get(qualify(child.getNamespace(), child.getName()));
+            if(p == null){
+                continue;
+            }
+            
+            if(p.wrapperName != null){
+                //read the items inside the wrapper
+                Collection<Object> items = p.getOrCreateCollection(pojo);
+                for(Element item : child.getChildren(p.name, p.namespace)){
+                    items.add(p.fromElement(item));
+                }
+            }
+            else if(p.collection){
+                if(collections == null){
+                    collections = new HashMap<>();
+                }
+                Collection<Object> items = collections.get(p);
+                if(items == null){
+                    items = p.getOrCreateCollection(pojo);
+                    collections.put(p, items);
+                }
+                items.add(p.fromElement(child));
+            }
+            else if(p.lazy){
+                p.set(pojo, new Lazy<>(child.clone(), p.loader));
+            }
+            else{
+                p.set(pojo, p.fromElement(child));
+            }
+        }
+    }
+    
+    private void introspect(Map<Class<?>, ElementMapper<?>> mappers, Map<Class<?>, ElementMapper<?>> building) 
+            throws ConversionNotSupportedException
+    {
+        if(type.isInterface() || type.isAnnotation() || type.isEnum() || type.isArray() || type.isPrimitive() ||
+                Modifier.isAbstract(type.getModifiers()) ||
+                (type.getEnclosingClass() != null && !Modifier.isStatic(type.getModifiers()))){
+            throw new ConversionNotSupportedException("Cannot map " + type + ", it must be a concrete top-level or static class");
+        }
+        checkSupported(type, type);
+        
+        try {
+            Constructor<T> ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            this.constructor = MethodHandles.lookup().unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException ex) {
+            throw new ConversionNotSupportedException("Cannot map " + type + ", it must have an accessible no-arg constructor", ex);
+        }
+        
+        XmlRootElement root = type.getAnnotation(XmlRootElement.class);
+        this.name = root == null || "##default".equals(root.name()) ? defaultName(type) : root.name();
+        this.namespace = Namespace.getNamespace(root == null || "##default".equals(root.namespace()) ? 
+                schemaNamespace(type) : root.namespace());
+        
+        //superclass properties come first, as in JAXB
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for(Class<?> c = type; c != null && !Object.class.equals(c); c = c.getSuperclass()){
+            if(c != type && c.getAnnotation(XmlTransient.class) != null){
+                continue;
+            }
+            hierarchy.add(0, c);
+        }
+        
+        Map<String, Property> properties = new LinkedHashMap<>();
+        for(Class<?> c : hierarchy){
+            Map<String, Property> declared = new LinkedHashMap<>();
+            findProperties(c, declared);
+            
+            String[] order = c.getAnnotation(XmlType.class) == null ? new String[0] : c.getAnnotation(XmlType.class).propOrder();
+            if(order.length == 1 && "".equals(order[0])){
+                //the default, which leaves the order to the class
+                order = new String[0];
+            }
+            for(String name : order){
+                Property p = declared.remove(name);
+                if(p == null){
+                    throw new ConversionNotSupportedException("Cannot map " + type + ", the propOrder of " + c + 
+                            " names " + name + " which is not a mapped property");
+                }
+                properties.put(name, p);
+            }
+            if(order.length > 0){
+                //like JAXB, a propOrder must list every property mapped to an element
+                for(Property p : declared.values()){
+                    if(p.annotated.getAnnotation(XmlAttribute.class) == null && p.annotated.getAnnotation(XmlValue.class) == null){
+                        throw new ConversionNotSupportedException("Cannot map " + type + ", the propOrder of " + c + 
+                                " does not list the property " + p.javaName);
+                    }
+                }
+            }
+            properties.putAll(declared);
+        }
+        
+        for(Property p : properties.values()){
+            p.bind(this, mappers, building);
+            
+            switch(p.kind){
+                case Attribute:
+                    attributes.add(p);
+                    break;
+                case Value:
+                    if(value != null || p.collection){
+                        throw new ConversionNotSupportedException("Cannot map " + type + ", it has more than one XmlValue");
+                    }
+                    value = p;
+                    break;
+                default:
+                    elements.add(p);
+                    String key = p.wrapperName != null ?
+                            qualify(p.wrapperNamespace, p.wrapperName) :
+                            qualify(p.namespace, p.name);
+                    if(elementsByName.put(key, p) != null){
+                        throw new ConversionNotSupportedException("Cannot map " + type + ", more than one property maps to the element " + key);
+                    }
+                    break;
+            }
+        }
+        
+        if(value != null && !elements.isEmpty()){
+            throw new ConversionNotSupportedException("Cannot map " + type + ", it has both an XmlValue and elements");
+        }
+    }
+    
+    /**
+     * Finds the properties and fields declared on the given class that are mapped
+     * according to its access type.
+     */
+    private void findProperties(Class<?> c, Map<String, Property> declared) throws ConversionNotSupportedException{
+        XmlAccessorType accessorType = c.getAnnotation(XmlAccessorType.class);
+        if(accessorType == null && c.getPackage() != null){
+            accessorType = c.getPackage().getAnnotation(XmlAccessorType.class);
+        }
+        XmlAccessType access = accessorType == null ? XmlAccessType.PUBLIC_MEMBER : accessorType.value();
+        
+        PropertyDescriptor[] descriptors;
+        try {
+            descriptors = Introspector.getBeanInfo(c, c.getSuperclass()).getPropertyDescriptors();
+        } catch (IntrospectionException ex) {
+            throw new ConversionNotSupportedException("Cannot introspect " + c, ex);
+        }
+        
+        for(PropertyDescriptor d : descriptors){
+            Method getter = d.getReadMethod();
+            Method setter = d.getWriteMethod();
+            if(getter == null || getter.getDeclaringClass() != c || isTransient(getter) || isTransient(setter)){
+                continue;
+            }
+            
+            boolean annotated = isAnnotated(getter) || isAnnotated(setter);
+            boolean include = annotated ||
+                    (access == XmlAccessType.PROPERTY && setter != null) ||
+                    (access == XmlAccessType.PUBLIC_MEMBER && setter != null &&
+                        Modifier.isPublic(getter.getModifiers()) && Modifier.isPublic(setter.getModifiers()));
+            if(!include){
+                continue;
+            }
+            
+            checkSupported(getter, c);
+            checkSupported(setter, c);
+            declared.put(d.getName(), new Property(d.getName(), getter, setter, getter.getGenericReturnType(), 
+                    annotated ? (isAnnotated(getter) ? getter : setter) : getter));
+        }
+        
+        for(Field f : c.getDeclaredFields()){
+            int mod = f.getModifiers();
+            if(Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic() || isTransient(f)){
+                continue;
+            }
+            
+            boolean include = isAnnotated(f) ||
+                    access == XmlAccessType.FIELD ||
+                    (access == XmlAccessType.PUBLIC_MEMBER && Modifier.isPublic(mod));
+            if(!include){
+                continue;
+            }
+            
+            if(declared.containsKey(f.getName())){
+                if(isAnnotated(f)){
+                    throw new ConversionNotSupportedException("Cannot map " + c + ", it has two properties named " + f.getName());
+                }
+                //the property already maps the field
+                continue;
+            }
+            if(Modifier.isFinal(mod)){
+                throw new ConversionNotSupportedException("Cannot map final field " + f.getName() + " of " + c);
+            }
+            
+            checkSupported(f, c);
+            declared.put(f.getName(), new Property(f, c));
+        }
+    }
+    
+    private static boolean isTransient(AnnotatedElement member){
+        return member != null && member.getAnnotation(XmlTransient.class) != null;
+    }
+    
+    private static boolean isAnnotated(AnnotatedElement member){
+        if(member == null){
+            return false;
+        }
+        
+        for(Annotation a : member.getAnnotations()){
+            if(a.annotationType().getName().startsWith("javax.xml.bind.annotation.")){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Throws if the member uses a JAXB feature this mapper doesn't implement.
+     */
+    private static void checkSupported(AnnotatedElement member, Class<?> declaringClass) throws ConversionNotSupportedException{
+        if(member == null){
+            return;
+        }
+        
+        Class<?>[] unsupported = new Class<?>[]{
+            XmlAnyElement.class, XmlAnyAttribute.class, XmlElements.class, XmlElementRef.class,
+            XmlElementRefs.class, XmlJavaTypeAdapter.class, XmlMixed.class, XmlList.class
+        };
+        for(Class<?> a : unsupported){
+            if(member.getAnnotation(a.asSubclass(Annotation.class)) != null){
+                throw new ConversionNotSupportedException("Cannot map " + declaringClass + ", " + 
+                        a.getSimpleName() + " is not supported");
+            }
+        }
+    }
+    
+    private String qualify(Namespace ns, String name){
+        return ns.getURI().isEmpty() ? name : "{" + ns.getURI() + "}" + name;
+    }
+    
+    /**
+     * Gets a namespace that can be used for attributes, which need a prefix.
+     */
+    private Namespace prefixedNamespace(String uri){
+        if(uri.isEmpty()){
+            return Namespace.NO_NAMESPACE;
+        }
+        
+        Namespace ret = attributeNamespaces.get(uri);
+        if(ret == null){
+            ret = Namespace.getNamespace("ns" + (attributeNamespaces.size() + 1), uri);
+            attributeNamespaces.put(uri, ret);
+        }
+        return ret;
+    }
+    
+    private static String defaultName(Class<?> c){
+        String simple = c.getSimpleName();
+        return Character.toLowerCase(simple.charAt(0)) + simple.substring(1);
+    }
+    
+    private static String schemaNamespace(Class<?> c){
+        XmlSchema schema = c.getPackage() == null ? null : c.getPackage().getAnnotation(XmlSchema.class);
+        return schema == null ? "" : schema.namespace();
+    }
+    
+    private static String elementNamespace(Class<?> c, String declared){
+        if(!"##default".equals(declared)){
+            return declared;
+        }
+        XmlSchema schema = c.getPackage() == null ? null : c.getPackage().getAnnotation(XmlSchema.class);
+        return schema != null && schema.elementFormDefault() == XmlNsForm.QUALIFIED ? schema.namespace() : "";
+    }
+    
+    private static String attributeNamespace(Class<?> c, String declared){
+        if(!"##default".equals(declared)){
+            return declared;
+        }
+        XmlSchema schema = c.getPackage() == null ? null : c.getPackage().getAnnotation(XmlSchema.class);
+        return schema != null && schema.attributeFormDefault() == XmlNsForm.QUALIFIED ? schema.namespace() : "";
+    }
+    
+    private enum Kind { Attribute, Element, Value }
+    
+    /**
+     * A mapped property or field of the class.
+     */
+    private static class Property {
+        private final String javaName;
+        private final Class<?> declaringClass;
+        private final AnnotatedElement annotated;
+        private final Type genericType;
+        
+        private MethodHandle getter;
+        private MethodHandle setter;
+        
+        private Kind kind;
+        private String name;
+        private Namespace namespace;
+        private String wrapperName;
+        private Namespace wrapperNamespace;
+        
+        private boolean collection;
+        private Class<?> collectionType;
+        
+        //whether the property is a Lazy of the item type
+        private boolean lazy;
+        private Lazy.Loader<Object> loader;
+        private Class<?> itemType;
+        private ElementMapper<?> itemMapper;
+        
+        private Method getterMethod;
+        private Method setterMethod;
+        private Field field;
+        
+        public Property(String javaName, Method getter, Method setter, Type genericType, AnnotatedElement annotated){
+            this.javaName = javaName;
+            this.declaringClass = getter.getDeclaringClass();
+            this.getterMethod = getter;
+            this.setterMethod = setter;
+            this.genericType = genericType;
+            this.annotated = annotated;
+        }
+        
+        public Property(Field field, Class<?> declaringClass){
+            this.javaName = field.getName();
+            this.declaringClass = declaringClass;
+            this.field = field;
+            this.genericType = field.getGenericType();
+            this.annotated = field;
+        }
+        
+        /**
+         * Resolves the XML name, type and accessors of the property.
+         */
+        private void bind(ElementMapper<?> owner, Map<Class<?>, ElementMapper<?>> mappers, Map<Class<?>, ElementMapper<?>> building) 
+                throws ConversionNotSupportedException
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try{
+                if(field != null){
+                    field.setAccessible(true);
+                    getter = lookup.unreflectGetter(field);
+                    setter = lookup.unreflectSetter(field);
+                }
+                else{
+                    getterMethod.setAccessible(true);
+                    getter = lookup.unreflect(getterMethod);
+                    if(setterMethod != null){
+                        setterMethod.setAccessible(true);
+                        setter = lookup.unreflect(setterMethod);
+                    }
+                }
+            }catch(IllegalAccessException | RuntimeException ex){
+                throw new ConversionNotSupportedException("Cannot access property " + javaName + " of " + declaringClass, ex);
+            }
+            getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+            if(setter != null){
+                setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            }
+            
+            //resolve the types
+            Type propertyType = genericType;
+            if(Lazy.class.equals(rawType(propertyType))){
+                if(!(propertyType instanceof ParameterizedType)){
+                    throw new ConversionNotSupportedException("Cannot map raw Lazy " + javaName + " of " + declaringClass);
+                }
+                lazy = true;
+                propertyType = ((ParameterizedType)propertyType).getActualTypeArguments()[0];
+                loader = new Lazy.Loader<Object>(){
+                    @Override
+                    public Object load(Element source) throws ConversionException {
+                        return fromElement(source);
+                    }
+                };
+            }
+            
+            Class<?> raw = rawType(propertyType);
+            if(lazy && (Collection.class.isAssignableFrom(raw) || Lazy.class.equals(raw))){
+                throw new ConversionNotSupportedException("Cannot map Lazy " + javaName + " of " + declaringClass + ", only single values can be lazy");
+            }
+            if(Collection.class.isAssignableFrom(raw)){
+                if(!(propertyType instanceof ParameterizedType)){
+                    throw new ConversionNotSupportedException("Cannot map raw collection " + javaName + " of " + declaringClass);
+                }
+                collection = true;
+                collectionType = raw;
+                itemType = rawType(((ParameterizedType)propertyType).getActualTypeArguments()[0]);
+                if(setter == null && collectionImplementation() == null){
+                    throw new ConversionNotSupportedException("Cannot create collection " + javaName + " of " + declaringClass);
+                }
+            }
+            else{
+                itemType = raw;
+            }
+            
+            if(!isSimple(itemType)){
+                if(itemType.isArray() || Map.class.isAssignableFrom(itemType) || Collection.class.isAssignableFrom(itemType) ||
+                        itemType.getName().startsWith("java.")){
+                    throw new ConversionNotSupportedException("Cannot map property " + javaName + " of type " + itemType + " in " + declaringClass);
+                }
+                itemMapper = ElementMapper.create(itemType, mappers, building);
+            }
+            
+            //resolve the XML name
+            XmlAttribute attr = annotated.getAnnotation(XmlAttribute.class);
+            XmlValue val = annotated.getAnnotation(XmlValue.class);
+            XmlElement el = annotated.getAnnotation(XmlElement.class);
+            XmlElementWrapper wrapper = annotated.getAnnotation(XmlElementWrapper.class);
+            if(lazy && (attr != null || val != null)){
+                throw new ConversionNotSupportedException("Cannot map Lazy " + javaName + " of " + declaringClass + ", only elements can be lazy");
+            }
+            if(attr != null){
+                if(collection || itemMapper != null){
+                    throw new ConversionNotSupportedException("Cannot map XmlAttribute " + javaName + " of " + declaringClass + ", it is not a simple type");
+                }
+                kind = Kind.Attribute;
+                name = "##default".equals(attr.name()) ? javaName : attr.name();
+                namespace = owner.prefixedNamespace(attributeNamespace(declaringClass, attr.namespace()));
+            }
+            else if(val != null){
+                if(itemMapper != null){
+                    throw new ConversionNotSupportedException("Cannot map XmlValue " + javaName + " of " + declaringClass + ", it is not a simple type");
+                }
+                kind = Kind.Value;
+            }
+            else{
+                kind = Kind.Element;
+                name = el == null || "##default".equals(el.name()) ? javaName : el.name();
+                namespace = Namespace.getNamespace(elementNamespace(declaringClass, el == null ? "##default" : el.namespace()));
+                if(wrapper != null){
+                    if(!collection){
+                        throw new ConversionNotSupportedException("Cannot map XmlElementWrapper " + javaName + " of " + declaringClass + ", it is not a collection");
+                    }
+                    wrapperName = "##default".equals(wrapper.name()) ? javaName : wrapper.name();
+                    wrapperNamespace = Namespace.getNamespace(elementNamespace(declaringClass, wrapper.namespace()));
+                }
+            }
+        }
+        
+        private static Class<?> rawType(Type type) throws ConversionNotSupportedException{
+            if(type instanceof Class){
+                return (Class<?>)type;
+            }
+            if(type instanceof ParameterizedType){
+                return (Class<?>)((ParameterizedType)type).getRawType();
+            }
+            throw new ConversionNotSupportedException("Cannot map generic type " + type);
+        }
+        
+        private Class<?> collectionImplementation(){
+            if(!collectionType.isInterface() && !Modifier.isAbstract(collectionType.getModifiers())){
+                return collectionType;
+            }
+            if(SortedSet.class.isAssignableFrom(collectionType)){
+                return TreeSet.class;
+            }
+            if(Set.class.isAssignableFrom(collectionType)){
+                return LinkedHashSet.class;
+            }
+            if(collectionType.isAssignableFrom(ArrayList.class)){
+                return ArrayList.class;
+            }
+            return null;
+        }
+        
+        public Object get(Object pojo) throws ConversionException{
+            try{
+                return (Object)getter.invokeExact(pojo);
+            }catch(Error err){
+                throw err;
+            }catch(Throwable t){
+                throw new ConversionException("Unable to get property " + javaName + " of " + declaringClass, t);
+            }
+        }
+        
+        public void set(Object pojo, Object value) throws ConversionException{
+            if(setter == null){
+                return;
+            }
+            try{
+                setter.invokeExact(pojo, value);
+            }catch(Error err){
+                throw err;
+            }catch(Throwable t){
+                throw new ConversionException("Unable to set property " + javaName + " of " + declaringClass, t);
+            }
+        }
+        
+        /**
+         * Gets the collection in the property, or sets a new one if the property
+         * is null or can be set.  Like JAXB, a collection without a setter is
+         * filled in place.
+         */
+        @SuppressWarnings("unchecked") //the property's type was checked to be a collection
+        public Collection<Object> getOrCreateCollection(Object pojo) throws ConversionException{
+            Collection<Object> ret = (Collection<Object>)get(pojo);
+            if(ret != null && setter == null){
+                ret.clear();
+                return ret;
+            }
+            
+            Class<?> impl = collectionImplementation();
+            if(impl == null){
+                throw new ConversionException("Cannot create collection " + javaName + " of " + declaringClass);
+            }
+            try {
+                ret = (Collection<Object>)impl.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException ex) {
+                throw new ConversionException("Cannot create collection " + javaName + " of " + declaringClass, ex);
+            }
+            set(pojo, ret);
+            return ret;
+        }
+        
+        public Element toElement(Object item) throws ConversionException{
+            Element ret = new Element(name, namespace);
+            if(itemMapper != null){
+                itemMapper.write(item, ret);
+            }
+            else{
+                ret.setText(format(item));
+            }
+            return ret;
+        }
+        
+        public Object fromElement(Element source) throws ConversionException{
+            if(itemMapper != null){
+                Object ret = itemMapper.newInstance();
+                itemMapper.read(source, ret);
+                return ret;
+            }
+            return parse(source.getText(), itemType);
+        }
+    }
+    
+    //the lexical forms of simple types are read and written by DatatypeConverter, as JAXB does
+    
+    private static final Map<Class<?>, Map<String, Enum<?>>> enumValues = new ConcurrentHashMap<>();
+    private static final Map<Enum<?>, String> enumNames = new ConcurrentHashMap<>();
+    
+    private static boolean isSimple(Class<?> c){
+        return c.isPrimitive() || c.isEnum() ||
+                String.class.equals(c) || Boolean.class.equals(c) ||
+                Byte.class.equals(c) || Short.class.equals(c) || Integer.class.equals(c) || Long.class.equals(c) ||
+                Float.class.equals(c) || Double.class.equals(c) ||
+                BigInteger.class.equals(c) || BigDecimal.class.equals(c) || Date.class.equals(c);
+    }
+    
+    private static String format(Object value){
+        if(value instanceof String){
+            return (String)value;
+        }
+        if(value instanceof Integer){
+            return DatatypeConverter.printInt((Integer)value);
+        }
+        if(value instanceof Long){
+            return DatatypeConverter.printLong((Long)value);
+        }
+        if(value instanceof Boolean){
+            return DatatypeConverter.printBoolean((Boolean)value);
+        }
+        if(value instanceof Double){
+            return DatatypeConverter.printDouble((Double)value);
+        }
+        if(value instanceof Float){
+            return DatatypeConverter.printFloat((Float)value);
+        }
+        if(value instanceof Short){
+            return DatatypeConverter.printShort((Short)value);
+        }
+        if(value instanceof Byte){
+            return DatatypeConverter.printByte((Byte)value);
+        }
+        if(value instanceof BigInteger){
+            return DatatypeConverter.printInteger((BigInteger)value);
+        }
+        if(value instanceof BigDecimal){
+            return DatatypeConverter.printDecimal((BigDecimal)value);
+        }
+        if(value instanceof Date){
+            GregorianCalendar cal = new GregorianCalendar();
+            cal.setTime((Date)value);
+            return DatatypeConverter.printDateTime(cal);
+        }
+        if(value instanceof Enum){
+            return enumName((Enum<?>)value);
+        }
+        return value.toString();
+    }
+    
+    private static Object parse(String text, Class<?> type) throws ConversionException{
+        try{
+            if(String.class.equals(type)){
+                return text;
+            }
+            if(int.class.equals(type) || Integer.class.equals(type)){
+                return DatatypeConverter.parseInt(text);
+            }
+            if(long.class.equals(type) || Long.class.equals(type)){
+                return DatatypeConverter.parseLong(text);
+            }
+            if(boolean.class.equals(type) || Boolean.class.equals(type)){
+                return DatatypeConverter.parseBoolean(text);
+            }
+            if(double.class.equals(type) || Double.class.equals(type)){
+                return DatatypeConverter.parseDouble(text);
+            }
+            if(float.class.equals(type) || Float.class.equals(type)){
+                return DatatypeConverter.parseFloat(text);
+            }
+            if(short.class.equals(type) || Short.class.equals(type)){
+                return DatatypeConverter.parseShort(text);
+            }
+            if(byte.class.equals(type) || Byte.class.equals(type)){
+                return DatatypeConverter.parseByte(text);
+            }
+            if(BigInteger.class.equals(type)){
+                return DatatypeConverter.parseInteger(text);
+            }
+            if(BigDecimal.class.equals(type)){
+                return DatatypeConverter.parseDecimal(text);
+            }
+            if(Date.class.equals(type)){
+                return DatatypeConverter.parseDateTime(text).getTime();
+            }
+            if(type.isEnum()){
+                Enum<?> ret = enumValues(type).get(text.trim());
+                if(ret == null){
+                    throw new ConversionException("No value " + text + " in enum " + type);
+                }
+                return ret;
+            }
+        }catch(IllegalArgumentException | NullPointerException ex){
+            //DatatypeConverter throws NullPointerException for an invalid boolean
+            throw new ConversionException("Unable to read " + type + " from '" + text + "'", ex);
+        }
+        
+        throw new ConversionNotSupportedException("Cannot read type " + type);
+    }
+    
+    private static String enumName(Enum<?> value){
+        String ret = enumNames.get(value);
+        if(ret == null){
+            enumValues(value.getDeclaringClass());
+            ret = enumNames.get(value);
+        }
+        return ret;
+    }
+    
+    private static Map<String, Enum<?>> enumValues(Class<?> type){
+        Map<String, Enum<?>> ret = enumValues.get(type);
+        if(ret != null){
+            return ret;
+        }
+        
+        ret = new HashMap<>();
+        for(Object constant : type.getEnumConstants()){
+            Enum<?> e = (Enum<?>)constant;
+            String name = e.name();
+            try {
+                XmlEnumValue xmlName = type.getField(e.name()).getAnnotation(XmlEnumValue.class);
+                if(xmlName != null){
+                    name = xmlName.value();
+                }
+            } catch (NoSuchFieldException ex) {
+                //constants are always public fields
+            }
+            ret.put(name, e);
+            enumNames.put(e, name);
+        }
+        enumValues.put(type, ret);
+        return ret;
+    }
+}
@@ -0,0 +1,120 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.convert.converters;
+
+import org.jdom2.Element;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.convert.ConversionException;
+
+/**
+ * A property of a POJO which is converted from its stored Element only when
+ * it is first accessed.  Declare a mapped property of type Lazy to avoid
+ * converting a large subtree, like an embedded document or an attachment,
+ * every time the row is read when most reads don't need it.
+ * <p/>
+ * Lazy properties are supported by the {@link MappingPojoConverter}.  When the
+ * converter reads a row it keeps a copy of the property's element in the Lazy
+ * and converts it on the first call to {@link #get() }.  If the property was
+ * never loaded, writing the object back stores that element as it was read,
+ * without converting it either way.
+ * @param <T> The type of the property's value.
+ * @author Gordon
+ */
+public class Lazy<T> {
+    
+    /**
+     * Converts the element of a Lazy property to its value.
+     */
+    interface Loader<T> {
+        T load(Element source) throws ConversionException;
+    }
+    
+    private T value;
+    
+    //the unconverted element, or null once the value is loaded
+    private Element source;
+    private Loader<T> loader;
+    
+    /**
+     * Creates a Lazy with a null value.
+     */
+    public Lazy(){
+    }
+    
+    /**
+     * Creates a Lazy with the given value, which is already loaded.
+     * @param value The value of the property.
+     */
+    public Lazy(T value){
+        this.value = value;
+    }
+    
+    Lazy(Element source, Loader<T> loader){
+        this.source = source;
+        this.loader = loader;
+    }
+    
+    /**
+     * Gets the value of the property, converting it from its stored element
+     * if this is the first access.
+     * @return The value of the property.
+     * @throws XFlatException if the stored element cannot be converted.
+     */
+    public synchronized T get(){
+        if(source != null){
+            try {
+                value = loader.load(source);
+            } catch (ConversionException ex) {
+                throw new XFlatException("Unable to load lazy property from element " + source.getName(), ex);
+            }
+            source = null;
+            loader = null;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Sets the value of the property, discarding the stored element if it was
+     * never loaded.
+     * @param value The new value of the property.
+     */
+    public synchronized void set(T value){
+        this.value = value;
+        this.source = null;
+        this.loader = null;
+    }
+    
+    /**
+     * Gets whether the value has been converted from its stored element, or was
+     * set directly.
+     */
+    public synchronized boolean isLoaded(){
+        return source == null;
+    }
+    
+    /**
+     * Gets the stored element if the value has not been loaded, or null if it has.
+     */
+    synchronized Element getSource(){
+        return source;
+    }
+    
+    @Override
+    public synchronized String toString(){
+        return source == null ? "Lazy{" + value + '}' : "Lazy{not loaded}";
+    }
+}
@@ -0,0 +1,180 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.convert.converters;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.LogFactory;
+import org.jdom2.Element;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.ConversionNotSupportedException;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.convert.Converter;
+import org.xflatdb.xflat.convert.PojoConverter;
+
+/**
+ * A PojoConverter that maps POJOs directly to and from JDOM Elements according
+ * to their JAXB annotations, without going through the JAXB runtime.
+ * <p/>
+ * Each class is introspected once into a mapper that builds and reads the Element
+ * itself, which is much faster than marshalling into a new Document for each object.
+ * The Elements have the same names and structure that {@link JAXBPojoConverter}
+ * would produce, so the two can be used on the same data.  Classes using JAXB
+ * features that the mapper doesn't support are converted by a JAXBPojoConverter instead.
+ * <p/>
+ * Properties of type {@link Lazy} are converted only when they are first accessed,
+ * so reading a row with a large subtree that is rarely used is cheap.
+ * <p/>
+ * To use this converter, set the {@link org.xflatdb.xflat.DatabaseConfig#withPojoConverterClass(java.lang.String) pojo converter class}
+ * to org.xflatdb.xflat.convert.converters.MappingPojoConverter.
+ * @author Gordon
+ */
+public class MappingPojoConverter implements PojoConverter {
+
+    /**
+     * Extends the given conversion service with converters built by the mapper,
+     * falling back to JAXB for classes the mapper cannot convert.
+     * @param service The service to extend
+     * @return A new service that extends the functionality of the given service.
+     */
+    @Override
+    public ConversionService extend(ConversionService service) {
+        if(service instanceof MappingConversionService){
+            return service;
+        }
+        
+        return new MappingConversionService(service, new JAXBPojoConverter().extend(service));
+    }
+    
+    private static class MappingConversionService implements ConversionService {
+        
+        private final ConversionService base;
+        
+        private final ConversionService fallback;
+        
+        private final Map<Class<?>, ElementMapper<?>> mappers = new ConcurrentHashMap<>();
+        
+        private final Set<Class<?>> cannotMap = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+        
+        public MappingConversionService(ConversionService base, ConversionService fallback){
+            this.base = base;
+            this.fallback = fallback;
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> source, Class<?> target) {
+            if(base.canConvert(source, target)){
+                return true;
+            }
+            
+            //are we converting to/from Element?
+            if(!Element.class.equals(source) && !Element.class.equals(target)){
+                return false;
+            }
+            
+            Class<?> pojoClass = Element.class.equals(source) ? target : source;
+            if(makeConverters(pojoClass)){
+                return true;
+            }
+            
+            return fallback.canConvert(source, target);
+        }
+
+        @Override
+        public <T> T convert(Object source, Class<T> target) throws ConversionException {
+            try{
+                return base.convert(source, target);
+            }
+            catch(ConversionNotSupportedException ex){
+                Class<?> pojoClass;
+                if(Element.class.equals(target)){
+                    if(source == null){
+                        throw ex;
+                    }
+                    pojoClass = source.getClass();
+                }
+                else if(source instanceof Element){
+                    pojoClass = target;
+                }
+                else{
+                    throw ex;
+                }
+                
+                if(makeConverters(pojoClass)){
+                    //try again now that we made converters
+                    return base.convert(source, target);
+                }
+                
+                return fallback.convert(source, target);
+            }
+        }
+
+        @Override
+        public <S, T> void addConverter(Class<S> sourceType, Class<T> targetType, Converter<? super S, ? extends T> converter) {
+            base.addConverter(sourceType, targetType, converter);
+        }
+
+        @Override
+        public void removeConverter(Class<?> sourceType, Class<?> targetType) {
+            base.removeConverter(sourceType, targetType);
+        }
+        
+        /**
+         * Creates a mapper for the class and registers its converters.
+         * @return false if the class cannot be mapped.
+         */
+        private synchronized boolean makeConverters(Class<?> pojoClass){
+            if(mappers.containsKey(pojoClass)){
+                return true;
+            }
+            if(cannotMap.contains(pojoClass) ||
+                    pojoClass.isPrimitive() ||
+                    pojoClass.isEnum() ||
+                    pojoClass.isArray() ||
+                    pojoClass.getName().startsWith("java.")){
+                return false;
+            }
+            
+            try{
+                addConverters(ElementMapper.create(pojoClass, mappers));
+                return true;
+            }
+            catch(ConversionNotSupportedException ex){
+                LogFactory.getLog(getClass())
+                    .trace("Falling back to JAXB for class " + pojoClass, ex);
+                cannotMap.add(pojoClass);
+                return false;
+            }
+        }
+        
+        private <T> void addConverters(final ElementMapper<T> mapper){
+            base.addConverter(mapper.getType(), Element.class, new Converter<T, Element>(){
+                @Override
+                public Element convert(T source) throws ConversionException {
+                    return mapper.toElement(source);
+                }
+            });
+            base.addConverter(Element.class, mapper.getType(), new Converter<Element, T>(){
+                @Override
+                public T convert(Element source) throws ConversionException {
+                    return mapper.fromElement(source);
+                }
+            });
+        }
+    }
+}
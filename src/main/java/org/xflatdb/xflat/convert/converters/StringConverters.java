@@ -17,6 +17,7 @@ package org.xflatdb.xflat.convert.converters;
 
 import java.text.ParseException;
 import java.util.Date;
+import java.util.UUID;
 import org.xflatdb.xflat.convert.ConversionException;
 import org.xflatdb.xflat.convert.ConversionService;
 import org.xflatdb.xflat.convert.Converter;
@@ -38,12 +39,14 @@ public class StringConverters {
         service.addConverter(String.class, Float.class, StringToFloatConverter);
         service.addConverter(String.class, Long.class, StringToLongConverter);
         service.addConverter(String.class, Date.class, StringToDateConverter);
+        service.addConverter(String.class, UUID.class, StringToUuidConverter);
         
         service.addConverter(Integer.class, String.class, ObjectToStringConverter);
         service.addConverter(Boolean.class, String.class, ObjectToStringConverter);
         service.addConverter(Double.class, String.class, ObjectToStringConverter);
         service.addConverter(Float.class, String.class, ObjectToStringConverter);
         service.addConverter(Long.class, String.class, ObjectToStringConverter);
+        service.addConverter(UUID.class, String.class, ObjectToStringConverter);
         service.addConverter(null, String.class, ObjectToStringConverter);
         
         service.addConverter(Date.class, String.class, DateToStringConverter);
@@ -114,6 +117,17 @@ public class StringConverters {
         }
     };
     
+    public static final Converter<String, UUID> StringToUuidConverter = new Converter<String, UUID>(){
+        @Override
+        public UUID convert(String source) throws ConversionException {
+            try{
+                return UUID.fromString(source);
+            }catch(IllegalArgumentException ex){
+                throw new ConversionException("Error parsing UUID", ex);
+            }
+        }
+    };
+    
     public static final Converter<Object, String> ObjectToStringConverter = new Converter<Object, String>(){
         @Override
         public String convert(Object source) {
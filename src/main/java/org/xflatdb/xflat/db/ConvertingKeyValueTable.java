@@ -16,8 +16,11 @@
 package org.xflatdb.xflat.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.jdom2.Element;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
@@ -53,6 +56,11 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
         this.loadPojoMapperAction = action;
     }
     
+    private NearCache nearCache;
+    void setNearCache(NearCache nearCache){
+        this.nearCache = nearCache;
+    }
+    
     public ConvertingKeyValueTable(String tableName){
         super(tableName);
     }
@@ -108,6 +116,27 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
             }
         });
     }
+    
+    @Override
+    public <T> void addAll(Map<String, T> rows) throws DuplicateKeyException {
+        final Map<String, Element> data = convertAll(rows);
+        
+        this.doWithEngine(new EngineActionEx<Object, DuplicateKeyException>(){
+            @Override
+            public Object act(Engine engine) throws DuplicateKeyException {
+                engine.insertRows(data);
+                return null;
+            }
+        });
+    }
+    
+    private <T> Map<String, Element> convertAll(Map<String, T> rows){
+        Map<String, Element> ret = new LinkedHashMap<>();
+        for(Map.Entry<String, T> row : rows.entrySet()){
+            ret.put(row.getKey(), convert(row.getValue(), row.getKey()));
+        }
+        return ret;
+    }
 
     @Override
     public <T> void set(final String key, T row){
@@ -122,6 +151,19 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
         });
     }
     
+    @Override
+    public <T> void setAll(Map<String, T> rows){
+        final Map<String, Element> data = convertAll(rows);
+        
+        this.doWithEngine(new EngineAction<Object>(){
+            @Override
+            public Object act(Engine engine) {
+                engine.upsertRows(data);
+                return null;
+            }
+        });
+    }
+    
     @Override
     public <T> T put(final String key, T row) {
         Class<? extends T> clazz = (Class<? extends T>)row.getClass();
@@ -163,7 +205,16 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
     }
 
     @Override
-    public <T> T get(final String key, Class<T> clazz) {
+    public <T> T get(final String key, final Class<T> clazz) {
+        if(this.nearCache != null){
+            return this.doWithEngine(new EngineAction<T>(){
+                @Override
+                public T act(Engine engine) {
+                    return getCached(engine, key, clazz);
+                }
+            });
+        }
+        
         Element data = this.doWithEngine(new EngineAction<Element>(){
             @Override
             public Element act(Engine engine) {
@@ -179,6 +230,34 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
         return ret;
     }
 
+    /**
+     * Reads a row through the near cache, converting it only if the cache has
+     * no object of the class for the row's current version.
+     */
+    private <T> T getCached(Engine engine, String key, Class<T> clazz){
+        long version = engine.getRowVersion(key);
+        if(version == -1){
+            return null;
+        }
+        
+        T ret = this.nearCache.get(key, version, clazz);
+        if(ret != null){
+            return ret;
+        }
+        
+        Element data = engine.readRow(key);
+        if(data == null){
+            return null;
+        }
+        
+        ret = convert(data, key, clazz);
+        //only cache it if the row wasn't written while we read it
+        if(engine.getRowVersion(key) == version){
+            this.nearCache.put(key, version, clazz, ret);
+        }
+        return ret;
+    }
+
     @Override
     public <T> T findOne(XPathQuery query, Class<T> clazz) {
         Element e = findOneElement(query);
@@ -270,6 +349,16 @@ public class ConvertingKeyValueTable extends TableBase implements KeyValueTable
             }
         });
     }
+    
+    @Override
+    public int deleteByKeys(final Collection<String> keys) {
+        return this.doWithEngine(new EngineAction<Integer>(){
+            @Override
+            public Integer act(Engine engine) {
+                return engine.deleteRows(keys);
+            }
+        });
+    }
 
     @Override
     public int deleteAll(final XPathQuery query) {
@@ -16,12 +16,21 @@
 package org.xflatdb.xflat.db;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.commons.logging.LogFactory;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
@@ -30,6 +39,7 @@ import org.xflatdb.xflat.Table;
 import org.xflatdb.xflat.XFlatException;
 import org.xflatdb.xflat.convert.ConversionException;
 import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 import org.jdom2.Element;
@@ -57,6 +67,26 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
         this.conversionService = conversionService;
     }
     
+    private NearCache nearCache;
+    void setNearCache(NearCache nearCache){
+        this.nearCache = nearCache;
+    }
+    
+    private ExecutorService conversionExecutor;
+    private int conversionPrefetch = 0;
+    /**
+     * Sets this table to convert the rows read by its cursors on the given
+     * executor, up to the given number of rows ahead of the reader.
+     * @param executor The executor on which to convert rows.
+     * @param prefetch The maximum number of rows converted ahead of the reader,
+     * or 0 to convert each row on the reader's thread.
+     * @see org.xflatdb.xflat.TableConfig#withConversionPrefetch(int) 
+     */
+    void setParallelConversion(ExecutorService executor, int prefetch){
+        this.conversionExecutor = executor;
+        this.conversionPrefetch = prefetch;
+    }
+    
     private final IdAccessor accessor;
     
     private final Map<T, String> idMap;
@@ -212,11 +242,39 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
             }
         });
     }
+    
+    @Override
+    public void insertAll(Collection<? extends T> rows) throws DuplicateKeyException {
+        final Map<String, Element> data = new LinkedHashMap<>();
+        for(T row : rows){
+            String id = getOrGenerateId(row);
+            if(data.put(id, convert(row, id)) != null){
+                throw new DuplicateKeyException(id);
+            }
+        }
+        
+        this.doWithEngine(new EngineActionEx<Object, DuplicateKeyException>(){
+            @Override
+            public Object act(Engine engine) throws DuplicateKeyException {
+                engine.insertRows(data);
+                return null;
+            }
+        });
+    }
 
     @Override
     public T find(Object id) {
         final String sId = this.getIdGenerator().idToString(id);
         
+        if(this.nearCache != null){
+            return this.doWithEngine(new EngineAction<T>(){
+                @Override
+                public T act(Engine engine) {
+                    return findCached(engine, sId);
+                }
+            });
+        }
+        
         Element data = this.doWithEngine(new EngineAction<Element>(){
             @Override
             public Element act(Engine engine) {
@@ -232,6 +290,34 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
         return ret;
     }
 
+    /**
+     * Reads a row through the near cache, converting it only if the cache has
+     * no object for the row's current version.
+     */
+    private T findCached(Engine engine, String sId){
+        long version = engine.getRowVersion(sId);
+        if(version == -1){
+            return null;
+        }
+        
+        T ret = this.nearCache.get(sId, version, this.getTableType());
+        if(ret != null){
+            return ret;
+        }
+        
+        Element data = engine.readRow(sId);
+        if(data == null){
+            return null;
+        }
+        
+        ret = convert(data);
+        //only cache it if the row wasn't written while we read it
+        if(engine.getRowVersion(sId) == version){
+            this.nearCache.put(sId, version, this.getTableType(), ret);
+        }
+        return ret;
+    }
+
     @Override
     public T findOne(final XPathQuery query) {
         Element e = findOneElement(query);
@@ -275,7 +361,7 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
         return this.doWithEngine(new EngineAction<Cursor<T>>(){
             @Override
             public Cursor<T> act(Engine engine) {
-                return new ConvertingCursor(engine.queryTable(query));
+                return convertingCursor(engine.queryTable(query));
             }
         });
     }
@@ -284,14 +370,35 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
     public List<T> findAll(XPathQuery query) {
         List<T> ret = new ArrayList<>();
         
-        try(Cursor<Element> data = this.queryTable(query)){
-            for(Element e : data){
-                ret.add(convert(e));
+        try(Cursor<T> data = this.convertingCursor(this.queryTable(query))){
+            for(T t : data){
+                ret.add(t);
             }
         }
         
         return ret;
     }
+    
+    private Cursor<T> convertingCursor(Cursor<Element> rowCursor){
+        if(this.conversionPrefetch > 0 && this.conversionExecutor != null){
+            return new ParallelConvertingCursor(rowCursor, this.conversionPrefetch);
+        }
+        
+        return new ConvertingCursor(rowCursor);
+    }
+
+    @Override
+    public <U> Cursor<U> find(XPathQuery query, final Projection<U> projection) {
+        final XPathQuery projected = query.withProjection(projection);
+        projected.setAlternateIdExpression(alternateIdExpression);
+        
+        return this.doWithEngine(new EngineAction<Cursor<U>>(){
+            @Override
+            public Cursor<U> act(Engine engine) {
+                return new ProjectingCursor<>(engine.queryTable(projected), projection, conversionService);
+            }
+        });
+    }
 
     @Override
     public void replace(T newValue) throws KeyNotFoundException {
@@ -371,6 +478,22 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
             }
         });
     }
+    
+    @Override
+    public int upsertAll(Collection<? extends T> newValues) {
+        final Map<String, Element> data = new LinkedHashMap<>();
+        for(T value : newValues){
+            String id = getOrGenerateId(value);
+            data.put(id, convert(value, id));
+        }
+        
+        return this.doWithEngine(new EngineAction<Integer>(){
+            @Override
+            public Integer act(Engine engine) {
+                return engine.upsertRows(data);
+            }
+        });
+    }
 
     @Override
     public boolean update(Object id, final XPathUpdate update) throws KeyNotFoundException {
@@ -414,6 +537,24 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
             }
         });
     }
+    
+    @Override
+    public int deleteByIds(Collection<?> ids) {
+        final List<String> sIds = new ArrayList<>(ids.size());
+        for(Object id : ids){
+            if(id == null){
+                throw new IllegalArgumentException("id cannot be null");
+            }
+            sIds.add(this.getIdGenerator().idToString(id));
+        }
+        
+        return this.doWithEngine(new EngineAction<Integer>(){
+            @Override
+            public Integer act(Engine engine) {
+                return engine.deleteRows(sIds);
+            }
+        });
+    }
 
     @Override
     public int deleteAll(final XPathQuery query) {
@@ -427,6 +568,44 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
         });
     }
     
+    @Override
+    public Future<Void> insertAsync(T row) throws DuplicateKeyException {
+        insert(row);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Void> replaceAsync(T newValue) throws KeyNotFoundException {
+        replace(newValue);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Boolean> upsertAsync(T newValue) {
+        return whenDurable(upsert(newValue));
+    }
+    
+    @Override
+    public Future<Boolean> updateAsync(Object id, XPathUpdate update) throws KeyNotFoundException {
+        return whenDurable(update(id, update));
+    }
+    
+    @Override
+    public Future<Integer> updateAsync(XPathQuery query, XPathUpdate update) {
+        return whenDurable(update(query, update));
+    }
+    
+    @Override
+    public Future<Void> deleteAsync(Object id) throws KeyNotFoundException {
+        delete(id);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Integer> deleteAllAsync(XPathQuery query) {
+        return whenDurable(deleteAll(query));
+    }
+    
     private class ConvertingCursor implements Cursor<T>{
         Cursor<Element> rowCursor;
         
@@ -445,6 +624,113 @@ public class ConvertingTable<T> extends TableBase implements Table<T> {
         }
     }
     
+    /**
+     * A cursor which converts rows on the conversion executor.  The rows are still
+     * read from the engine's cursor on the reader's thread, but each is handed
+     * to a worker to convert, up to the prefetch number of rows ahead of the reader.
+     * The converted values are returned in the order the engine returned the rows.
+     */
+    private class ParallelConvertingCursor implements Cursor<T>{
+        private final Cursor<Element> rowCursor;
+        private final int prefetch;
+        
+        private final List<ParallelConvertingIterator> iterators = new ArrayList<>();
+        
+        public ParallelConvertingCursor(Cursor<Element> rowCursor, int prefetch){
+            this.rowCursor = rowCursor;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            ParallelConvertingIterator ret = new ParallelConvertingIterator(this.rowCursor.iterator(), prefetch);
+            synchronized(iterators){
+                iterators.add(ret);
+            }
+            return ret;
+        }
+
+        @Override
+        public void close() throws XFlatException {
+            synchronized(iterators){
+                for(ParallelConvertingIterator it : iterators){
+                    it.cancel();
+                }
+                iterators.clear();
+            }
+            
+            this.rowCursor.close();
+        }
+    }
+    
+    private class ParallelConvertingIterator implements Iterator<T>{
+        private final Iterator<Element> rowIterator;
+        private final int prefetch;
+        
+        //the conversions of the rows read ahead, in order
+        private final Deque<Future<T>> pending;
+        
+        public ParallelConvertingIterator(Iterator<Element> rowIterator, int prefetch){
+            this.rowIterator = rowIterator;
+            this.prefetch = prefetch;
+            this.pending = new ArrayDeque<>(prefetch);
+        }
+        
+        private void fill(){
+            while(pending.size() < prefetch && rowIterator.hasNext()){
+                final Element row = rowIterator.next();
+                pending.add(conversionExecutor.submit(new Callable<T>(){
+                    @Override
+                    public T call() {
+                        return convert(row);
+                    }
+                }));
+            }
+        }
+        
+        void cancel(){
+            for(Future<T> f : pending){
+                f.cancel(false);
+            }
+            pending.clear();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pending.isEmpty() || rowIterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            fill();
+            Future<T> next = pending.poll();
+            if(next == null){
+                throw new NoSuchElementException();
+            }
+            
+            //keep the workers busy while we wait for this row
+            fill();
+            
+            try {
+                return next.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new XFlatException("Interrupted while converting data", ex);
+            } catch (ExecutionException ex) {
+                if(ex.getCause() instanceof RuntimeException){
+                    //the same exception as converting on this thread
+                    throw (RuntimeException)ex.getCause();
+                }
+                throw new XFlatException("Cannot convert data", ex.getCause());
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported on cursors.");
+        }
+    }
+    
     private class ConvertingCursorIterator implements Iterator<T>{
         Iterator<Element> rowIterator;
         
@@ -0,0 +1,93 @@
+/*
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.ShardsetConfig;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.XPathQuery;
+
+/**
+ * A cursor that queries across multiple shards of a {@link ShardedEngineBase}.
+ * Each iteration scans up to {@link ShardsetConfig#getQueryParallelism()} shards
+ * at a time on the executor service, and each shard scan reads up to
+ * {@link ShardsetConfig#getQueryPrefetch()} rows ahead of the reader.  A shard
+ * scan that has read far enough ahead gives up its thread until the reader catches up.
+ * <p/>
+ * If the query is made inside a transaction, the shard cursors are opened on the
+ * calling thread so that they read in the transaction, and only the scanning is
+ * done on the executor service.
+ * <p/>
+ * This cursor is NOT thread-safe.
+ * @author Gordon
+ */
+class CrossShardQueryCursor<T> implements Cursor<Element>{
+    
+    private final ShardedEngineBase<T> engine;
+    private final XPathQuery query;
+    private final List<Interval<T>> intervals;
+    
+    private final Set<ShardScanIterator<T>> openIterators = Collections.newSetFromMap(new ConcurrentHashMap<ShardScanIterator<T>, Boolean>());
+    private volatile boolean closed = false;
+    
+    public CrossShardQueryCursor(ShardedEngineBase<T> engine, XPathQuery query, List<Interval<T>> shardIntervals){
+        this.engine = engine;
+        this.query = query;
+        this.intervals = shardIntervals;
+    }
+    
+    @Override
+    public Iterator<Element> iterator() {
+        if(this.closed){
+            throw new IllegalStateException("Cursor is closed");
+        }
+        
+        ShardScanIterator<T> ret = new ShardScanIterator<>(engine, query, intervals);
+        openIterators.add(ret);
+        ret.start();
+        return ret;
+    }
+    
+    @Override
+    public void close() throws XFlatException {
+        if(this.closed){
+            return;
+        }
+        this.closed = true;
+        
+        Exception last = null;
+        for(ShardScanIterator<T> it : openIterators){
+            try{
+                it.cancel();
+            }catch(Exception e){
+                last = e;
+            }
+        }
+        
+        engine.crossShardQueryClosed(this);
+        
+        if(last != null){
+            throw new XFlatException("Exception while closing multi-shard cursor", last);
+        }
+    }
+}
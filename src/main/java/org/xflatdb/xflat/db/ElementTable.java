@@ -16,14 +16,20 @@
 package org.xflatdb.xflat.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Future;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.Table;
 import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 import org.jdom2.Attribute;
@@ -37,6 +43,11 @@ import org.xflatdb.xflat.XFlatConstants;
 public class ElementTable extends TableBase implements Table<Element> {
 
     
+    private ConversionService conversionService;
+    public void setConversionService(ConversionService conversionService) {
+        this.conversionService = conversionService;
+    }
+    
     ElementTable(String tableName){
         super(tableName);
     }
@@ -62,6 +73,31 @@ public class ElementTable extends TableBase implements Table<Element> {
             });
         
     }
+    
+    @Override
+    public void insertAll(Collection<? extends Element> rows) throws DuplicateKeyException {
+        final Map<String, Element> data = new LinkedHashMap<>();
+        for(Element row : rows){
+            String id = getId(row);
+            if(id == null){
+                id = generateNewId();
+                setId(id, row);
+            }
+            
+            //always clone incoming data
+            if(data.put(id, row.clone()) != null){
+                throw new DuplicateKeyException(id);
+            }
+        }
+        
+        this.doWithEngine(new EngineActionEx<Object, DuplicateKeyException>(){
+                @Override
+                public Object act(Engine engine) throws DuplicateKeyException {
+                    engine.insertRows(data);
+                    return null;
+                }
+            });
+    }
 
     @Override
     public Element find(Object id) {
@@ -117,6 +153,18 @@ public class ElementTable extends TableBase implements Table<Element> {
         }
     }
 
+    @Override
+    public <U> Cursor<U> find(XPathQuery query, final Projection<U> projection) {
+        final XPathQuery projected = query.withProjection(projection);
+        
+        return this.doWithEngine(new EngineAction<Cursor<U>>(){
+            @Override
+            public Cursor<U> act(Engine engine) {
+                return new ProjectingCursor<>(engine.queryTable(projected), projection, conversionService);
+            }
+        });
+    }
+
     @Override
     public void replace(Element newValue) throws KeyNotFoundException {
         final String id = getId(newValue);
@@ -202,6 +250,28 @@ public class ElementTable extends TableBase implements Table<Element> {
             });
         }
     }
+    
+    @Override
+    public int upsertAll(Collection<? extends Element> newValues) {
+        final Map<String, Element> data = new LinkedHashMap<>();
+        for(Element value : newValues){
+            String id = getId(value);
+            if(id == null){
+                id = generateNewId();
+                setId(id, value);
+            }
+            
+            //always clone incoming data
+            data.put(id, value.clone());
+        }
+        
+        return this.doWithEngine(new EngineAction<Integer>(){
+            @Override
+            public Integer act(Engine engine) {
+                return engine.upsertRows(data);
+            }
+        });
+    }
 
     @Override
     public boolean update(Object id, final XPathUpdate update) throws KeyNotFoundException {
@@ -240,6 +310,24 @@ public class ElementTable extends TableBase implements Table<Element> {
             }
         });
     }
+    
+    @Override
+    public int deleteByIds(Collection<?> ids) {
+        final List<String> sIds = new ArrayList<>(ids.size());
+        for(Object id : ids){
+            if(id == null){
+                throw new IllegalArgumentException("id cannot be null");
+            }
+            sIds.add(getId(id));
+        }
+        
+        return this.doWithEngine(new EngineAction<Integer>(){
+            @Override
+            public Integer act(Engine engine) {
+                return engine.deleteRows(sIds);
+            }
+        });
+    }
 
     @Override
     public int deleteAll(final XPathQuery query) {
@@ -251,6 +339,44 @@ public class ElementTable extends TableBase implements Table<Element> {
         });
     }
     
+    @Override
+    public Future<Void> insertAsync(Element row) throws DuplicateKeyException {
+        insert(row);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Void> replaceAsync(Element newValue) throws KeyNotFoundException {
+        replace(newValue);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Boolean> upsertAsync(Element newValue) {
+        return whenDurable(upsert(newValue));
+    }
+    
+    @Override
+    public Future<Boolean> updateAsync(Object id, XPathUpdate update) throws KeyNotFoundException {
+        return whenDurable(update(id, update));
+    }
+    
+    @Override
+    public Future<Integer> updateAsync(XPathQuery query, XPathUpdate update) {
+        return whenDurable(update(query, update));
+    }
+    
+    @Override
+    public Future<Void> deleteAsync(Object id) throws KeyNotFoundException {
+        delete(id);
+        return whenDurable(null);
+    }
+    
+    @Override
+    public Future<Integer> deleteAllAsync(XPathQuery query) {
+        return whenDurable(deleteAll(query));
+    }
+    
     
     private String getId(Element element){
         Attribute a = element.getAttribute("id", XFlatConstants.xFlatNs);
@@ -15,6 +15,9 @@
 */
 package org.xflatdb.xflat.db;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.KeyNotFoundException;
@@ -48,6 +51,16 @@ public interface Engine {
     public void insertRow(String id, Element data)
             throws DuplicateKeyException;
     
+    /**
+     * Inserts each of the given data elements into a row, in one pass
+     * over the engine.  The whole batch is validated before any row is written,
+     * so if any Id already exists none of the rows are inserted.
+     * @param rows The data elements to insert, keyed by their unique Id.
+     * @throws DuplicateKeyException if any row already exists.
+     */
+    public void insertRows(Map<String, Element> rows)
+            throws DuplicateKeyException;
+    
     
     //READ
     /**
@@ -57,6 +70,15 @@ public interface Engine {
      */
     public Element readRow(String id);
     
+    /**
+     * Gets the version of a row, which identifies the value that {@link #readRow(java.lang.String) }
+     * would return in the current transaction.  A row gets a new version whenever
+     * a new value is written to it, so two reads of the same version return the same data.
+     * @param id The Id of the row.
+     * @return The version of the row, or -1 if no row exists with that Id.
+     */
+    public long getRowVersion(String id);
+    
     /**
      * Returns a cursor over the rows in the table matching the given
      * query.
@@ -103,6 +125,13 @@ public interface Engine {
      */
     public boolean upsertRow(String id, Element data);
     
+    /**
+     * Updates or inserts each of the given rows, in one pass over the engine.
+     * @param rows The data to replace or insert, keyed by the row Id.
+     * @return the number of rows that were inserted.
+     */
+    public int upsertRows(Map<String, Element> rows);
+    
     //DELETE
     
     /**
@@ -112,10 +141,30 @@ public interface Engine {
     public void deleteRow(String id)
             throws KeyNotFoundException;
     
+    /**
+     * Deletes each of the given rows, in one pass over the engine.  Ids that
+     * do not exist are skipped.
+     * @param ids The IDs of the rows to delete.
+     * @return the number of rows that were deleted.
+     */
+    public int deleteRows(Collection<String> ids);
+    
     /**
      * Deletes all rows matching the given query.
      * @param query The query that matches database rows.
      * @return the number of rows that were deleted.
      */
     public int deleteAll(XPathQuery query);
+    
+    //DURABILITY
+    
+    /**
+     * Requests that all data written to this engine outside of a transaction
+     * be saved to disk, without waiting for the write to happen.
+     * Transactional data becomes durable when the transaction commits, so
+     * inside a transaction the returned Future is already complete.
+     * @return A Future that completes once the data written so far has been
+     * saved to disk.
+     */
+    public Future<?> flush();
 }
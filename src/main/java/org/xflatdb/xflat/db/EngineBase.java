@@ -15,27 +15,35 @@
 */
 package org.xflatdb.xflat.db;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom2.Element;
+import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.EngineStateException;
+import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.XFlatConstants;
 import org.xflatdb.xflat.XFlatException;
 import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.convert.Converter;
 import org.xflatdb.xflat.db.EngineBase.RowData;
 import org.xflatdb.xflat.transaction.Transaction;
+import org.xflatdb.xflat.transaction.TransactionContext;
 import org.xflatdb.xflat.transaction.TransactionException;
 import org.xflatdb.xflat.transaction.TransactionOptions;
 import org.xflatdb.xflat.transaction.TransactionStateException;
+import org.xflatdb.xflat.util.CompositeFuture;
 
 /**
  * The base class for Engine objects.  The Database uses the functionality
@@ -215,37 +223,35 @@ public abstract class EngineBase implements Engine {
     //</editor-fold>
 
     
-    private final AtomicLong tableLock = new AtomicLong(-1);
-    private int tableLockCount = 0;
-    private final Object tableLockSync = new Object();
+    //write operations hold the table lock shared, spin-up, spin-down and cleanup hold it exclusively.
+    private final TableLock tableLock = new TableLock();
     
-    private final AtomicInteger writesInProgress = new AtomicInteger(0);
+    //how long to wait for writes in progress to complete when taking the table lock.
+    private static final long WRITE_DRAIN_TIMEOUT = 500;
+    
+    /**
+     * Gets the owner of any table lock taken by the running task.  This is
+     * the entered {@link TransactionContext} if there is one, so that a task
+     * holding the lock may continue on another thread, or the current thread
+     * otherwise.
+     */
+    private static Object getLockOwner(){
+        TransactionContext ctx = TransactionContext.current();
+        if(ctx != null){
+            return ctx;
+        }
+        return Thread.currentThread();
+    }
     
     /**
      * Called before every write to ensure we are ready to write. <br/>
-     * This method also checks if there is a current table lock, and increments
-     * the {@link #writesInProgress} counter.
+     * This method takes a shared hold on the table lock, waiting if another
+     * task holds the table lock.  The hold is released by {@link #writeComplete() }.
      * <p/>
      * If the engine is spinning down then we throw because engines are read-only
      * when spinning down.
      */
     protected Transaction ensureWriteReady() throws TransactionStateException {
-        //check if there is a write lock on the table
-        long tblLock = tableLock.get();
-        if(tblLock != -1 && tblLock != Thread.currentThread().getId()){
-            synchronized(tableLockSync){
-                tblLock = tableLock.get();
-                while(tblLock != -1 && tblLock != Thread.currentThread().getId()){                    
-                    try {
-                        tableLockSync.wait();
-                    } catch (InterruptedException ex) {                        
-                    }
-                    
-                    tblLock = tableLock.get();
-                }
-            }
-        }
-        
         Transaction tx = this.transactionManager.getTransaction();
         if(tx != null){
             if(tx.isReadOnly()){
@@ -259,24 +265,22 @@ public abstract class EngineBase implements Engine {
             }
         }
         
-        
-        //check the engine state
-        EngineState state = this.state.get();
-        if(state == EngineState.SpunDown ||
-                state == EngineState.SpinningDown){
-            throw new EngineStateException("Write operations not supported on an engine that is spinning down", state);
-        }
-        
-        //we're about to write, so the engine must be bound to the current transaction
-        this.transactionManager.bindEngineToCurrentTransaction(this);
-        
-        //increment the number of writes in progress
-        int inprog = this.writesInProgress.incrementAndGet();
-        if(inprog < 1){
-            //dunno how we got here, try to correct
-            this.writesInProgress.compareAndSet(inprog, 1);
-            if(log.isTraceEnabled())
-                log.trace(String.format("Writes in progress was less than 1: %d", inprog));
+        //wait out any table lock held by another task
+        this.tableLock.lockShared(getLockOwner());
+        try{
+            //check the engine state
+            EngineState state = this.state.get();
+            if(state == EngineState.SpunDown ||
+                    state == EngineState.SpinningDown){
+                throw new EngineStateException("Write operations not supported on an engine that is spinning down", state);
+            }
+
+            //we're about to write, so the engine must be bound to the current transaction
+            this.transactionManager.bindEngineToCurrentTransaction(this);
+        }catch(RuntimeException ex){
+            //the caller won't call writeComplete if we throw
+            this.tableLock.unlockShared();
+            throw ex;
         }
         
         return tx;
@@ -284,27 +288,22 @@ public abstract class EngineBase implements Engine {
     
     /**
      * Called inside a finally block within every write operation -
-     * this is a synchronizing measure for write locks
+     * this releases the hold on the table lock taken by {@link #ensureWriteReady() }
      */
     protected void writeComplete(){
-        //decrement the number of writes in progress
-        int inprog = this.writesInProgress.decrementAndGet();
-        if(inprog < 0){
-            this.writesInProgress.compareAndSet(inprog, 0);
-            if(log.isTraceEnabled())
-                log.trace(String.format("Writes in progress was less than 1: %d", inprog));
-        }
+        this.tableLock.unlockShared();
     }
     
     /**
-     * Obtains a write lock on the table for this thread.
+     * Obtains a write lock on the table for the running task.  The lock is owned
+     * by the entered {@link TransactionContext}, or by the current thread if
+     * no context has been entered.
      * <p/>
      * New write operations will block until the lock is released with {@link #releaseTableLock() }.
      * This method will wait after obtaining the lock until all in-progress write operations
-     * have terminated.
+     * have terminated, and throws if they do not terminate in a timely manner.
      * <p/>
-     * Since I don't exactly trust this to never throw an exception, it would of
-     * course be good practice to always use the following pattern:
+     * It is good practice to always use the following pattern:
      * <pre>
      * try{
      *      engine.getTableLock();
@@ -317,77 +316,25 @@ public abstract class EngineBase implements Engine {
      * </pre>
      */
     protected void getTableLock(){
-        long thread = Thread.currentThread().getId();
-        
-        if(this.tableLock.get() == thread){
-            this.tableLockCount++;
-            return;
-        }
-        
-        synchronized(tableLockSync){
-            while(!this.tableLock.compareAndSet(-1, thread)){
-                if(this.tableLock.get() == thread){
-                    this.tableLockCount++;
-                    return;
-                }
-                
-                try {
-                    //wait until we can obtain the lock for this thread.
-                    tableLockSync.wait();
-                } catch (InterruptedException ex) {
-                }
-            }
-            this.tableLockCount++;
-            
-            //spin wait on writes in progress - this should only decrement while we have a write lock            
-            long start = System.currentTimeMillis();
-            long nanos = System.nanoTime();
-            while(this.writesInProgress.get() > 0){
-                
-                //if we've been waiting longer than 500ms something is amiss
-                if(System.currentTimeMillis() - start > 500){
-                    //release the lock before throwing
-                    this.tableLock.compareAndSet(thread, -1);
-                    this.tableLockCount--;
-                    throw new XFlatException(String.format("Cannot obtain table lock - %d long running writes in progress", this.writesInProgress.get()));
-                }
-                
-                //if we've been spin-waiting longer than 500ns then sleep the thread
-                if(System.nanoTime() - nanos > 500){
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException ex) {
-                    }
-                }
-            }
-        }
-        
+        this.tableLock.lockExclusive(getLockOwner(), WRITE_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
     }
     
     /**
-     * Releases a write lock on the table that was obtained by this thread.
-     * If the current thread did not own the lock then this method does nothing.
+     * Releases a write lock on the table that was obtained by the running task.
+     * If the current owner did not own the lock then this method does nothing.
      * <p/>
      * ALWAYS call this in a finally block after calling {@link #getTableLock() }
      */
     protected void releaseTableLock(){
-        if(this.tableLock.get() != Thread.currentThread().getId()){
-            return;
-        }
-        
-        synchronized(tableLockSync){
-            if(this.tableLock.get() != Thread.currentThread().getId()){
-                return;
-            }
-            
-            if(--this.tableLockCount == 0){
-                //last reentrant release encountered
-                if(this.tableLock.compareAndSet(Thread.currentThread().getId(), -1)){
-                    //notify of lock released
-                    tableLockSync.notifyAll();
-                }
-            }
-        }
+        this.tableLock.unlockExclusive(getLockOwner());
+    }
+    
+    /**
+     * Gets the wait-time metrics of this engine's table lock.
+     * @return A snapshot of the table lock statistics.
+     */
+    public TableLockStatistics getTableLockStatistics(){
+        return this.tableLock.getStatistics();
     }
     
     
@@ -405,7 +352,58 @@ public abstract class EngineBase implements Engine {
      * @param metatdataElement The element to which metadata should be saved.
      */
     protected void loadMetadata(Element metatdataElement){
-        
+
+    }
+
+    /**
+     * Adds every committed version of every row in this engine to the given summary.
+     * This is invoked from a {@link SpinDownEventHandler}, after the engine has
+     * finished writing its data and before it releases it, so that a sharded engine
+     * can answer some reads of this shard without spinning it up again.
+     * @param summary The builder to which each row is added.
+     * @return true if the rows were added, false if this engine cannot summarize its rows.
+     */
+    protected boolean summarize(ShardSummary.Builder<?> summary){
+        return false;
+    }
+    
+    /**
+     * Gets the most recently committed data of every row in this engine, keyed by ID.
+     * Rows whose most recent version is a delete give the data from before the delete.
+     * A sharded engine uses this to decide which new shard each row belongs in when it
+     * splits or merges shards, while it holds its table lock so that no rows are written.
+     * @return A copy of the committed row data, or null if this engine cannot list its rows.
+     */
+    protected Map<String, Element> getCommittedRows(){
+        return null;
+    }
+    
+    /**
+     * Copies every committed version of the given rows from another engine, keeping
+     * the transaction and commit IDs of each version.  A sharded engine uses this
+     * when it splits or merges shards, so that transactions opened before the
+     * copy read the same data from the new shards as they did from the old ones.
+     * A row already in this engine gains the versions it does not have.
+     * @param source The engine from which to copy the rows.
+     * @param ids The IDs of the rows to copy.
+     * @return true if the rows were copied, false if this engine cannot copy rows from the source.
+     */
+    protected boolean copyCommittedRows(EngineBase source, Iterable<String> ids){
+        return copyCommittedRows(source, ids, null);
+    }
+    
+    /**
+     * Copies every committed version of the given rows from another engine like
+     * {@link #copyCommittedRows(EngineBase, Iterable) }, converting the data of each
+     * version on the way.  A sharded engine uses this to index the rows of a shard.
+     * @param source The engine from which to copy the rows.
+     * @param ids The IDs of the rows to copy.
+     * @param converter Converts a row element holding one version of the data into
+     * the data to copy, or null to copy the data unchanged.
+     * @return true if the rows were copied, false if this engine cannot copy rows from the source.
+     */
+    protected boolean copyCommittedRows(EngineBase source, Iterable<String> ids, Converter<Element, Element> converter){
+        return false;
     }
     
     /**
@@ -426,6 +424,76 @@ public abstract class EngineBase implements Engine {
         row.setAttribute("id", id, XFlatConstants.xFlatNs);
     }
     
+    /**
+     * Inserts each row in turn.  Engines that can validate and apply a batch
+     * in one pass should override this.
+     */
+    @Override
+    public void insertRows(Map<String, Element> rows) throws DuplicateKeyException {
+        for(String id : rows.keySet()){
+            if(readRow(id) != null){
+                throw new DuplicateKeyException(id);
+            }
+        }
+        
+        for(Map.Entry<String, Element> entry : rows.entrySet()){
+            insertRow(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /**
+     * Upserts each row in turn.  Engines that can apply a batch
+     * in one pass should override this.
+     */
+    @Override
+    public int upsertRows(Map<String, Element> rows){
+        int inserted = 0;
+        for(Map.Entry<String, Element> entry : rows.entrySet()){
+            if(upsertRow(entry.getKey(), entry.getValue())){
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+    
+    /**
+     * Deletes each row in turn, skipping rows that do not exist.  Engines that
+     * can apply a batch in one pass should override this.
+     */
+    @Override
+    public int deleteRows(Collection<String> ids){
+        int deleted = 0;
+        for(String id : ids){
+            try{
+                deleteRow(id);
+                deleted++;
+            }catch(KeyNotFoundException ex){
+                //already gone
+            }
+        }
+        return deleted;
+    }
+    
+    @Override
+    public Future<?> flush(){
+        if(this.transactionManager.getTransaction() != null){
+            //transactional data is made durable by the commit.
+            return CompositeFuture.completed(null);
+        }
+        
+        return scheduleFlush();
+    }
+    
+    /**
+     * Schedules a write of all committed data to disk, returning a Future
+     * that completes when the write finishes.  The default implementation
+     * returns a completed future, suitable for engines that write synchronously.
+     * @return A Future that completes once the committed data is on disk.
+     */
+    protected Future<?> scheduleFlush(){
+        return CompositeFuture.completed(null);
+    }
+    
     //<editor-fold desc="transactions">
 
     /**
@@ -483,13 +551,66 @@ public abstract class EngineBase implements Engine {
          */
         public final SortedMap<Long, RowData> rowData = new TreeMap<>();
         
+        /**
+         * An immutable copy of the values in {@link #rowData}, republished
+         * every time the map is modified.  Readers of a snapshot can traverse
+         * this array without locking the row.
+         */
+        private volatile RowData[] versions;
+        
         public Row(String id){
             this.rowId = id;
+            publishVersions();
         }
         
         public Row(String id, RowData data){
             this.rowId = id;
             this.rowData.put(data.transactionId, data);
+            publishVersions();
+        }
+        
+        /**
+         * Republishes the immutable version array read by {@link #chooseSnapshotVersion(long) }.
+         * <p/>
+         * ALWAYS invoke this while synchronized on the Row, after any
+         * modification to {@link #rowData}.
+         */
+        public void publishVersions(){
+            this.versions = rowData.values().toArray(new RowData[rowData.size()]);
+        }
+        
+        /**
+         * Chooses the most recent RowData that was committed before the given snapshot ID,
+         * without locking the row.  This is used by read-only snapshot readers so
+         * that long scans never contend with writers.
+         * <p/>
+         * Unlike {@link #chooseMostRecentCommitted(long) }, this method never
+         * modifies the row, so it may be invoked without synchronizing on the Row.
+         * @param snapshotId The Transaction ID representing the time at which a snapshot of the data should be obtained.
+         * @return The most recent committed RowData in this row, committed before the given snapshot.
+         */
+        public RowData chooseSnapshotVersion(long snapshotId){
+            RowData ret = null;
+            long retCommitId = -1;
+            
+            for(RowData data : this.versions){
+                long commitId = data.commitId;
+                if(commitId == -1 || commitId >= snapshotId || commitId <= retCommitId){
+                    //uncommitted, committed after the snapshot, or older than what we have.
+                    continue;
+                }
+                
+                if(data.transactionId != commitId &&
+                        transactionManager.isCommitInProgress(data.transactionId)){
+                    //transactional data that is not yet wholly committed.
+                    continue;
+                }
+                
+                ret = data;
+                retCommitId = commitId;
+            }
+            
+            return ret;
         }
         
         /**
@@ -510,6 +631,7 @@ public abstract class EngineBase implements Engine {
             
             RowData ret = null;
             long retCommitId = -1;
+            boolean removed = false;
 
             Iterator<RowData> it = rowData.values().iterator();
             while(it.hasNext()){
@@ -555,9 +677,14 @@ public abstract class EngineBase implements Engine {
                     if(transactionManager.isTransactionReverted(data.transactionId)){
                         //remove it from the row
                         it.remove();
+                        removed = true;
                     }
                 }
             }
+            
+            if(removed){
+                publishVersions();
+            }
 
             return ret;
         }
@@ -641,13 +768,24 @@ public abstract class EngineBase implements Engine {
                     rowData.remove(data.transactionId);                    
                 }
             }
+            publishVersions();
             
             //if there's no more row datas, or there is only one row data and it's value is "nothing", then return true.
             return rowData.isEmpty() || (rowData.size() == 1 && rowData.values().iterator().next().data == null);
         }    
     }
     
+    //the source of row data versions, unique across all engines.
+    private static final AtomicLong rowVersions = new AtomicLong();
+    
     protected class RowData{
+        /**
+         * Identifies this value of the row.  Every RowData has a new version,
+         * even when a transaction writes the same row more than once.
+         * @see Engine#getRowVersion(java.lang.String) 
+         */
+        public final long version = rowVersions.incrementAndGet();
+        
         /**
          * A snapshot of the data in the row, possibly uncommitted.
          */
@@ -667,7 +805,7 @@ public abstract class EngineBase implements Engine {
          * The ID of the transaction commit that caused this row data to become
          * committed.  If the data is uncommitted, this is -1.
          */
-        public long commitId = -1;
+        public volatile long commitId = -1;
      
         public RowData(long txId){
             this.transactionId = txId;
@@ -16,8 +16,18 @@
 package org.xflatdb.xflat.db;
 
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import org.xflatdb.xflat.transaction.Transaction;
+import org.xflatdb.xflat.transaction.TransactionException;
 import org.xflatdb.xflat.transaction.TransactionManager;
+import org.xflatdb.xflat.transaction.TransactionOptions;
+import org.xflatdb.xflat.transaction.TransactionScope;
+import org.xflatdb.xflat.transaction.WriteConflictException;
+import org.xflatdb.xflat.transaction.WriteConflictStatistics;
 
 /**
  * The Base Class of all Transaction Managers.<p/>
@@ -55,6 +65,20 @@ public abstract class EngineTransactionManager implements TransactionManager, Au
      */
     public abstract void bindEngineToCurrentTransaction(EngineBase engine);
     
+    /**
+     * Wraps the given task so that it runs in the transaction that is current
+     * on the calling thread, no matter which thread runs it.  If there is no
+     * current transaction, the task runs outside of any transaction.
+     * <p/>
+     * This allows an engine to spread the work of one operation over several
+     * threads.  The caller must wait for the task to complete before the
+     * transaction is committed or reverted.
+     * @param <T> The type of the task's result.
+     * @param task The task to run in the current transaction.
+     * @return A task which runs in the current transaction.
+     */
+    public abstract <T> Callable<T> inCurrentTransaction(Callable<T> task);
+    
     
     /**
      * Unbinds the engine from all its bound and closed transactions except the given collection.<br/>
@@ -108,42 +132,132 @@ public abstract class EngineTransactionManager implements TransactionManager, Au
      * unfortunately this means we have a y6k problem :P  I'll let my descendants
      * deal with it. (seriously, I calculated it and we will run out of IDs on
      * 10/17/6429 at around 3am).
+     * <p/>
+     * IDs are strictly increasing.  If more than 65,536 IDs are requested within
+     * one millisecond, the uniquifier carries into the timestamp and the IDs run
+     * slightly ahead of the clock until it catches up, rather than waiting for it.
      * @return A new ID for a transaction.
      */
     protected long generateNewId(){
-        long id;
-        long last;
-        do{
-            //bitshifting current time millis still gets us at least to the year 10,000 before it overflows.
-            id = System.currentTimeMillis() << 16;
+        //bitshifting current time millis still gets us at least to the year 10,000 before it overflows.
+        long now = System.currentTimeMillis() << 16;
+        
+        long last = lastId.get();
+        while(last < now){
+            //first ID in this millisecond, jump forward to the current timestamp.
+            if(lastId.compareAndSet(last, now)){
+                return now;
+            }
             last = lastId.get();
-            long lastTs = (last & 0xFFFFFFFFFFFF0000l);
-            if(lastTs >= id){
-                //the last timestamp was at the same millisecond as our new ID, need to use uniquifier.
-                //last timestamp could also be after our new ID, this is because System.currentTimeMillis() is not absolutely
-                //synchronized across all threads.
+        }
+        
+        //the last ID was at or after our timestamp, this is because we're in the same millisecond,
+        //or System.currentTimeMillis() is not absolutely synchronized across all threads, 
+        //or we've run ahead of the clock.  Either way the next ID is unique and in order.
+        return lastId.incrementAndGet();
+    }
+
+    @Override
+    public <T> T execute(Callable<T> work) throws TransactionException {
+        return execute(TransactionOptions.DEFAULT, work);
+    }
+    
+    @Override
+    public <T> T execute(TransactionOptions options, Callable<T> work) throws TransactionException {
+        int retries = 0;
+        while(true){
+            Transaction outer = getTransaction();
+            boolean joined = false;
+            
+            try(TransactionScope scope = openTransaction(options)){
+                //decide up front whether we joined the outer transaction, so a conflict
+                //thrown by the work itself goes straight back to the outer caller.
+                Transaction tx = getTransaction();
+                joined = outer != null && tx != null && tx.getTransactionId() == outer.getTransactionId();
+                
+                T ret;
+                try{
+                    ret = work.call();
+                }catch(RuntimeException | TransactionException ex){
+                    throw ex;
+                }catch(Exception ex){
+                    throw new TransactionException("Exception during transactional work: " + ex.getMessage(), ex);
+                }
+                
+                tx = getTransaction();
+                if(tx != null && !tx.isReadOnly()){
+                    scope.commit();
+                }
+                return ret;
+            }
+            catch(WriteConflictException ex){
+                ConflictCounters counters = getConflictCounters(ex.getTableName());
+                if(counters != null)
+                    counters.conflicts.incrementAndGet();
+                
+                if(joined || retries >= options.getMaxRetries()){
+                    //if we joined an outer transaction, that transaction has to be retried.
+                    if(counters != null)
+                        counters.failures.incrementAndGet();
+                    throw ex;
+                }
                 
-                int u = (int)(last & 0xFFFFl) + 1;
-                if(u > 0xFFFF){
+                retries++;
+                if(counters != null)
+                    counters.retries.incrementAndGet();
+                
+                //back off a random amount up to an exponentially increasing limit,
+                //so conflicting transactions don't just conflict again.
+                long limit = options.getMinRetryDelay();
+                for(int i = 1; i < retries && limit < options.getMaxRetryDelay(); i++){
+                    limit <<= 1;
+                }
+                limit = Math.min(limit, options.getMaxRetryDelay());
+                if(limit > 0){
                     try {
-                        //we can't roll over, need to slow down rate of transaction generation.
-                         Thread.sleep(1);
-                    } catch (InterruptedException ex) {
-                        //don't care
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw ex;
                     }
-                    
-                    //try again, hopefully currentTimeMillis rolled over.
-                    last = -1; //clear it out so that we fail the compare and set                 
-                    continue;
                 }
-                
-                id = lastTs | u;
             }
-        }while(!lastId.compareAndSet(last, id));
+        }
+    }
+    
+    private final ConcurrentMap<String, ConflictCounters> conflictCounters = new ConcurrentHashMap<>();
+    
+    private ConflictCounters getConflictCounters(String tableName){
+        if(tableName == null){
+            return null;
+        }
         
-        return id;
+        ConflictCounters ret = conflictCounters.get(tableName);
+        if(ret == null){
+            ret = new ConflictCounters();
+            ConflictCounters weWereLate = conflictCounters.putIfAbsent(tableName, ret);
+            if(weWereLate != null){
+                ret = weWereLate;
+            }
+        }
+        return ret;
     }
-
+    
+    @Override
+    public WriteConflictStatistics getWriteConflictStatistics(String tableName){
+        ConflictCounters counters = conflictCounters.get(tableName);
+        if(counters == null){
+            return new WriteConflictStatistics(tableName, 0, 0, 0);
+        }
+        return new WriteConflictStatistics(tableName, counters.conflicts.get(), counters.retries.get(), counters.failures.get());
+    }
+    
+    private static class ConflictCounters {
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+    }
+    
     /**
      * Returns true if any transactions are currently open.
      */
@@ -158,6 +272,18 @@ public abstract class EngineTransactionManager implements TransactionManager, Au
      */
     public abstract void recover(XFlatDatabase db);
     
+    /**
+     * Waits for any commits that were begun in the background to finish,
+     * so that their data is saved before the tables are spun down.
+     * The default implementation does nothing, for transaction managers that
+     * only commit synchronously.
+     * @param timeout The maximum number of milliseconds to wait, or 0 to 
+     * wait as long as it takes.
+     */
+    public void awaitPendingCommits(long timeout){
+        
+    }
+    
     /**
      * Closes any resources in use by this transaction manager in preparation
      * for shutdown.  Any exceptions at this point should be logged but not
@@ -19,6 +19,9 @@ import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -36,6 +39,10 @@ import org.jdom2.xpath.XPathFactory;
 
 /**
  * A helper class that accesses the IDs of an object.
+ * <p/>
+ * The ID property or field is looked up once per class, and method handles
+ * bound to its getter and setter are created then, so that getting and setting
+ * the ID of each object doesn't go through reflection.
  * @author gordon
  */
 public class IdAccessor<T> {
@@ -43,6 +50,13 @@ public class IdAccessor<T> {
     
     private final Field idField;
     
+    //handles of type (Object)Object and (Object, Object)void, null if they could not be created
+    private final MethodHandle idGetter;
+    private final MethodHandle idSetter;
+    
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    
     private final Class<T> pojoType;
     public Class<T> getPojoType(){
         return pojoType;
@@ -54,6 +68,34 @@ public class IdAccessor<T> {
         this.pojoType = pojoType;
         this.idProperty = idProperty;
         this.idField = idField;
+        
+        MethodHandle getter = null;
+        MethodHandle setter = null;
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            if(idProperty != null){
+                Method read = idProperty.getReadMethod();
+                read.setAccessible(true);
+                getter = lookup.unreflect(read);
+                
+                Method write = idProperty.getWriteMethod();
+                if(write != null){
+                    write.setAccessible(true);
+                    setter = lookup.unreflect(write);
+                }
+            }
+            else if(idField != null){
+                getter = lookup.unreflectGetter(idField);
+                setter = lookup.unreflectSetter(idField);
+            }
+        }catch(IllegalAccessException | RuntimeException ex){
+            //fall back to reflection
+            getter = null;
+            setter = null;
+        }
+        
+        this.idGetter = getter == null ? null : getter.asType(GETTER_TYPE);
+        this.idSetter = setter == null ? null : setter.asType(SETTER_TYPE);
     }
     
     private static ConcurrentHashMap<Class<?>, IdAccessor<?>> cachedAccessors =
@@ -259,8 +301,8 @@ public class IdAccessor<T> {
      * Gets the value of the ID by accessing the ID property or field
      * on the object.
      * 
-     * If the ID is a JavaBean property, the property's getter is invoked via reflection.
-     * If the ID is a field, the field is retrieved via reflection.
+     * If the ID is a JavaBean property, the property's getter is invoked.
+     * If the ID is a field, the field is retrieved.
      * @param pojo The object whose ID to get.
      * @return The value of the object's ID property or field.
      * @throws IllegalAccessException 
@@ -271,6 +313,16 @@ public class IdAccessor<T> {
     public Object getIdValue(T pojo) 
                 throws IllegalAccessException, InvocationTargetException 
     {
+        if(this.idGetter != null){
+            try{
+                return (Object)this.idGetter.invokeExact((Object)pojo);
+            }catch(Error err){
+                throw err;
+            }catch(Throwable t){
+                throw new InvocationTargetException(t);
+            }
+        }
+        
         if(this.idProperty != null){
             return this.idProperty.getReadMethod().invoke(pojo);
         }
@@ -285,8 +337,8 @@ public class IdAccessor<T> {
     /**
      * Sets the object's ID property or field to the given value.
      * 
-     * If the ID is a JavaBean property, the property's setter is invoked via reflection.
-     * If the ID is a field, the field is set via reflection.
+     * If the ID is a JavaBean property, the property's setter is invoked.
+     * If the ID is a field, the field is set.
      * @param pojo The object whose ID should be set
      * @param id The new value of the ID
      * @throws IllegalAccessException
@@ -297,6 +349,18 @@ public class IdAccessor<T> {
     public void setIdValue(T pojo, Object id) 
                 throws IllegalAccessException, InvocationTargetException 
     {
+        if(this.idSetter != null){
+            checkIdType(id);
+            try{
+                this.idSetter.invokeExact((Object)pojo, id);
+                return;
+            }catch(Error err){
+                throw err;
+            }catch(Throwable t){
+                throw new InvocationTargetException(t);
+            }
+        }
+        
         if(this.idProperty != null){
             if(this.idProperty.getWriteMethod() != null)
                 this.idProperty.getWriteMethod().invoke(pojo, id);
@@ -311,6 +375,24 @@ public class IdAccessor<T> {
         throw new UnsupportedOperationException("Cannot get ID value when object has no ID");
     }
 
+    /**
+     * Throws the IllegalArgumentException that reflection would throw if the
+     * ID could not be assigned to the ID property or field.
+     */
+    private void checkIdType(Object id){
+        Class<?> idType = getIdType();
+        if(id == null){
+            if(idType.isPrimitive()){
+                throw new IllegalArgumentException("Cannot set primitive ID of type " + idType + " to null");
+            }
+            return;
+        }
+        
+        if(!MethodType.methodType(idType).wrap().returnType().isInstance(id)){
+            throw new IllegalArgumentException("Cannot set ID of type " + idType + " to value of type " + id.getClass());
+        }
+    }
+    
     public String getIdPropertyName(){
         if(this.idProperty != null){
             return this.idProperty.getName();
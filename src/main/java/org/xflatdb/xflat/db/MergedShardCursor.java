@@ -0,0 +1,154 @@
+/*
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.XPathQuery;
+
+/**
+ * A cursor that merges the results of several shards of a {@link ShardedEngineBase}
+ * for a query {@link XPathQuery#withOrderById() ordered by ID} or {@link XPathQuery#withLimit(int) limited}.
+ * Each shard returns its rows sorted by ID and at most the query's limit, and the
+ * cursor keeps a heap of the next row of each shard, so it returns the rows in
+ * order of ID across all the shards and stops once it reaches the limit.
+ * <p/>
+ * The shard cursors are opened on the executor service, unless the query is
+ * made inside a transaction, in which case they are opened on the calling thread.
+ * <p/>
+ * This cursor is NOT thread-safe.
+ * @author Gordon
+ */
+class MergedShardCursor<T> implements Cursor<Element>{
+    
+    private final ShardedEngineBase<T> engine;
+    private final XPathQuery query;
+    private final List<Interval<T>> intervals;
+    
+    private final List<ShardMergeIterator> openIterators = new ArrayList<>();
+    private boolean closed = false;
+    
+    public MergedShardCursor(ShardedEngineBase<T> engine, XPathQuery query, List<Interval<T>> shardIntervals){
+        this.engine = engine;
+        this.query = query;
+        this.intervals = shardIntervals;
+    }
+    
+    @Override
+    public Iterator<Element> iterator() {
+        if(this.closed){
+            throw new IllegalStateException("Cursor is closed");
+        }
+        
+        ShardMergeIterator ret = new ShardMergeIterator(query, openShardCursors());
+        openIterators.add(ret);
+        return ret;
+    }
+    
+    @Override
+    public void close() throws XFlatException {
+        if(this.closed){
+            return;
+        }
+        this.closed = true;
+        
+        Exception last = null;
+        for(ShardMergeIterator it : openIterators){
+            try{
+                it.close();
+            }catch(Exception e){
+                last = e;
+            }
+        }
+        
+        engine.crossShardQueryClosed(this);
+        
+        if(last != null){
+            throw new XFlatException("Exception while closing multi-shard cursor", last);
+        }
+    }
+    
+    /**
+     * Opens a cursor for the query on each of the shards, in order.
+     * If any shard fails, the cursors already opened are closed.
+     */
+    private List<Cursor<Element>> openShardCursors(){
+        List<Cursor<Element>> ret = new ArrayList<>(intervals.size());
+        
+        final EngineAction<Cursor<Element>> open = new EngineAction<Cursor<Element>>(){
+            @Override
+            public Cursor<Element> act(Engine engine) {
+                return engine.queryTable(query);
+            }
+        };
+        
+        try{
+            if(engine.getTransactionManager().getTransaction() != null){
+                //the shard cursors must be bound to the transaction on this thread.
+                for(Interval<T> interval : intervals){
+                    ret.add(engine.doWithEngine(interval, open));
+                }
+                return ret;
+            }
+            
+            List<Future<Cursor<Element>>> opening = new ArrayList<>(intervals.size());
+            for(final Interval<T> interval : intervals){
+                opening.add(engine.getExecutorService().submit(new Callable<Cursor<Element>>(){
+                    @Override
+                    public Cursor<Element> call() throws Exception {
+                        return engine.doWithEngine(interval, open);
+                    }
+                }));
+            }
+            
+            XFlatException error = null;
+            for(int i = 0; i < opening.size(); i++){
+                try{
+                    ret.add(opening.get(i).get());
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                    error = new XFlatException("Interrupted while querying shard " + engine.config.getIntervalProvider().getName(intervals.get(i)), ex);
+                }catch(ExecutionException ex){
+                    if(error == null){
+                        error = new XFlatException("Exception querying shard " + engine.config.getIntervalProvider().getName(intervals.get(i)), ex.getCause());
+                    }
+                }
+            }
+            if(error != null){
+                throw error;
+            }
+            
+            return ret;
+        }catch(RuntimeException ex){
+            for(Cursor<Element> c : ret){
+                try{
+                    c.close();
+                }catch(Exception closeEx){
+                    engine.log.warn("Exception closing shard cursor", closeEx);
+                }
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the objects converted from the rows of one table, shared
+ * by all the Table instances of that table.  Each object is cached with the
+ * {@link Engine#getRowVersion(java.lang.String) version} of the row it was
+ * converted from, and is only returned while the row still has that version.
+ * Committing a new value for the row gives it a new version, which invalidates
+ * the cached object no matter how the row was written.
+ * <p/>
+ * One object is cached per row, so reading a row as a different type replaces
+ * it.  The least recently used rows are evicted when the cache is full.
+ * @author Gordon
+ */
+class NearCache {
+    
+    private final int maxEntries;
+    
+    private final LinkedHashMap<String, Entry> entries;
+    
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    
+    public NearCache(int maxEntries){
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if(size() > NearCache.this.maxEntries){
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Gets the object converted to the given type from the given version of the row.
+     * @return The cached object, or null if there is none for that version.
+     */
+    public synchronized <T> T get(String id, long version, Class<T> type){
+        Entry e = entries.get(id);
+        if(e == null || e.version != version || !e.type.equals(type)){
+            misses++;
+            return null;
+        }
+        
+        hits++;
+        return type.cast(e.value);
+    }
+    
+    /**
+     * Caches the object converted to the given type from the given version of
+     * the row, replacing the object cached for the row.
+     */
+    public synchronized void put(String id, long version, Class<?> type, Object value){
+        entries.put(id, new Entry(version, type, value));
+    }
+    
+    public synchronized NearCacheStatistics getStatistics(){
+        return new NearCacheStatistics(entries.size(), hits, misses, evictions);
+    }
+    
+    private static class Entry {
+        private final long version;
+        private final Class<?> type;
+        private final Object value;
+        
+        public Entry(long version, Class<?> type, Object value){
+            this.version = version;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+/**
+ * A snapshot of the near cache of converted objects of a table, configured by
+ * {@link org.xflatdb.xflat.TableConfig#withNearCache(int) }.  A low hit ratio with
+ * many evictions means the cache is too small for the rows being read.
+ * @author Gordon
+ */
+public class NearCacheStatistics {
+    
+    private final int size;
+    /**
+     * Gets the number of converted objects currently in the cache.
+     */
+    public int getSize(){
+        return size;
+    }
+    
+    private final long hits;
+    /**
+     * Gets the number of reads that returned an object from the cache.
+     */
+    public long getHits(){
+        return hits;
+    }
+    
+    private final long misses;
+    /**
+     * Gets the number of reads that had to convert the row, because the cache
+     * had no object for the row's current version.
+     */
+    public long getMisses(){
+        return misses;
+    }
+    
+    private final long evictions;
+    /**
+     * Gets the number of objects removed from the cache to keep it within its size.
+     */
+    public long getEvictions(){
+        return evictions;
+    }
+    
+    /**
+     * Gets the fraction of reads that were served from the cache, or 0 if there
+     * have been no reads.
+     */
+    public double getHitRatio(){
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double)hits / reads;
+    }
+    
+    NearCacheStatistics(int size, long hits, long misses, long evictions){
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+    
+    @Override
+    public String toString(){
+        return String.format("size: %d; %d hits, %d misses, %d evictions",
+                size, hits, misses, evictions);
+    }
+}
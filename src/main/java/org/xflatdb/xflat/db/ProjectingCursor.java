@@ -0,0 +1,72 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.Iterator;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.query.Projection;
+
+/**
+ * A cursor which reads the result of a {@link Projection} out of each element
+ * returned by an engine for a projected query.
+ * @author Gordon
+ */
+class ProjectingCursor<U> implements Cursor<U> {
+    
+    private final Cursor<Element> rowCursor;
+    private final Projection<U> projection;
+    private final ConversionService conversionService;
+    
+    public ProjectingCursor(Cursor<Element> rowCursor, Projection<U> projection, ConversionService conversionService){
+        this.rowCursor = rowCursor;
+        this.projection = projection;
+        this.conversionService = conversionService;
+    }
+
+    @Override
+    public Iterator<U> iterator() {
+        final Iterator<Element> rowIterator = rowCursor.iterator();
+        return new Iterator<U>(){
+            @Override
+            public boolean hasNext() {
+                return rowIterator.hasNext();
+            }
+
+            @Override
+            public U next() {
+                try {
+                    return projection.read(rowIterator.next(), conversionService);
+                } catch (ConversionException ex) {
+                    throw new XFlatException("Cannot convert projected data", ex);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Remove not supported on cursors.");
+            }
+        };
+    }
+
+    @Override
+    public void close() throws XFlatException {
+        this.rowCursor.close();
+    }
+}
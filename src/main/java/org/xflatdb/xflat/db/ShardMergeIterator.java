@@ -0,0 +1,118 @@
+/*
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.query.IdComparator;
+import org.xflatdb.xflat.query.XPathQuery;
+
+/**
+ * Merges the rows of several shard cursors in order of ID, up to the query's limit.
+ * @author Gordon
+ */
+class ShardMergeIterator implements Iterator<Element>{
+    
+    private final List<Cursor<Element>> cursors;
+    private final PriorityQueue<MergeHead> heads;
+    private final int limit;
+    private int returned = 0;
+    
+    public ShardMergeIterator(XPathQuery query, List<Cursor<Element>> cursors){
+        this.cursors = cursors;
+        this.limit = query.getLimit();
+        this.heads = new PriorityQueue<>(Math.max(1, cursors.size()), new Comparator<MergeHead>(){
+            @Override
+            public int compare(MergeHead o1, MergeHead o2) {
+                int ret = IdComparator.byRowId().compare(o1.row, o2.row);
+                //rows with equal IDs come out in shard order
+                return ret != 0 ? ret : Integer.compare(o1.shard, o2.shard);
+            }
+        });
+        
+        for(int i = 0; i < cursors.size(); i++){
+            Iterator<Element> it = cursors.get(i).iterator();
+            if(it.hasNext()){
+                heads.add(new MergeHead(it.next(), it, i));
+            }
+        }
+    }
+    
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty() && (limit == 0 || returned < limit);
+    }
+    
+    @Override
+    public Element next() {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        
+        MergeHead head = heads.poll();
+        Element ret = head.row;
+        if(head.rest.hasNext()){
+            head.row = head.rest.next();
+            heads.add(head);
+        }
+        
+        returned++;
+        return ret;
+    }
+    
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove not supported on cursors.");
+    }
+    
+    /**
+     * Closes all the shard cursors.
+     */
+    void close(){
+        XFlatException error = null;
+        for(Cursor<Element> c : cursors){
+            try{
+                c.close();
+            }catch(XFlatException ex){
+                error = ex;
+            }
+        }
+        if(error != null){
+            throw error;
+        }
+    }
+    
+    /**
+     * The next row of one shard in a merge.
+     */
+    private static class MergeHead {
+        private Element row;
+        private final Iterator<Element> rest;
+        private final int shard;
+        
+        public MergeHead(Element row, Iterator<Element> rest, int shard){
+            this.row = row;
+            this.rest = rest;
+            this.shard = shard;
+        }
+    }
+}
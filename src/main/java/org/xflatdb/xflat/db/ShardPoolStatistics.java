@@ -0,0 +1,84 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+/**
+ * A snapshot of the open shards of a sharded engine, and how often shards were
+ * spun up and evicted to keep within the limits of the {@link org.xflatdb.xflat.ShardsetConfig},
+ * and how many were warmed up when the database started.
+ * A high ratio of evictions to spin ups means the limits are too low for the
+ * shards in use.
+ * @author Gordon
+ */
+public class ShardPoolStatistics {
+    
+    private final int openShards;
+    /**
+     * Gets the number of shards that are currently spun up.
+     */
+    public int getOpenShards(){
+        return openShards;
+    }
+    
+    private final long openShardBytes;
+    /**
+     * Gets the total file size of the shards that are currently spun up,
+     * an estimate of the memory they use.
+     */
+    public long getOpenShardBytes(){
+        return openShardBytes;
+    }
+    
+    private final long spinUps;
+    /**
+     * Gets the number of times a shard has been spun up.
+     */
+    public long getSpinUps(){
+        return spinUps;
+    }
+    
+    private final long evictions;
+    /**
+     * Gets the number of times a shard has been spun down before its inactivity
+     * timeout to keep the open shards within their limits.
+     */
+    public long getEvictions(){
+        return evictions;
+    }
+    
+    private final long warmUps;
+    /**
+     * Gets the number of shards that have been spun up by warming up the table
+     * when the database started.
+     */
+    public long getWarmUps(){
+        return warmUps;
+    }
+    
+    ShardPoolStatistics(int openShards, long openShardBytes, long spinUps, long evictions, long warmUps){
+        this.openShards = openShards;
+        this.openShardBytes = openShardBytes;
+        this.spinUps = spinUps;
+        this.evictions = evictions;
+        this.warmUps = warmUps;
+    }
+    
+    @Override
+    public String toString(){
+        return String.format("open: %d shards, %d bytes; %d spin ups, %d evictions, %d warm ups",
+                openShards, openShardBytes, spinUps, evictions, warmUps);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.xflatdb.xflat.ShardsetConfig;
+import org.xflatdb.xflat.TableConfig;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.IntervalIndex;
+import org.xflatdb.xflat.query.IntervalProvider;
+import org.xflatdb.xflat.query.ResizableIntervalProvider;
+
+/**
+ * Splits and merges the shards of a {@link ShardedEngineBase} according to the
+ * limits in its {@link ShardsetConfig}.
+ * <p/>
+ * The shards being created or retired by a rebalance, or dropped by the engine,
+ * are recorded in the "shardset" metadata document, so that the engine deletes
+ * them when it next spins up if it crashed before it could.
+ * @author Gordon
+ */
+class ShardRebalancer<T> {
+    
+    private static final String LAYOUT_METADATA = "shardset";
+    private static final String PENDING = "pending";
+    private static final String RETIRED = "retired";
+    
+    private final ShardedEngineBase<T> engine;
+    
+    /** The names of shards being created or retired by a rebalance, by state.  Guarded by itself. */
+    private final Map<String, String> layoutChanges = new HashMap<>();
+    
+    //set when a shard that was pending is discarded on spin up, guarded by layoutChanges
+    private boolean discardedPending = false;
+    
+    public ShardRebalancer(ShardedEngineBase<T> engine){
+        this.engine = engine;
+    }
+    
+    /**
+     * Splits one shard that has grown too large, or merges two adjacent shards which
+     * have shrunk too small.
+     * @return true if a shard was split or merged.
+     */
+    boolean rebalance(){
+        ResizableIntervalProvider<T> provider = (ResizableIntervalProvider<T>)engine.config.getIntervalProvider();
+        
+        List<Map.Entry<Interval<T>, File>> shards = new ArrayList<>(engine.knownShards.entrySet());
+        for(Map.Entry<Interval<T>, File> shard : shards){
+            if(isOversized(getRowCount(shard.getKey()), shard.getValue().length())){
+                List<Interval<T>> halves = provider.split(shard.getKey());
+                if(halves != null && resize(Collections.singletonList(shard.getKey()), halves)){
+                    return true;
+                }
+            }
+        }
+        
+        if(engine.config.getMinShardRows() == 0){
+            return false;
+        }
+        
+        IntervalIndex<T> index = engine.getShardIndex();
+        if(!index.isOrdered()){
+            //overlapping shards have no well defined neighbours to merge with.
+            return false;
+        }
+        
+        //only neighbours in the sorted index can be adjacent, so walk each pair of neighbours.
+        List<Interval<T>> sorted = index.getIntervals();
+        long nextRows = sorted.isEmpty() ? -1 : getRowCount(sorted.get(0));
+        for(int i = 0; i + 1 < sorted.size(); i++){
+            Interval<T> first = sorted.get(i);
+            Interval<T> second = sorted.get(i + 1);
+            long firstRows = nextRows;
+            long secondRows = nextRows = getRowCount(second);
+            if(firstRows < 0 || firstRows >= engine.config.getMinShardRows() ||
+                    secondRows < 0 || secondRows >= engine.config.getMinShardRows()){
+                continue;
+            }
+            
+            File firstFile = engine.knownShards.get(first);
+            File secondFile = engine.knownShards.get(second);
+            if(firstFile == null || secondFile == null ||
+                    isOversized(firstRows + secondRows, firstFile.length() + secondFile.length())){
+                continue;
+            }
+            
+            Interval<T> merged = provider.merge(first, second);
+            if(merged != null && resize(Arrays.asList(first, second), Collections.singletonList(merged))){
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets the number of rows in the given shard according to its summary, or -1
+     * if the shard is in use or has no summary.
+     */
+    private long getRowCount(Interval<T> shard){
+        ShardSummary<T> summary = engine.getSummary(shard);
+        return summary == null ? -1 : summary.getRowCount();
+    }
+    
+    private boolean isOversized(long rows, long bytes){
+        return (engine.config.getMaxShardRows() > 0 && rows > engine.config.getMaxShardRows()) ||
+                (engine.config.getMaxShardBytes() > 0 && bytes > engine.config.getMaxShardBytes());
+    }
+    
+    /**
+     * Replaces the given shards with new shards covering the same values, copying
+     * the rows into the new shards.
+     * @param from The shards to replace.
+     * @param to The new shards.
+     * @return true if the shards were replaced, false if the shards could not be
+     * replaced right now.
+     */
+    private boolean resize(List<Interval<T>> from, List<Interval<T>> to){
+        try{
+            engine.getTableLock();
+        }catch(XFlatException ex){
+            //long running writes in progress, try again next time.
+            return false;
+        }
+        
+        IntervalProvider<T> provider = engine.config.getIntervalProvider();
+        Map<Interval<T>, TableMetadata> created = new HashMap<>();
+        try{
+            if(engine.getState() != EngineState.Running){
+                return false;
+            }
+            
+            //read the rows of the old shards, while writes wait on the table lock.
+            Map<EngineBase, Map<String, Element>> rows = new HashMap<>();
+            for(Interval<T> shard : from){
+                EngineBase shardEngine = engine.getEngine(shard);
+                Map<String, Element> committed = shardEngine.getCommittedRows();
+                if(committed == null || shardEngine.hasUncomittedData()){
+                    //a transaction could still commit to the old shard
+                    return false;
+                }
+                rows.put(shardEngine, committed);
+            }
+            
+            //note the new shards so that they are discarded if we don't finish
+            setLayoutChanges(to, PENDING);
+            for(Interval<T> shard : to){
+                String name = provider.getName(shard);
+                //clear out anything left over from an earlier rebalance
+                engine.deleteShardFiles(name);
+                
+                TableMetadata metadata = engine.getMetadataFactory().makeShardMetadata(engine.getTableName(), name, new File(engine.directory, name + ".xml"));
+                metadata.config = new TableConfig(); //not even really used for our purposes
+                created.put(shard, metadata);
+            }
+            
+            for(Map.Entry<EngineBase, Map<String, Element>> source : rows.entrySet()){
+                //sort the rows of each old shard by the new shard they belong in
+                Map<TableMetadata, List<String>> targets = new HashMap<>();
+                for(Map.Entry<String, Element> row : source.getValue().entrySet()){
+                    Element rowElement = new Element("row", XFlatConstants.xFlatNs);
+                    engine.setId(rowElement, row.getKey());
+                    rowElement.addContent(row.getValue());
+                    T key = engine.getShardKey(engine.config.getShardPropertySelector().evaluateFirst(rowElement));
+                    
+                    TableMetadata target = null;
+                    for(Map.Entry<Interval<T>, TableMetadata> shard : created.entrySet()){
+                        if(shard.getKey().contains(key, provider.getComparator())){
+                            target = shard.getValue();
+                            break;
+                        }
+                    }
+                    if(target == null){
+                        throw new XFlatException("Row " + row.getKey() + " does not belong in any of the new shards");
+                    }
+                    
+                    List<String> ids = targets.get(target);
+                    if(ids == null){
+                        ids = new ArrayList<>();
+                        targets.put(target, ids);
+                    }
+                    ids.add(row.getKey());
+                }
+                
+                //copy every committed version with its commit ID, so that transactions
+                //opened before the rebalance see the same rows in the new shards.
+                for(Map.Entry<TableMetadata, List<String>> target : targets.entrySet()){
+                    if(!target.getKey().provideEngine().copyCommittedRows(source.getKey(), target.getValue())){
+                        return false;
+                    }
+                }
+            }
+            
+            for(TableMetadata metadata : created.values()){
+                metadata.provideEngine().flush().get();
+            }
+            
+            //the new shards are on disk, now retiring the old shards commits to the new ones.
+            synchronized(layoutChanges){
+                for(Interval<T> shard : to){
+                    layoutChanges.remove(provider.getName(shard));
+                }
+                for(Interval<T> shard : from){
+                    layoutChanges.put(provider.getName(shard), RETIRED);
+                }
+                saveLayoutChanges();
+            }
+            
+            engine.replaceShards(from, created);
+            
+            if(engine.log.isDebugEnabled())
+                engine.log.debug(String.format("Rebalanced sharded table %s from %s to %s", engine.getTableName(), from, to));
+            
+            created.clear();
+            return true;
+        }catch(Exception ex){
+            engine.log.warn("Failure to rebalance sharded table " + engine.getTableName(), ex);
+            return false;
+        }finally{
+            try{
+                discard(created);
+            }finally{
+                engine.releaseTableLock();
+            }
+        }
+    }
+    
+    /**
+     * Discards new shards created by a rebalance that did not finish.
+     */
+    private void discard(Map<Interval<T>, TableMetadata> created){
+        if(created.isEmpty()){
+            return;
+        }
+        
+        for(TableMetadata metadata : created.values()){
+            metadata.spinDown(true, true);
+            engine.deleteShardFiles(metadata.configName);
+        }
+        
+        try{
+            setLayoutChanges(created.keySet(), null);
+        }catch(IOException ex){
+            //they'll be deleted again on spin up
+            engine.log.warn("Failure to save shard layout for sharded table " + engine.getTableName(), ex);
+        }
+    }
+    
+    /**
+     * Records the given shards as retired and saves the layout changes, so that
+     * they are deleted when the engine next spins up.
+     */
+    void retire(Iterable<Interval<T>> shards) throws IOException {
+        setLayoutChanges(shards, RETIRED);
+    }
+    
+    /**
+     * Records the given shards as being in the given state, or removes them
+     * from the layout changes if the state is null, and saves the layout changes.
+     */
+    private void setLayoutChanges(Iterable<Interval<T>> shards, String state) throws IOException {
+        synchronized(layoutChanges){
+            for(Interval<T> shard : shards){
+                String name = engine.config.getIntervalProvider().getName(shard);
+                if(state == null){
+                    layoutChanges.remove(name);
+                }
+                else{
+                    layoutChanges.put(name, state);
+                }
+            }
+            saveLayoutChanges();
+        }
+    }
+    
+    /**
+     * Removes the named shard from the layout changes, if it is there.
+     */
+    void clearLayoutChange(String name){
+        synchronized(layoutChanges){
+            if(layoutChanges.remove(name) != null){
+                try{
+                    saveLayoutChanges();
+                }catch(IOException ex){
+                    engine.log.warn("Failure to save shard layout for sharded table " + engine.getTableName(), ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets whether the named shard was being created or retired when the engine
+     * last ran, in which case its rows are elsewhere.  A shard whose rebalance
+     * did not finish is removed from the layout changes.
+     */
+    boolean isReplaced(String name){
+        synchronized(layoutChanges){
+            String change = layoutChanges.get(name);
+            if(PENDING.equals(change)){
+                //the rebalance creating this shard did not finish
+                layoutChanges.remove(name);
+                discardedPending = true;
+            }
+            return change != null;
+        }
+    }
+    
+    /**
+     * Saves the layout changes if {@link #isReplaced(java.lang.String) } removed
+     * any shards from them.
+     */
+    void saveDiscardedChanges(){
+        synchronized(layoutChanges){
+            if(!discardedPending){
+                return;
+            }
+            discardedPending = false;
+            
+            try {
+                saveLayoutChanges();
+            } catch (IOException ex) {
+                engine.log.warn("Failure to save shard layout for sharded table " + engine.getTableName(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Saves the layout changes to the shardset metadata document.
+     * ALWAYS synchronize on {@link #layoutChanges} before calling this.
+     */
+    private void saveLayoutChanges() throws IOException {
+        Element root = new Element("shardset", XFlatConstants.xFlatNs);
+        for(Map.Entry<String, String> change : layoutChanges.entrySet()){
+            root.addContent(new Element("shard", XFlatConstants.xFlatNs)
+                    .setAttribute("name", change.getKey(), XFlatConstants.xFlatNs)
+                    .setAttribute("state", change.getValue(), XFlatConstants.xFlatNs));
+        }
+        
+        engine.getMetadataFactory().saveMetadataDoc(LAYOUT_METADATA, new Document(root));
+    }
+    
+    /**
+     * Loads the layout changes from the shardset metadata document.
+     */
+    void loadLayoutChanges(){
+        Document doc = engine.getMetadataFactory().getMetadataDoc(LAYOUT_METADATA);
+        if(doc == null){
+            return;
+        }
+        
+        synchronized(layoutChanges){
+            for(Element shard : doc.getRootElement().getChildren("shard", XFlatConstants.xFlatNs)){
+                String name = shard.getAttributeValue("name", XFlatConstants.xFlatNs);
+                String state = shard.getAttributeValue("state", XFlatConstants.xFlatNs);
+                if(name != null && state != null){
+                    layoutChanges.put(name, state);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.ShardsetConfig;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.XPathQuery;
+
+/**
+ * Iterates the results of scanning several shards of a {@link ShardedEngineBase}.
+ * All the state shared with the shard scans is guarded by this iterator's monitor.
+ * @author Gordon
+ */
+class ShardScanIterator<T> implements Iterator<Element>{
+    
+    private final ShardedEngineBase<T> engine;
+    private final List<ShardScan<T>> scans;
+    private final int parallelism;
+    private final int prefetch;
+    private final boolean ordered;
+    
+    //the next scan to start, in interval order
+    private int nextToStart = 0;
+    //the number of scans that have started but not finished
+    private int active = 0;
+    //the number of scans that have finished
+    private int finished = 0;
+    //in ordered mode, the scan being read
+    private int current = 0;
+    
+    private boolean cancelled = false;
+    
+    private Element peek = null;
+    
+    public ShardScanIterator(ShardedEngineBase<T> engine, XPathQuery query, List<Interval<T>> intervals){
+        this.engine = engine;
+        this.parallelism = engine.config.getQueryParallelism();
+        this.prefetch = engine.config.getQueryPrefetch();
+        this.ordered = engine.config.isOrderedQueries();
+        
+        this.scans = new ArrayList<>(intervals.size());
+        for(Interval<T> interval : intervals){
+            scans.add(new ShardScan<>(this, interval, query));
+        }
+    }
+    
+    /**
+     * Starts the first shard scans, opening the shard cursors on this thread
+     * if the query is made inside a transaction.
+     */
+    void start(){
+        if(engine.getTransactionManager().getTransaction() != null){
+            //the shard cursors must be bound to the transaction on this thread.
+            try{
+                for(ShardScan<T> scan : scans){
+                    scan.cursor = scan.open();
+                }
+            }catch(RuntimeException ex){
+                try{
+                    cancel();
+                }catch(Exception closeEx){
+                    engine.log.warn("Exception closing shard cursors", closeEx);
+                }
+                throw ex;
+            }
+        }
+        
+        synchronized(this){
+            startScans();
+        }
+    }
+    
+    private void startScans(){
+        while(active < parallelism && nextToStart < scans.size()){
+            active++;
+            schedule(scans.get(nextToStart++));
+        }
+    }
+    
+    private void schedule(ShardScan<T> scan){
+        scan.scheduled = true;
+        scan.task = engine.getExecutorService().submit(scan);
+    }
+    
+    /**
+     * Called by a shard scan when it has read all its rows or failed.
+     */
+    private void finish(ShardScan<T> scan, Throwable error){
+        scan.scheduled = false;
+        scan.done = true;
+        scan.error = error;
+        active--;
+        finished++;
+        
+        if(!cancelled){
+            startScans();
+        }
+        this.notifyAll();
+    }
+    
+    /**
+     * Gets the next scan with a row or an error for the reader, or null if there
+     * is none yet.
+     */
+    private ShardScan<T> nextReadable(){
+        if(ordered){
+            while(current < scans.size()){
+                ShardScan<T> scan = scans.get(current);
+                if(!scan.buffer.isEmpty() || scan.error != null){
+                    return scan;
+                }
+                if(!scan.done){
+                    return null;
+                }
+                current++;
+            }
+            return null;
+        }
+        
+        ShardScan<T> failed = null;
+        for(int i = 0; i < nextToStart; i++){
+            ShardScan<T> scan = scans.get(i);
+            if(!scan.buffer.isEmpty()){
+                return scan;
+            }
+            if(scan.error != null){
+                failed = scan;
+            }
+        }
+        return failed;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if(peek != null){
+            return true;
+        }
+        
+        synchronized(this){
+            while(true){
+                if(cancelled){
+                    throw new IllegalStateException("Cursor is closed");
+                }
+                
+                ShardScan<T> scan = nextReadable();
+                if(scan != null){
+                    if(scan.buffer.isEmpty()){
+                        throw new XFlatException("Exception querying shard " + engine.config.getIntervalProvider().getName(scan.interval), scan.error);
+                    }
+                    
+                    peek = scan.buffer.poll();
+                    if(!scan.scheduled && !scan.done && scan.buffer.size() <= prefetch / 2){
+                        //the scan stopped because it got too far ahead, resume it.
+                        schedule(scan);
+                    }
+                    return true;
+                }
+                
+                if(finished == scans.size()){
+                    return false;
+                }
+                
+                try {
+                    this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new XFlatException("Interrupted while waiting for shard query results", ex);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public Element next() {
+        if(hasNext()){
+            Element ret = peek;
+            peek = null;
+            return ret;
+        }
+        throw new IllegalStateException("Iterator does not have next");
+    }
+    
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove not supported.");
+    }
+    
+    /**
+     * Stops all the shard scans and closes their cursors.  A scan that is
+     * running stops at its next row, and closes any cursor it opens after this.
+     */
+    void cancel() throws Exception{
+        List<Cursor<Element>> toClose = new ArrayList<>();
+        synchronized(this){
+            if(cancelled){
+                return;
+            }
+            cancelled = true;
+            
+            for(ShardScan<T> scan : scans){
+                if(scan.scheduled){
+                    scan.task.cancel(false);
+                }
+                
+                scan.scheduled = false;
+                if(scan.cursor != null){
+                    toClose.add(scan.cursor);
+                    scan.cursor = null;
+                }
+                scan.buffer.clear();
+            }
+            
+            this.notifyAll();
+        }
+        
+        Exception last = null;
+        for(Cursor<Element> c : toClose){
+            try{
+                c.close();
+            }catch(Exception e){
+                last = e;
+            }
+        }
+        if(last != null){
+            throw last;
+        }
+    }
+    
+    /**
+     * Scans one shard on the executor service, buffering rows for the reader
+     * until it has read {@link ShardsetConfig#getQueryPrefetch()} rows ahead.
+     */
+    private static class ShardScan<T> implements Runnable{
+        
+        private final ShardScanIterator<T> owner;
+        private final Interval<T> interval;
+        private final XPathQuery query;
+        
+        //the remaining fields are guarded by the owner, except rows which is only
+        //used by the one running task.
+        private Cursor<Element> cursor;
+        private Iterator<Element> rows;
+        private final Deque<Element> buffer = new ArrayDeque<>();
+        
+        private Future<?> task;
+        private boolean scheduled = false;
+        private boolean done = false;
+        private Throwable error = null;
+        
+        public ShardScan(ShardScanIterator<T> owner, Interval<T> interval, XPathQuery query){
+            this.owner = owner;
+            this.interval = interval;
+            this.query = query;
+        }
+        
+        private Cursor<Element> open(){
+            return owner.engine.doWithEngine(interval, new EngineAction<Cursor<Element>>(){
+                @Override
+                public Cursor<Element> act(Engine engine) {
+                    return engine.queryTable(query);
+                }
+            });
+        }
+        
+        @Override
+        public void run() {
+            try{
+                if(rows == null){
+                    Cursor<Element> c;
+                    synchronized(owner){
+                        c = this.cursor;
+                    }
+                    if(c == null){
+                        c = open();
+                        synchronized(owner){
+                            this.cursor = c;
+                        }
+                    }
+                    rows = c.iterator();
+                }
+                
+                while(true){
+                    synchronized(owner){
+                        if(owner.cancelled){
+                            closeCancelled();
+                            return;
+                        }
+                        if(buffer.size() >= owner.prefetch){
+                            //far enough ahead, give up the thread until the reader catches up.
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    
+                    if(!rows.hasNext()){
+                        break;
+                    }
+                    
+                    Element row = rows.next();
+                    synchronized(owner){
+                        buffer.add(row);
+                        owner.notifyAll();
+                    }
+                }
+                
+                Cursor<Element> c;
+                synchronized(owner){
+                    c = this.cursor;
+                    this.cursor = null;
+                }
+                if(c != null){
+                    c.close();
+                }
+                
+                synchronized(owner){
+                    owner.finish(this, null);
+                }
+            }catch(Throwable t){
+                synchronized(owner){
+                    owner.finish(this, t);
+                }
+            }
+        }
+        
+        private void closeCancelled(){
+            scheduled = false;
+            Cursor<Element> c = this.cursor;
+            this.cursor = null;
+            if(c != null){
+                try{
+                    c.close();
+                }catch(Exception ex){
+                    owner.engine.log.warn("Exception closing cursor for shard " + owner.engine.config.getIntervalProvider().getName(interval), ex);
+                }
+            }
+        }
+    }
+}
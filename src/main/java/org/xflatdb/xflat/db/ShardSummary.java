@@ -0,0 +1,270 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import org.jdom2.Element;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.util.BloomFilter;
+
+/**
+ * A summary of the committed contents of one shard, taken when the shard spun down.
+ * A sharded engine uses the summary to answer point reads of absent rows and to
+ * skip shards in queries without spinning the shard back up.
+ * <p/>
+ * The summary remembers the length and modification time of the shard file
+ * it describes, and is only valid while the file is unchanged.
+ * @author Gordon
+ */
+public class ShardSummary<T> {
+    
+    private final int rowCount;
+    
+    private final boolean empty;
+    
+    private final Interval<T> keyRange;
+    
+    private final BloomFilter ids;
+    
+    private final long fileLength;
+    
+    private final long fileModified;
+    
+    private ShardSummary(int rowCount, boolean empty, Interval<T> keyRange, BloomFilter ids, long fileLength, long fileModified){
+        this.rowCount = rowCount;
+        this.empty = empty;
+        this.keyRange = keyRange;
+        this.ids = ids;
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+    }
+    
+    /**
+     * Gets the number of rows whose most recently committed version was not
+     * a delete.
+     * @return The number of live rows in the shard.
+     */
+    public int getRowCount(){
+        return rowCount;
+    }
+    
+    /**
+     * Gets whether the shard held no committed data at all, not even
+     * previous versions of rows that have since been deleted.
+     * @return true if no transaction can read any row from the shard.
+     */
+    public boolean isEmpty(){
+        return empty;
+    }
+    
+    /**
+     * Gets the range between the least and greatest shard key of every committed
+     * version of every row in the shard.
+     * @return The range of the shard keys, or null if the range is unknown because
+     * some row's shard key could not be evaluated, or the shard is empty.
+     */
+    public Interval<T> getKeyRange(){
+        return keyRange;
+    }
+    
+    /**
+     * Gets whether the shard might contain a row with the given ID, in any
+     * committed version.
+     * @param id The ID of the row.
+     * @return false if the shard definitely does not contain the row.
+     */
+    public boolean mightContain(String id){
+        return !empty && ids.mightContain(id);
+    }
+    
+    /**
+     * Gets whether this summary still describes the given shard file, ie. the
+     * file has not been written since the summary was taken.
+     * @param file The shard file that was summarized.
+     * @return true if the file is unchanged.
+     */
+    public boolean isCurrent(File file){
+        return file.length() == fileLength && file.lastModified() == fileModified;
+    }
+    
+    /**
+     * Saves this summary to a new "summary" element.
+     * @param conversions The conversion service used to convert the shard keys to strings.
+     * @return The element representing this summary.
+     * @throws ConversionException if the shard keys cannot be converted to strings.
+     */
+    public Element toElement(ConversionService conversions) throws ConversionException{
+        Element ret = new Element("summary", XFlatConstants.xFlatNs);
+        ret.setAttribute("rows", Integer.toString(rowCount), XFlatConstants.xFlatNs);
+        ret.setAttribute("length", Long.toString(fileLength), XFlatConstants.xFlatNs);
+        ret.setAttribute("modified", Long.toString(fileModified), XFlatConstants.xFlatNs);
+        
+        if(keyRange != null){
+            ret.setAttribute("min", conversions.convert(keyRange.getBegin(), String.class), XFlatConstants.xFlatNs);
+            ret.setAttribute("max", conversions.convert(keyRange.getEnd(), String.class), XFlatConstants.xFlatNs);
+        }
+        
+        if(!empty){
+            Element idsEl = new Element("ids", XFlatConstants.xFlatNs);
+            idsEl.setAttribute("hashes", Integer.toString(ids.getHashes()), XFlatConstants.xFlatNs);
+            idsEl.setText(ids.encode());
+            ret.addContent(idsEl);
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Loads a summary from an element created by {@link #toElement(org.xflatdb.xflat.convert.ConversionService) }.
+     * @param <U> The type of the shard keys.
+     * @param element The summary element.
+     * @param conversions The conversion service used to convert the shard keys from strings.
+     * @param keyClass The class of the shard keys.
+     * @return The summary represented by the element.
+     * @throws ConversionException if the element is not a valid summary.
+     */
+    public static <U> ShardSummary<U> fromElement(Element element, ConversionService conversions, Class<U> keyClass) throws ConversionException{
+        try{
+            int rows = Integer.parseInt(element.getAttributeValue("rows", XFlatConstants.xFlatNs));
+            long length = Long.parseLong(element.getAttributeValue("length", XFlatConstants.xFlatNs));
+            long modified = Long.parseLong(element.getAttributeValue("modified", XFlatConstants.xFlatNs));
+            
+            Interval<U> range = null;
+            String min = element.getAttributeValue("min", XFlatConstants.xFlatNs);
+            String max = element.getAttributeValue("max", XFlatConstants.xFlatNs);
+            if(min != null && max != null){
+                range = new Interval<>(conversions.convert(min, keyClass), true, conversions.convert(max, keyClass), true);
+            }
+            
+            Element idsEl = element.getChild("ids", XFlatConstants.xFlatNs);
+            BloomFilter ids = null;
+            if(idsEl != null){
+                int hashes = Integer.parseInt(idsEl.getAttributeValue("hashes", XFlatConstants.xFlatNs));
+                ids = BloomFilter.decode(idsEl.getTextTrim(), hashes);
+            }
+            
+            return new ShardSummary<>(rows, ids == null, range, ids, length, modified);
+        }
+        catch(IllegalArgumentException | NullPointerException ex){
+            //NumberFormatException is an IllegalArgumentException
+            throw new ConversionException("Invalid shard summary", ex);
+        }
+    }
+    
+    /**
+     * Builds a summary from the committed rows of a shard.  An engine adds
+     * each of its rows to the builder in {@link EngineBase#summarize(org.xflatdb.xflat.db.ShardSummary.Builder) }.
+     * @param <T> The type of the shard keys.
+     */
+    public static abstract class Builder<T> {
+        
+        private final Comparator<T> comparator;
+        
+        private final Set<String> ids = new HashSet<>();
+        
+        private int rowCount = 0;
+        
+        private T min = null;
+        
+        private T max = null;
+        
+        private boolean unbounded = false;
+        
+        /**
+         * Creates a new builder that orders shard keys by the given comparator.
+         * @param comparator The comparator of the shard's interval provider.
+         */
+        protected Builder(Comparator<T> comparator){
+            this.comparator = comparator;
+        }
+        
+        /**
+         * Evaluates the shard key of the given row.
+         * @param row A "db:row" element wrapping the data of one version of a row.
+         * @return The shard key of the row.
+         * @throws RuntimeException if the key cannot be evaluated, in which case the
+         * summary will have no key range.
+         */
+        protected abstract T getShardKey(Element row);
+        
+        /**
+         * Adds one committed version of a row to the summary.  Every version
+         * is added, since a transaction may still read an old version.
+         * @param id The ID of the row.
+         * @param row A "db:row" element wrapping the data of the version.
+         */
+        public void addVersion(String id, Element row){
+            ids.add(id);
+            
+            if(unbounded){
+                return;
+            }
+            
+            T key;
+            try{
+                key = getShardKey(row);
+            }catch(RuntimeException ex){
+                key = null;
+            }
+            if(key == null){
+                unbounded = true;
+                return;
+            }
+            
+            if(min == null || comparator.compare(key, min) < 0){
+                min = key;
+            }
+            if(max == null || comparator.compare(key, max) > 0){
+                max = key;
+            }
+        }
+        
+        /**
+         * Counts a row whose most recently committed version is not a delete.
+         */
+        public void countRow(){
+            rowCount++;
+        }
+        
+        /**
+         * Builds the summary of the given shard file, which must hold exactly
+         * the committed data that was added to this builder.
+         * @param file The shard file.
+         * @return The summary of the shard.
+         */
+        public ShardSummary<T> build(File file){
+            boolean empty = ids.isEmpty();
+            
+            BloomFilter filter = null;
+            if(!empty){
+                filter = new BloomFilter(ids.size());
+                for(String id : ids){
+                    filter.add(id);
+                }
+            }
+            
+            Interval<T> range = empty || unbounded ? null : new Interval<>(min, true, max, true);
+            
+            return new ShardSummary<>(rowCount, empty, range, filter, file.length(), file.lastModified());
+        }
+    }
+}
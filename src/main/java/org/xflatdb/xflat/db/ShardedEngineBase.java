@@ -17,24 +17,65 @@ package org.xflatdb.xflat.db;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jdom2.Document;
 import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.EngineStateException;
 import org.xflatdb.xflat.ShardsetConfig;
 import org.xflatdb.xflat.TableConfig;
+import org.xflatdb.xflat.XFlatConstants;
 import org.xflatdb.xflat.XFlatDataException;
 import org.xflatdb.xflat.XFlatException;
 import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.Converter;
+import org.xflatdb.xflat.query.EmptyCursor;
 import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.IntervalComparator;
+import org.xflatdb.xflat.query.IntervalIndex;
+import org.xflatdb.xflat.query.IntervalProvider;
+import org.xflatdb.xflat.query.IntervalSet;
+import org.xflatdb.xflat.query.ResizableIntervalProvider;
+import org.xflatdb.xflat.query.XPathQuery;
+import org.xflatdb.xflat.util.CompositeFuture;
 
 /**
  * The base class for all engines that are sharded.  Sharded engines store the table
  * data across multiple files.
+ * <p/>
+ * If the {@link ShardsetConfig} sets shard size limits, the engine splits and merges
+ * shards in the background.  The new shards are named for their intervals by the
+ * {@link ResizableIntervalProvider}, and values are routed to whichever known shard
+ * contains them.  The shards being created or replaced by a rebalance are recorded in
+ * the "shardset" metadata document, so that a rebalance interrupted by a crash is
+ * cleaned up when the engine next spins up.
+ * <p/>
+ * If the {@link ShardsetConfig} sets a retention period, shards whose intervals
+ * end before the retention period are dropped whole, the same way.
+ * <p/>
+ * If the {@link ShardsetConfig} limits the open shards, the least recently used
+ * shards are spun down early whenever a shard spin up exceeds the limit.
  * @author Gordon
  */
 public abstract class ShardedEngineBase<T> extends EngineBase {
@@ -43,12 +84,71 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
     /** The shards that are known to exist on disk. */
     protected ConcurrentMap<Interval<T>, File> knownShards = new ConcurrentHashMap<>();
     
+    /** 
+     * The known shards sorted for routing values and queries, replaced whenever
+     * {@link #knownShards} changes.  Modifiers of knownShards must call {@link #indexShards()}.
+     */
+    private volatile IntervalIndex<T> shardIndex;
+    
+    private final Object indexSyncRoot = new Object();
+    
+    /** The summaries of shards taken when they last spun down, removed when a shard is spun up. */
+    private final ConcurrentMap<Interval<T>, ShardSummary<T>> shardSummaries = new ConcurrentHashMap<>();
+    
+    /** Shard engines which are spinning down and have not yet saved their summaries. */
+    private final Set<EngineBase> pendingSummaries = Collections.newSetFromMap(new ConcurrentHashMap<EngineBase, Boolean>());
+    
+    /** Held to replace shards in {@link #knownShards}, so that query plans see a split or merge all at once. */
+    private final ReadWriteLock layoutLock = new ReentrantReadWriteLock();
+    
+    /** Shards replaced by a split or merge, which are deleted once no query is reading them. */
+    private final ConcurrentMap<Interval<T>, TableMetadata> retiredShards = new ConcurrentHashMap<>();
+    
+    /** Retired shards which are spinning down before they are deleted. */
+    private final Set<Interval<T>> deletingShards = Collections.newSetFromMap(new ConcurrentHashMap<Interval<T>, Boolean>());
+    
+    /** The names of the tables kept alongside the shards by a subclass, which are never shards. */
+    private final Set<String> auxiliaryNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    /** The tables kept alongside the shards which have been opened, by name. */
+    private final ConcurrentMap<String, TableMetadata> auxiliaryTables = new ConcurrentHashMap<>();
+    
+    /** Splits and merges the shards, and records the shards being replaced. */
+    private final ShardRebalancer<T> rebalancer = new ShardRebalancer<>(this);
+    
+    //how often to look for shards to split or merge
+    private static final long REBALANCE_INTERVAL = 5000;
+    
+    //shards used this recently may have just been provided to an operation, so are never evicted
+    private static final long EVICTION_GRACE_MS = 100;
+    
+    private final AtomicLong spinUps = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong warmUps = new AtomicLong();
+    
+    /** How often each shard was accessed, when the shardset warms up its most accessed shards.  Saved under {@link #ACCESS_METADATA}. */
+    private final ConcurrentMap<Interval<T>, AtomicLong> shardAccesses = new ConcurrentHashMap<>();
+    private final AtomicBoolean accessesChanged = new AtomicBoolean(false);
+    private volatile long lastAccessSave = 0;
+    
+    private static final String ACCESS_METADATA = "shardaccess";
+    
+    //how often to save the access counts while they are changing
+    private static final long ACCESS_SAVE_INTERVAL = 30000;
+    
+    //set while an eviction task is waiting to run, so spin ups don't pile them up
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    
     
     //the engines that are spinning down while this engine spins down
-    private Map<Interval<T>, EngineBase> spinningDownEngines = new HashMap<>();
+    //keyed by shard interval, or by name for the tables kept alongside the shards.
+    private Map<Object, EngineBase> spinningDownEngines = new HashMap<>();
     
     private final Object spinDownSyncRoot = new Object();
     
+    //the cross-shard queries that are still open with the shards they read, so we don't spin down underneath them
+    private Map<Cursor<Element>, List<Interval<T>>> crossShardQueries = new ConcurrentHashMap<>();
+    
     /** The directory managed by this sharded engine. */
     protected File directory;
         
@@ -83,6 +183,7 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
         
         this.directory = file;
         this.config = config;
+        this.shardIndex = new IntervalIndex<>(Collections.<Interval<T>>emptyList(), config.getIntervalProvider().getComparator());
         
         if(file.exists() && ! file.isDirectory()){
             //TODO: automatically convert old data in this case.
@@ -108,6 +209,56 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
      * @return The interval in which the shard property should reside.
      */
     protected Interval<T> getInterval(Object value){
+        T converted = getShardKey(value);
+        
+        Interval<T> ret;
+        try{
+            ret = this.config.getIntervalProvider().getInterval(converted);
+        }catch(java.lang.NullPointerException ex){
+            throw new XFlatException("Data cannot be sharded: sharding expression " + config.getShardPropertySelector().getExpression() +
+                    " selected null value which cannot be mapped to a range");
+        }
+        
+        if(ret == null){
+            throw new XFlatException("Data cannot be sharded: sharding expression " + config.getShardPropertySelector().getExpression() +
+                    " selected value " + converted + " which cannot be mapped to a range");
+        }
+        
+        if(!this.knownShards.containsKey(ret)){
+            //the provider's interval may have been split or merged into other shards
+            Interval<T> known = this.shardIndex.find(converted);
+            if(known != null){
+                return known;
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Rebuilds the index of the known shards after {@link #knownShards} changes.
+     * Rebuilds are serialized, so the last one always sees the latest changes.
+     */
+    protected void indexShards(){
+        synchronized(indexSyncRoot){
+            this.shardIndex = new IntervalIndex<>(this.knownShards.keySet(), this.config.getIntervalProvider().getComparator());
+        }
+    }
+    
+    /**
+     * Gets the current index of the known shards.
+     */
+    IntervalIndex<T> getShardIndex(){
+        return this.shardIndex;
+    }
+    
+    /**
+     * Converts the given selected shard property to the shard property class
+     * given in the configuration.
+     * @param value The shard property selected by the shard property selector in the configuration.
+     * @return The shard key, which the IntervalProvider maps to a shard.
+     */
+    protected T getShardKey(Object value){
         T converted;
         if(value == null || !this.config.getShardPropertyClass().isAssignableFrom(value.getClass())){
             try {
@@ -132,26 +283,34 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
             converted = (T)value;
         }
         
-        Interval<T> ret;
-        try{
-            ret = this.config.getIntervalProvider().getInterval(converted);
-        }catch(java.lang.NullPointerException ex){
-            throw new XFlatException("Data cannot be sharded: sharding expression " + config.getShardPropertySelector().getExpression() +
-                    " selected null value which cannot be mapped to a range");
+        return converted;
+    }
+    
+    EngineBase getEngine(Interval<T> interval){
+        if(isCountingAccesses()){
+            countAccess(interval);
         }
         
-        if(ret == null){
-            throw new XFlatException("Data cannot be sharded: sharding expression " + config.getShardPropertySelector().getExpression() +
-                    " selected value " + converted + " which cannot be mapped to a range");
-        }
+        EngineBase ret = provideEngine(interval);
+        
+        //the shard may now be written, so its summary is out of date.  Removing it
+        //after the engine is provided ensures a summary saved by a concurrent
+        //spin down is not left behind.
+        this.shardSummaries.remove(interval);
         
         return ret;
     }
     
-    private EngineBase getEngine(Interval<T> interval){
+    private EngineBase provideEngine(Interval<T> interval){
         
         TableMetadata metadata = openShards.get(interval);
         if(metadata == null){
+            //a reader may still be using a shard that was replaced by a rebalance
+            TableMetadata retired = retiredShards.get(interval);
+            if(retired != null){
+                return retired.provideEngine();
+            }
+            
             //definitely ensure we aren't spinning down before we start up a new engine
             synchronized(spinDownSyncRoot){
                 
@@ -160,12 +319,23 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
                     throw new XFlatException("Engine has already spun down");
                 }
                 
+                if(!this.knownShards.containsKey(interval) && !this.shardIndex.intersecting(interval).isEmpty()){
+                    throw new XFlatException("Shard " + this.config.getIntervalProvider().getName(interval) + 
+                            " of sharded table " + this.getTableName() + " was replaced by a rebalance");
+                }
+                
                 //build the new metadata element so we can use it to provide engines
                 String name = this.config.getIntervalProvider().getName(interval);
                 File file = new File(directory, name + ".xml");
-                this.knownShards.put(interval, file);
+                if(!this.knownShards.containsKey(interval)){
+                    //a shard by this name may have been dropped before
+                    rebalancer.clearLayoutChange(name);
+                }
+                if(this.knownShards.put(interval, file) == null){
+                    indexShards();
+                }
                 
-                metadata = this.getMetadataFactory().makeTableMetadata(this.getTableName(), file);
+                metadata = this.getMetadataFactory().makeShardMetadata(this.getTableName(), name, file);
                 metadata.config = new TableConfig(); //not even really used for our purposes
                 
                 TableMetadata weWereLate = openShards.putIfAbsent(interval, metadata);
@@ -186,9 +356,90 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
             }
         }
         
+        boolean spinningUp = metadata.getEngine() == null;
+        EngineBase ret = metadata.provideEngine();
+        if(spinningUp){
+            spinUps.incrementAndGet();
+            if(config.isOpenShardsLimited()){
+                scheduleEviction();
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Reserves the name of a table kept in the shard directory alongside the shards,
+     * such as an index of the rows in every shard.  A file with a reserved name
+     * is never loaded as a shard.  Subclasses must reserve their tables before
+     * the engine spins up.
+     * @param name The name of the table, which no shard may have.
+     */
+    protected void reserveAuxiliaryTable(String name){
+        this.auxiliaryNames.add(name);
+    }
+    
+    /**
+     * Provides the engine for a table reserved with {@link #reserveAuxiliaryTable(java.lang.String) }.
+     * The table is spun down, flushed and recovered along with the shards, but
+     * is never split, merged, evicted or dropped.
+     * @param name The name of the reserved table.
+     * @return The engine for the table.
+     */
+    protected EngineBase provideAuxiliaryEngine(String name){
+        if(!this.auxiliaryNames.contains(name)){
+            throw new IllegalArgumentException("Table " + name + " was not reserved in sharded table " + getTableName());
+        }
+        
+        TableMetadata metadata = auxiliaryTables.get(name);
+        if(metadata == null){
+            synchronized(spinDownSyncRoot){
+                EngineState state = getState();
+                if(state == EngineState.SpunDown){
+                    throw new XFlatException("Engine has already spun down");
+                }
+                
+                metadata = auxiliaryTables.get(name);
+                if(metadata == null){
+                    metadata = this.getMetadataFactory().makeShardMetadata(this.getTableName(), name, new File(directory, name + ".xml"));
+                    metadata.config = new TableConfig(); //not even really used for our purposes
+                    auxiliaryTables.put(name, metadata);
+                }
+                
+                if(state == EngineState.SpinningDown && !spinningDownEngines.containsKey(name)){
+                    //let the spin down task spin it down again.
+                    EngineBase eng = metadata.provideEngine();
+                    spinningDownEngines.put(name, eng);
+                    return eng;
+                }
+            }
+        }
+        
         return metadata.provideEngine();
     }
     
+    /**
+     * Copies every committed version of every row in the given shard into a
+     * reserved table, converting the data of each version.  The transaction and
+     * commit IDs of each version are kept, so that open transactions read the
+     * copies as of the same snapshot as the rows in the shard.
+     * @param name The name of the reserved table.
+     * @param shard The shard whose rows are copied.
+     * @param converter Converts a row element holding one version of the data into the data to copy.
+     * @return true if the rows were copied, false if the reserved table cannot copy rows from the shard.
+     */
+    protected boolean copyToAuxiliaryTable(String name, Interval<T> shard, Converter<Element, Element> converter){
+        EngineBase target = provideAuxiliaryEngine(name);
+        EngineBase source = getEngine(shard);
+        
+        Map<String, Element> committed = source.getCommittedRows();
+        if(committed == null){
+            return false;
+        }
+        
+        return target.copyCommittedRows(source, committed.keySet(), converter);
+    }
+    
     /**
      * Performs an action with the appropriate engine for the given shard interval.
      * The shard interval must be one that is provided by the IntervalProvider
@@ -243,29 +494,810 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
         }
     }
     
+    /**
+     * Performs an action with the engine for each of the given shard intervals,
+     * modifying up to {@link ShardsetConfig#getWriteParallelism()} shards at a time.
+     * @see #invokeAll(java.util.List) 
+     * @param <U> The generic type of the value to return.
+     * @param ranges The shard intervals mapping to shard files on disk.
+     * @param action The action to perform with each engine.
+     * @return The values returned by the action, in the same order as the ranges.
+     */
+    protected <U> List<U> doWithEngines(List<Interval<T>> ranges, final EngineAction<U> action){
+        List<Callable<U>> tasks = new ArrayList<>(ranges.size());
+        for(final Interval<T> range : ranges){
+            tasks.add(new Callable<U>(){
+                @Override
+                public U call() {
+                    return doWithEngine(range, action);
+                }
+            });
+        }
+        
+        return invokeAll(tasks);
+    }
+    
+    /**
+     * Runs the given tasks, up to {@link ShardsetConfig#getWriteParallelism()} at a time,
+     * in the transaction of the calling thread.  The calling thread runs tasks too,
+     * so the tasks complete even if the executor service is busy.
+     * <p/>
+     * If a task throws, no more tasks are started and the first exception
+     * is rethrown once the running tasks have completed.
+     * @param <U> The generic type of the value to return.
+     * @param tasks The tasks to run.
+     * @return The values returned by the tasks, in the same order as the tasks.
+     */
+    protected <U> List<U> invokeAll(List<? extends Callable<U>> tasks){
+        final List<Callable<U>> bound = new ArrayList<>(tasks.size());
+        for(Callable<U> task : tasks){
+            bound.add(getTransactionManager().inCurrentTransaction(task));
+        }
+        
+        final AtomicReferenceArray<U> results = new AtomicReferenceArray<>(bound.size());
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>(null);
+        
+        final Runnable worker = new Runnable(){
+            @Override
+            public void run() {
+                int i;
+                while(error.get() == null && (i = next.getAndIncrement()) < results.length()){
+                    try{
+                        results.set(i, bound.get(i).call());
+                    }catch(Throwable t){
+                        error.compareAndSet(null, t);
+                    }
+                }
+            }
+        };
+        
+        List<Future<?>> helpers = new ArrayList<>();
+        List<AtomicBoolean> helpersClaimed = new ArrayList<>();
+        int helperCount = Math.min(config.getWriteParallelism(), bound.size()) - 1;
+        for(int i = 0; i < helperCount; i++){
+            final AtomicBoolean claimed = new AtomicBoolean(false);
+            helpersClaimed.add(claimed);
+            helpers.add(getExecutorService().submit(new Runnable(){
+                @Override
+                public void run() {
+                    if(claimed.compareAndSet(false, true)){
+                        worker.run();
+                    }
+                }
+            }));
+        }
+        
+        worker.run();
+        
+        for(int i = 0; i < helpers.size(); i++){
+            if(helpersClaimed.get(i).compareAndSet(false, true)){
+                //the helper never started, and now never will.
+                helpers.get(i).cancel(false);
+                continue;
+            }
+            
+            try {
+                helpers.get(i).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new XFlatException("Interrupted while waiting for shards to complete", ex);
+            } catch (ExecutionException ex) {
+                error.compareAndSet(null, ex.getCause());
+            }
+        }
+        
+        Throwable t = error.get();
+        if(t instanceof RuntimeException){
+            throw (RuntimeException)t;
+        }
+        if(t instanceof Error){
+            throw (Error)t;
+        }
+        if(t != null){
+            throw new XFlatException("Exception while modifying shards", t);
+        }
+        
+        List<U> ret = new ArrayList<>(results.length());
+        for(int i = 0; i < results.length(); i++){
+            ret.add(results.get(i));
+        }
+        return ret;
+    }
+    
+    /**
+     * Gets a list of shard intervals over which the query should be executed.
+     * This is obtained by dissecting the query according to the shard property
+     * and then looking for known shards that intersect the dissected query.
+     * @param query The query to dissect in order to create the execution plan.
+     * @return A set of intervals mapping to shards over which this query needs to execute.
+     */
+    protected List<Interval<T>> getExecutionPlan(XPathQuery query){
+        final IntervalProvider<T> provider = config.getIntervalProvider();
+        
+        IntervalSet<T> dissectedQuery;
+        if(config.isShardedById()){
+            dissectedQuery = query.dissectId(provider.getComparator(), config.getShardPropertyClass());
+        }
+        else{
+            dissectedQuery = query.dissect(config.getShardPropertySelector(), provider.getComparator(), config.getShardPropertyClass());
+        }
+        
+        //find the known shards the query intersects, in shard order.
+        List<Interval<T>> ret = new ArrayList<>();
+        layoutLock.readLock().lock();
+        try{
+            for(Interval<T> known : this.shardIndex.intersecting(dissectedQuery)){
+                //a spun down shard's summary may show it has nothing the query could match
+                ShardSummary<T> summary = getSummary(known);
+                if(summary != null){
+                    if(summary.isEmpty()){
+                        continue;
+                    }
+                    if(summary.getKeyRange() != null && !dissectedQuery.intersects(summary.getKeyRange(), provider.getComparator())){
+                        continue;
+                    }
+                }
+
+                ret.add(known);
+            }
+        }finally{
+            layoutLock.readLock().unlock();
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Queries each shard in the execution plan of the query, in shard order.
+     * @param query The query to execute.
+     * @return A cursor over the matching rows of all the shards that intersect the query.
+     */
+    @Override
+    public Cursor<Element> queryTable(final XPathQuery query) {
+        query.setConversionService(this.getConversionService());
+        
+        List<Interval<T>> shardIntervals = getExecutionPlan(query);
+        
+        //no known shards intersect the query
+        if(shardIntervals.isEmpty()){
+            return EmptyCursor.instance();
+        }
+        
+        //only one known shard intersects the query, just use it
+        if(shardIntervals.size() == 1){
+            return doWithEngine(shardIntervals.get(0), new EngineAction<Cursor<Element>>(){
+                @Override
+                public Cursor<Element> act(Engine engine) {
+                    return engine.queryTable(query);
+                }
+            });
+        }
+        
+        //we need a cursor that will cross multiple shards.
+        Cursor<Element> ret;
+        if(query.isOrderedById() || query.getLimit() > 0){
+            ret = new MergedShardCursor<>(this, query, shardIntervals);
+        }
+        else{
+            ret = new CrossShardQueryCursor<>(this, query, shardIntervals);
+        }
+        //remember it so we don't spin down while it's open
+        this.crossShardQueries.put(ret, shardIntervals);
+        return ret;
+    }
+    
+    
+    /**
+     * Called by a cross-shard cursor when it is closed, so that the shards it
+     * read may spin down.
+     */
+    void crossShardQueryClosed(Cursor<Element> cursor){
+        this.crossShardQueries.remove(cursor);
+    }
+    
+    /**
+     * Gets whether the shard for the given interval might contain a row with the
+     * given ID, without spinning up the shard.  This is false if the shard does not
+     * exist, or if the shard is spun down and its summary rules out the ID.
+     * @param range The shard interval mapping to a shard file on disk.
+     * @param id The ID of the row.
+     * @return false if the shard definitely does not contain the row.
+     */
+    protected boolean mightContain(Interval<T> range, String id){
+        if(!this.knownShards.containsKey(range)){
+            return false;
+        }
+        
+        ShardSummary<T> summary = getSummary(range);
+        return summary == null || summary.mightContain(id);
+    }
+    
+    /**
+     * Gets the summary of the given shard if it is spun down and its summary is
+     * up to date.  The summary of an open shard is never used, since the
+     * shard may have been written since it was summarized.
+     */
+    ShardSummary<T> getSummary(Interval<T> range){
+        ShardSummary<T> summary = this.shardSummaries.get(range);
+        if(summary == null){
+            return null;
+        }
+        
+        TableMetadata metadata = this.openShards.get(range);
+        if(metadata != null && metadata.getEngine() != null){
+            return null;
+        }
+        
+        return summary;
+    }
+    
+    /**
+     * Creates a handler which summarizes the given shard when it spins down,
+     * and saves the summary with the shard's metadata.
+     */
+    private SpinDownEventHandler summarizeOnSpinDown(final Interval<T> interval, final TableMetadata table){
+        return new SpinDownEventHandler(){
+            @Override
+            public void spinDownComplete(SpinDownEvent event) {
+                try{
+                    summarize((EngineBase)event.getSource(), interval, table);
+                }finally{
+                    pendingSummaries.remove((EngineBase)event.getSource());
+                }
+            }
+        };
+    }
+    
+    /**
+     * Summarizes the given spun down shard engine, saving the summary with the
+     * shard's metadata so that it survives a restart.
+     */
+    private void summarize(EngineBase engine, Interval<T> interval, TableMetadata table){
+        ShardSummary.Builder<T> builder = new ShardSummary.Builder<T>(config.getIntervalProvider().getComparator()){
+            @Override
+            protected T getShardKey(Element row) {
+                return ShardedEngineBase.this.getShardKey(config.getShardPropertySelector().evaluateFirst(row));
+            }
+        };
+        
+        if(!engine.summarize(builder)){
+            return;
+        }
+        
+        ShardSummary<T> summary = builder.build(table.engineFile);
+        
+        synchronized(table){
+            table.engineMetadata.removeChildren("summary", XFlatConstants.xFlatNs);
+            try {
+                table.engineMetadata.addContent(summary.toElement(getConversionService()));
+                getMetadataFactory().saveTableMetadata(table);
+            } catch (ConversionException | IOException ex) {
+                //the summary is only an optimization
+                log.warn("Failure to save summary for sharded table " + getTableName() + " shard " + table.configName, ex);
+            }
+        }
+        
+        shardSummaries.put(interval, summary);
+        if(table.getEngine() != null){
+            //a new engine was provided while we were summarizing
+            shardSummaries.remove(interval);
+        }
+    }
     
     /**
      * Executed by the recurring update task every 500 ms in order to clean up
      * the shardset and spin down any inactive shards.
      */
     protected void updateTask(){
-        Iterator<TableMetadata> it = openShards.values().iterator();
+        Iterator<Map.Entry<Interval<T>, TableMetadata>> it = openShards.entrySet().iterator();
         while(it.hasNext()){
-            TableMetadata table = it.next();
+            Map.Entry<Interval<T>, TableMetadata> entry = it.next();
+            TableMetadata table = entry.getValue();
             if(table.canSpinDown()){
-                EngineBase spinDown = table.spinDown(false, false);
-                
-                //don't remove any metadata.  It's too dangerous with the way the concurrency is structured.
-                
-                try {
-                    this.getMetadataFactory().saveTableMetadata(table);
-                } catch (IOException ex) {
-                    //oh well
-                    this.log.warn("Failure to save metadata for sharded table " + this.getTableName() + " shard " + table.getName(), ex);
+                spinDownShard(entry.getKey(), table);
+            }
+        }
+        for(TableMetadata table : auxiliaryTables.values()){
+            if(table.canSpinDown()){
+                table.spinDown(false, false);
+            }
+        }
+        
+        if(config.isOpenShardsLimited()){
+            evictShards();
+        }
+        
+        if(config.getRetentionMillis() > 0){
+            dropExpiredShards();
+        }
+        
+        if(accessesChanged.get() && System.currentTimeMillis() - lastAccessSave > ACCESS_SAVE_INTERVAL){
+            saveAccessCounts();
+        }
+        
+        //delete the shards replaced by a rebalance once no query is reading them
+        for(Map.Entry<Interval<T>, TableMetadata> entry : retiredShards.entrySet()){
+            if(!deletingShards.contains(entry.getKey()) && !isInUse(entry.getKey())){
+                deleteRetired(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Spins down an open shard, summarizing it and saving its metadata.
+     */
+    private void spinDownShard(Interval<T> interval, TableMetadata table){
+        table.spinDown(false, false, summarizeOnSpinDown(interval, table));
+
+        //don't remove any metadata.  It's too dangerous with the way the concurrency is structured.
+
+        synchronized(table){
+            try {
+                this.getMetadataFactory().saveTableMetadata(table);
+            } catch (IOException ex) {
+                //oh well
+                this.log.warn("Failure to save metadata for sharded table " + this.getTableName() + " shard " + table.getName(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Evicts shards on a background thread, unless an eviction is already waiting to run.
+     * Evicting on the thread that spun up the shard could deadlock with a write
+     * that holds another shard's table lock.
+     */
+    private void scheduleEviction(){
+        if(!evictionScheduled.compareAndSet(false, true)){
+            return;
+        }
+        
+        try{
+            getExecutorService().submit(new Runnable(){
+                @Override
+                public void run() {
+                    evictionScheduled.set(false);
+                    if(getState() == EngineState.Running){
+                        evictShards();
+                    }
+                }
+            });
+        }catch(RuntimeException ex){
+            //the update task will evict shards instead
+            evictionScheduled.set(false);
+            log.warn("Failure to schedule shard eviction for sharded table " + getTableName(), ex);
+        }
+    }
+    
+    /**
+     * Spins down the least recently used shards until the open shards are within
+     * the limits set by the {@link ShardsetConfig}.  Shards with uncommitted data
+     * or which were used in the last few milliseconds are never evicted, and a
+     * shard with open cursors finishes spinning down
+     * when its cursors are closed.  Executed by the update task and after a shard
+     * spins up when the open shards are limited.
+     * @return The number of shards that were evicted.
+     */
+    protected synchronized int evictShards(){
+        int maxShards = config.getMaxOpenShards();
+        long maxBytes = config.getMaxOpenShardBytes();
+        
+        List<Map.Entry<Interval<T>, TableMetadata>> open = new ArrayList<>();
+        long bytes = 0;
+        for(Map.Entry<Interval<T>, TableMetadata> entry : openShards.entrySet()){
+            if(entry.getValue().getEngine() != null){
+                open.add(entry);
+                bytes += entry.getValue().engineFile.length();
+            }
+        }
+        
+        int count = open.size();
+        if((maxShards <= 0 || count <= maxShards) && (maxBytes <= 0 || bytes <= maxBytes)){
+            return 0;
+        }
+        
+        //least recently used first
+        Collections.sort(open, new Comparator<Map.Entry<Interval<T>, TableMetadata>>(){
+            @Override
+            public int compare(Map.Entry<Interval<T>, TableMetadata> o1, Map.Entry<Interval<T>, TableMetadata> o2) {
+                return Long.compare(o1.getValue().lastActivity, o2.getValue().lastActivity);
+            }
+        });
+        
+        int evicted = 0;
+        long recent = System.currentTimeMillis() - EVICTION_GRACE_MS;
+        for(Map.Entry<Interval<T>, TableMetadata> entry : open){
+            if((maxShards <= 0 || count <= maxShards) && (maxBytes <= 0 || bytes <= maxBytes)){
+                break;
+            }
+            
+            TableMetadata table = entry.getValue();
+            EngineBase engine = table.getEngine();
+            if(engine == null || engine.hasUncomittedData() || table.lastActivity > recent){
+                continue;
+            }
+            
+            spinDownShard(entry.getKey(), table);
+            if(table.getEngine() == null){
+                evicted++;
+                count--;
+                bytes -= table.engineFile.length();
+            }
+        }
+        
+        if(evicted > 0){
+            evictions.addAndGet(evicted);
+            if(log.isDebugEnabled())
+                log.debug(String.format("Evicted %d shards of sharded table %s, %d remain open", evicted, getTableName(), count));
+        }
+        
+        return evicted;
+    }
+    
+    /**
+     * Gets the number of open shards of this sharded engine, and how often shards
+     * have been spun up and evicted.
+     * @return A snapshot of the shard pool statistics.
+     */
+    public ShardPoolStatistics getShardPoolStatistics(){
+        int open = 0;
+        long bytes = 0;
+        for(TableMetadata table : openShards.values()){
+            if(table.getEngine() != null){
+                open++;
+                bytes += table.engineFile.length();
+            }
+        }
+        
+        return new ShardPoolStatistics(open, bytes, spinUps.get(), evictions.get(), warmUps.get());
+    }
+    
+    /**
+     * Spins up the existing shards chosen by the shardset's warm up configuration,
+     * in parallel on the executor service, so that the first requests after a
+     * restart don't each have to wait for a shard to be read.  This returns
+     * immediately; progress is logged and counted in the {@link #getShardPoolStatistics() }.
+     * @return The number of shards being warmed up.
+     * @see ShardsetConfig#withWarmUp(int, org.xflatdb.xflat.ShardsetConfig.WarmUpOrder) 
+     */
+    protected int warmUpShards(){
+        int count = config.getWarmUpShards();
+        if(config.getMaxOpenShards() > 0){
+            count = Math.min(count, config.getMaxOpenShards());
+        }
+        if(count <= 0){
+            return 0;
+        }
+        
+        List<Interval<T>> shards = chooseWarmUpShards(count);
+        if(shards.isEmpty()){
+            return 0;
+        }
+        
+        if(log.isInfoEnabled())
+            log.info(String.format("Warming up %d shards of sharded table %s", shards.size(), getTableName()));
+        
+        final long start = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(shards.size());
+        for(final Interval<T> shard : shards){
+            getExecutorService().submit(new Runnable(){
+                @Override
+                public void run() {
+                    try{
+                        EngineState state = getState();
+                        if(state == EngineState.SpinningDown || state == EngineState.SpunDown){
+                            return;
+                        }
+                        
+                        provideEngine(shard);
+                        warmUps.incrementAndGet();
+                    }catch(RuntimeException ex){
+                        //the shard will be spun up when it is needed
+                        log.warn("Failure to warm up sharded table " + getTableName() + " shard " + config.getIntervalProvider().getName(shard), ex);
+                    }finally{
+                        if(remaining.decrementAndGet() == 0 && log.isInfoEnabled()){
+                            log.info(String.format("Warmed up sharded table %s in %d ms", getTableName(), System.currentTimeMillis() - start));
+                        }
+                    }
+                }
+            });
+        }
+        
+        return shards.size();
+    }
+    
+    /**
+     * Chooses the known shards to warm up, in the order configured by the shardset.
+     */
+    private List<Interval<T>> chooseWarmUpShards(int count){
+        final Comparator<Interval<T>> byInterval = new IntervalComparator<>(config.getIntervalProvider().getComparator());
+        final Map<Interval<T>, Long> modified = new HashMap<>();
+        for(Map.Entry<Interval<T>, File> shard : knownShards.entrySet()){
+            modified.put(shard.getKey(), shard.getValue().lastModified());
+        }
+        final boolean byAccesses = config.getWarmUpOrder() == ShardsetConfig.WarmUpOrder.MostAccessed;
+        
+        List<Interval<T>> ret = new ArrayList<>(modified.keySet());
+        Collections.sort(ret, new Comparator<Interval<T>>(){
+            @Override
+            public int compare(Interval<T> o1, Interval<T> o2) {
+                int c = 0;
+                if(byAccesses){
+                    c = Long.compare(getAccessCount(o2), getAccessCount(o1));
+                }
+                if(c == 0){
+                    c = Long.compare(modified.get(o2), modified.get(o1));
                 }
+                //with no other information the latest shards are the most recent
+                return c != 0 ? c : byInterval.compare(o2, o1);
+            }
+        });
+        
+        return ret.size() > count ? ret.subList(0, count) : ret;
+    }
+    
+    private boolean isCountingAccesses(){
+        return config.getWarmUpShards() > 0 && config.getWarmUpOrder() == ShardsetConfig.WarmUpOrder.MostAccessed;
+    }
+    
+    private void countAccess(Interval<T> interval){
+        AtomicLong count = shardAccesses.get(interval);
+        if(count == null){
+            AtomicLong newCount = new AtomicLong();
+            count = shardAccesses.putIfAbsent(interval, newCount);
+            if(count == null){
+                count = newCount;
             }
         }
+        count.incrementAndGet();
+        accessesChanged.set(true);
+    }
+    
+    private long getAccessCount(Interval<T> interval){
+        AtomicLong count = shardAccesses.get(interval);
+        return count == null ? 0 : count.get();
+    }
+    
+    /**
+     * Saves the access counts of the known shards to the shardset metadata,
+     * so the most accessed shards can be warmed up after a restart.
+     */
+    private void saveAccessCounts(){
+        synchronized(shardAccesses){
+            accessesChanged.set(false);
+            lastAccessSave = System.currentTimeMillis();
+            
+            Element root = new Element("access", XFlatConstants.xFlatNs);
+            for(Map.Entry<Interval<T>, AtomicLong> count : shardAccesses.entrySet()){
+                if(!knownShards.containsKey(count.getKey())){
+                    continue;
+                }
+                root.addContent(new Element("shard", XFlatConstants.xFlatNs)
+                        .setAttribute("name", config.getIntervalProvider().getName(count.getKey()), XFlatConstants.xFlatNs)
+                        .setAttribute("count", Long.toString(count.getValue().get()), XFlatConstants.xFlatNs));
+            }
+            
+            try {
+                this.getMetadataFactory().saveMetadataDoc(ACCESS_METADATA, new Document(root));
+            } catch (IOException ex) {
+                //the access counts are only used to choose shards to warm up
+                log.warn("Failure to save shard access counts for sharded table " + getTableName(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Loads the access counts of the known shards from the shardset metadata.
+     */
+    private void loadAccessCounts(){
+        Document doc = this.getMetadataFactory().getMetadataDoc(ACCESS_METADATA);
+        if(doc == null){
+            return;
+        }
         
+        for(Element shard : doc.getRootElement().getChildren("shard", XFlatConstants.xFlatNs)){
+            try{
+                Interval<T> interval = config.getIntervalProvider().getInterval(shard.getAttributeValue("name", XFlatConstants.xFlatNs));
+                if(interval != null && knownShards.containsKey(interval)){
+                    shardAccesses.put(interval, new AtomicLong(Long.parseLong(shard.getAttributeValue("count", XFlatConstants.xFlatNs))));
+                }
+            }catch(RuntimeException ex){
+                this.log.warn("Ignoring invalid access count for sharded table " + this.getTableName() + " shard " + shard.getAttributeValue("name", XFlatConstants.xFlatNs), ex);
+            }
+        }
+    }
+    
+    /**
+     * Drops every shard whose interval ends before the retention period in the
+     * {@link ShardsetConfig}, without reading it.  The shard is retired like a
+     * shard replaced by a rebalance, so it is deleted once no query is reading it.
+     * Executed by the update task when a retention period is set.
+     * @return The number of shards dropped.
+     */
+    protected int dropExpiredShards(){
+        Comparator<T> comparator = config.getIntervalProvider().getComparator();
+        long cutoffMillis = System.currentTimeMillis() - config.getRetentionMillis();
+        T cutoff = config.getShardPropertyClass().cast(Date.class.equals(config.getShardPropertyClass()) ? new Date(cutoffMillis) : Long.valueOf(cutoffMillis));
+        
+        List<Interval<T>> expired = new ArrayList<>();
+        for(Interval<T> shard : knownShards.keySet()){
+            if(shard.getEnd() != null && comparator.compare(shard.getEnd(), cutoff) <= 0 && !isInUse(shard)){
+                expired.add(shard);
+            }
+        }
+        if(expired.isEmpty()){
+            return 0;
+        }
+        
+        try{
+            this.getTableLock();
+        }catch(XFlatException ex){
+            //long running writes in progress, try again next time.
+            return 0;
+        }
+        try{
+            if(getState() != EngineState.Running){
+                return 0;
+            }
+            
+            Iterator<Interval<T>> it = expired.iterator();
+            while(it.hasNext()){
+                TableMetadata table = openShards.get(it.next());
+                EngineBase engine = table == null ? null : table.getEngine();
+                if(engine != null && engine.hasUncomittedData()){
+                    //a transaction could still commit to it
+                    it.remove();
+                }
+            }
+            
+            //once recorded as retired the shards are deleted on spin up, even if we crash.
+            rebalancer.retire(expired);
+            
+            layoutLock.writeLock().lock();
+            try{
+                for(Interval<T> shard : expired){
+                    File file = knownShards.remove(shard);
+                    shardSummaries.remove(shard);
+                    TableMetadata table = openShards.remove(shard);
+                    if(table != null){
+                        retiredShards.put(shard, table);
+                    }
+                    else{
+                        deleteShardFiles(config.getIntervalProvider().getName(shard));
+                    }
+                }
+                indexShards();
+            }finally{
+                layoutLock.writeLock().unlock();
+            }
+            
+            if(log.isDebugEnabled())
+                log.debug(String.format("Dropped expired shards %s of sharded table %s", expired, getTableName()));
+            
+            shardsDropped(expired);
+            
+            return expired.size();
+        }catch(IOException ex){
+            log.warn("Failure to drop expired shards of sharded table " + this.getTableName(), ex);
+            return 0;
+        }finally{
+            this.releaseTableLock();
+        }
+    }
+    
+    /**
+     * Invoked after {@link #dropExpiredShards() } drops shards, while writes still
+     * wait on the table lock.  Subclasses override this to remove anything they
+     * keep about the rows of the dropped shards.
+     * @param dropped The shards that were dropped.
+     */
+    protected void shardsDropped(List<Interval<T>> dropped){
+        
+    }
+    
+    /**
+     * Gets whether any open cross-shard query will read the given shard.
+     */
+    private boolean isInUse(Interval<T> shard){
+        for(List<Interval<T>> intervals : crossShardQueries.values()){
+            if(intervals.contains(shard)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Spins down a shard that was replaced by a rebalance, deleting it once
+     * its engine has finished spinning down.
+     */
+    private void deleteRetired(final Interval<T> interval, final TableMetadata table){
+        EngineBase engine = table.getEngine();
+        if(engine == null){
+            deleteShard(interval, table);
+            return;
+        }
+        
+        deletingShards.add(interval);
+        EngineBase spinningDown = table.spinDown(true, false, new SpinDownEventHandler(){
+            @Override
+            public void spinDownComplete(SpinDownEvent event) {
+                deleteShard(interval, table);
+            }
+        });
+        
+        if(spinningDown.getState() != EngineState.SpinningDown){
+            //it was forced down without notifying us, or already finished
+            deleteShard(interval, table);
+        }
+    }
+    
+    private void deleteShard(Interval<T> interval, TableMetadata table){
+        deleteShardFiles(table.configName);
+        retiredShards.remove(interval);
+        deletingShards.remove(interval);
+    }
+    
+    /**
+     * Deletes the data and metadata files of the named shard, if they exist.
+     */
+    void deleteShardFiles(String name){
+        File data = new File(directory, name + ".xml");
+        if(data.exists() && !data.delete()){
+            log.warn("Unable to delete shard file " + data);
+        }
+        File metadata = new File(directory, name + ".config.xml");
+        if(metadata.exists() && !metadata.delete()){
+            log.warn("Unable to delete shard metadata file " + metadata);
+        }
+    }
+    
+    /**
+     * Splits one shard that has grown too large, or merges two adjacent shards which
+     * have shrunk too small, according to the limits in the {@link ShardsetConfig}.
+     * This is executed every few seconds by a recurring task when the limits are set.
+     * <p/>
+     * The rows of the old shards are copied to the new shards while holding the table lock,
+     * so writes wait for the copy but reads continue against the old shards.  Every committed
+     * version is copied with its commit ID, so open transactions see the same rows afterwards.  The new
+     * shards then replace the old ones all at once, and the old shards are deleted once
+     * no query is reading them.  The row count of a shard is only known from the summary
+     * saved when it spun down, so shards in use are only split by their file size.
+     * @return true if a shard was split or merged.
+     */
+    protected boolean rebalance(){
+        if(!config.isRebalancing() || getState() != EngineState.Running || !retiredShards.isEmpty()){
+            //wait for the last rebalance to finish deleting the shards it replaced.
+            return false;
+        }
+        
+        return rebalancer.rebalance();
+    }
+    
+    /**
+     * Replaces the given shards with the new shards created by a rebalance, all at
+     * once so that query plans see the whole change.  The old shards are retired,
+     * to be deleted once no query is reading them.
+     */
+    void replaceShards(List<Interval<T>> from, Map<Interval<T>, TableMetadata> created){
+        layoutLock.writeLock().lock();
+        try{
+            for(Map.Entry<Interval<T>, TableMetadata> shard : created.entrySet()){
+                openShards.put(shard.getKey(), shard.getValue());
+                knownShards.put(shard.getKey(), shard.getValue().engineFile);
+            }
+            for(Interval<T> shard : from){
+                knownShards.remove(shard);
+                shardSummaries.remove(shard);
+                TableMetadata old = openShards.remove(shard);
+                if(old != null){
+                    retiredShards.put(shard, old);
+                }
+            }
+            indexShards();
+        }finally{
+            layoutLock.writeLock().unlock();
+        }
     }
     
     /**
@@ -289,10 +1321,42 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
                     return true;
                 }
             }
+            for(TableMetadata table : this.auxiliaryTables.values()){
+                EngineBase e = table.getEngine();
+                if(e != null && e.hasUncomittedData()){
+                    return true;
+                }
+            }
         }
         return false;
     }
         
+    /**
+     * Flushes each of the open shards, completing when all of them have
+     * saved their data to disk.
+     */
+    @Override
+    protected Future<?> scheduleFlush() {
+        List<Future<?>> flushes = new ArrayList<>();
+        for(TableMetadata table : this.openShards.values()){
+            EngineBase e = table.getEngine();
+            if(e != null){
+                flushes.add(e.flush());
+            }
+        }
+        for(TableMetadata table : this.auxiliaryTables.values()){
+            EngineBase e = table.getEngine();
+            if(e != null){
+                flushes.add(e.flush());
+            }
+        }
+        for(EngineBase e : this.spinningDownEngines.values()){
+            flushes.add(e.flush());
+        }
+        
+        return new CompositeFuture<>(null, flushes);
+    }
+        
     /**
      * Reverts the given transaction.  If not recovering, this does nothing,
      * since the individual shards will have been bound to the transaction themselves.<br/>
@@ -314,6 +1378,9 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
             for(Interval<T> interval : this.knownShards.keySet()){
                 this.getEngine(interval).revert(txId, isRecovering);
             }
+            for(String name : this.auxiliaryNames){
+                this.provideAuxiliaryEngine(name).revert(txId, isRecovering);
+            }
         }finally{
             this.releaseTableLock();
         }
@@ -329,6 +1396,8 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
             directory.mkdirs();
         }
         else{
+            rebalancer.loadLayoutChanges();
+            
             //need to scan the directory for existing known shards.
             for(File f : directory.listFiles()){
                 if(!f.getName().endsWith(".xml") || f.getName().endsWith("config.xml")){
@@ -337,15 +1406,34 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
                 
                 try{
                     String shardName = f.getName().substring(0, f.getName().length() - 4);
+                    if(auxiliaryNames.contains(shardName)){
+                        //one of the subclass's own tables
+                        continue;
+                    }
+                    
+                    if(rebalancer.isReplaced(shardName)){
+                        //the shard was replaced or never finished, either way its rows are elsewhere.
+                        deleteShardFiles(shardName);
+                        continue;
+                    }
+                    
                     Interval<T> i = config.getIntervalProvider().getInterval(shardName);
                     if(i != null){
                         knownShards.put(i, f);
+                        loadSummary(i, shardName, f);
                     }
                 }catch(Exception ex){
                     this.log.warn("Error identifying interval for file " + f.getName(), ex);
                     continue;
                 }
             }
+            indexShards();
+            
+            if(isCountingAccesses()){
+                loadAccessCounts();
+            }
+            
+            rebalancer.saveDiscardedChanges();
         }
         
         //we'll spin up tables as we need them.
@@ -362,11 +1450,56 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
             }
         }, 500, 500, TimeUnit.MILLISECONDS);
         
+        if(config.isRebalancing()){
+            this.getExecutorService().scheduleWithFixedDelay(new Runnable(){
+                @Override
+                public void run() {
+                    EngineState state = getState();
+                    if(state == EngineState.SpinningDown ||
+                            state == EngineState.SpunDown){
+                        throw new RuntimeException("task termination");
+                    }
+
+                    try{
+                        rebalance();
+                    }catch(RuntimeException ex){
+                        //keep rebalancing on later runs
+                        log.warn("Failure to rebalance sharded table " + getTableName(), ex);
+                    }
+                }
+            }, REBALANCE_INTERVAL, REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
         
         this.state.compareAndSet(EngineState.SpinningUp, EngineState.SpunUp);
         return true;
     }
 
+    /**
+     * Loads the summary saved when the shard last spun down, if the shard
+     * file has not been written since.
+     */
+    private void loadSummary(Interval<T> interval, String shardName, File file){
+        Document doc = this.getMetadataFactory().getMetadataDoc(shardName);
+        if(doc == null){
+            return;
+        }
+        
+        Element engine = doc.getRootElement().getChild("engine", XFlatConstants.xFlatNs);
+        Element summaryEl = engine == null ? null : engine.getChild("summary", XFlatConstants.xFlatNs);
+        if(summaryEl == null){
+            return;
+        }
+        
+        try {
+            ShardSummary<T> summary = ShardSummary.fromElement(summaryEl, this.getConversionService(), config.getShardPropertyClass());
+            if(summary.isCurrent(file)){
+                this.shardSummaries.put(interval, summary);
+            }
+        } catch (ConversionException ex) {
+            this.log.warn("Ignoring invalid summary for sharded table " + this.getTableName() + " shard " + shardName, ex);
+        }
+    }
+
     @Override
     protected boolean beginOperations() {
         return this.state.compareAndSet(EngineState.SpunUp, EngineState.Running);
@@ -384,10 +1517,44 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
 
             synchronized(spinDownSyncRoot){
                 for(Map.Entry<Interval<T>, TableMetadata> m : this.openShards.entrySet()){
+                    //don't finish spinning down until the shard has saved its summary
+                    EngineBase open = m.getValue().getEngine();
+                    if(open != null){
+                        pendingSummaries.add(open);
+                    }
+                    
+                    EngineBase spinningDown = m.getValue().spinDown(true, false, summarizeOnSpinDown(m.getKey(), m.getValue()));
+                    if(spinningDown != null){
+                        //a shard that was already spun down has no engine
+                        this.spinningDownEngines.put(m.getKey(), spinningDown);
+                    }
+                    
+                    if(open != null && open.getState() != EngineState.SpinningDown){
+                        //either it spun down immediately and is already summarized,
+                        //or it didn't spin down naturally and never will be.
+                        pendingSummaries.remove(open);
+                    }
+                }
+                
+                //shards replaced by a rebalance are deleted when we next spin up.
+                for(Map.Entry<Interval<T>, TableMetadata> m : this.retiredShards.entrySet()){
                     EngineBase spinningDown = m.getValue().spinDown(true, false);
-                    this.spinningDownEngines.put(m.getKey(), spinningDown);
+                    if(spinningDown != null){
+                        this.spinningDownEngines.put(m.getKey(), spinningDown);
+                    }
+                }
+                
+                for(Map.Entry<String, TableMetadata> m : this.auxiliaryTables.entrySet()){
+                    EngineBase spinningDown = m.getValue().spinDown(true, false);
+                    if(spinningDown != null){
+                        this.spinningDownEngines.put(m.getKey(), spinningDown);
+                    }
                 }
             }
+            
+            if(accessesChanged.get()){
+                saveAccessCounts();
+            }
 
             Runnable spinDownMonitor = new Runnable(){
                 @Override
@@ -414,7 +1581,8 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
                         while(it.hasNext()){
                             EngineBase spinningDown = it.next();
                             EngineState state = spinningDown.getState();
-                            if(state == EngineState.SpunDown || state == EngineState.Uninitialized){
+                            if((state == EngineState.SpunDown || state == EngineState.Uninitialized) &&
+                                    !pendingSummaries.contains(spinningDown)){
                                 it.remove();
                             }
                             else if(state == EngineState.Running){
@@ -440,12 +1608,12 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
     /**
      * Invoked in a synchronized context to see if the sharded engine is 
      * fully spun down.  Default implementation checks whether the spinning
-     * down engines have all spun down.  ALWAYS synchronize on {@link #spinDownSyncRoot}
-     * before calling this.
-     * @return Whether there are no more {@link #spinningDownEngines}.
+     * down engines have all spun down and all cross-shard queries are finished.
+     * ALWAYS synchronize on {@link #spinDownSyncRoot} before calling this.
+     * @return Whether there are no more {@link #spinningDownEngines} or open cross-shard queries.
      */
     protected boolean isSpunDown(){
-        return spinningDownEngines.isEmpty();
+        return spinningDownEngines.isEmpty() && crossShardQueries.isEmpty();
     }
 
     @Override
@@ -455,7 +1623,21 @@ public abstract class ShardedEngineBase<T> extends EngineBase {
         synchronized(spinDownSyncRoot){
             for(Map.Entry<Interval<T>, TableMetadata> m : this.openShards.entrySet()){
                 EngineBase spinningDown = m.getValue().spinDown(true, true);
-                this.spinningDownEngines.put(m.getKey(), spinningDown);
+                if(spinningDown != null){
+                    this.spinningDownEngines.put(m.getKey(), spinningDown);
+                }
+            }
+            for(Map.Entry<Interval<T>, TableMetadata> m : this.retiredShards.entrySet()){
+                EngineBase spinningDown = m.getValue().spinDown(true, true);
+                if(spinningDown != null){
+                    this.spinningDownEngines.put(m.getKey(), spinningDown);
+                }
+            }
+            for(Map.Entry<String, TableMetadata> m : this.auxiliaryTables.entrySet()){
+                EngineBase spinningDown = m.getValue().spinDown(true, true);
+                if(spinningDown != null){
+                    this.spinningDownEngines.put(m.getKey(), spinningDown);
+                }
             }
             
             for(EngineBase spinningDown : spinningDownEngines.values()){
@@ -15,8 +15,10 @@
 */
 package org.xflatdb.xflat.db;
 
+import java.util.concurrent.Future;
 import org.xflatdb.xflat.EngineStateException;
 import org.xflatdb.xflat.XFlatDataException;
+import org.xflatdb.xflat.util.CompositeFuture;
 
 /**
  * The base class for implementations of {@link org.xflatdb.xflat.Table}.
@@ -119,4 +121,22 @@ public abstract class TableBase {
             return action.act(this.engineProvider.provideEngine());
         }
     }
+    
+    /**
+     * Asks the engine to save the data written so far to disk, and gets a
+     * Future that yields the given result once it has.
+     * @param <V> The type of the result.
+     * @param result The result of the write operation that is being made durable.
+     * @return A Future that completes when the written data is on disk.
+     */
+    protected <V> Future<V> whenDurable(V result){
+        Future<?> flush = doWithEngine(new EngineAction<Future<?>>(){
+            @Override
+            public Future<?> act(Engine engine) {
+                return engine.flush();
+            }
+        });
+        
+        return new CompositeFuture<>(result, flush);
+    }
 }
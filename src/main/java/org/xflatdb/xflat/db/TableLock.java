@@ -0,0 +1,238 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xflatdb.xflat.XFlatException;
+
+/**
+ * The lock guarding an engine's table.  Write operations hold the lock shared,
+ * while spin-up, spin-down and cleanup hold it exclusively.
+ * <p/>
+ * The lock is owned by an arbitrary object rather than a thread, so that a task
+ * holding it may continue on another thread.  The exclusive lock is reentrant
+ * for its owner, and the owner's own writes pass straight through it.
+ * <p/>
+ * Shared holds are counted in padded stripes so that concurrent writers do not
+ * contend on a single counter.  Once an owner is waiting for the exclusive lock,
+ * new shared holds queue behind it, so that the writes in progress drain and
+ * a steady stream of writes cannot starve it.
+ * @author Gordon
+ */
+class TableLock {
+    
+    //ints per stripe, so that each stripe has its own cache line.
+    private static final int STRIDE = 16;
+    
+    private final AtomicIntegerArray sharedHolds;
+    private final int stripeMask;
+    
+    private final Object sync = new Object();
+    
+    //the owner of the exclusive lock, or null if not held.
+    private volatile Object exclusiveOwner = null;
+    //the number of owners waiting for the exclusive lock.
+    private volatile int exclusiveWaiters = 0;
+    //modified only by the exclusive owner.
+    private int holdCount = 0;
+    
+    private final AtomicLong exclusiveAcquisitions = new AtomicLong();
+    private final AtomicLong exclusiveWaitNanos = new AtomicLong();
+    private final AtomicLong maxExclusiveWaitNanos = new AtomicLong();
+    private final AtomicLong sharedWaits = new AtomicLong();
+    private final AtomicLong sharedWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    
+    TableLock(){
+        int stripes = 1;
+        while(stripes < Runtime.getRuntime().availableProcessors() && stripes < 64){
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        this.sharedHolds = new AtomicIntegerArray(stripes * STRIDE);
+    }
+    
+    private int stripe(){
+        //spread the thread IDs so that consecutive threads land on different stripes
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int)(h >>> 32) & stripeMask) * STRIDE;
+    }
+    
+    private int sharedCount(){
+        //an individual stripe may go negative if a hold is released on another thread,
+        //but the sum is always the number of holds.
+        int sum = 0;
+        for(int i = 0; i <= stripeMask; i++){
+            sum += sharedHolds.get(i * STRIDE);
+        }
+        return sum;
+    }
+    
+    private boolean canShare(Object owner){
+        Object ex = exclusiveOwner;
+        return ex == owner || (ex == null && exclusiveWaiters == 0);
+    }
+    
+    /**
+     * Takes a shared hold on the lock for the given owner, waiting while any
+     * other owner holds or is waiting for the exclusive lock.
+     */
+    void lockShared(Object owner){
+        if(canShare(owner)){
+            sharedHolds.incrementAndGet(stripe());
+            
+            //recheck, an owner may have taken the exclusive lock in the meantime
+            Object ex = exclusiveOwner;
+            if(ex == null || ex == owner){
+                return;
+            }
+            
+            //back off and queue up behind the exclusive owner
+            unlockShared();
+        }
+        
+        long start = System.nanoTime();
+        synchronized(sync){
+            while(!canShare(owner)){
+                try {
+                    sync.wait();
+                } catch (InterruptedException ex) {
+                }
+            }
+            
+            //the exclusive lock can only be taken under the sync, so this hold can't race it
+            sharedHolds.incrementAndGet(stripe());
+        }
+        
+        sharedWaits.incrementAndGet();
+        sharedWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+    
+    /**
+     * Releases a shared hold on the lock.  The hold may be released on a different
+     * thread than the one that took it.
+     */
+    void unlockShared(){
+        sharedHolds.decrementAndGet(stripe());
+        
+        if(exclusiveOwner != null){
+            //the exclusive owner may be waiting for the shared holds to drain
+            synchronized(sync){
+                sync.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Takes the exclusive lock for the given owner, waiting until no other owner
+     * holds it and then until all shared holds have been released.
+     * @param owner The owner of the lock.
+     * @param drainTimeout How long to wait for shared holds to be released.
+     * @param unit The unit of the drain timeout.
+     * @throws XFlatException if the shared holds were not released within
+     * the timeout.  The exclusive lock is not held in that case.
+     */
+    void lockExclusive(Object owner, long drainTimeout, TimeUnit unit){
+        if(exclusiveOwner == owner){
+            holdCount++;
+            return;
+        }
+        
+        long start = System.nanoTime();
+        synchronized(sync){
+            exclusiveWaiters++;
+            try{
+                while(exclusiveOwner != null){
+                    try {
+                        sync.wait();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+                exclusiveOwner = owner;
+                holdCount = 1;
+            }
+            finally{
+                exclusiveWaiters--;
+            }
+            
+            //wait for writes in progress to drain
+            long deadline = System.nanoTime() + unit.toNanos(drainTimeout);
+            int shared;
+            while((shared = sharedCount()) > 0){
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0){
+                    //release the lock before throwing
+                    exclusiveOwner = null;
+                    holdCount = 0;
+                    sync.notifyAll();
+                    timeouts.incrementAndGet();
+                    throw new XFlatException(String.format("Cannot obtain table lock - %d long running writes in progress", shared));
+                }
+                
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(sync, remaining);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+        
+        long waited = System.nanoTime() - start;
+        exclusiveAcquisitions.incrementAndGet();
+        exclusiveWaitNanos.addAndGet(waited);
+        long max;
+        while(waited > (max = maxExclusiveWaitNanos.get())){
+            if(maxExclusiveWaitNanos.compareAndSet(max, waited))
+                break;
+        }
+    }
+    
+    /**
+     * Releases one hold on the exclusive lock.  If the given owner
+     * does not hold the lock then this method does nothing.
+     */
+    void unlockExclusive(Object owner){
+        if(exclusiveOwner != owner){
+            return;
+        }
+        
+        if(--holdCount == 0){
+            //last reentrant release encountered
+            synchronized(sync){
+                exclusiveOwner = null;
+                sync.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Gets whether the given owner holds the exclusive lock.
+     */
+    boolean isHeldExclusivelyBy(Object owner){
+        return exclusiveOwner == owner;
+    }
+    
+    TableLockStatistics getStatistics(){
+        return new TableLockStatistics(
+                exclusiveAcquisitions.get(),
+                exclusiveWaitNanos.get(),
+                maxExclusiveWaitNanos.get(),
+                sharedWaits.get(),
+                sharedWaitNanos.get(),
+                timeouts.get());
+    }
+}
@@ -0,0 +1,91 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+/**
+ * A snapshot of the wait-time metrics of an engine's table lock.  Write
+ * operations only wait on the lock while spin-up, spin-down or cleanup holds
+ * it exclusively.
+ * @author Gordon
+ */
+public class TableLockStatistics {
+    
+    private final long exclusiveAcquisitions;
+    /**
+     * Gets the number of times the table lock has been taken exclusively.
+     */
+    public long getExclusiveAcquisitions(){
+        return exclusiveAcquisitions;
+    }
+    
+    private final long exclusiveWaitNanos;
+    /**
+     * Gets the total time spent waiting to take the table lock exclusively,
+     * including waiting for writes in progress to complete.
+     */
+    public long getExclusiveWaitNanos(){
+        return exclusiveWaitNanos;
+    }
+    
+    private final long maxExclusiveWaitNanos;
+    /**
+     * Gets the longest time spent waiting to take the table lock exclusively.
+     */
+    public long getMaxExclusiveWaitNanos(){
+        return maxExclusiveWaitNanos;
+    }
+    
+    private final long sharedWaits;
+    /**
+     * Gets the number of write operations that had to wait for the table lock.
+     */
+    public long getSharedWaits(){
+        return sharedWaits;
+    }
+    
+    private final long sharedWaitNanos;
+    /**
+     * Gets the total time write operations spent waiting for the table lock.
+     */
+    public long getSharedWaitNanos(){
+        return sharedWaitNanos;
+    }
+    
+    private final long timeouts;
+    /**
+     * Gets the number of times the table lock could not be taken exclusively
+     * because writes in progress did not complete in time.
+     */
+    public long getTimeouts(){
+        return timeouts;
+    }
+    
+    TableLockStatistics(long exclusiveAcquisitions, long exclusiveWaitNanos, long maxExclusiveWaitNanos,
+            long sharedWaits, long sharedWaitNanos, long timeouts){
+        this.exclusiveAcquisitions = exclusiveAcquisitions;
+        this.exclusiveWaitNanos = exclusiveWaitNanos;
+        this.maxExclusiveWaitNanos = maxExclusiveWaitNanos;
+        this.sharedWaits = sharedWaits;
+        this.sharedWaitNanos = sharedWaitNanos;
+        this.timeouts = timeouts;
+    }
+    
+    @Override
+    public String toString(){
+        return String.format("exclusive: %d acquired, %dns waited (max %dns), %d timeouts; shared: %d waited, %dns",
+                exclusiveAcquisitions, exclusiveWaitNanos, maxExclusiveWaitNanos, timeouts, sharedWaits, sharedWaitNanos);
+    }
+}
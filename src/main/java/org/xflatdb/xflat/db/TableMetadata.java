@@ -48,10 +48,19 @@ public class TableMetadata implements EngineProvider {
         return name;
     }
     
+    /** The name of the metadata file, usually the table name but for a shard the shard name. */
+    String configName;
+    
     File engineFile;
 
     AtomicReference<EngineBase> engine = new AtomicReference<>();
     
+    /** The engine last spun down, which must finish saving its data before a new engine reads it. */
+    private volatile EngineBase spunDownEngine;
+    
+    //how long a new engine waits for the last engine to finish spinning down
+    private static final long SPIN_DOWN_WAIT_MS = 5000;
+    
     Element engineMetadata;
 
     XFlatDatabase db;
@@ -64,6 +73,18 @@ public class TableMetadata implements EngineProvider {
     
     TableConfig config;
     
+    private NearCache nearCache;
+    /**
+     * Gets the near cache shared by the tables of this metadata, or null if
+     * the table config has no near cache.
+     */
+    synchronized NearCache getNearCache(){
+        if(nearCache == null && config.getNearCacheSize() > 0){
+            nearCache = new NearCache(config.getNearCacheSize());
+        }
+        return nearCache;
+    }
+    
     long lastActivity = System.currentTimeMillis();
     
     Log log = LogFactory.getLog(getClass());
@@ -92,6 +113,7 @@ public class TableMetadata implements EngineProvider {
 
     public TableMetadata(String name, XFlatDatabase db, File engineFile){
         this.name = name;
+        this.configName = name;
         this.db = db;
         this.engineFile = engineFile;
     }
@@ -115,7 +137,9 @@ public class TableMetadata implements EngineProvider {
     
     private <T> TableBase makeTableForClass(Class<T> clazz){
         if(Element.class.equals(clazz)){
-            return new ElementTable(this.name);
+            ElementTable ret = new ElementTable(this.name);
+            ret.setConversionService(this.db.getConversionService());
+            return ret;
         }
         
         IdAccessor accessor = IdAccessor.forClass(clazz);
@@ -130,6 +154,12 @@ public class TableMetadata implements EngineProvider {
         
         ret.setConversionService(this.db.getConversionService());
         
+        ret.setNearCache(getNearCache());
+        
+        if(this.config.getConversionPrefetch() > 0){
+            ret.setParallelConversion(this.db.getExecutorService(), this.config.getConversionPrefetch());
+        }
+        
         //check if there's an alternate ID expression we can use for queries that come through
         //the converting table.
         if(accessor.hasId()){
@@ -231,6 +261,9 @@ public class TableMetadata implements EngineProvider {
                 (state = engine.getState()) == EngineState.SpinningDown ||
                 state == EngineState.SpunDown){
                     
+                    awaitSpinDown(engine == null ? this.spunDownEngine : engine);
+                    this.spunDownEngine = null;
+                    
                     EngineBase newEngine = makeNewEngine(engineFile);
                     if(this.engine.compareAndSet(engine, newEngine)){
                         engine = newEngine;
@@ -271,6 +304,32 @@ public class TableMetadata implements EngineProvider {
         return engine;
     }
     
+    /**
+     * Waits for an engine that is spinning down to finish saving its data, so
+     * that a new engine spun up for the same file does not read stale data.
+     * Gives up after a while, since a spinning down engine also waits for its
+     * open cursors to be closed.
+     */
+    private void awaitSpinDown(EngineBase previous){
+        if(previous == null){
+            return;
+        }
+        
+        long deadline = System.currentTimeMillis() + SPIN_DOWN_WAIT_MS;
+        while(previous.getState() == EngineState.SpinningDown){
+            if(System.currentTimeMillis() > deadline){
+                log.warn(String.format("Spinning up table %s before the last engine finished spinning down", this.name));
+                return;
+            }
+            
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ex) {
+                throw new XFlatException("Interrupted while waiting for engine to spin down", ex);
+            }
+        }
+    }
+    
     /**
      * Spins down the engine, leaving the metadata in a state where it will
      * be required to spin up a new engine before providing it.
@@ -281,6 +340,20 @@ public class TableMetadata implements EngineProvider {
      * @return The engine that was spun down.
      */
     public EngineBase spinDown(boolean ignoreUncommitted, boolean force){
+        return spinDown(ignoreUncommitted, force, null);
+    }
+    
+    /**
+     * Spins down the engine, leaving the metadata in a state where it will
+     * be required to spin up a new engine before providing it.
+     * @param ignoreUncommitted Whether to require a spin down even if the engine has uncommitted
+     * data, effectively automatically reverting it.
+     * @param force whether to use forceSpinDown instead of a natural spin down.
+     * @param completionEventHandler An event handler that is notified when the engine
+     * finishes a natural spin down, or null.  It is not notified of a forced spin down.
+     * @return The engine that was spun down.
+     */
+    public EngineBase spinDown(boolean ignoreUncommitted, boolean force, final SpinDownEventHandler completionEventHandler){
         lock.writeLock().lock();
         try{
             EngineBase engine = this.engine.get();
@@ -303,6 +376,7 @@ public class TableMetadata implements EngineProvider {
                 }
                 
                 this.engine.compareAndSet(engine, null);
+                this.spunDownEngine = engine;
             }finally{
                 //table lock no longer needed 
                 engine.releaseTableLock();
@@ -314,7 +388,9 @@ public class TableMetadata implements EngineProvider {
             
             if(!force && engine.spinDown(new SpinDownEventHandler(){
                     @Override
-                    public void spinDownComplete(SpinDownEvent event) {                                         
+                    public void spinDownComplete(SpinDownEvent event) {
+                        if(completionEventHandler != null)
+                            completionEventHandler.spinDownComplete(event);
                     }
                 }))
             {
@@ -83,6 +83,17 @@ public class TableMetadataFactory {
         }
     }
     
+    /**
+     * Saves a metadata document under the given name, from which it can be
+     * read by {@link #getMetadataDoc(java.lang.String) }.
+     * @param name The name under which to save the document.
+     * @param doc The metadata document.
+     * @throws IOException 
+     */
+    public void saveMetadataDoc(String name, Document doc) throws IOException {
+        this.wrapper.writeFile(name + ".config.xml", doc);
+    }
+    
     /**
      * Creates a TableMetadata for the given engine.  This TableMetadata object
      * does not have the ID generator or table config, so it can function only as
@@ -93,19 +104,24 @@ public class TableMetadataFactory {
      * @return A new TableMetadata object.
      */
     public TableMetadata makeTableMetadata(String name, File engineFile){
-        Document doc;
-        
-        try {
-             doc = this.wrapper.readFile(name + ".config.xml");
-        } catch (IOException | JDOMException ex) {
-            Log log = LogFactory.getLog(getClass());
-            if(log.isInfoEnabled())
-                log.info(String.format("corrupt metadata file: %s.config.xml in directory %s", name, this.wrapper.toString()), ex);
-            
-            doc = null;
-        }
+        return makeShardMetadata(name, name, engineFile);
+    }
+    
+    /**
+     * Creates a TableMetadata for one shard of a sharded table.  Like 
+     * {@link #makeTableMetadata(java.lang.String, java.io.File) }, the TableMetadata
+     * can function only as an EngineProvider, but its metadata is read from and 
+     * saved to a file named for the shard rather than the table.
+     * @param name The name of the sharded table.
+     * @param shardName The name of the shard, which names the metadata file.
+     * @param engineFile The file where the shard data should be stored.
+     * @return A new TableMetadata object.
+     */
+    public TableMetadata makeShardMetadata(String name, String shardName, File engineFile){
+        Document doc = getMetadataDoc(shardName);
         
         TableMetadata ret = new TableMetadata(name, db, engineFile);
+        ret.configName = shardName;
         
         if(doc == null){
             //no need for config or ID generator
@@ -269,7 +285,7 @@ public class TableMetadataFactory {
         
         doc.getRootElement().addContent(e);
         
-        this.wrapper.writeFile(metadata.name + ".config.xml", doc);
+        this.wrapper.writeFile(metadata.configName + ".config.xml", doc);
     }
     
     private IdGenerator makeIdGenerator(Class<? extends IdGenerator> generatorClass){
@@ -37,6 +37,7 @@ import org.xflatdb.xflat.Database;
 import org.xflatdb.xflat.DatabaseBuilder;
 import org.xflatdb.xflat.DatabaseConfig;
 import org.xflatdb.xflat.KeyValueTable;
+import org.xflatdb.xflat.ShardsetConfig;
 import org.xflatdb.xflat.Table;
 import org.xflatdb.xflat.TableConfig;
 import org.xflatdb.xflat.XFlatConstants;
@@ -298,6 +299,8 @@ public class XFlatDatabase implements Database {
             
             //done initializing
             this.state.set(DatabaseState.Running);
+            
+            this.warmUpTables();
         }catch(Exception ex){
             this.state.set(DatabaseState.Uninitialized);
             throw new XFlatException("Initialization error", ex);
@@ -354,6 +357,9 @@ public class XFlatDatabase implements Database {
             lTimeout = System.currentTimeMillis() + timeout;
         }
 
+        //let any background commits finish before we spin down their engines
+        this.transactionManager.awaitPendingCommits(timeout);
+        
         //spin them all down
         Set<EngineBase> engines = new HashSet<>();
         for(Map.Entry<String, TableMetadata> table : this.tables.entrySet()){
@@ -454,6 +460,41 @@ public class XFlatDatabase implements Database {
         }
     }
     
+    /**
+     * Spins up the existing sharded tables that are configured to warm up shards,
+     * on the executor service.  Each table then warms up its shards in parallel.
+     * @see ShardsetConfig#withWarmUp(int, org.xflatdb.xflat.ShardsetConfig.WarmUpOrder) 
+     */
+    private void warmUpTables(){
+        for(Map.Entry<String, TableConfig> table : this.tableConfigs.entrySet()){
+            ShardsetConfig<?> shardset = table.getValue() == null ? null : table.getValue().getShardsetConfig();
+            if(shardset == null || shardset.getWarmUpShards() <= 0){
+                continue;
+            }
+            
+            //a table that was never created has nothing to warm up, and its ID type isn't known until it is used.
+            final String name = table.getKey();
+            if(this.metadataFactory.getMetadataDoc(name) == null){
+                continue;
+            }
+            
+            this.executorService.submit(new Runnable(){
+                @Override
+                public void run() {
+                    try{
+                        EngineBase engine = getMetadata(null, name).provideEngine();
+                        if(engine instanceof ShardedEngineBase){
+                            ((ShardedEngineBase<?>)engine).warmUpShards();
+                        }
+                    }catch(RuntimeException ex){
+                        //the table will be spun up when it is used
+                        log.warn("Failure to warm up table " + name, ex);
+                    }
+                }
+            });
+        }
+    }
+    
     private void InitializeScheduledTasks(){
         this.executorService.scheduleWithFixedDelay(new Runnable(){
             @Override
@@ -504,6 +545,7 @@ public class XFlatDatabase implements Database {
         ConvertingKeyValueTable ret = new ConvertingKeyValueTable(name);
         ret.setConversionService(conversionService);
         ret.setEngineProvider(table);
+        ret.setNearCache(table.getNearCache());
         ret.setLoadPojoMapperAction(new Action1<ConvertingKeyValueTable>(){
             @Override
             public void apply(ConvertingKeyValueTable val){
@@ -532,6 +574,17 @@ public class XFlatDatabase implements Database {
         return getMetadata(null, name).provideEngine();
     }
     
+    /**
+     * Gets statistics about the near cache of the given table, which is configured
+     * by {@link TableConfig#withNearCache(int) }.
+     * @param name The name of the table.
+     * @return A snapshot of the table's near cache, or null if the table has no near cache.
+     */
+    public NearCacheStatistics getNearCacheStatistics(String name){
+        NearCache cache = getMetadata(null, name).getNearCache();
+        return cache == null ? null : cache.getStatistics();
+    }
+    
     private TableMetadata getMetadata(Class<?> type, String name){
         if(this.state.get() == DatabaseState.Uninitialized){
             throw new IllegalStateException("Database has not been initialized");
@@ -18,16 +18,24 @@ package org.xflatdb.xflat.engine;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -38,14 +46,20 @@ import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.Converter;
 import org.xflatdb.xflat.db.Engine;
 import org.xflatdb.xflat.db.EngineBase;
 import org.xflatdb.xflat.db.EngineState;
+import org.xflatdb.xflat.db.ShardSummary;
+import org.xflatdb.xflat.query.IdComparator;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 import org.xflatdb.xflat.transaction.Isolation;
 import org.xflatdb.xflat.transaction.Transaction;
 import org.xflatdb.xflat.transaction.WriteConflictException;
+import org.xflatdb.xflat.util.CompositeFuture;
 import org.xflatdb.xflat.util.DocumentFileWrapper;
 import org.hamcrest.Matcher;
 import org.jdom2.Document;
@@ -96,6 +110,15 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                 this.getTransactionManager().transactionlessCommitId();
     }
     
+    /**
+     * Gets whether reads in the given transaction can be served from the
+     * immutable row versions without locking any rows.  This is true for
+     * open read-only transactions, which can never see their own writes.
+     */
+    private boolean isSnapshotRead(Transaction tx){
+        return tx != null && tx.isReadOnly() && !tx.isReverted();
+    }
+    
     //<editor-fold desc="interface methods">
     @Override
     public void insertRow(String id, Element data) throws XFlatException, DuplicateKeyException {
@@ -104,38 +127,76 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
             
             long txId = getTxId(tx);
 
-            RowData rData = new RowData(txId, data, id);
-            if(tx == null){
-                //transactionless means auto-commit
-                rData.commitId = txId;
-            }
+            insertRow(tx, txId, id, data);
 
-            Row newRow = new Row(id, rData);
-            Row row;
-            row = this.cache.putIfAbsent(id, newRow);
-            if(row != null){
+            setLastActivity(System.currentTimeMillis());
+            dumpCache();
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    private void insertRow(Transaction tx, long txId, String id, Element data) throws DuplicateKeyException {
+        RowData rData = new RowData(txId, data, id);
+        if(tx == null){
+            //transactionless means auto-commit
+            rData.commitId = txId;
+        }
+
+        Row newRow = new Row(id, rData);
+        Row row;
+        row = this.cache.putIfAbsent(id, newRow);
+        if(row != null){
+            synchronized(row){
+                //see if all the data was from after this transaction
+                RowData chosen = row.chooseMostRecentCommitted(tx, txId);
+                if(chosen == null || chosen.data == null){
+                    //we're good to insert our transactional data
+                    row.rowData.put(txId, rData);
+                    row.publishVersions();
+
+                    if(tx != null || this.getTransactionManager().anyOpenTransactions())
+                        this.uncommittedRows.put(id, row);
+                }
+                else{
+                    throw new DuplicateKeyException(id);
+                }
+            }
+        }
+        else if(tx != null || this.getTransactionManager().anyOpenTransactions()){
+            //may still be uncommitted
+            this.uncommittedRows.put(id, newRow);
+        }
+    }
+    
+    @Override
+    public void insertRows(Map<String, Element> rows) throws DuplicateKeyException {
+        Transaction tx = ensureWriteReady();
+        try{
+            
+            long txId = getTxId(tx);
+            
+            //validate the whole batch first, so that a duplicate key leaves the table untouched.
+            for(String id : rows.keySet()){
+                Row row = this.cache.get(id);
+                if(row == null){
+                    continue;
+                }
                 synchronized(row){
-                    //see if all the data was from after this transaction
                     RowData chosen = row.chooseMostRecentCommitted(tx, txId);
-                    if(chosen == null || chosen.data == null){
-                        //we're good to insert our transactional data
-                        row.rowData.put(txId, rData);
-                        
-                        if(tx != null || this.getTransactionManager().anyOpenTransactions())
-                            this.uncommittedRows.put(id, row);
-                    }
-                    else{
+                    if(chosen != null && chosen.data != null){
                         throw new DuplicateKeyException(id);
                     }
                 }
             }
-            else if(tx != null || this.getTransactionManager().anyOpenTransactions()){
-                //may still be uncommitted
-                this.uncommittedRows.put(id, newRow);
+            
+            for(Map.Entry<String, Element> entry : rows.entrySet()){
+                insertRow(tx, txId, entry.getKey(), entry.getValue());
             }
 
             setLastActivity(System.currentTimeMillis());
-            dumpCache();
+            if(!rows.isEmpty())
+                dumpCache();
         }finally{
             writeComplete();
         }
@@ -152,9 +213,19 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         
         setLastActivity(System.currentTimeMillis());
         
+        Transaction tx = this.getTransactionManager().getTransaction();
+        if(isSnapshotRead(tx)){
+            //read-only transactions never need to lock the row.
+            RowData ret = row.chooseSnapshotVersion(tx.getTransactionId());
+            if(ret == null || ret.data == null){
+                return null;
+            }
+            
+            return ret.data.clone();
+        }
+        
         //lock the row
         synchronized(row){
-            Transaction tx = this.getTransactionManager().getTransaction();
             //we want either the most recent for this transaction or, if null, the most recent globally.
             RowData ret = row.chooseMostRecentCommitted(tx, Long.MAX_VALUE);
             
@@ -166,6 +237,35 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
             return ret.data.clone();
         }
     }
+    
+    @Override
+    public long getRowVersion(String id) {
+        this.ensureSpunUp();
+        
+        Row row = this.cache.get(id);
+        if(row == null){
+            return -1;
+        }
+        
+        setLastActivity(System.currentTimeMillis());
+        
+        RowData ret;
+        Transaction tx = this.getTransactionManager().getTransaction();
+        if(isSnapshotRead(tx)){
+            ret = row.chooseSnapshotVersion(tx.getTransactionId());
+        }
+        else{
+            synchronized(row){
+                ret = row.chooseMostRecentCommitted(tx, Long.MAX_VALUE);
+            }
+        }
+        
+        if(ret == null || ret.data == null){
+            return -1;
+        }
+        
+        return ret.version;
+    }
 
     @Override
     public Cursor<Element> queryTable(XPathQuery query) {
@@ -178,8 +278,58 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         this.openCursors.put(ret, "");
         setLastActivity(System.currentTimeMillis());
         
+        if(query.isOrderedById() || query.getLimit() > 0){
+            return readRows(ret, query);
+        }
+        
         return ret;
     }
+    
+    /**
+     * Reads the rows of a cursor into memory, sorting them by ID if the query
+     * is ordered and keeping only as many as the query's limit.  An ordered
+     * limited query keeps a heap of the rows with the lowest IDs, so only
+     * that many rows are held at once.
+     */
+    private Cursor<Element> readRows(TableCursor cursor, XPathQuery query){
+        int limit = query.getLimit();
+        Comparator<Element> byId = IdComparator.byRowId();
+        
+        List<Element> rows;
+        try{
+            if(!query.isOrderedById()){
+                rows = new ArrayList<>(limit);
+                Iterator<Element> it = cursor.iterator();
+                while(rows.size() < limit && it.hasNext()){
+                    rows.add(it.next());
+                }
+                return new RowListCursor(rows);
+            }
+            
+            if(limit > 0){
+                //the head of the heap is the highest ID we're keeping
+                PriorityQueue<Element> lowest = new PriorityQueue<>(limit + 1, Collections.reverseOrder(byId));
+                for(Element row : cursor){
+                    lowest.add(row);
+                    if(lowest.size() > limit){
+                        lowest.poll();
+                    }
+                }
+                rows = new ArrayList<>(lowest);
+            }
+            else{
+                rows = new ArrayList<>();
+                for(Element row : cursor){
+                    rows.add(row);
+                }
+            }
+        }finally{
+            cursor.close();
+        }
+        
+        Collections.sort(rows, byId);
+        return new RowListCursor(rows);
+    }
 
     @Override
     public Element replaceRow(String id, Element data) throws KeyNotFoundException {
@@ -207,6 +357,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                 
                 
                 row.rowData.put(txId, newData);
+                row.publishVersions();
                 if(tx != null || this.getTransactionManager().anyOpenTransactions())
                     this.uncommittedRows.put(id, row);
             }
@@ -253,6 +404,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                     if(ret){
                         //no need to put a new version if no data was modified
                         row.rowData.put(txId, newData);
+                        row.publishVersions();
                         if(tx != null || this.getTransactionManager().anyOpenTransactions())
                             this.uncommittedRows.put(id, row);
                     }
@@ -307,6 +459,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                     if(updates > 0){
                         //no need to put a new version if no data was modified
                         row.rowData.put(txId, newData);
+                        row.publishVersions();
                         if(newData.commitId == -1 && (tx != null || this.getTransactionManager().anyOpenTransactions()))
                             this.uncommittedRows.put(row.rowId, row);
                     }
@@ -334,40 +487,71 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         try{
             long txId = getTxId(tx);
 
-            RowData newData = new RowData(txId, data, id);
-            if(tx == null){
-                //transactionless means auto-commit
-                newData.commitId = txId;
-            }
+            boolean didInsert = upsertRow(tx, txId, id, data);
 
-            Row newRow = new Row(id, newData);
+            setLastActivity(System.currentTimeMillis());
+            dumpCache();
 
-            boolean didInsert = false;
-            synchronized(newRow){
-                Row existingRow = this.cache.putIfAbsent(id, newRow); //takes care of the insert
-                if(existingRow != null){
-                    synchronized(existingRow){
-                        //we inserted if the most recent committed was null or had null data
-                        RowData mostRecent = existingRow.chooseMostRecentCommitted(tx, txId);
-                        didInsert = mostRecent == null || mostRecent.data == null;
-                        
-                        //takes care of the "or update"
-                        existingRow.rowData.put(txId, newData);
-                        if(tx != null || this.getTransactionManager().anyOpenTransactions())
-                            this.uncommittedRows.put(id, existingRow);
-                    }
-                }
-                else{
-                    didInsert = true;
+            return didInsert; //if none existed, then we inserted
+
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    private boolean upsertRow(Transaction tx, long txId, String id, Element data){
+        RowData newData = new RowData(txId, data, id);
+        if(tx == null){
+            //transactionless means auto-commit
+            newData.commitId = txId;
+        }
+
+        Row newRow = new Row(id, newData);
+
+        boolean didInsert = false;
+        synchronized(newRow){
+            Row existingRow = this.cache.putIfAbsent(id, newRow); //takes care of the insert
+            if(existingRow != null){
+                synchronized(existingRow){
+                    //we inserted if the most recent committed was null or had null data
+                    RowData mostRecent = existingRow.chooseMostRecentCommitted(tx, txId);
+                    didInsert = mostRecent == null || mostRecent.data == null;
+
+                    //takes care of the "or update"
+                    existingRow.rowData.put(txId, newData);
+                    existingRow.publishVersions();
                     if(tx != null || this.getTransactionManager().anyOpenTransactions())
-                        this.uncommittedRows.put(id, newRow);
+                        this.uncommittedRows.put(id, existingRow);
+                }
+            }
+            else{
+                didInsert = true;
+                if(tx != null || this.getTransactionManager().anyOpenTransactions())
+                    this.uncommittedRows.put(id, newRow);
+            }
+        }
+        
+        return didInsert;
+    }
+    
+    @Override
+    public int upsertRows(Map<String, Element> rows) {
+        Transaction tx = ensureWriteReady();
+        try{
+            long txId = getTxId(tx);
+
+            int inserted = 0;
+            for(Map.Entry<String, Element> entry : rows.entrySet()){
+                if(upsertRow(tx, txId, entry.getKey(), entry.getValue())){
+                    inserted++;
                 }
             }
 
             setLastActivity(System.currentTimeMillis());
-            dumpCache();
+            if(!rows.isEmpty())
+                dumpCache();
 
-            return didInsert; //if none existed, then we inserted
+            return inserted;
 
         }finally{
             writeComplete();
@@ -387,27 +571,64 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
 
             long txId = getTxId(tx);
 
-            RowData newData = new RowData(txId, null, id);
-            if(tx == null){
-                newData.commitId = txId;
+            if(!deleteRow(tx, txId, row)){
+                //already deleted
+                throw new KeyNotFoundException(id);
             }
 
+            setLastActivity(System.currentTimeMillis());
+            dumpCache();
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    /**
+     * Puts a delete marker in the given row.
+     * @return false if the row had already been deleted.
+     */
+    private boolean deleteRow(Transaction tx, long txId, Row row){
+        RowData newData = new RowData(txId, null, row.rowId);
+        if(tx == null){
+            newData.commitId = txId;
+        }
 
-            synchronized(row){
-                RowData rData = row.chooseMostRecentCommitted(tx, txId);
-                if(rData == null || rData.data == null){
-                    //already deleted
-                    throw new KeyNotFoundException(id);
-                }
+        synchronized(row){
+            RowData rData = row.chooseMostRecentCommitted(tx, txId);
+            if(rData == null || rData.data == null){
+                return false;
+            }
 
-                //a RowData that is null means it was deleted.
-                row.rowData.put(txId, newData);
-                if(tx != null || this.getTransactionManager().anyOpenTransactions())
-                    this.uncommittedRows.put(row.rowId, row);
+            //a RowData that is null means it was deleted.
+            row.rowData.put(txId, newData);
+            row.publishVersions();
+            if(tx != null || this.getTransactionManager().anyOpenTransactions())
+                this.uncommittedRows.put(row.rowId, row);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public int deleteRows(Collection<String> ids) {
+        Transaction tx = ensureWriteReady();
+        try{
+
+            long txId = getTxId(tx);
+
+            int numRemoved = 0;
+            for(String id : ids){
+                Row row = this.cache.get(id);
+                if(row != null && deleteRow(tx, txId, row)){
+                    numRemoved++;
+                }
             }
 
             setLastActivity(System.currentTimeMillis());
-            dumpCache();
+            if(numRemoved > 0)
+                dumpCache();
+            
+            return numRemoved;
         }finally{
             writeComplete();
         }
@@ -443,6 +664,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                             newData.commitId = txId;
                         }
                         row.rowData.put(txId, newData);
+                        row.publishVersions();
                         if(tx != null || this.getTransactionManager().anyOpenTransactions())
                             this.uncommittedRows.put(row.rowId, row);
 
@@ -580,7 +802,8 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                         for(RowData data : row.rowData.values()){
                             if(data.commitId > tx.getTransactionId() && data.transactionId != tx.getTransactionId()){                                
                                 //committed data after our own transaction began
-                                throw new WriteConflictException(String.format("Conflicting data in table %s, row %s", this.getTableName(), row.rowId));
+                                throw new WriteConflictException(String.format("Conflicting data in table %s, row %s", this.getTableName(), row.rowId),
+                                        this.getTableName(), row.rowId);
                             }
                         }
                     }
@@ -628,10 +851,13 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                     //remove the row data, since it's now uncommitted.
 
                     RowData got = row.rowData.remove(txId);
-                    if(got != null && got.commitId != -1){
-                        //this transaction was persisted to the DB.  We're going to need
-                        //to dump the cache at the end.
-                        mustDump = true;
+                    if(got != null){
+                        row.publishVersions();
+                        if(got.commitId != -1){
+                            //this transaction was persisted to the DB.  We're going to need
+                            //to dump the cache at the end.
+                            mustDump = true;
+                        }
                     }
                 }
             }
@@ -667,58 +893,9 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                         List<Element> rowList = doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs);
 
                         for(int i = rowList.size() - 1; i >= 0; i--){
-                            Element row = rowList.get(i);
-
-                            if(row.getChildren().isEmpty()){
-                                continue;
-                            }
-
-                            String id = getId(row);
-
-                            Row newRow = null;
-
-                            for(Element data : row.getChildren()){
-                                //default it to zero so that we know it's committed but if we don't get an actual
-                                //value for the commit then we have the lowest value.
-                                long txId = 0;
-                                long commitId = 0;
-
-                                String a = data.getAttributeValue("tx", XFlatConstants.xFlatNs);
-                                if(a != null && !"".equals(a)){
-                                    try{
-                                        txId = Long.parseLong(a, TRANSACTION_ID_RADIX);
-                                    }catch(NumberFormatException ex){
-                                        //just leave it as 0.
-                                    }
-                                }
-                                a = data.getAttributeValue("commit", XFlatConstants.xFlatNs);
-                                if(a != null && !"".equals(a)){
-                                    try{
-                                        commitId = Long.parseLong(a, TRANSACTION_ID_RADIX);
-                                    }catch(NumberFormatException ex){
-                                        //just leave it as 0.
-                                    }
-                                }
-
-                                if("delete".equals(data.getName()) && XFlatConstants.xFlatNs.equals(data.getNamespace())){
-                                    //it's a delete marker
-                                    data = null;
-                                }
-                                else{
-                                    data = data.clone();
-                                }
-
-                                RowData rData = new RowData(txId, data, id);
-                                rData.commitId = commitId;
-
-                                if(newRow == null)
-                                     newRow = new Row(id, rData);
-                                else
-                                    newRow.rowData.put(txId, rData);
-                            }
-
+                            Row newRow = readRow(rowList.get(i));
                             if(newRow != null)
-                                this.cache.put(id, newRow);
+                                this.cache.put(newRow.rowId, newRow);
                         }
                     } catch (JDOMException | IOException ex) {
                         throw new XFlatException("Error building document cache", ex);
@@ -783,11 +960,10 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
      */
     @Override
     protected Transaction ensureWriteReady(){
-        Transaction tx = super.ensureWriteReady();
-        
+        //wait before taking the table lock, so we don't hold up spin-up tasks that need it.
         ensureSpunUp();
-        
-        return tx;
+
+        return super.ensureWriteReady();
     }
     
     private void ensureSpunUp(){
@@ -978,12 +1154,175 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
     }
     
     private final Object dumpSyncRoot = new Object();
+    
+    /**
+     * The completion that will be signalled by the next dump of the cache.
+     * Each dump swaps in a new completion before it reads the cache.
+     */
+    private final AtomicReference<DumpCompletion> nextDump = new AtomicReference<>(new DumpCompletion());
+    
+    @Override
+    protected Future<?> scheduleFlush() {
+        if(this.state.get() == EngineState.SpunDown){
+            //everything was dumped when we spun down.
+            return CompositeFuture.completed(null);
+        }
+        
+        if(scheduledDump.get() == null && lastModified.get() < lastDump.get()){
+            //nothing has changed since the last dump finished.
+            return CompositeFuture.completed(null);
+        }
+        
+        DumpCompletion ret = nextDump.get();
+        ret.requested = true;
+        
+        //make sure there's a dump coming to complete it
+        dumpCache();
+        
+        return ret;
+    }
+    
     /**
      * Dumps the cache immediately, on this thread.
      * @param required true if a dump is absolutely required, false to allow this
      * method to choose not to dump if it feels that a dump is unnecessary.
      */
     private void dumpCacheNow(boolean required){
+        synchronized(dumpSyncRoot){
+            //anyone waiting on this completion wrote their data before we read the cache.
+            DumpCompletion completion = nextDump.getAndSet(new DumpCompletion());
+            try{
+                writeCache(required);
+            }
+            catch(RuntimeException ex){
+                completion.fail(ex);
+                throw ex;
+            }
+            completion.succeed();
+            
+            if(nextDump.get().requested){
+                //someone asked to flush while we were dumping, and may
+                //have missed scheduling a dump since we were already running.
+                dumpCache();
+            }
+        }
+    }
+    
+    /**
+     * Reads a row element in the form written by {@link #writeRow(Row) }, keeping
+     * the transaction and commit IDs of each version.
+     * @return The row, or null if the element has no versions.
+     */
+    private Row readRow(Element row){
+        if(row.getChildren().isEmpty()){
+            return null;
+        }
+
+        String id = getId(row);
+
+        Row newRow = null;
+
+        for(Element data : row.getChildren()){
+            //default it to zero so that we know it's committed but if we don't get an actual
+            //value for the commit then we have the lowest value.
+            long txId = 0;
+            long commitId = 0;
+
+            String a = data.getAttributeValue("tx", XFlatConstants.xFlatNs);
+            if(a != null && !"".equals(a)){
+                try{
+                    txId = Long.parseLong(a, TRANSACTION_ID_RADIX);
+                }catch(NumberFormatException ex){
+                    //just leave it as 0.
+                }
+            }
+            a = data.getAttributeValue("commit", XFlatConstants.xFlatNs);
+            if(a != null && !"".equals(a)){
+                try{
+                    commitId = Long.parseLong(a, TRANSACTION_ID_RADIX);
+                }catch(NumberFormatException ex){
+                    //just leave it as 0.
+                }
+            }
+
+            if("delete".equals(data.getName()) && XFlatConstants.xFlatNs.equals(data.getNamespace())){
+                //it's a delete marker
+                data = null;
+            }
+            else{
+                data = data.clone();
+            }
+
+            RowData rData = new RowData(txId, data, id);
+            rData.commitId = commitId;
+
+            if(newRow == null){
+                newRow = new Row(id, rData);
+            }
+            else{
+                newRow.rowData.put(txId, rData);
+                newRow.publishVersions();
+            }
+        }
+        
+        return newRow;
+    }
+    
+    /**
+     * Writes every committed version of the row to a row element, marking each
+     * version with its transaction and commit IDs.
+     * @return The row element, or null if the row has no committed data.
+     */
+    private Element writeRow(Row row){
+        synchronized(row){
+            Element rowEl = null;
+
+            int nonDeleteData = 0;
+
+            //put ALL committed data to disk, even some that might otherwise
+            //be cleaned up, because we may be in the process of committing
+            //one of N engines and will need all previous values if we revert.
+            for(RowData rData : row.rowData.values()){
+                if(rData == null) 
+                    continue;
+
+                if(rData.commitId == -1)
+                    //uncommitted data is not put to disk
+                    continue;
+
+                if(rowEl == null){
+                    rowEl = new Element("row", XFlatConstants.xFlatNs);
+                    setId(rowEl, row.rowId);
+                }
+
+                Element dataEl;
+                if(rData.data == null){
+                    //the data was deleted - make sure we mark that on the row
+                    dataEl = new Element("delete", XFlatConstants.xFlatNs);
+                }
+                else{
+                    dataEl = rData.data.clone();
+                    nonDeleteData++;
+                }
+
+                dataEl.setAttribute("tx", Long.toString(rData.transactionId, TRANSACTION_ID_RADIX), XFlatConstants.xFlatNs);
+                dataEl.setAttribute("commit", Long.toString(rData.commitId, TRANSACTION_ID_RADIX), XFlatConstants.xFlatNs);
+
+                rowEl.addContent(dataEl);
+            }
+
+            //doublecheck - only write out an element if there's actually
+            //any data to write.  Delete marker elements don't count.
+            return nonDeleteData > 0 ? rowEl : null;
+        }
+    }
+    
+    /**
+     * Writes the committed data in the cache to the file.
+     * @param required true if a dump is absolutely required, false to allow this
+     * method to choose not to dump if it feels that a dump is unnecessary.
+     */
+    private void writeCache(boolean required){
         synchronized(dumpSyncRoot){
             if(!required && lastModified.get() < lastDump.get()){
                 //no need to dump
@@ -999,48 +1338,9 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
             doc.setRootElement(root);
             
             for(Row row : this.cache.values()){
-                synchronized(row){
-                    Element rowEl = null;
-                    
-                    int nonDeleteData = 0;
-                    
-                    //put ALL committed data to disk, even some that might otherwise
-                    //be cleaned up, because we may be in the process of committing
-                    //one of N engines and will need all previous values if we revert.
-                    for(RowData rData : row.rowData.values()){
-                        if(rData == null) 
-                            continue;
-                        
-                        if(rData.commitId == -1)
-                            //uncommitted data is not put to disk
-                            continue;
-                        
-                        if(rowEl == null){
-                            rowEl = new Element("row", XFlatConstants.xFlatNs);
-                            setId(rowEl, row.rowId);
-                        }
-                        
-                        Element dataEl;
-                        if(rData.data == null){
-                            //the data was deleted - make sure we mark that on the row
-                            dataEl = new Element("delete", XFlatConstants.xFlatNs);
-                        }
-                        else{
-                            dataEl = rData.data.clone();
-                            nonDeleteData++;
-                        }
-                        
-                        dataEl.setAttribute("tx", Long.toString(rData.transactionId, TRANSACTION_ID_RADIX), XFlatConstants.xFlatNs);
-                        dataEl.setAttribute("commit", Long.toString(rData.commitId, TRANSACTION_ID_RADIX), XFlatConstants.xFlatNs);
-
-                        rowEl.addContent(dataEl);
-                    }
-                    
-                    //doublecheck - only write out an element if there's actually
-                    //any data to write.  Delete marker elements don't count.
-                    if(rowEl != null && nonDeleteData > 0){
-                        root.addContent(rowEl);
-                    }
+                Element rowEl = writeRow(row);
+                if(rowEl != null){
+                    root.addContent(rowEl);
                 }
             }
             
@@ -1060,7 +1360,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                 }
                  
                //try again
-                dumpCacheNow(required);
+                writeCache(required);
                 return;
             }
             catch(Exception ex) {
@@ -1077,6 +1377,153 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         }
     }
 
+    @Override
+    protected boolean summarize(ShardSummary.Builder<?> summary) {
+        ConcurrentMap<String, Row> cache = this.cache;
+        if(cache == null || cache instanceof InactiveCache){
+            return false;
+        }
+        
+        for(Row row : cache.values()){
+            synchronized(row){
+                RowData mostRecent = null;
+                for(RowData rData : row.rowData.values()){
+                    if(rData == null || rData.commitId == -1)
+                        continue;
+                    
+                    if(mostRecent == null || rData.commitId > mostRecent.commitId){
+                        mostRecent = rData;
+                    }
+                    
+                    if(rData.data != null){
+                        summary.addVersion(row.rowId, rData.rowElement);
+                    }
+                }
+                
+                if(mostRecent != null && mostRecent.data != null){
+                    summary.countRow();
+                }
+            }
+        }
+        
+        return true;
+    }
+
+    @Override
+    protected Map<String, Element> getCommittedRows() {
+        ConcurrentMap<String, Row> cache = this.cache;
+        if(cache == null || cache instanceof InactiveCache){
+            return null;
+        }
+        
+        Map<String, Element> ret = new HashMap<>();
+        for(Row row : cache.values()){
+            synchronized(row){
+                RowData mostRecent = null;
+                for(RowData rData : row.rowData.values()){
+                    //skip deletes, a transaction opened before the delete can still read the row
+                    if(rData == null || rData.commitId == -1 || rData.data == null)
+                        continue;
+                    
+                    if(mostRecent == null || rData.commitId > mostRecent.commitId){
+                        mostRecent = rData;
+                    }
+                }
+                
+                if(mostRecent != null){
+                    ret.put(row.rowId, mostRecent.data.clone());
+                }
+            }
+        }
+        
+        return ret;
+    }
+
+    @Override
+    protected boolean copyCommittedRows(EngineBase source, Iterable<String> ids, Converter<Element, Element> converter) {
+        if(!(source instanceof CachedDocumentEngine)){
+            return false;
+        }
+        
+        ConcurrentMap<String, Row> sourceCache = ((CachedDocumentEngine)source).cache;
+        if(sourceCache == null || sourceCache instanceof InactiveCache){
+            return false;
+        }
+        
+        ensureWriteReady();
+        try{
+            for(String id : ids){
+                Row row = sourceCache.get(id);
+                Element rowEl = row == null ? null : writeRow(row);
+                if(rowEl == null){
+                    continue;
+                }
+                
+                if(converter != null){
+                    convertVersions(rowEl, converter);
+                }
+                
+                //round trip through the row element so we share nothing with the source.
+                Row copy = readRow(rowEl);
+                Row existing = this.cache.putIfAbsent(id, copy);
+                if(existing != null){
+                    //copied from another source, ex. a row that migrated between shards.
+                    synchronized(existing){
+                        for(RowData rData : copy.rowData.values()){
+                            RowData had = existing.rowData.get(rData.transactionId);
+                            if(had == null || (had.data == null && rData.data != null)){
+                                existing.rowData.put(rData.transactionId, rData);
+                            }
+                        }
+                        existing.publishVersions();
+                    }
+                }
+            }
+            
+            setLastActivity(System.currentTimeMillis());
+            dumpCache();
+        }finally{
+            writeComplete();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Replaces the data of each version in the row element with the converted data,
+     * keeping the transaction and commit IDs.  Delete markers are kept as they are.
+     */
+    private void convertVersions(Element rowEl, Converter<Element, Element> converter){
+        String id = getId(rowEl);
+        for(Element data : new ArrayList<>(rowEl.getChildren())){
+            if("delete".equals(data.getName()) && XFlatConstants.xFlatNs.equals(data.getNamespace())){
+                continue;
+            }
+            
+            String tx = data.getAttributeValue("tx", XFlatConstants.xFlatNs);
+            String commit = data.getAttributeValue("commit", XFlatConstants.xFlatNs);
+            int index = rowEl.indexOf(data);
+            data.detach();
+            data.removeAttribute("tx", XFlatConstants.xFlatNs);
+            data.removeAttribute("commit", XFlatConstants.xFlatNs);
+            
+            Element version = new Element("row", XFlatConstants.xFlatNs);
+            setId(version, id);
+            version.addContent(data);
+            
+            Element converted;
+            try {
+                converted = converter.convert(version);
+            } catch (ConversionException ex) {
+                throw new XFlatException("Unable to convert row " + id + " while copying it to table " + getTableName(), ex);
+            }
+            
+            converted.setAttribute("tx", tx, XFlatConstants.xFlatNs);
+            converted.setAttribute("commit", commit, XFlatConstants.xFlatNs);
+            rowEl.addContent(index, converted);
+        }
+    }
+
     @Override
     protected boolean hasUncomittedData() {
         return this.uncommittedRows == null ? false : !this.uncommittedRows.isEmpty();
@@ -1095,12 +1542,21 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
             this.filter = filter;
             this.toIterate = toIterate;
             this.tx = tx;
+            //the snapshot is pinned once for the lifetime of the cursor
             this.txId = getTxId(tx);
         }
         
         @Override
         public Iterator<Element> iterator() {
-            return new TableCursorIterator(toIterate.iterator(), filter.getRowMatcher(), tx, txId);
+            if(tx == null || isSnapshotRead(tx)){
+                //nothing in this cursor can see uncommitted data, so we can
+                //traverse the snapshot without taking any row locks.
+                return new SnapshotCursorIterator(toIterate.iterator(), filter.getRowMatcher(), txId, 
+                        filter.getProjection(), filter.isOrderedById());
+            }
+            
+            return new TableCursorIterator(toIterate.iterator(), filter.getRowMatcher(), tx, txId, 
+                    filter.getProjection(), filter.isOrderedById());
         }
 
         @Override
@@ -1110,6 +1566,132 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         
     }
     
+    /**
+     * Reads the element returned by a cursor for a matching row.  This is a clone
+     * of the row's data, or if the query has a projection only the projected values,
+     * so that the rest of the row is never copied.
+     */
+    private static Element readMatch(Row row, RowData rData, Projection<?> projection, boolean withIds){
+        Element ret = projection == null ? rData.data.clone() : projection.project(rData.rowElement);
+        if(withIds){
+            ret.setAttribute("id", row.rowId, XFlatConstants.xFlatNs);
+        }
+        return ret;
+    }
+    
+    /**
+     * A cursor over rows that were already read into memory.
+     */
+    private static class RowListCursor implements Cursor<Element>{
+        private final List<Element> rows;
+        
+        public RowListCursor(List<Element> rows){
+            this.rows = Collections.unmodifiableList(rows);
+        }
+        
+        @Override
+        public Iterator<Element> iterator() {
+            return rows.iterator();
+        }
+
+        @Override
+        public void close() {
+            //nothing to release
+        }
+    }
+    
+    /**
+     * A Future that is completed by a dump of the cache, signalling that the
+     * data written before the dump began is now on disk.
+     */
+    private static class DumpCompletion extends FutureTask<Void>{
+        
+        /**
+         * Set when someone is waiting on this completion, so that a dump is
+         * guaranteed to follow.
+         */
+        volatile boolean requested = false;
+        
+        public DumpCompletion(){
+            super(new Callable<Void>(){
+                @Override
+                public Void call() {
+                    return null;
+                }
+            });
+        }
+        
+        void succeed(){
+            this.set(null);
+        }
+        
+        void fail(Throwable ex){
+            this.setException(ex);
+        }
+    }
+    
+    /**
+     * A cursor iterator which reads the immutable row versions as of a pinned snapshot ID.
+     * It never locks a row, so long scans do not contend with writers.
+     */
+    private static class SnapshotCursorIterator implements Iterator<Element>{
+        private final Iterator<Row> toIterate;
+        private final Matcher<Element> rowMatcher;
+        
+        private final long snapshotId;
+        
+        //the values to return instead of the row data, if any
+        private final Projection<?> projection;
+        
+        //whether to put the row ID on the returned data
+        private final boolean withIds;
+        
+        private Element peek = null;
+        
+        public SnapshotCursorIterator(Iterator<Row> toIterate, Matcher<Element> rowMatcher, long snapshotId, 
+                Projection<?> projection, boolean withIds){
+            this.toIterate = toIterate;
+            this.rowMatcher = rowMatcher;
+            this.snapshotId = snapshotId;
+            this.projection = projection;
+            this.withIds = withIds;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while(peek == null && toIterate.hasNext()){
+                Row next = toIterate.next();
+                RowData rData = next.chooseSnapshotVersion(snapshotId);
+                if(rData == null || rData.data == null){
+                    continue;
+                }
+
+                if(rowMatcher.matches(rData.rowElement)){
+                    //found a matching row
+                    this.peek = readMatch(next, rData, projection, withIds);
+                }
+            }
+            
+            return peek != null;
+        }
+
+        @Override
+        public Element next() {
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            
+            Element ret = peek;
+            peek = null;
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported on cursors.");
+        }
+    }
+    
     private static class TableCursorIterator implements Iterator<Element>{
         private final Iterator<Row> toIterate;
         private final Matcher<Element> rowMatcher;
@@ -1117,16 +1699,25 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
         private final Transaction tx;
         private final long txId;
         
+        //the values to return instead of the row data, if any
+        private final Projection<?> projection;
+        
+        //whether to put the row ID on the returned data
+        private final boolean withIds;
+        
         private Element peek = null;
         private boolean isFinished = false;
         private int peekCount = 0;
         private int returnCount = 0;
         
-        public TableCursorIterator(Iterator<Row> toIterate, Matcher<Element> rowMatcher, Transaction tx, long txId){
+        public TableCursorIterator(Iterator<Row> toIterate, Matcher<Element> rowMatcher, Transaction tx, long txId, 
+                Projection<?> projection, boolean withIds){
             this.toIterate = toIterate;
             this.rowMatcher = rowMatcher;
             this.tx = tx;
             this.txId = txId;
+            this.projection = projection;
+            this.withIds = withIds;
         }
         
         private void peekNext(){
@@ -1141,7 +1732,7 @@ public class CachedDocumentEngine extends EngineBase implements Engine {
                     if(rowMatcher.matches(rData.rowElement)){
                         //found a matching row
                         peekCount++;
-                        this.peek = rData.data.clone();
+                        this.peek = readMatch(next, rData, projection, withIds);
                         return;
                     }
                 }
@@ -18,7 +18,6 @@ package org.xflatdb.xflat.engine;
 import java.io.File;
 import org.hamcrest.Matcher;
 import org.xflatdb.xflat.TableConfig;
-import org.xflatdb.xflat.XFlatException;
 import org.xflatdb.xflat.db.EngineBase;
 import org.xflatdb.xflat.db.EngineFactory;
 import org.xflatdb.xflat.query.XPathQuery;
@@ -34,8 +33,8 @@ public class DefaultEngineFactory implements EngineFactory {
     private Matcher idPropertyMatcher = new XPathExpressionEqualityMatcher(XPathQuery.Id);
     
     /**
-     * Creates either an {@link IdShardedEngine} or a {@link CachedDocumentEngine}
-     * based on whether the table is sharded.
+     * Creates an {@link IdShardedEngine}, a {@link PropertyShardedEngine} or a
+     * {@link CachedDocumentEngine} based on whether and how the table is sharded.
      * @param file The file for which an engine.
      * @param tableName The name of the table we are getting an engine for.
      * @param config The configuration of the table we are getting an engine for.
@@ -45,9 +44,9 @@ public class DefaultEngineFactory implements EngineFactory {
     public EngineBase newEngine(File file, String tableName, TableConfig config) {
         if(config.getShardsetConfig() != null){
             if(idPropertyMatcher.matches(config.getShardsetConfig().getShardPropertySelector())){
-                return new IdShardedEngine(file, tableName, config.getShardsetConfig());
+                return new IdShardedEngine<>(file, tableName, config.getShardsetConfig());
             }
-            throw new XFlatException("Tables sharded on other values than Id are not supported");
+            return new PropertyShardedEngine<>(file, tableName, config.getShardsetConfig());
         }
         
         return new CachedDocumentEngine(file, tableName);
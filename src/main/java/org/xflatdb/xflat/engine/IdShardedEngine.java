@@ -17,15 +17,12 @@ package org.xflatdb.xflat.engine;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import org.jdom2.Element;
-import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.ShardsetConfig;
@@ -35,13 +32,11 @@ import org.xflatdb.xflat.db.Engine;
 import org.xflatdb.xflat.db.EngineAction;
 import org.xflatdb.xflat.db.EngineActionEx;
 import org.xflatdb.xflat.db.ShardedEngineBase;
-import org.xflatdb.xflat.query.EmptyCursor;
 import org.xflatdb.xflat.query.Interval;
-import org.xflatdb.xflat.query.IntervalComparator;
-import org.xflatdb.xflat.query.IntervalProvider;
-import org.xflatdb.xflat.query.IntervalSet;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
+import org.xflatdb.xflat.transaction.TransactionException;
+import org.xflatdb.xflat.transaction.TransactionScope;
 
 /**
  * An engine that shards the table based on ID.  This engine manages several sub-engines,
@@ -50,8 +45,6 @@ import org.xflatdb.xflat.query.XPathUpdate;
  */
 public class IdShardedEngine<T> extends ShardedEngineBase<T> {
     
-    private Map<Cursor<Element>, String> crossShardQueries = new ConcurrentHashMap<>();
-    
     /**
      * Creates a new IdShardedEngine for the given directory, with the given table name,
      * using the given configuration.
@@ -68,57 +61,131 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
         }
     }
     
-    /**
-     * Returns true if all cross-shard queries are finished.
-     */
     @Override
-    protected boolean isSpunDown(){
-        return super.isSpunDown() && crossShardQueries.isEmpty();
+    public void insertRow(final String id, final Element data) throws DuplicateKeyException {
+        ensureWriteReady();
+        try{
+            doWithEngine(getInterval(id), new EngineActionEx<Object, DuplicateKeyException>(){
+                @Override
+                public Object act(Engine engine) throws DuplicateKeyException {
+                    engine.insertRow(id, data);
+                    return null;
+                }
+            });
+        }finally{
+            writeComplete();
+        }
     }
-    
+
     /**
-     * Gets a list of shard intervals over which the query should be executed.
-     * This is obtained by dissecting the query according to ID and then
-     * looking for known shards that intersect the dissected query.
-     * @param query The query to dissect in order to create the execution plan.
-     * @return A set of intervals mapping to shards over which this query needs to execute.
+     * Inserts the rows into their shards.  Each shard validates its own batch,
+     * but a duplicate in a later shard must not leave the earlier shards inserted.
+     * Without a current transaction, a batch spanning several shards is written
+     * in one transaction that is reverted if any shard has a duplicate.  Reverting
+     * a current transaction would also revert the caller's other work, so in a
+     * transaction every shard is first checked for duplicates, and nothing is
+     * written if any is found.
      */
-    private List<Interval<T>> getExecutionPlan(XPathQuery query){
-        final IntervalProvider<T> provider = config.getIntervalProvider();
+    @Override
+    public void insertRows(Map<String, Element> rows) throws DuplicateKeyException {
+        Map<Interval<T>, Map<String, Element>> byShard = groupByShard(rows);
         
-        IntervalSet<T> dissectedQuery = query.dissectId(provider.getComparator(), config.getShardPropertyClass());
+        if(byShard.size() <= 1){
+            insertByShard(byShard);
+            return;
+        }
         
-        //go through each known shard, and see if the query intersects it.
-        List<Interval<T>> ret = new ArrayList<>();
-        for(Interval<T> known : this.knownShards.keySet()){
-            if(dissectedQuery.intersects(known, provider.getComparator())){
-                ret.add(known);
-            }
+        if(getTransactionManager().getTransaction() != null){
+            checkNotInserted(byShard);
+            insertByShard(byShard);
+            return;
         }
         
-        Collections.sort(ret, new IntervalComparator<>(provider.getComparator()));
-        return ret;
+        try(TransactionScope tx = getTransactionManager().openTransaction()){
+            insertByShard(byShard);
+            
+            tx.commit();
+        }
+        catch(TransactionException ex){
+            throw new XFlatException("Unable to commit the rows inserted into table " + getTableName(), ex);
+        }
     }
-
-    @Override
-    public void insertRow(final String id, final Element data) throws DuplicateKeyException {
+    
+    private void insertByShard(Map<Interval<T>, Map<String, Element>> byShard) throws DuplicateKeyException {
         ensureWriteReady();
         try{
-            doWithEngine(getInterval(id), new EngineActionEx<Object, DuplicateKeyException>(){
+            for(final Map.Entry<Interval<T>, Map<String, Element>> shard : byShard.entrySet()){
+                doWithEngine(shard.getKey(), new EngineActionEx<Object, DuplicateKeyException>(){
+                    @Override
+                    public Object act(Engine engine) throws DuplicateKeyException {
+                        engine.insertRows(shard.getValue());
+                        return null;
+                    }
+                });
+            }
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    /**
+     * Throws if any of the rows already exists in its shard, as seen by the
+     * current transaction.
+     */
+    private void checkNotInserted(Map<Interval<T>, Map<String, Element>> byShard) throws DuplicateKeyException {
+        for(Map.Entry<Interval<T>, Map<String, Element>> shard : byShard.entrySet()){
+            final List<String> ids = new ArrayList<>();
+            for(String id : shard.getValue().keySet()){
+                if(mightContain(shard.getKey(), id)){
+                    ids.add(id);
+                }
+            }
+            if(ids.isEmpty()){
+                //no need to spin up a shard that can't have the rows
+                continue;
+            }
+            
+            doWithEngine(shard.getKey(), new EngineActionEx<Object, DuplicateKeyException>(){
                 @Override
                 public Object act(Engine engine) throws DuplicateKeyException {
-                    engine.insertRow(id, data);
+                    for(String id : ids){
+                        if(engine.readRow(id) != null){
+                            throw new DuplicateKeyException(id);
+                        }
+                    }
                     return null;
                 }
             });
-        }finally{
-            writeComplete();
         }
     }
+    
+    /**
+     * Splits the given rows into one batch per shard, preserving the iteration
+     * order of the rows within each batch.
+     */
+    private Map<Interval<T>, Map<String, Element>> groupByShard(Map<String, Element> rows){
+        Map<Interval<T>, Map<String, Element>> ret = new HashMap<>();
+        for(Map.Entry<String, Element> entry : rows.entrySet()){
+            Interval<T> interval = getInterval(entry.getKey());
+            Map<String, Element> shard = ret.get(interval);
+            if(shard == null){
+                shard = new LinkedHashMap<>();
+                ret.put(interval, shard);
+            }
+            shard.put(entry.getKey(), entry.getValue());
+        }
+        return ret;
+    }
 
     @Override
     public Element readRow(final String id) {
-        return doWithEngine(getInterval(id), new EngineAction<Element>(){
+        Interval<T> interval = getInterval(id);
+        if(!mightContain(interval, id)){
+            //no need to spin up a shard that can't have the row
+            return null;
+        }
+        
+        return doWithEngine(interval, new EngineAction<Element>(){
             @Override
             public Element act(Engine engine) {
                 return engine.readRow(id);
@@ -127,31 +194,18 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
     }
 
     @Override
-    public Cursor<Element> queryTable(final XPathQuery query) {
-        query.setConversionService(this.getConversionService());
-        
-        List<Interval<T>> shardIntervals = getExecutionPlan(query);
-        
-        //no known shards intersect the query
-        if(shardIntervals.isEmpty()){
-            return EmptyCursor.instance();
-        }
-        
-        //only one known shard intersects the query, just use it
-        if(shardIntervals.size() == 1){
-            return doWithEngine(shardIntervals.get(0), new EngineAction<Cursor<Element>>(){
-                @Override
-                public Cursor<Element> act(Engine engine) {
-                    return engine.queryTable(query);
-                }
-            });
+    public long getRowVersion(final String id) {
+        Interval<T> interval = getInterval(id);
+        if(!mightContain(interval, id)){
+            return -1;
         }
         
-        //we need a cursor that will cross multiple shards.
-        Cursor<Element> ret = new CrossShardQueryCursor(query, shardIntervals);
-        //remember it so we don't spin down while it's open
-        this.crossShardQueries.put(ret, "");
-        return ret;
+        return doWithEngine(interval, new EngineAction<Long>(){
+            @Override
+            public Long act(Engine engine) {
+                return engine.getRowVersion(id);
+            }
+        });
     }
 
     @Override
@@ -199,8 +253,8 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
             };
 
             int updated = 0;
-            for(Interval<T> shardInterval : this.getExecutionPlan(query)){
-                updated += doWithEngine(shardInterval, action);
+            for(Integer count : doWithEngines(this.getExecutionPlan(query), action)){
+                updated += count;
             }
 
             return updated;
@@ -224,6 +278,25 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
         }
     }
 
+    @Override
+    public int upsertRows(Map<String, Element> rows) {
+        ensureWriteReady();
+        try{
+            int inserted = 0;
+            for(final Map.Entry<Interval<T>, Map<String, Element>> shard : groupByShard(rows).entrySet()){
+                inserted += doWithEngine(shard.getKey(), new EngineAction<Integer>(){
+                    @Override
+                    public Integer act(Engine engine) {
+                        return engine.upsertRows(shard.getValue());
+                    }
+                });
+            }
+            return inserted;
+        }finally{
+            writeComplete();
+        }
+    }
+
     @Override
     public void deleteRow(final String id) throws KeyNotFoundException {
         ensureWriteReady();
@@ -240,6 +313,41 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
         }
     }
 
+    @Override
+    public int deleteRows(Collection<String> ids) {
+        ensureWriteReady();
+        try{
+            Map<Interval<T>, List<String>> byShard = new HashMap<>();
+            for(String id : ids){
+                Interval<T> interval = getInterval(id);
+                List<String> shard = byShard.get(interval);
+                if(shard == null){
+                    shard = new ArrayList<>();
+                    byShard.put(interval, shard);
+                }
+                shard.add(id);
+            }
+            
+            int count = 0;
+            for(final Map.Entry<Interval<T>, List<String>> shard : byShard.entrySet()){
+                if(!this.knownShards.containsKey(shard.getKey())){
+                    //nothing to delete in a shard that was never created
+                    continue;
+                }
+                
+                count += doWithEngine(shard.getKey(), new EngineAction<Integer>(){
+                    @Override
+                    public Integer act(Engine engine) {
+                        return engine.deleteRows(shard.getValue());
+                    }
+                });
+            }
+            return count;
+        }finally{
+            writeComplete();
+        }
+    }
+
     @Override
     public int deleteAll(final XPathQuery query) {
         ensureWriteReady();
@@ -253,8 +361,8 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
             };
 
             int count = 0;
-            for(Interval<T> shard : getExecutionPlan(query)){
-                count += doWithEngine(shard, action);
+            for(Integer deleted : doWithEngines(getExecutionPlan(query), action)){
+                count += deleted;
             }
 
             return count;
@@ -263,129 +371,4 @@ public class IdShardedEngine<T> extends ShardedEngineBase<T> {
         }
     }
 
-    
-    /**
-     * A cursor that queries across multiple engines.
-     * This cursor is NOT thread-safe.
-     */
-    private class CrossShardQueryCursor implements Cursor<Element>{
-
-        private final XPathQuery query;
-        private final List<Interval<T>> intervals;
-        
-        private Set<Cursor<Element>> openCursors = new HashSet<>();
-        private boolean closed = false;
-        
-        public CrossShardQueryCursor(XPathQuery query, List<Interval<T>> shardIntervals){
-            this.query = query;
-            this.intervals = shardIntervals;
-        }
-        
-        private void closeCursor(Cursor<Element> cursor) throws Exception{
-            openCursors.remove(cursor);
-            cursor.close();
-        }
-        
-        private Cursor<Element> openCursor(Interval<T> interval){
-            Cursor<Element> ret = doWithEngine(interval, new EngineAction<Cursor<Element>>(){
-                @Override
-                public Cursor<Element> act(Engine engine) {
-                    return engine.queryTable(query);
-                }
-            });
-            openCursors.add(ret);
-            return ret;
-        }
-        
-        @Override
-        public Iterator<Element> iterator() {
-            if(this.closed){
-                throw new IllegalStateException("Cursor is closed");
-            }
-            
-            return new Iterator<Element>(){
-                private int intervalIndex = 0;
-                private Iterator<Element> currentCursorIterator = null;
-                private Cursor<Element> currentCursor = null;
-                
-                @Override
-                public boolean hasNext() {
-                    if(closed){
-                        throw new IllegalStateException("Cursor is closed");
-                    }
-                    
-                    if(intervalIndex >= intervals.size()){
-                        return false;
-                    }
-
-                    if(currentCursorIterator != null){
-                        if(currentCursorIterator.hasNext()){
-                            return true;
-                        }
-                        try {
-                            //current open cursor is done, need to close it
-                            closeCursor(currentCursor);
-                        } catch (Exception ex) {
-                            throw new XFlatException("Exception closing cursor for shard " + config.getIntervalProvider().getName(intervals.get(intervalIndex)), ex);
-                        }
-                        currentCursor = null;
-                        currentCursorIterator = null;
-                        //advance the index
-                        intervalIndex++;
-                        if(intervalIndex >= intervals.size()){
-                            return false;
-                        }
-                    }
-
-                    //get the next cursor and see if it has anything
-                    this.currentCursor = openCursor(intervals.get(intervalIndex));
-                    this.currentCursorIterator = currentCursor.iterator();
-                    
-                    return hasNext();
-                }
-
-                @Override
-                public Element next() {
-                    if(closed){
-                        throw new IllegalStateException("Cursor is closed");
-                    }
-                    
-                    if(hasNext()){
-                        return currentCursorIterator.next();
-                    }
-                    throw new IllegalStateException("Iterator does not have next");
-                }
-
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException("Remove not supported.");
-                }
-            };
-        }
-
-        @Override
-        public void close() throws XFlatException {
-            if(this.closed){
-                return;
-            }
-            this.closed = true;
-            
-            Exception last = null;
-            for(Cursor<Element> c : openCursors){
-                try{
-                    c.close();
-                }catch(Exception e){
-                    last = e;
-                }
-            }
-            
-            IdShardedEngine.this.crossShardQueries.remove(this);
-            
-            if(last != null){
-                throw new XFlatException("Exception while closing multi-shard cursor", last);
-            }
-        }
-    }
-
-    
-}
+}
\ No newline at end of file
@@ -0,0 +1,603 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.engine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.jdom2.Element;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.DuplicateKeyException;
+import org.xflatdb.xflat.KeyNotFoundException;
+import org.xflatdb.xflat.ShardsetConfig;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.XFlatException;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.Converter;
+import org.xflatdb.xflat.db.Engine;
+import org.xflatdb.xflat.db.EngineAction;
+import org.xflatdb.xflat.db.EngineActionEx;
+import org.xflatdb.xflat.db.EngineBase;
+import org.xflatdb.xflat.db.ShardedEngineBase;
+import org.xflatdb.xflat.query.Interval;
+import org.xflatdb.xflat.query.Projection;
+import org.xflatdb.xflat.query.XPathQuery;
+import org.xflatdb.xflat.query.XPathUpdate;
+
+/**
+ * An engine that shards the table based on a property of the row data selected
+ * by the shard property selector, for example a region or a date.  This engine 
+ * manages several sub-engines, which each manage one shard.
+ * <p/>
+ * Since the shard of a row cannot be computed from its ID, the engine keeps an
+ * index of the shard key of every row by its ID, in a table alongside the shards.
+ * Point operations read the index to find the one shard containing the row.  Every
+ * write goes through the index in the same transaction as the write to the shard,
+ * so the index rejects an ID that already exists in any shard, and two transactions
+ * inserting the same ID into different shards conflict in the index.  The index
+ * stores the shard key rather than the shard, so it stays valid when shards are
+ * split or merged.  A table written before it had an index has the index built
+ * from its shards the first time it is needed.
+ * <p/>
+ * When a replace or update changes the shard property of a row, the row is
+ * migrated by inserting it into its new shard and then deleting it from the old one.
+ * Bind the operation to a transaction to make the migration atomic.
+ * @author Gordon
+ */
+public class PropertyShardedEngine<T> extends ShardedEngineBase<T> {
+    
+    /** The name of the table indexing the shard key of each row by ID. */
+    private static final String ID_INDEX = "ids";
+    
+    /** Projects only the ID of each matching row. */
+    private static final Projection<String> ROW_ID = Projection.value(XPathQuery.Id, String.class);
+    
+    //set once the index has been checked against the shards since spin up
+    private volatile boolean indexReady = false;
+    
+    private final Object indexSyncRoot = new Object();
+    
+    /**
+     * Creates a new PropertyShardedEngine for the given directory, with the given table name,
+     * using the given configuration.
+     * @param file The directory in which the shard files will be located.
+     * @param tableName The name of the sharded table.
+     * @param config The configuration of the sharded table.
+     */
+    public PropertyShardedEngine(File file, String tableName, ShardsetConfig<T> config){
+        super(file, tableName, config);
+        
+        if(config.isShardedById()){
+            throw new XFlatException("PropertyShardedEngine cannot be sharded by ID, use an IdShardedEngine");
+        }
+        
+        reserveAuxiliaryTable(ID_INDEX);
+    }
+    
+    /**
+     * Gets the shard key of the given row data.  The shard property selector is
+     * evaluated against a row element wrapping the data, the same as queries are.
+     * @param id The ID of the row.
+     * @param data The row data.
+     * @return The shard key of the row.
+     */
+    private T getKeyForData(String id, Element data){
+        if(data.getParent() != null){
+            data = data.clone();
+        }
+        
+        Element row = new Element("row", XFlatConstants.xFlatNs);
+        setId(row, id);
+        row.addContent(data);
+        try{
+            return getKeyForRow(row);
+        }finally{
+            data.detach();
+        }
+    }
+    
+    private T getKeyForRow(Element row){
+        T key = getShardKey(config.getShardPropertySelector().evaluateFirst(row));
+        //make sure the key can be mapped to a shard before anything is written
+        getInterval(key);
+        return key;
+    }
+    
+    /**
+     * Gets the index, building it from the shards if this is the first time
+     * the index is used on a table that was written without one.
+     */
+    private EngineBase index(){
+        EngineBase ret = provideAuxiliaryEngine(ID_INDEX);
+        if(!indexReady){
+            synchronized(indexSyncRoot){
+                if(!indexReady){
+                    buildIndex(ret);
+                    indexReady = true;
+                }
+            }
+        }
+        return ret;
+    }
+    
+    private void buildIndex(EngineBase index){
+        try(Cursor<Element> cursor = index.queryTable(XPathQuery.any().withLimit(1))){
+            if(cursor.iterator().hasNext()){
+                return;
+            }
+        }catch(Exception ex){
+            throw new XFlatException("Unable to read the ID index of table " + getTableName(), ex);
+        }
+        
+        //index every version of each row, so that open transactions
+        //find each row in the index if and only if they can read it.
+        Converter<Element, Element> toEntry = new Converter<Element, Element>(){
+            @Override
+            public Element convert(Element row) {
+                return indexEntry(getKeyForRow(row));
+            }
+        };
+        for(Interval<T> shard : this.knownShards.keySet()){
+            if(!copyToAuxiliaryTable(ID_INDEX, shard, toEntry)){
+                throw new XFlatException("Unable to build the ID index of table " + getTableName() + 
+                        ", the shards cannot be copied into the index");
+            }
+        }
+    }
+    
+    private Element indexEntry(T key){
+        try {
+            return new Element("key", XFlatConstants.xFlatNs)
+                    .setText(getConversionService().convert(key, String.class));
+        } catch (ConversionException ex) {
+            throw new XFlatException("Shard key " + key + " cannot be indexed", ex);
+        }
+    }
+    
+    /**
+     * A row found through the index, with the shard containing it.
+     */
+    private class Located {
+        final Interval<T> shard;
+        final String key;
+        final Element data;
+        
+        Located(Interval<T> shard, String key, Element data){
+            this.shard = shard;
+            this.key = key;
+            this.data = data;
+        }
+    }
+    
+    /**
+     * Finds the shard containing the given row through the index.
+     * @param id The ID of the row to find.
+     * @return The located row, or null if no shard contains the row.
+     */
+    private Located locate(final String id){
+        Element entry = index().readRow(id);
+        if(entry == null){
+            return null;
+        }
+        
+        Interval<T> shard = getInterval(getShardKey(entry.getText()));
+        if(!this.knownShards.containsKey(shard)){
+            //the shard was dropped
+            return null;
+        }
+        
+        Element data = doWithEngine(shard, new EngineAction<Element>(){
+            @Override
+            public Element act(Engine engine) {
+                return engine.readRow(id);
+            }
+        });
+        
+        return data == null ? null : new Located(shard, entry.getText(), data);
+    }
+    
+    /**
+     * Removes the rows of the dropped shards, and any other shard that is gone, from the index.
+     */
+    @Override
+    protected void shardsDropped(List<Interval<T>> dropped){
+        EngineBase index = index();
+        
+        List<String> ids = new ArrayList<>();
+        try(Cursor<Element> cursor = index.queryTable(XPathQuery.any().withOrderById())){
+            for(Element entry : cursor){
+                if(!this.knownShards.containsKey(getInterval(getShardKey(entry.getText())))){
+                    ids.add(getId(entry));
+                }
+            }
+        }catch(Exception ex){
+            log.warn("Failure to remove dropped rows from the ID index of table " + getTableName(), ex);
+            return;
+        }
+        
+        for(String id : ids){
+            removeFromIndex(id);
+        }
+    }
+    
+    /**
+     * Points the index at the row's new shard key, if it changed.
+     */
+    private void reindex(String id, Located located, T key){
+        Element entry = indexEntry(key);
+        if(entry.getText().equals(located.key)){
+            return;
+        }
+        
+        try{
+            index().replaceRow(id, entry);
+        }catch(KeyNotFoundException ex){
+            throw new XFlatException("Row " + id + " was deleted concurrently while being written", ex);
+        }
+    }
+    
+    /**
+     * Adds the row to the index, which fails if the ID exists in any shard.
+     */
+    private void addToIndex(String id, T key) throws DuplicateKeyException {
+        EngineBase index = index();
+        try{
+            index.insertRow(id, indexEntry(key));
+        }catch(DuplicateKeyException ex){
+            if(locate(id) != null){
+                throw ex;
+            }
+            
+            //left behind by a write that failed partway, the row isn't in its shard.
+            try{
+                index.replaceRow(id, indexEntry(key));
+            }catch(KeyNotFoundException notFound){
+                //removed in the meantime
+                index.insertRow(id, indexEntry(key));
+            }
+        }
+    }
+    
+    private void removeFromIndex(String id){
+        try{
+            index().deleteRow(id);
+        }catch(KeyNotFoundException ex){
+            //already gone
+        }
+    }
+    
+    /**
+     * Moves a row to a new shard by inserting it into the new shard, then
+     * deleting it from the old one.
+     */
+    private void migrate(final String id, final Element data, Interval<T> from, Interval<T> to){
+        try{
+            doWithEngine(to, new EngineActionEx<Object, DuplicateKeyException>(){
+                @Override
+                public Object act(Engine engine) throws DuplicateKeyException {
+                    engine.insertRow(id, data);
+                    return null;
+                }
+            });
+            
+            doWithEngine(from, new EngineActionEx<Object, KeyNotFoundException>(){
+                @Override
+                public Object act(Engine engine) throws KeyNotFoundException {
+                    engine.deleteRow(id);
+                    return null;
+                }
+            });
+        }catch(DuplicateKeyException | KeyNotFoundException ex){
+            throw new XFlatException("Row " + id + " was modified concurrently while migrating between shards", ex);
+        }
+    }
+
+    @Override
+    public void insertRow(final String id, final Element data) throws DuplicateKeyException {
+        ensureWriteReady();
+        try{
+            T key = getKeyForData(id, data);
+            
+            //the index holds every ID in the table, so it rejects a duplicate in any shard.
+            addToIndex(id, key);
+            
+            try{
+                doWithEngine(getInterval(key), new EngineActionEx<Object, DuplicateKeyException>(){
+                    @Override
+                    public Object act(Engine engine) throws DuplicateKeyException {
+                        engine.insertRow(id, data);
+                        return null;
+                    }
+                });
+            }catch(DuplicateKeyException | RuntimeException ex){
+                removeFromIndex(id);
+                throw ex;
+            }
+        }finally{
+            writeComplete();
+        }
+    }
+
+    @Override
+    public Element readRow(String id) {
+        Located located = locate(id);
+        if(located == null){
+            return null;
+        }
+        
+        return located.data;
+    }
+
+    @Override
+    public long getRowVersion(final String id) {
+        Element entry = index().readRow(id);
+        if(entry == null){
+            return -1;
+        }
+        
+        return doWithEngine(getInterval(getShardKey(entry.getText())), new EngineAction<Long>(){
+            @Override
+            public Long act(Engine engine) {
+                return engine.getRowVersion(id);
+            }
+        });
+    }
+
+    @Override
+    public Element replaceRow(final String id, final Element data) throws KeyNotFoundException {
+        ensureWriteReady();
+        try{
+            Located located = locate(id);
+            if(located == null){
+                throw new KeyNotFoundException(id);
+            }
+            
+            T key = getKeyForData(id, data);
+            Interval<T> shard = getInterval(key);
+            reindex(id, located, key);
+            if(shard.equals(located.shard)){
+                return doWithEngine(shard, new EngineActionEx<Element, KeyNotFoundException>(){
+                    @Override
+                    public Element act(Engine engine) throws KeyNotFoundException {
+                        return engine.replaceRow(id, data);
+                    }
+                });
+            }
+            
+            migrate(id, data, located.shard, shard);
+            return located.data;
+        }finally{
+            writeComplete();
+        }
+    }
+
+    @Override
+    public boolean update(final String id, final XPathUpdate update) throws KeyNotFoundException {
+        ensureWriteReady();
+        try{
+            update.setConversionService(this.getConversionService());
+            
+            return updateRow(id, update);
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    /**
+     * Updates one row, migrating it if the update changes its shard.
+     * The caller must have ensured the engine is ready to write.
+     */
+    private boolean updateRow(final String id, final XPathUpdate update) throws KeyNotFoundException {
+        Located located = locate(id);
+        if(located == null){
+            throw new KeyNotFoundException(id);
+        }
+
+        //apply the update to the copy we read, to see whether the row moves
+        Element row = new Element("row", XFlatConstants.xFlatNs);
+        setId(row, id);
+        row.addContent(located.data);
+        if(update.apply(row) == 0){
+            return false;
+        }
+
+        T key = getKeyForRow(row);
+        Interval<T> shard = getInterval(key);
+        reindex(id, located, key);
+        if(shard.equals(located.shard)){
+            return doWithEngine(shard, new EngineActionEx<Boolean, KeyNotFoundException>(){
+                @Override
+                public Boolean act(Engine engine) throws KeyNotFoundException {
+                    return engine.update(id, update);
+                }
+            });
+        }
+
+        migrate(id, located.data.detach(), located.shard, shard);
+        return true;
+    }
+
+    /**
+     * Updates every row matching the query.  The rows are updated one at a time
+     * by ID, so that they can migrate if the update changes their shard property.
+     * <p/>
+     * All the matching IDs are found before any row is updated, so that a row
+     * that migrates into a shard which has not yet been updated is not updated twice.
+     */
+    @Override
+    public int update(final XPathQuery query, final XPathUpdate update) {
+        ensureWriteReady();
+        try{
+            query.setConversionService(this.getConversionService());
+            update.setConversionService(this.getConversionService());
+            
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for(final List<String> ids : doWithEngines(getExecutionPlan(query), matchingIds(query))){
+                tasks.add(new Callable<Integer>(){
+                    @Override
+                    public Integer call() {
+                        int updated = 0;
+                        for(String id : ids){
+                            try{
+                                if(updateRow(id, update)){
+                                    updated++;
+                                }
+                            }catch(KeyNotFoundException ex){
+                                //deleted since we queried
+                            }
+                        }
+                        return updated;
+                    }
+                });
+            }
+
+            int updated = 0;
+            for(Integer count : invokeAll(tasks)){
+                updated += count;
+            }
+            return updated;
+        }finally{
+            writeComplete();
+        }
+    }
+    
+    /**
+     * Gets an action reading the IDs of the rows in a shard which match the query.
+     */
+    private EngineAction<List<String>> matchingIds(XPathQuery query){
+        final XPathQuery ids = query.withOrderById().withProjection(ROW_ID);
+        return new EngineAction<List<String>>(){
+            @Override
+            public List<String> act(Engine engine) {
+                List<String> ret = new ArrayList<>();
+                try(Cursor<Element> cursor = engine.queryTable(ids)){
+                    for(Element row : cursor){
+                        ret.add(getId(row));
+                    }
+                }catch(Exception ex){
+                    throw new XFlatException("Unable to read the IDs of matching rows", ex);
+                }
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public boolean upsertRow(final String id, final Element data) {
+        ensureWriteReady();
+        try{
+            T key = getKeyForData(id, data);
+            Interval<T> shard = getInterval(key);
+            
+            Located located = locate(id);
+            if(located == null){
+                try{
+                    addToIndex(id, key);
+                }catch(DuplicateKeyException ex){
+                    //inserted concurrently, so this is a replace after all.
+                    located = locate(id);
+                }
+            }
+            
+            if(located != null){
+                reindex(id, located, key);
+                if(!shard.equals(located.shard)){
+                    migrate(id, data, located.shard, shard);
+                    return false;
+                }
+            }
+            
+            try{
+                return doWithEngine(shard, new EngineAction<Boolean>(){
+                    @Override
+                    public Boolean act(Engine engine) {
+                        return engine.upsertRow(id, data);
+                    }
+                });
+            }catch(RuntimeException ex){
+                if(located == null){
+                    removeFromIndex(id);
+                }
+                throw ex;
+            }
+        }finally{
+            writeComplete();
+        }
+    }
+
+    @Override
+    public void deleteRow(final String id) throws KeyNotFoundException {
+        ensureWriteReady();
+        try{
+            Located located = locate(id);
+            if(located == null){
+                throw new KeyNotFoundException(id);
+            }
+            
+            doWithEngine(located.shard, new EngineActionEx<Object, KeyNotFoundException>(){
+                @Override
+                public Object act(Engine engine) throws KeyNotFoundException {
+                    engine.deleteRow(id);
+                    return null;
+                }
+            });
+            
+            removeFromIndex(id);
+        }finally{
+            writeComplete();
+        }
+    }
+
+    /**
+     * Deletes every row matching the query.  The matching rows are deleted one
+     * at a time by ID, so that each is also removed from the index.
+     */
+    @Override
+    public int deleteAll(final XPathQuery query) {
+        ensureWriteReady();
+        try{
+            query.setConversionService(this.getConversionService());
+            final EngineAction<List<String>> matchingIds = matchingIds(query);
+            EngineAction<Integer> action = new EngineAction<Integer>(){
+                @Override
+                public Integer act(Engine engine) {
+                    int deleted = 0;
+                    for(String id : matchingIds.act(engine)){
+                        try{
+                            engine.deleteRow(id);
+                            deleted++;
+                        }catch(KeyNotFoundException ex){
+                            //deleted since we queried
+                            continue;
+                        }
+                        removeFromIndex(id);
+                    }
+                    return deleted;
+                }
+            };
+
+            int count = 0;
+            for(Integer deleted : doWithEngines(getExecutionPlan(query), action)){
+                count += deleted;
+            }
+
+            return count;
+        }finally{
+            writeComplete();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import org.xflatdb.xflat.util.ComparableComparator;
+
+/**
+ * A class containing a number of factory methods for getting {@link IntervalProvider}
+ * objects that shard by the hash of a value rather than the value itself.
+ * <p/>
+ * The 32 bit hash space is divided into a fixed number of equal-width buckets,
+ * and each value is stored in the bucket containing its hash.  This spreads
+ * sequential and random values (such as those from {@link org.xflatdb.xflat.db.UuidIdGenerator})
+ * evenly across the buckets, instead of piling them into the newest one.
+ * <p/>
+ * The hash is the value's {@link Object#hashCode() } run through a mixing function,
+ * so it is stable across JVMs for Strings, UUIDs, Integers and Longs.  Each bucket
+ * is named by the inclusive hexadecimal bounds of its hash range, for example
+ * "00000000-3fffffff", so a shard's name identifies its range independently of
+ * the number of buckets the provider was configured with.  This allows the
+ * providers to be {@link ResizableIntervalProvider}s, splitting and merging
+ * ranges of the hash space.
+ * <p/>
+ * Since hashing does not preserve order, only queries that select specific values
+ * of the sharded property can be pruned to the buckets containing those values:
+ * equality queries, and ORs of equality queries.  Range queries (lt, lte, gt, gte)
+ * and not-equal queries must read every bucket, though shard summaries may still
+ * skip shards whose stored values fall outside the range.
+ * @author Gordon
+ */
+public class HashIntervalProvider {
+    
+    private static final long HASH_SPACE = 1L << 32;
+    
+    /**
+     * The maximum number of buckets a HashIntervalProvider can divide the hash space into.
+     */
+    public static final int MAX_BUCKETS = 1 << 16;
+    
+    private HashIntervalProvider(){
+        
+    }
+    
+    /**
+     * Creates a IntervalProvider for {@link String} values, dividing them into
+     * the given number of hash buckets.
+     * @param buckets The number of buckets to divide the hash space into, at most {@link #MAX_BUCKETS}.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static ResizableIntervalProvider<String> forString(int buckets){
+        return new Provider<>(ComparableComparator.getComparator(String.class), buckets);
+    }
+    
+    /**
+     * Creates a IntervalProvider for {@link UUID} values, dividing them into
+     * the given number of hash buckets.
+     * @param buckets The number of buckets to divide the hash space into, at most {@link #MAX_BUCKETS}.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static ResizableIntervalProvider<UUID> forUuid(int buckets){
+        return new Provider<>(ComparableComparator.getComparator(UUID.class), buckets);
+    }
+    
+    /**
+     * Creates a IntervalProvider for {@link Integer} values, dividing them into
+     * the given number of hash buckets.
+     * @param buckets The number of buckets to divide the hash space into, at most {@link #MAX_BUCKETS}.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static ResizableIntervalProvider<Integer> forInteger(int buckets){
+        return new Provider<>(ComparableComparator.getComparator(Integer.class), buckets);
+    }
+    
+    /**
+     * Creates a IntervalProvider for {@link Long} values, dividing them into
+     * the given number of hash buckets.
+     * @param buckets The number of buckets to divide the hash space into, at most {@link #MAX_BUCKETS}.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static ResizableIntervalProvider<Long> forLong(int buckets){
+        return new Provider<>(ComparableComparator.getComparator(Long.class), buckets);
+    }
+    
+    /**
+     * Gets the unsigned 32 bit hash of the given value, as used to select its bucket.
+     * @param value The value to hash.
+     * @return The hash, between 0 and 2^32 - 1.
+     */
+    public static long hash(Object value){
+        //murmur3's finalizer, so that sequential hash codes are spread over the whole space.
+        int h = value.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0xffffffffL;
+    }
+    
+    private static class Provider<T> implements ResizableIntervalProvider<T> {
+        private final Comparator<T> comparator;
+        private final int buckets;
+        
+        public Provider(Comparator<T> comparator, int buckets){
+            if(buckets < 1 || buckets > MAX_BUCKETS){
+                throw new IllegalArgumentException("buckets must be between 1 and " + MAX_BUCKETS);
+            }
+            this.comparator = comparator;
+            this.buckets = buckets;
+        }
+        
+        private HashInterval<T> getBucket(long index){
+            //the bounds are rounded up so that every hash maps back to the bucket it was computed from.
+            long lower = (index * HASH_SPACE + buckets - 1) / buckets;
+            long upper = ((index + 1) * HASH_SPACE + buckets - 1) / buckets - 1;
+            return new HashInterval<>(lower, upper);
+        }
+        
+        @Override
+        public Interval<T> getInterval(T value) {
+            return getBucket(hash(value) * buckets >>> 32);
+        }
+
+        @Override
+        public Interval<T> nextInterval(Interval<T> currentInterval, long factor) {
+            long index = ((HashInterval<T>)currentInterval).getHashBegin() * buckets >>> 32;
+            //wrap around the hash space
+            index = ((index + factor) % buckets + buckets) % buckets;
+            return getBucket(index);
+        }
+
+        @Override
+        public Comparator<T> getComparator() {
+            return comparator;
+        }
+
+        @Override
+        public String getName(Interval<T> interval) {
+            HashInterval<T> h = (HashInterval<T>)interval;
+            return toHex(h.getHashBegin()) + "-" + toHex(h.getHashEnd());
+        }
+
+        @Override
+        public Interval<T> getInterval(String name) {
+            if(name == null || name.length() != 17 || name.charAt(8) != '-'){
+                return null;
+            }
+            try{
+                long lower = Long.parseLong(name.substring(0, 8), 16);
+                long upper = Long.parseLong(name.substring(9), 16);
+                if(lower > upper){
+                    return null;
+                }
+                return new HashInterval<>(lower, upper);
+            }catch(NumberFormatException ex){
+                return null;
+            }
+        }
+        
+        @Override
+        public List<Interval<T>> split(Interval<T> interval) {
+            HashInterval<T> h = (HashInterval<T>)interval;
+            if(h.getHashEnd() == h.getHashBegin()){
+                return null;
+            }
+            
+            long mid = h.getHashBegin() + (h.getHashEnd() - h.getHashBegin()) / 2;
+            return Arrays.<Interval<T>>asList(new HashInterval<T>(h.getHashBegin(), mid), new HashInterval<T>(mid + 1, h.getHashEnd()));
+        }
+
+        @Override
+        public Interval<T> merge(Interval<T> first, Interval<T> second) {
+            HashInterval<T> a = (HashInterval<T>)first;
+            HashInterval<T> b = (HashInterval<T>)second;
+            if(a.getHashEnd() + 1 == b.getHashBegin()){
+                return new HashInterval<>(a.getHashBegin(), b.getHashEnd());
+            }
+            if(b.getHashEnd() + 1 == a.getHashBegin()){
+                return new HashInterval<>(b.getHashBegin(), a.getHashEnd());
+            }
+            return null;
+        }
+        
+        private static String toHex(long hash){
+            String ret = Long.toHexString(hash);
+            while(ret.length() < 8){
+                ret = "0" + ret;
+            }
+            return ret;
+        }
+    }
+    
+    /**
+     * An interval over a range of the hash space rather than a range of values.
+     * In terms of values it is unbounded, but it only contains those values whose
+     * hash falls in its range.
+     * @param <T> The type of values that are hashed into this interval.
+     */
+    public static class HashInterval<T> extends Interval<T> {
+        private final long hashBegin;
+        private final long hashEnd;
+        
+        /**
+         * Gets the lowest hash contained in this interval, inclusive.
+         */
+        public long getHashBegin(){
+            return hashBegin;
+        }
+        
+        /**
+         * Gets the highest hash contained in this interval, inclusive.
+         */
+        public long getHashEnd(){
+            return hashEnd;
+        }
+        
+        public HashInterval(long hashBegin, long hashEnd){
+            super(null, false, null, false);
+            this.hashBegin = hashBegin;
+            this.hashEnd = hashEnd;
+        }
+        
+        private boolean containsHash(long hash){
+            return hash >= hashBegin && hash <= hashEnd;
+        }
+        
+        @Override
+        public boolean contains(T value, Comparator<T> comparator){
+            return containsHash(hash(value));
+        }
+        
+        /**
+         * Returns true if the given interval might contain values whose hash
+         * is in this interval.  Only a single-value interval or another HashInterval
+         * can be excluded, since any wider range of values could hash anywhere.
+         */
+        @Override
+        public boolean intersects(Interval<T> other, Comparator<T> comparator){
+            if(other instanceof HashInterval){
+                HashInterval<T> h = (HashInterval<T>)other;
+                return h.hashBegin <= this.hashEnd && this.hashBegin <= h.hashEnd;
+            }
+            
+            if(other.begin != null && other.end != null && 
+                    other.beginInclusive && other.endInclusive &&
+                    comparator.compare(other.begin, other.end) == 0){
+                return containsHash(hash(other.begin));
+            }
+            
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 37 * hash + (int) (this.hashBegin ^ (this.hashBegin >>> 32));
+            hash = 37 * hash + (int) (this.hashEnd ^ (this.hashEnd >>> 32));
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            final HashInterval<?> other = (HashInterval<?>) obj;
+            return this.hashBegin == other.hashBegin && this.hashEnd == other.hashEnd;
+        }
+        
+        @Override
+        public String toString(){
+            return "#[" + Provider.toHex(hashBegin) + ", " + Provider.toHex(hashEnd) + "]";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import org.jdom2.Element;
+import org.xflatdb.xflat.XFlatConstants;
+
+/**
+ * Compares row IDs in the order used by queries {@link XPathQuery#withOrderById() ordered by ID}.
+ * IDs are stored as strings, so integral IDs like those of the numeric and
+ * timestamp ID generators are compared by their numeric value, and sort before
+ * any other IDs, which are compared as strings.  Null IDs sort last.
+ * @author Gordon
+ */
+public class IdComparator implements Comparator<String> {
+    
+    private static final IdComparator instance = new IdComparator();
+    
+    private static final Comparator<Element> rowComparator = new Comparator<Element>(){
+        @Override
+        public int compare(Element o1, Element o2) {
+            return instance.compare(o1.getAttributeValue("id", XFlatConstants.xFlatNs), 
+                    o2.getAttributeValue("id", XFlatConstants.xFlatNs));
+        }
+    };
+    
+    private IdComparator(){
+    }
+    
+    /**
+     * Gets the singleton instance.
+     */
+    public static IdComparator instance(){
+        return instance;
+    }
+    
+    /**
+     * Gets a comparator which orders rows by the ID in their "db:id" attribute.
+     * Engines set this attribute on the rows returned by a query ordered by ID.
+     */
+    public static Comparator<Element> byRowId(){
+        return rowComparator;
+    }
+    
+    @Override
+    public int compare(String o1, String o2) {
+        if(o1 == null){
+            return o2 == null ? 0 : 1;
+        }
+        if(o2 == null){
+            return -1;
+        }
+        
+        boolean integral1 = isIntegral(o1);
+        boolean integral2 = isIntegral(o2);
+        if(integral1 && integral2){
+            if(o1.length() < 19 && o2.length() < 19){
+                //both fit in a long
+                return Long.compare(Long.parseLong(o1), Long.parseLong(o2));
+            }
+            return new BigInteger(o1).compareTo(new BigInteger(o2));
+        }
+        if(integral1 != integral2){
+            //numbers first, so that the order is consistent
+            return integral1 ? -1 : 1;
+        }
+        
+        return o1.compareTo(o2);
+    }
+    
+    private static boolean isIntegral(String id){
+        int i = id.startsWith("-") ? 1 : 0;
+        if(i == id.length()){
+            return false;
+        }
+        for(; i < id.length(); i++){
+            char c = id.charAt(i);
+            if(c < '0' || c > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+}
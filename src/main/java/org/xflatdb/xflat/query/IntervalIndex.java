@@ -0,0 +1,329 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable index of a set of intervals, such as the shards of a sharded table,
+ * which finds the interval containing a value or the intervals intersecting an
+ * {@link IntervalSet} in logarithmic time.
+ * <p/>
+ * The intervals are kept in an array sorted by their beginning.  When the intervals
+ * do not overlap, a binary search finds the first candidate and the following
+ * intervals are walked only until they begin after the searched range.  The buckets
+ * of a {@link HashIntervalProvider} are sorted and searched by the beginning of
+ * their hash range instead, so a value is found by binary searching for its hash.
+ * Intervals that overlap, or which mix hash buckets with other intervals, cannot be
+ * searched this way, so the index falls back to checking each interval.
+ * @author Gordon
+ */
+public class IntervalIndex<T> {
+    
+    private final Interval<T>[] intervals;
+    
+    private final Comparator<T> comparator;
+    
+    private final boolean ordered;
+    
+    /** true if the intervals are all hash buckets, ordered by the beginning of their hash range. */
+    private final boolean hashed;
+    
+    /**
+     * Creates an index of the given intervals.
+     * @param intervals The intervals to index.
+     * @param comparator The comparator for begin and end values of the intervals.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IntervalIndex(Collection<Interval<T>> intervals, Comparator<T> comparator){
+        this.comparator = comparator;
+        this.intervals = intervals.toArray(new Interval[intervals.size()]);
+        
+        boolean isHashed = this.intervals.length > 0;
+        for(int i = 0; i < this.intervals.length && isHashed; i++){
+            isHashed = this.intervals[i] instanceof HashIntervalProvider.HashInterval;
+        }
+        
+        boolean isOrdered = true;
+        if(isHashed){
+            Arrays.sort(this.intervals, new HashBeginComparator());
+            for(int i = 1; i < this.intervals.length && isOrdered; i++){
+                if(hashRange(i - 1).getHashEnd() >= hashRange(i).getHashBegin()){
+                    //overlapping buckets
+                    isOrdered = false;
+                }
+            }
+        }
+        else{
+            Arrays.sort(this.intervals, new IntervalComparator<>(comparator));
+            for(int i = 0; i < this.intervals.length && isOrdered; i++){
+                if(this.intervals[i].getClass() != Interval.class){
+                    isOrdered = false;
+                }
+                else if(i > 0 && Interval.compareEndBegin(this.intervals[i - 1], this.intervals[i], comparator) >= 0){
+                    //overlapping intervals
+                    isOrdered = false;
+                }
+            }
+        }
+        this.ordered = isOrdered;
+        this.hashed = isHashed && isOrdered;
+    }
+    
+    /**
+     * Gets the number of intervals in the index.
+     */
+    public int size(){
+        return intervals.length;
+    }
+    
+    /**
+     * Gets the indexed intervals in ascending order.  When the index is ordered,
+     * neighbouring intervals in this list are neighbours in the value space (or
+     * the hash space, for hash buckets).
+     */
+    public List<Interval<T>> getIntervals(){
+        return Collections.unmodifiableList(Arrays.asList(intervals));
+    }
+    
+    /**
+     * Gets whether the indexed intervals can be binary searched, which is true
+     * if they do not overlap and are either all plain {@link Interval} objects
+     * or all hash buckets.
+     */
+    public boolean isOrdered(){
+        return ordered;
+    }
+    
+    /**
+     * Finds an indexed interval containing the given value.
+     * @param value The value to look up.
+     * @return The interval containing the value, or null if none does.
+     */
+    public Interval<T> find(T value){
+        Interval<T> point = new Interval<>(value, true, value, true);
+        
+        if(!ordered){
+            for(Interval<T> interval : intervals){
+                if(interval.intersects(point, comparator)){
+                    return interval;
+                }
+            }
+            return null;
+        }
+        
+        if(hashed){
+            int i = floorHash(HashIntervalProvider.hash(value));
+            return i >= 0 && intervals[i].contains(value, comparator) ? intervals[i] : null;
+        }
+        
+        int i = floor(point);
+        if(i >= 0 && intervals[i].intersects(point, comparator)){
+            return intervals[i];
+        }
+        return null;
+    }
+    
+    /**
+     * Finds the indexed intervals intersecting any interval of the given interval set.
+     * @param set The interval set to look up.
+     * @return The intersecting intervals in ascending order.
+     */
+    public List<Interval<T>> intersecting(IntervalSet<T> set){
+        List<Interval<T>> ret = new ArrayList<>();
+        
+        if(!ordered){
+            for(Interval<T> interval : intervals){
+                if(set.intersects(interval, comparator)){
+                    ret.add(interval);
+                }
+            }
+            return ret;
+        }
+        
+        if(hashed){
+            //only single values can be routed to their bucket, any wider range could hash anywhere.
+            boolean[] hit = new boolean[intervals.length];
+            for(Interval<T> range : set.getIntervals()){
+                if(!markHashed(range, hit)){
+                    return new ArrayList<>(Arrays.asList(intervals));
+                }
+            }
+            for(int i = 0; i < intervals.length; i++){
+                if(hit[i]){
+                    ret.add(intervals[i]);
+                }
+            }
+            return ret;
+        }
+        
+        //the interval set is in ascending order, so each search starts after the last match
+        int lastAdded = -1;
+        for(Interval<T> range : set.getIntervals()){
+            lastAdded = collect(range, lastAdded + 1, ret, lastAdded);
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Finds the indexed intervals intersecting the given interval.
+     * @param interval The interval to look up.
+     * @return The intersecting intervals in ascending order.
+     */
+    public List<Interval<T>> intersecting(Interval<T> interval){
+        List<Interval<T>> ret = new ArrayList<>();
+        
+        if(!ordered){
+            for(Interval<T> i : intervals){
+                if(i.intersects(interval, comparator)){
+                    ret.add(i);
+                }
+            }
+            return ret;
+        }
+        
+        if(hashed){
+            boolean[] hit = new boolean[intervals.length];
+            if(!markHashed(interval, hit)){
+                return new ArrayList<>(Arrays.asList(intervals));
+            }
+            for(int i = 0; i < intervals.length; i++){
+                if(hit[i]){
+                    ret.add(intervals[i]);
+                }
+            }
+            return ret;
+        }
+        
+        collect(interval, 0, ret, -1);
+        return ret;
+    }
+    
+    /**
+     * Adds the intervals intersecting the given range to the list, starting
+     * no earlier than the given index.
+     * @return The index of the last interval added, or lastAdded if none was.
+     */
+    private int collect(Interval<T> range, int from, List<Interval<T>> addTo, int lastAdded){
+        for(int i = Math.max(floor(range), from); i < intervals.length; i++){
+            if(Interval.compareEndBegin(range, intervals[i], comparator) < 0){
+                //this and every following interval begins after the range ends
+                break;
+            }
+
+            if(intervals[i].intersects(range, comparator)){
+                addTo.add(intervals[i]);
+                lastAdded = i;
+            }
+        }
+        return lastAdded;
+    }
+    
+    /**
+     * Gets the index of the last interval beginning at or before the given interval,
+     * or 0 if none does.  Only valid when the intervals are ordered.
+     */
+    private int floor(Interval<T> range){
+        int lo = 0;
+        int hi = intervals.length - 1;
+        int ret = 0;
+        while(lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            if(Interval.compareBegin(intervals[mid], range, comparator) <= 0){
+                ret = mid;
+                lo = mid + 1;
+            }
+            else{
+                hi = mid - 1;
+            }
+        }
+        return Math.min(ret, intervals.length - 1);
+    }
+    
+    /**
+     * Marks the hash buckets intersecting the given range.  Only valid when the
+     * intervals are hashed.
+     * @return false if the range is not a single value or hash range, so every bucket intersects it.
+     */
+    private boolean markHashed(Interval<T> range, boolean[] hit){
+        long hashBegin;
+        long hashEnd;
+        if(range instanceof HashIntervalProvider.HashInterval){
+            HashIntervalProvider.HashInterval<T> h = (HashIntervalProvider.HashInterval<T>)range;
+            hashBegin = h.getHashBegin();
+            hashEnd = h.getHashEnd();
+        }
+        else if(range.begin != null && range.end != null &&
+                range.beginInclusive && range.endInclusive &&
+                comparator.compare(range.begin, range.end) == 0){
+            hashBegin = hashEnd = HashIntervalProvider.hash(range.begin);
+        }
+        else{
+            return false;
+        }
+        
+        for(int i = Math.max(floorHash(hashBegin), 0); i < intervals.length; i++){
+            HashIntervalProvider.HashInterval<T> bucket = hashRange(i);
+            if(bucket.getHashBegin() > hashEnd){
+                break;
+            }
+            if(bucket.getHashEnd() >= hashBegin){
+                hit[i] = true;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Gets the index of the last hash bucket beginning at or before the given hash,
+     * or -1 if none does.  Only valid when the intervals are hashed.
+     */
+    private int floorHash(long hash){
+        int lo = 0;
+        int hi = intervals.length - 1;
+        int ret = -1;
+        while(lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            if(hashRange(mid).getHashBegin() <= hash){
+                ret = mid;
+                lo = mid + 1;
+            }
+            else{
+                hi = mid - 1;
+            }
+        }
+        return ret;
+    }
+    
+    private HashIntervalProvider.HashInterval<T> hashRange(int i){
+        return (HashIntervalProvider.HashInterval<T>)intervals[i];
+    }
+    
+    private static class HashBeginComparator implements Comparator<Interval<?>> {
+        @Override
+        public int compare(Interval<?> o1, Interval<?> o2) {
+            long b1 = ((HashIntervalProvider.HashInterval<?>)o1).getHashBegin();
+            long b2 = ((HashIntervalProvider.HashInterval<?>)o2).getHashBegin();
+            return b1 < b2 ? -1 : (b1 == b2 ? 0 : 1);
+        }
+    }
+}
@@ -352,7 +352,8 @@ public class IntervalSet<T> {
      */
     public boolean intersects(Interval<T> other, Comparator<T> comparer){
         for(int i = 0; i < this.intervals.size(); i++){
-            if(this.intervals.get(i).intersects(other, comparer)){
+            //ask the other interval, so that specialized intervals like hash buckets get to decide.
+            if(other.intersects(this.intervals.get(i), comparer)){
                 return true;
             }
         }
@@ -15,7 +15,9 @@
 */
 package org.xflatdb.xflat.query;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import org.xflatdb.xflat.util.ComparableComparator;
 
 /**
@@ -29,6 +31,10 @@ import org.xflatdb.xflat.util.ComparableComparator;
  * Example: <br/>
  * for base = 25 and width = 100, intervals would be the following: <br/>
  * ... [-175, -75) [-75, 25) [25, 125) [125, 225) ...
+ * <p/>
+ * The Integer and Long providers are {@link ResizableIntervalProvider}s.  An interval
+ * produced by splitting or merging is named by its begin and end separated by an
+ * underscore, for example "25_75", while standard intervals are named by their begin.
  * @author Gordon
  */
 public class NumericIntervalProvider {
@@ -43,8 +49,8 @@ public class NumericIntervalProvider {
      * @param width The width of one interval.
      * @return A IntervalProvider providing intervals based on these settings.
      */
-    public static IntervalProvider<Integer> forInteger(final int base, final int width){
-        return new IntervalProvider<Integer>(){
+    public static ResizableIntervalProvider<Integer> forInteger(final int base, final int width){
+        return new ResizableIntervalProvider<Integer>(){
             @Override
             public Interval<Integer> getInterval(Integer value) {
                 
@@ -79,18 +85,55 @@ public class NumericIntervalProvider {
             
             @Override
             public String getName(Interval<Integer> interval){
-                return interval.getBegin().toString();
+                if(interval.equals(getInterval(interval.getBegin()))){
+                    return interval.getBegin().toString();
+                }
+                //a split or merged interval
+                return interval.getBegin() + "_" + interval.getEnd();
             }
 
             @Override
             public Interval<Integer> getInterval(String name) {
                 try{
+                    int split = name.indexOf('_');
+                    if(split > 0){
+                        int lower = Integer.parseInt(name.substring(0, split));
+                        int upper = Integer.parseInt(name.substring(split + 1));
+                        if(lower >= upper){
+                            return null;
+                        }
+                        return new Interval<>(lower, true, upper, false);
+                    }
+                    
                     int i = Integer.parseInt(name);
                     return getInterval(i);
                 }catch(Exception ex){
                     return null;
                 }
             }
+            
+            @Override
+            public List<Interval<Integer>> split(Interval<Integer> interval) {
+                int lower = interval.getBegin();
+                int upper = interval.getEnd();
+                if(upper - lower < 2){
+                    return null;
+                }
+                
+                int mid = lower + (upper - lower) / 2;
+                return Arrays.asList(new Interval<>(lower, true, mid, false), new Interval<>(mid, true, upper, false));
+            }
+            
+            @Override
+            public Interval<Integer> merge(Interval<Integer> first, Interval<Integer> second) {
+                if(first.getEnd().equals(second.getBegin())){
+                    return new Interval<>(first.getBegin(), true, second.getEnd(), false);
+                }
+                if(second.getEnd().equals(first.getBegin())){
+                    return new Interval<>(second.getBegin(), true, first.getEnd(), false);
+                }
+                return null;
+            }
         };
     }    
     
@@ -100,8 +143,8 @@ public class NumericIntervalProvider {
      * @param width The width of one interval.
      * @return A IntervalProvider providing intervals based on these settings.
      */
-    public static IntervalProvider<Long> forLong(final long base, final long width){
-        return new IntervalProvider<Long>(){
+    public static ResizableIntervalProvider<Long> forLong(final long base, final long width){
+        return new ResizableIntervalProvider<Long>(){
             @Override
             public Interval<Long> getInterval(Long value) {
                 long diff = Math.abs(value - base) % width; 
@@ -134,18 +177,55 @@ public class NumericIntervalProvider {
             
             @Override
             public String getName(Interval<Long> interval){
-                return interval.getBegin().toString();
+                if(interval.equals(getInterval(interval.getBegin()))){
+                    return interval.getBegin().toString();
+                }
+                //a split or merged interval
+                return interval.getBegin() + "_" + interval.getEnd();
             }
 
             @Override
             public Interval<Long> getInterval(String name) {
                 try{
+                    int split = name.indexOf('_');
+                    if(split > 0){
+                        long lower = Long.parseLong(name.substring(0, split));
+                        long upper = Long.parseLong(name.substring(split + 1));
+                        if(lower >= upper){
+                            return null;
+                        }
+                        return new Interval<>(lower, true, upper, false);
+                    }
+                    
                     long i = Long.parseLong(name);
                     return getInterval(i);
                 }catch(Exception ex){
                     return null;
                 }
             }
+            
+            @Override
+            public List<Interval<Long>> split(Interval<Long> interval) {
+                long lower = interval.getBegin();
+                long upper = interval.getEnd();
+                if(upper - lower < 2){
+                    return null;
+                }
+                
+                long mid = lower + (upper - lower) / 2;
+                return Arrays.asList(new Interval<>(lower, true, mid, false), new Interval<>(mid, true, upper, false));
+            }
+            
+            @Override
+            public Interval<Long> merge(Interval<Long> first, Interval<Long> second) {
+                if(first.getEnd().equals(second.getBegin())){
+                    return new Interval<>(first.getBegin(), true, second.getEnd(), false);
+                }
+                if(second.getEnd().equals(first.getBegin())){
+                    return new Interval<>(second.getBegin(), true, first.getEnd(), false);
+                }
+                return null;
+            }
         };
     }
     
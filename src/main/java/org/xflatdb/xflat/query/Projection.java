@@ -0,0 +1,192 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.xpath.XPathExpression;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.convert.ConversionException;
+import org.xflatdb.xflat.convert.ConversionService;
+
+/**
+ * Selects only some values out of each row matching a query, so that the
+ * engine does not have to clone the whole row and the table does not have to
+ * convert it to the table's type.
+ * <p/>
+ * The engine evaluates each of the projection's XPath expressions against the
+ * row, exactly as the selector of an {@link XPathQuery} is evaluated, and returns
+ * an element containing a copy of the first value selected by each expression.
+ * The projection then reads its result out of that element.
+ * @param <U> The type of the result read for each row.
+ * @author Gordon
+ */
+public abstract class Projection<U> {
+    
+    private final List<XPathExpression<?>> paths;
+    /**
+     * Gets the XPath expressions selecting the values of this projection.
+     */
+    public List<XPathExpression<?>> getPaths(){
+        return paths;
+    }
+    
+    /**
+     * Creates a projection selecting the given paths.
+     * @param paths The XPath expressions selecting the values of this projection.
+     */
+    protected Projection(List<XPathExpression<?>> paths){
+        if(paths == null || paths.isEmpty()){
+            throw new IllegalArgumentException("a projection requires at least one path");
+        }
+        
+        this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+    }
+    
+    /**
+     * Evaluates this projection's paths against a row, as an engine does for a
+     * query with a projection.
+     * @param row The row element against which the query was matched.
+     * @return An element with a "db:value" child for each path, holding a copy
+     * of the first value selected by the path.
+     */
+    public Element project(Element row){
+        Element ret = new Element("projection", XFlatConstants.xFlatNs);
+        for(XPathExpression<?> path : paths){
+            Element value = new Element("value", XFlatConstants.xFlatNs);
+            Object selected = path.evaluateFirst(row);
+            if(selected == null){
+                value.setAttribute("nil", "true", XFlatConstants.xFlatNs);
+            }
+            else if(selected instanceof Element){
+                //only the selected element is cloned, not the whole row
+                value.addContent(((Element)selected).clone());
+            }
+            else if(selected instanceof Attribute){
+                value.setText(((Attribute)selected).getValue());
+            }
+            else if(selected instanceof Content){
+                value.setText(((Content)selected).getValue());
+            }
+            else{
+                //the result of an XPath function, ie. a string, number or boolean
+                value.setText(selected.toString());
+            }
+            ret.addContent(value);
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Reads the result for a row out of the element returned by the engine.
+     * @param projected The element created by {@link #project(org.jdom2.Element) }.
+     * @param conversionService The conversion service of the database, used
+     * to convert the projected values.
+     * @return The result for the row.
+     * @throws ConversionException if a value could not be converted.
+     */
+    public abstract U read(Element projected, ConversionService conversionService)
+            throws ConversionException;
+    
+    /**
+     * Creates a projection that reads the string value of each path into a tuple.
+     * A path that selects nothing in a row has a null value in the tuple.
+     * @param paths The XPath expressions selecting the values.
+     * @return A projection returning a string array with a value for each path.
+     */
+    public static Projection<String[]> tuple(XPathExpression<?>... paths){
+        return new TupleProjection(Arrays.asList(paths));
+    }
+    
+    /**
+     * Creates a projection that converts the value selected by a path into the
+     * given type.  An element is converted directly, so a path selecting a nested
+     * element can be read as a POJO class; any other value is converted from its
+     * string value.  A path that selects nothing in a row is read as null.
+     * @param <U> The type to which the value is converted.
+     * @param path The XPath expression selecting the value.
+     * @param type The type to which the value is converted.
+     * @return A projection returning the converted value.
+     */
+    public static <U> Projection<U> value(XPathExpression<?> path, Class<U> type){
+        if(type == null){
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        
+        return new ValueProjection<>(path, type);
+    }
+    
+    private static boolean isNil(Element value){
+        return "true".equals(value.getAttributeValue("nil", XFlatConstants.xFlatNs));
+    }
+    
+    private static class TupleProjection extends Projection<String[]>{
+        
+        public TupleProjection(List<XPathExpression<?>> paths){
+            super(paths);
+        }
+        
+        @Override
+        public String[] read(Element projected, ConversionService conversionService) {
+            List<Element> values = projected.getChildren("value", XFlatConstants.xFlatNs);
+            String[] ret = new String[values.size()];
+            for(int i = 0; i < ret.length; i++){
+                Element value = values.get(i);
+                ret[i] = isNil(value) ? null : value.getValue();
+            }
+            return ret;
+        }
+    }
+    
+    private static class ValueProjection<U> extends Projection<U>{
+        
+        private final Class<U> type;
+        
+        public ValueProjection(XPathExpression<?> path, Class<U> type){
+            super(Collections.<XPathExpression<?>>singletonList(path));
+            this.type = type;
+        }
+        
+        @Override
+        public U read(Element projected, ConversionService conversionService) throws ConversionException {
+            Element value = projected.getChild("value", XFlatConstants.xFlatNs);
+            if(value == null || isNil(value)){
+                return null;
+            }
+            
+            Element child = value.getChildren().isEmpty() ? null : value.getChildren().get(0);
+            if(child != null){
+                child.detach();
+                if(type.isAssignableFrom(Element.class)){
+                    return type.cast(child);
+                }
+                return conversionService.convert(child, type);
+            }
+            
+            String text = value.getText();
+            if(type.isAssignableFrom(String.class)){
+                return type.cast(text);
+            }
+            return conversionService.convert(text, type);
+        }
+    }
+}
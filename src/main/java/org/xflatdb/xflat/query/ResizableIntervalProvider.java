@@ -0,0 +1,50 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.List;
+
+/**
+ * An {@link IntervalProvider} whose intervals can be split and merged, allowing
+ * a sharded engine to rebalance its shards as they grow and shrink.
+ * <p/>
+ * The intervals returned by {@link #split(org.xflatdb.xflat.query.Interval) } and
+ * {@link #merge(org.xflatdb.xflat.query.Interval, org.xflatdb.xflat.query.Interval) }
+ * need not be intervals that {@link #getInterval(java.lang.Object) } would return,
+ * but {@link #getName(org.xflatdb.xflat.query.Interval) } must give each of them
+ * a unique name from which {@link #getInterval(java.lang.String) } recovers the interval.
+ * @author Gordon
+ */
+public interface ResizableIntervalProvider<T> extends IntervalProvider<T> {
+    
+    /**
+     * Splits the given interval into two adjacent intervals which together
+     * contain exactly the values of the given interval.
+     * @param interval The interval to split.
+     * @return The two halves of the interval in order, or null if the interval
+     * is too narrow to split.
+     */
+    public List<Interval<T>> split(Interval<T> interval);
+    
+    /**
+     * Merges two adjacent intervals into one interval containing exactly the
+     * values of both.
+     * @param first One of the intervals to merge.
+     * @param second The other interval to merge.
+     * @return The merged interval, or null if the intervals are not adjacent.
+     */
+    public Interval<T> merge(Interval<T> first, Interval<T> second);
+}
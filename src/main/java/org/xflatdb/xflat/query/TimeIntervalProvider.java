@@ -0,0 +1,171 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.text.ParseException;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.TimeZone;
+import org.xflatdb.xflat.util.ComparableComparator;
+
+/**
+ * A class containing factory methods for getting {@link IntervalProvider}
+ * objects that partition timestamps into hours or days.
+ * <p/>
+ * Each interval is one UTC hour or day, named by the UTC time at which it begins,
+ * for example "2013-05-01" or "2013-05-01T13".  Timestamps are either {@link Date}s
+ * or {@link Long} milliseconds since the epoch, as generated by the
+ * {@link org.xflatdb.xflat.db.TimestampIdGenerator}.
+ * <p/>
+ * Queries on a range of time are pruned to the partitions that overlap the range,
+ * and with {@link org.xflatdb.xflat.ShardsetConfig#withRetention(long, java.util.concurrent.TimeUnit) }
+ * whole partitions are dropped once all the time they cover has expired.
+ * @author Gordon
+ */
+public class TimeIntervalProvider {
+    
+    /**
+     * The length of time covered by each interval.
+     */
+    public enum Partition {
+        /** Each interval is one UTC hour. */
+        HOUR(60 * 60 * 1000L, "yyyy-MM-dd'T'HH"),
+        /** Each interval is one UTC day. */
+        DAY(24 * 60 * 60 * 1000L, "yyyy-MM-dd");
+        
+        private final long width;
+        private final ThreadLocal<java.text.DateFormat> format;
+        
+        private Partition(long width, final String pattern){
+            this.width = width;
+            this.format = new ThreadLocal<java.text.DateFormat>(){
+                @Override
+                public java.text.DateFormat initialValue(){
+                    //SimpleDateFormat is not thread-safe
+                    java.text.SimpleDateFormat ret = new java.text.SimpleDateFormat(pattern);
+                    ret.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    ret.setLenient(false);
+                    return ret;
+                }
+            };
+        }
+        
+        /**
+         * Gets the width of each interval in milliseconds.
+         */
+        public long getWidth(){
+            return width;
+        }
+        
+        private long floor(long time){
+            long diff = time % width;
+            return diff < 0 ? time - diff - width : time - diff;
+        }
+        
+        private String format(long time){
+            return format.get().format(new Date(time));
+        }
+        
+        private long parse(String name) throws ParseException{
+            return format.get().parse(name).getTime();
+        }
+    }
+    
+    private TimeIntervalProvider(){
+        
+    }
+    
+    /**
+     * Creates a IntervalProvider for timestamps represented as {@link Long} milliseconds
+     * since the epoch.
+     * @param partition The length of time covered by each interval.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static IntervalProvider<Long> forLong(final Partition partition){
+        return new IntervalProvider<Long>(){
+            @Override
+            public Interval<Long> getInterval(Long value) {
+                long lower = partition.floor(value);
+                return new Interval<>(lower, true, lower + partition.width, false);
+            }
+
+            @Override
+            public Interval<Long> nextInterval(Interval<Long> current, long factor) {
+                long lower = current.getBegin() + (partition.width * factor);
+                return new Interval<>(lower, true, lower + partition.width, false);
+            }
+
+            @Override
+            public Comparator<Long> getComparator() {
+                return ComparableComparator.getComparator(Long.class);
+            }
+
+            @Override
+            public String getName(Interval<Long> interval) {
+                return partition.format(interval.getBegin());
+            }
+
+            @Override
+            public Interval<Long> getInterval(String name) {
+                try{
+                    return getInterval(partition.parse(name));
+                }catch(Exception ex){
+                    return null;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Creates a IntervalProvider for timestamps represented as {@link Date}s.
+     * @param partition The length of time covered by each interval.
+     * @return A IntervalProvider providing intervals based on these settings.
+     */
+    public static IntervalProvider<Date> forDate(final Partition partition){
+        return new IntervalProvider<Date>(){
+            @Override
+            public Interval<Date> getInterval(Date value) {
+                long lower = partition.floor(value.getTime());
+                return new Interval<>(new Date(lower), true, new Date(lower + partition.width), false);
+            }
+
+            @Override
+            public Interval<Date> nextInterval(Interval<Date> current, long factor) {
+                long lower = current.getBegin().getTime() + (partition.width * factor);
+                return new Interval<>(new Date(lower), true, new Date(lower + partition.width), false);
+            }
+
+            @Override
+            public Comparator<Date> getComparator() {
+                return ComparableComparator.getComparator(Date.class);
+            }
+
+            @Override
+            public String getName(Interval<Date> interval) {
+                return partition.format(interval.getBegin().getTime());
+            }
+
+            @Override
+            public Interval<Date> getInterval(String name) {
+                try{
+                    return getInterval(new Date(partition.parse(name)));
+                }catch(Exception ex){
+                    return null;
+                }
+            }
+        };
+    }
+}
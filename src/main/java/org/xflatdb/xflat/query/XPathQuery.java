@@ -115,6 +115,35 @@ public class XPathQuery {
     }
     
     private List<XPathQuery> queryChain;
+    
+    private boolean orderedById = false;
+    /**
+     * Gets whether the rows matching this query are returned in order of their IDs.
+     * @see #withOrderById() 
+     */
+    public boolean isOrderedById(){
+        return orderedById;
+    }
+    
+    private int limit = 0;
+    /**
+     * Gets the maximum number of rows returned by this query, or 0 if the
+     * number of rows is not limited.
+     * @see #withLimit(int) 
+     */
+    public int getLimit(){
+        return limit;
+    }
+    
+    private Projection<?> projection = null;
+    /**
+     * Gets the projection selecting the values returned for each matching row,
+     * or null if the whole row is returned.
+     * @see #withProjection(org.xflatdb.xflat.query.Projection) 
+     */
+    public Projection<?> getProjection(){
+        return projection;
+    }
 
     //</editor-fold>
     
@@ -177,11 +206,89 @@ public class XPathQuery {
     private XPathQuery(){
     }
     
+    private XPathQuery(XPathQuery other){
+        this.selector = other.selector;
+        if(other.rowMatcher instanceof XPathQuery.ValueMatcher){
+            //the value matcher converts using the conversion service of its query,
+            //so the copy needs its own
+            this.rowMatcher = copyMatcher((XPathQuery.ValueMatcher<?>)other.rowMatcher);
+        }
+        else{
+            this.rowMatcher = other.rowMatcher;
+        }
+        this.value = other.value;
+        this.valueType = other.valueType;
+        this.queryType = other.queryType;
+        this.queryChain = other.queryChain;
+        this.conversionService = other.conversionService;
+        this.alternateIdExpression = other.alternateIdExpression;
+        this.orderedById = other.orderedById;
+        this.limit = other.limit;
+        this.projection = other.projection;
+    }
+    
+    /**
+     * Copies a value matcher of another query into this query.
+     */
+    private <U> ValueMatcher<U> copyMatcher(ValueMatcher<U> m){
+        return new ValueMatcher<>(m.selector, m.expectedType, m.subMatcher);
+    }
+    
     //</editor-fold>
     
     
     //<editor-fold desc="methods"> 
     
+    /**
+     * Creates a copy of this query which returns the matching rows in order of
+     * their IDs, as compared by the {@link IdComparator}.  Each row returned by the
+     * query has its ID in its "db:id" attribute.
+     * <p/>
+     * A sharded table sorts the rows of each shard and merges them, so this is
+     * the order across the whole table.  The rows are sorted in memory, so an
+     * ordered query should usually also be {@link #withLimit(int) limited}.
+     * @return A new query returning rows ordered by ID.
+     */
+    public XPathQuery withOrderById(){
+        XPathQuery ret = new XPathQuery(this);
+        ret.orderedById = true;
+        return ret;
+    }
+    
+    /**
+     * Creates a copy of this query which returns at most the given number of rows.
+     * Combined with {@link #withOrderById()} this returns the rows with the lowest
+     * IDs.  A sharded table reads at most that many rows from each shard.
+     * @param limit The maximum number of rows to return.
+     * @return A new query returning at most the given number of rows.
+     */
+    public XPathQuery withLimit(int limit){
+        if(limit < 1){
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        
+        XPathQuery ret = new XPathQuery(this);
+        ret.limit = limit;
+        return ret;
+    }
+    
+    /**
+     * Creates a copy of this query which returns only the values selected by the
+     * projection from each matching row, rather than a copy of the whole row.
+     * Each row is returned as the element created by {@link Projection#project(org.jdom2.Element) }.
+     * @param projection The projection selecting the values to return.
+     * @return A new query returning the projected values of each row.
+     */
+    public XPathQuery withProjection(Projection<?> projection){
+        if(projection == null){
+            throw new IllegalArgumentException("projection cannot be null");
+        }
+        
+        XPathQuery ret = new XPathQuery(this);
+        ret.projection = projection;
+        return ret;
+    }
+    
     /**
      * A special overload of dissect that is based on an ID index.  Takes advantage
      * of an {@link #setAlternateIdExpression(org.jdom2.xpath.XPathExpression) alternate ID expression}
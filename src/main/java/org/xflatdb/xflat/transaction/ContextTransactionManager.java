@@ -0,0 +1,56 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.transaction;
+
+import org.xflatdb.xflat.util.DocumentFileWrapper;
+
+/**
+ * A {@link TransactionManager} that binds transactions to an explicit
+ * {@link TransactionContext} rather than to the current thread.  Work that is
+ * carried across threads inside a context sees the same transaction no matter
+ * which thread runs it, which allows transactions to be used from executor
+ * pipelines and from large numbers of short-lived threads.
+ * <p/>
+ * When no context has been entered, the current thread is used as the context,
+ * so this manager behaves exactly like the {@link ThreadContextTransactionManager}.
+ * @author Gordon
+ */
+public class ContextTransactionManager extends ThreadContextTransactionManager {
+    
+    /**
+     * Creates a new ContextTransactionManager.
+     * @param wrapper A wrapper which wraps the file to which this Transaction Manager
+     * can save its Transaction Journal, for recovery in case of catastrophic error.
+     */
+    public ContextTransactionManager(DocumentFileWrapper wrapper){
+        super(wrapper);
+    }
+    
+    /**
+     * Gets the Id of the current context, which is the ID of the entered
+     * {@link TransactionContext} if there is one, or the current thread's ID otherwise.
+     * @return The current context's ID.
+     */
+    @Override
+    protected Long getContextId(){
+        TransactionContext ctx = TransactionContext.current();
+        if(ctx != null){
+            return ctx.getId();
+        }
+        
+        return super.getContextId();
+    }
+}
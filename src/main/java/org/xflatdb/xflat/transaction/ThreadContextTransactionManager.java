@@ -18,13 +18,20 @@ package org.xflatdb.xflat.transaction;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
@@ -38,6 +45,7 @@ import org.xflatdb.xflat.convert.Converter;
 import org.xflatdb.xflat.db.EngineBase;
 import org.xflatdb.xflat.db.EngineTransactionManager;
 import org.xflatdb.xflat.db.XFlatDatabase;
+import org.xflatdb.xflat.util.CompositeFuture;
 import org.xflatdb.xflat.util.DocumentFileWrapper;
 
 /**
@@ -55,6 +63,12 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
     
     private Map<Long, AmbientThreadedTransactionScope> committedTransactions = new ConcurrentHashMap<>();
     
+    //transactions that have been handed to the commit pipeline, mapped by transaction ID.
+    private Map<Long, AmbientThreadedTransactionScope> pendingCommits = new ConcurrentHashMap<>();
+    
+    private ExecutorService commitPipeline = null;
+    private final Object commitPipelineSyncRoot = new Object();
+    
     private DocumentFileWrapper journalWrapper;
     private Document transactionJournal = null;
     
@@ -78,6 +92,27 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         return Thread.currentThread().getId();
     }
     
+    /**
+     * Gets the executor that performs commits begun by {@link TransactionScope#commitAsync() }.
+     * Commits are processed in order on a single background thread, so that
+     * the journal and table files are written by one thread at a time.
+     */
+    private ExecutorService getCommitPipeline(){
+        synchronized(commitPipelineSyncRoot){
+            if(commitPipeline == null){
+                commitPipeline = Executors.newSingleThreadExecutor(new ThreadFactory(){
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread ret = new Thread(r, "XFlat commit pipeline");
+                        ret.setDaemon(true);
+                        return ret;
+                    }
+                });
+            }
+            return commitPipeline;
+        }
+    }
+    
     @Override
     public Transaction getTransaction() {
         TransactionBase tx = currentTransactions.get(getContextId());
@@ -191,6 +226,12 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
             return false;
         }
         
+        //or it might be waiting in the commit pipeline
+        TransactionBase pending = pendingCommits.get(transactionId);
+        if(pending != null){
+            return pending.isReverted();
+        }
+        
         //if we lost it then it's reverted.
         return true;
     }
@@ -209,6 +250,11 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
                 lowest = tx.id;
             }
         }
+        for(TransactionBase tx : pendingCommits.values()){
+            if(tx.id < lowest){
+                lowest = tx.id;
+            }
+        }
         
         return lowest;
     }
@@ -221,13 +267,37 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
             return;
         }
                 
-        //we can get away with just adding it in an unsynchronized context because
         //this is never going to be called at the same time as unbind, since unbind
-        //always happens in the context of a commit or revert (which is the same thread as this)
-        //or another thread's cleanup after the transaction is closed.
+        //always happens in the context of a commit or revert (which waits for the work done in
+        //the transaction) or another thread's cleanup after the transaction is closed.
         tx.boundEngines.add(engine);
     }
 
+    @Override
+    public <T> Callable<T> inCurrentTransaction(final Callable<T> task) {
+        final AmbientThreadedTransactionScope tx = currentTransactions.get(getContextId());
+        
+        return new Callable<T>(){
+            @Override
+            public T call() throws Exception {
+                Long contextId = getContextId();
+                AmbientThreadedTransactionScope previous = tx == null ?
+                        currentTransactions.remove(contextId) :
+                        currentTransactions.put(contextId, tx);
+                try{
+                    return task.call();
+                }finally{
+                    if(previous == null){
+                        currentTransactions.remove(contextId);
+                    }
+                    else{
+                        currentTransactions.put(contextId, previous);
+                    }
+                }
+            }
+        };
+    }
+
     @Override
     public synchronized void unbindEngineExceptFrom(EngineBase engine, Collection<Long> transactionIds) {
                 
@@ -250,7 +320,7 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
 
     @Override
     public boolean anyOpenTransactions() {
-        return !this.currentTransactions.isEmpty();
+        return !this.currentTransactions.isEmpty() || !this.pendingCommits.isEmpty();
     }
     
     private void loadJournal() throws IOException, JDOMException{
@@ -358,8 +428,42 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         }
     }
 
+    @Override
+    public void awaitPendingCommits(long timeout) {
+        ExecutorService pipeline;
+        synchronized(commitPipelineSyncRoot){
+            pipeline = this.commitPipeline;
+        }
+        if(pipeline == null){
+            return;
+        }
+        
+        //queue a marker behind all the pending commits and wait for it.
+        Future<?> marker = pipeline.submit(new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        try{
+            if(timeout > 0)
+                marker.get(timeout, TimeUnit.MILLISECONDS);
+            else
+                marker.get();
+        }catch(Exception ex){
+            log.warn("Background commits did not finish", ex);
+        }
+    }
+
     @Override
     public void close() {
+        synchronized(commitPipelineSyncRoot){
+            if(this.commitPipeline != null){
+                //let the queued commits finish, but accept no more.
+                this.commitPipeline.shutdown();
+                this.commitPipeline = null;
+            }
+        }
+        
         //all transactions auto-revert now.
         this.currentTransactions.clear();
     }
@@ -409,7 +513,9 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
 
     @Override
     public boolean isCommitInProgress(long transactionId) {
-        TransactionBase tx = this.currentTransactions.get(transactionId);
+        TransactionBase tx = this.pendingCommits.get(transactionId);
+        if(tx == null)
+            tx = this.currentTransactions.get(transactionId);
         if(tx == null)
             return false;
         
@@ -434,10 +540,10 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         
         protected AmbientThreadedTransactionScope suspended;
         
-        //we can get away with this being an unsynchronized HashSet because it will only ever be added to by one
-        //thread, and then only so long as the transaction is open, and then will be removed from
-        //by a different thread, but only one at a time, synchronized elsewhere, and after all adds are finished.
-        final Set<EngineBase> boundEngines = new HashSet<>();
+        //engines are added by every thread running in the transaction (see inCurrentTransaction),
+        //and removed by a different thread, but only one at a time, synchronized elsewhere,
+        //and after all adds are finished.
+        final Set<EngineBase> boundEngines = Collections.newSetFromMap(new ConcurrentHashMap<EngineBase, Boolean>());
         
         protected AtomicReference<Set<TransactionListener>> listeners = new AtomicReference<>(null);
     
@@ -568,6 +674,9 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         private List<WrappingTransactionScope> uncommittedScopes = new LinkedList<>();
         private List<WrappingTransactionScope> wrappingScopes = new LinkedList<>();
         
+        //set once the transaction has been handed to the commit pipeline
+        private final AtomicBoolean isCommitPending = new AtomicBoolean(false);
+        
         protected AmbientThreadedTransactionScope(long id, AmbientThreadedTransactionScope suspended, TransactionOptions options){
             super(id, suspended, options);
         }
@@ -594,6 +703,37 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
             fireEvent(TransactionEventObject.COMMITTED);
         }
         
+        @Override
+        public Future<?> commitAsync() {
+            throw new UnsupportedOperationException("should not be called directly");
+        }
+        
+        private Future<?> doCommitAsync() {
+            if(this.isRollbackOnly.get()){
+                throw new IllegalTransactionStateException("Cannot commit a rollback-only transaction");
+            }
+            if(this.isCompleted.get() || !this.isCommitPending.compareAndSet(false, true)){
+                throw new IllegalTransactionStateException("Cannot commit a completed transaction");
+            }
+            
+            //the transaction is leaving this context, so restore whatever it suspended.
+            pendingCommits.put(this.id, this);
+            removeFromContext();
+            
+            return getCommitPipeline().submit(new Callable<Object>(){
+                @Override
+                public Object call() throws TransactionException {
+                    try{
+                        doCommit();
+                        return null;
+                    }
+                    finally{
+                        pendingCommits.remove(id);
+                    }
+                }
+            });
+        }
+        
         void completeWrappingScope(WrappingTransactionScope scope) throws TransactionException {
             if(uncommittedScopes.remove(scope) && uncommittedScopes.isEmpty()){
                 //all wrapping transaction scopes have completed, we can commit
@@ -602,6 +742,15 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
             //otherwise we do nothing, simply mark the wrapping scope as completed by removing it from the list.
         }
         
+        Future<?> completeWrappingScopeAsync(WrappingTransactionScope scope) {
+            if(uncommittedScopes.remove(scope) && uncommittedScopes.isEmpty()){
+                //all wrapping transaction scopes have completed, we can commit
+                return doCommitAsync();
+            }
+            //the larger scope will commit it later.
+            return CompositeFuture.completed(null);
+        }
+        
         void addWrappingScope(WrappingTransactionScope scope){
             synchronized(this){
                 //add them at the beginning because the most recent ones
@@ -651,11 +800,15 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         
         @Override
         public void close(){
-            if(isCompleted.compareAndSet(false, true)){
+            if(!isCommitPending.get() && isCompleted.compareAndSet(false, true)){
                 //we completed in the close, need to revert.
                 doRevert();
             }
             
+            removeFromContext();
+        }
+        
+        private void removeFromContext(){
             //remove the transaction scope from the current transactions map
             Iterator<AmbientThreadedTransactionScope> it = currentTransactions.values().iterator();
             while(it.hasNext()){
@@ -686,6 +839,12 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
                     "NEVER or NOT_SUPPORTED");
         }
 
+        @Override
+        public Future<?> commitAsync() {
+            throw new IllegalTransactionStateException("Cannot commit a transaction opened with propagation " + 
+                    "NEVER or NOT_SUPPORTED");
+        }
+
         @Override
         public void revert() {
             throw new IllegalTransactionStateException("Cannot revert a transaction opened with propagation " + 
@@ -719,6 +878,12 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
                     "NEVER or NOT_SUPPORTED");
         }
 
+        @Override
+        public Future<?> commitAsync() {
+            throw new IllegalTransactionStateException("Cannot commit a transaction opened with propagation " + 
+                    "NEVER or NOT_SUPPORTED");
+        }
+
         @Override
         public void revert() {
             throw new IllegalTransactionStateException("Cannot revert a transaction opened with propagation " + 
@@ -787,6 +952,11 @@ public class ThreadContextTransactionManager extends EngineTransactionManager {
         public void commit() throws TransactionException {
             wrapped.completeWrappingScope(this);
         }
+        
+        @Override
+        public Future<?> commitAsync() {
+            return wrapped.completeWrappingScopeAsync(this);
+        }
 
         @Override
         public void revert() {
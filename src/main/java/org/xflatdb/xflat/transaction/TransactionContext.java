@@ -0,0 +1,147 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.transaction;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An explicit context to which transactions can be bound, independent of
+ * the thread that is running.  A context is entered for the duration of a task
+ * and can be carried from one task to the next, so that work which hops
+ * between threads (for example through an executor pipeline) continues to
+ * participate in the same transaction.
+ * <p/>
+ * A context should be entered by only one running task at a time.
+ * <pre>
+ * TransactionContext ctx = new TransactionContext();
+ * try(TransactionContext.Binding b = ctx.enter()){
+ *      //transactions opened here are bound to ctx
+ * }
+ * executor.submit(ctx.wrap(task)); //the task runs in ctx
+ * </pre>
+ * @see ContextTransactionManager
+ * @author Gordon
+ */
+public class TransactionContext {
+    
+    //context IDs are negative so that they never collide with thread IDs.
+    private static final AtomicLong nextId = new AtomicLong(-1);
+    
+    private static final ThreadLocal<TransactionContext> current = new ThreadLocal<>();
+    
+    private final long id;
+    /**
+     * Gets the unique ID of this context.
+     */
+    public long getId(){
+        return id;
+    }
+    
+    /**
+     * Creates a new context, which is not yet entered.
+     */
+    public TransactionContext(){
+        this.id = nextId.getAndDecrement();
+    }
+    
+    /**
+     * Gets the context that has been entered by the running task, or null
+     * if the task is not running in an explicit context.
+     * @return The current TransactionContext, or null.
+     */
+    public static TransactionContext current(){
+        return current.get();
+    }
+    
+    /**
+     * Enters this context on the running task.  The previous context is
+     * restored when the returned binding is closed.
+     * @return A binding which must be closed when the task leaves the context.
+     */
+    public Binding enter(){
+        Binding ret = new Binding(current.get());
+        current.set(this);
+        return ret;
+    }
+    
+    /**
+     * Wraps the given task so that it runs in this context.
+     * @param task The task to run in this context.
+     * @return A Runnable which enters this context for the duration of the task.
+     */
+    public Runnable wrap(final Runnable task){
+        return new Runnable(){
+            @Override
+            public void run() {
+                Binding b = enter();
+                try{
+                    task.run();
+                }finally{
+                    b.close();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Wraps the given task so that it runs in this context.
+     * @param <T> The type of the task's result.
+     * @param task The task to run in this context.
+     * @return A Callable which enters this context for the duration of the task.
+     */
+    public <T> Callable<T> wrap(final Callable<T> task){
+        return new Callable<T>(){
+            @Override
+            public T call() throws Exception {
+                Binding b = enter();
+                try{
+                    return task.call();
+                }finally{
+                    b.close();
+                }
+            }
+        };
+    }
+    
+    @Override
+    public String toString(){
+        return "TransactionContext " + id;
+    }
+    
+    /**
+     * Represents the running task's presence in a context.  Closing the binding
+     * leaves the context and restores the one that was previously entered.
+     */
+    public static class Binding implements AutoCloseable {
+        
+        private final TransactionContext previous;
+        
+        private Binding(TransactionContext previous){
+            this.previous = previous;
+        }
+        
+        @Override
+        public void close(){
+            if(previous == null){
+                current.remove();
+            }
+            else{
+                current.set(previous);
+            }
+        }
+    }
+}
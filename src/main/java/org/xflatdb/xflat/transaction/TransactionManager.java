@@ -15,6 +15,8 @@
 */
 package org.xflatdb.xflat.transaction;
 
+import java.util.concurrent.Callable;
+
 /**
  * The TransactionManager opens transactions and manages their lifecycle.  Different
  * TransactionManagers provide different contexts for their transactions.
@@ -52,5 +54,39 @@ public interface TransactionManager {
      */
     public TransactionScope openTransaction(TransactionOptions options);
     
+    /**
+     * Executes the given work in a transaction, using the {@link TransactionOptions#DEFAULT} options.
+     * @see #execute(org.xflatdb.xflat.transaction.TransactionOptions, java.util.concurrent.Callable) 
+     */
+    public <T> T execute(Callable<T> work) throws TransactionException;
+    
+    /**
+     * Executes the given work in a transaction scope opened with the given options,
+     * and commits it.  If the commit fails with a {@link WriteConflictException},
+     * the work is executed again in a new transaction after a randomized, exponentially
+     * increasing delay, up to {@link TransactionOptions#getMaxRetries() } times.
+     * <p/>
+     * The work may therefore be executed more than once, and should not have
+     * side effects outside the database.  If the scope participates in an existing
+     * transaction, the conflict can only occur when that transaction commits,
+     * so the work is not retried.
+     * @param options The TransactionOptions to apply to each transaction.
+     * @param work The work to execute inside the transaction.
+     * @return The value returned by the work in the transaction that committed.
+     * @throws WriteConflictException if the transaction still conflicted after
+     * all its retries.
+     * @throws TransactionException if the transaction could not be committed,
+     * or the work threw a checked exception.
+     */
+    public <T> T execute(TransactionOptions options, Callable<T> work) throws TransactionException;
+    
+    /**
+     * Gets the statistics of write conflicts on the given table encountered by
+     * {@link #execute(org.xflatdb.xflat.transaction.TransactionOptions, java.util.concurrent.Callable) }.
+     * @param tableName The name of the table.
+     * @return A snapshot of the conflict statistics for the table.
+     */
+    public WriteConflictStatistics getWriteConflictStatistics(String tableName);
+    
     
 }
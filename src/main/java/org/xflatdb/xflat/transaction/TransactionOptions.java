@@ -125,6 +125,74 @@ public class TransactionOptions {
         return ret;
     }
     
+    private int maxRetries;
+    /**
+     * Gets the number of times {@link TransactionManager#execute(org.xflatdb.xflat.transaction.TransactionOptions, java.util.concurrent.Callable) }
+     * retries a transaction that failed to commit due to a write conflict.
+     * Defaults to 5.
+     */
+    public int getMaxRetries(){
+        return this.maxRetries;
+    }
+    /**
+     * Sets the number of times {@link TransactionManager#execute(org.xflatdb.xflat.transaction.TransactionOptions, java.util.concurrent.Callable) }
+     * retries a transaction that failed to commit due to a write conflict.
+     * Once the retries are used up, the {@link WriteConflictException} is thrown.
+     * This option has no effect on transactions opened with 
+     * {@link TransactionManager#openTransaction(org.xflatdb.xflat.transaction.TransactionOptions) }.
+     * <p/>
+     * The default value for this property is 5.
+     * @param maxRetries The number of retries, 0 to never retry.
+     * @return a new TransactionOptions object with MaxRetries == the given value.
+     */
+    public TransactionOptions withMaxRetries(int maxRetries){
+        if(maxRetries < 0){
+            throw new IllegalArgumentException("maxRetries cannot be negative");
+        }
+        TransactionOptions ret = new TransactionOptions(this);
+        ret.maxRetries = maxRetries;
+        return ret;
+    }
+    
+    private long minRetryDelay;
+    /**
+     * Gets the delay in milliseconds before the first retry of a conflicting
+     * transaction.  Defaults to 1.
+     */
+    public long getMinRetryDelay(){
+        return this.minRetryDelay;
+    }
+    
+    private long maxRetryDelay;
+    /**
+     * Gets the maximum delay in milliseconds between retries of a conflicting
+     * transaction.  Defaults to 100.
+     */
+    public long getMaxRetryDelay(){
+        return this.maxRetryDelay;
+    }
+    
+    /**
+     * Sets the backoff between retries of a conflicting transaction.  The delay
+     * before each retry is chosen at random up to a limit that starts at the
+     * minimum delay and doubles on each retry, up to the maximum delay.  The
+     * randomness spreads out transactions that conflict on the same rows.
+     * <p/>
+     * The default values are 1 and 100 milliseconds.
+     * @param minDelay The limit for the delay before the first retry, in milliseconds.
+     * @param maxDelay The largest limit for the delay before any retry, in milliseconds.
+     * @return a new TransactionOptions object with the given retry delays.
+     */
+    public TransactionOptions withRetryDelay(long minDelay, long maxDelay){
+        if(minDelay < 0 || maxDelay < minDelay){
+            throw new IllegalArgumentException("Retry delays must satisfy 0 <= minDelay <= maxDelay");
+        }
+        TransactionOptions ret = new TransactionOptions(this);
+        ret.minRetryDelay = minDelay;
+        ret.maxRetryDelay = maxDelay;
+        return ret;
+    }
+    
     /**
      * Creates a new TransactionOptions object with the default options.
      */
@@ -133,6 +201,9 @@ public class TransactionOptions {
         this.isolation = Isolation.SNAPSHOT;
         this.propagation = Propagation.REQUIRED;
         this.durable = true;
+        this.maxRetries = 5;
+        this.minRetryDelay = 1;
+        this.maxRetryDelay = 100;
     }
     
     private TransactionOptions(TransactionOptions other){
@@ -140,6 +211,9 @@ public class TransactionOptions {
         this.isolation = other.isolation;
         this.propagation = other.propagation;
         this.durable = other.durable;
+        this.maxRetries = other.maxRetries;
+        this.minRetryDelay = other.minRetryDelay;
+        this.maxRetryDelay = other.maxRetryDelay;
     }
     
     /**
@@ -155,6 +229,9 @@ public class TransactionOptions {
         hash = 97 * hash + (this.durable ? 1 : 0);
         hash = 97 * hash + (this.isolation != null ? this.isolation.hashCode() : 0);
         hash = 97 * hash + (this.propagation != null ? this.propagation.hashCode() : 0);
+        hash = 97 * hash + this.maxRetries;
+        hash = 97 * hash + (int) (this.minRetryDelay ^ (this.minRetryDelay >>> 32));
+        hash = 97 * hash + (int) (this.maxRetryDelay ^ (this.maxRetryDelay >>> 32));
         return hash;
     }
 
@@ -179,6 +256,12 @@ public class TransactionOptions {
         if(this.durable != other.durable){
             return false;
         }
+        if(this.maxRetries != other.maxRetries){
+            return false;
+        }
+        if(this.minRetryDelay != other.minRetryDelay || this.maxRetryDelay != other.maxRetryDelay){
+            return false;
+        }
         return true;
     }
 }
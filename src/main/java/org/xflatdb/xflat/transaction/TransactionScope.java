@@ -15,6 +15,8 @@
 */
 package org.xflatdb.xflat.transaction;
 
+import java.util.concurrent.Future;
+
 /**
  * Represents a TransactionScope.
  * @author Gordon
@@ -35,6 +37,23 @@ public interface TransactionScope extends AutoCloseable  {
      */
     void commit() throws TransactionException;
     
+    /**
+     * Begins committing the transaction in the background, without waiting
+     * for the modifications to be saved to disk.  The transaction is no longer
+     * the current transaction once this method returns, and closing the scope
+     * will not revert it.
+     * <p/>
+     * If this transaction object was opened within a larger transaction scope,
+     * then the returned Future completes immediately, as with {@link #commit() }.
+     * 
+     * @return A Future that completes once the commit has been saved to disk.
+     * If an error occurs during the commit, the Future throws an ExecutionException
+     * whose cause is the {@link TransactionException}, and the transaction is reverted.
+     * @throws IllegalTransactionStateException if the transaction has already been
+     * committed, reverted, or is revert only.
+     */
+    Future<?> commitAsync();
+    
     /**
      * Reverts the transaction immediately.  When a transaction is reverted,
      * the database acts as though all the modifications performed inside the
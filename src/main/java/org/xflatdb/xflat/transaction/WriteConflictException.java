@@ -40,4 +40,36 @@ public class WriteConflictException extends TransactionException {
     public WriteConflictException(String msg) {
         super(msg);
     }
+    
+    /**
+     * Constructs an instance of
+     * <code>WriteConflictException</code> with the specified detail message,
+     * identifying the conflicting row.
+     *
+     * @param msg the detail message.
+     * @param tableName the table containing the conflicting row.
+     * @param rowId the ID of the conflicting row.
+     */
+    public WriteConflictException(String msg, String tableName, String rowId) {
+        super(msg);
+        this.tableName = tableName;
+        this.rowId = rowId;
+    }
+    
+    private String tableName;
+    /**
+     * Gets the name of the table containing the conflicting row, or null
+     * if it is not known.
+     */
+    public String getTableName(){
+        return tableName;
+    }
+    
+    private String rowId;
+    /**
+     * Gets the ID of the conflicting row, or null if it is not known.
+     */
+    public String getRowId(){
+        return rowId;
+    }
 }
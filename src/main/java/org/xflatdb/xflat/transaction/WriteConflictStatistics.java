@@ -0,0 +1,69 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.transaction;
+
+/**
+ * A snapshot of the write conflicts on one table that were encountered by
+ * {@link TransactionManager#execute(org.xflatdb.xflat.transaction.TransactionOptions, java.util.concurrent.Callable) }.
+ * @author Gordon
+ */
+public class WriteConflictStatistics {
+    
+    private final String tableName;
+    /**
+     * Gets the name of the table these statistics apply to.
+     */
+    public String getTableName(){
+        return tableName;
+    }
+    
+    private final long conflicts;
+    /**
+     * Gets the number of commits that failed due to a conflict on this table.
+     */
+    public long getConflicts(){
+        return conflicts;
+    }
+    
+    private final long retries;
+    /**
+     * Gets the number of times a transaction was retried after a conflict on this table.
+     */
+    public long getRetries(){
+        return retries;
+    }
+    
+    private final long failures;
+    /**
+     * Gets the number of times a conflict on this table was thrown to the caller
+     * because the transaction had used up its retries.
+     */
+    public long getFailures(){
+        return failures;
+    }
+    
+    public WriteConflictStatistics(String tableName, long conflicts, long retries, long failures){
+        this.tableName = tableName;
+        this.conflicts = conflicts;
+        this.retries = retries;
+        this.failures = failures;
+    }
+    
+    @Override
+    public String toString(){
+        return String.format("%s: %d conflicts, %d retries, %d failures", tableName, conflicts, retries, failures);
+    }
+}
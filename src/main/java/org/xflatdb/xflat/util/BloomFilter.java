@@ -0,0 +1,156 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.util;
+
+/**
+ * A compact set of strings which can answer whether a string is definitely
+ * not in the set.  A bloom filter never gives a false negative, but may give
+ * false positives at a rate governed by the number of bits per entry.
+ * <p/>
+ * Strings cannot be removed from a bloom filter, so it must be rebuilt to
+ * forget them.
+ * @author Gordon
+ */
+public class BloomFilter {
+    
+    /** The number of bits set per entry, giving roughly a 1% false positive rate at 10 bits per entry. */
+    private static final int DEFAULT_HASHES = 7;
+    
+    private static final int BITS_PER_ENTRY = 10;
+    
+    private final long[] bits;
+    
+    private final int hashes;
+    
+    /**
+     * Creates a new, empty bloom filter sized for the given number of entries.
+     * @param expectedEntries The number of distinct strings expected to be added.
+     */
+    public BloomFilter(int expectedEntries){
+        if(expectedEntries < 0){
+            throw new IllegalArgumentException("expectedEntries cannot be negative");
+        }
+        
+        long bitCount = Math.max(64L, (long)expectedEntries * BITS_PER_ENTRY);
+        this.bits = new long[(int)Math.min(Integer.MAX_VALUE, (bitCount + 63) / 64)];
+        this.hashes = DEFAULT_HASHES;
+    }
+    
+    private BloomFilter(long[] bits, int hashes){
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+    
+    /**
+     * Adds the given string to the filter.
+     * @param value The string to add.
+     */
+    public void add(String value){
+        long bitCount = (long)bits.length * 64;
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for(int i = 0; i < hashes; i++){
+            long index = ((h1 + (long)i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int)(index >>> 6)] |= 1L << index;
+        }
+    }
+    
+    /**
+     * Gets whether the given string might have been added to the filter.
+     * @param value The string to check.
+     * @return false if the string was definitely never added, true if it may have been.
+     */
+    public boolean mightContain(String value){
+        long bitCount = (long)bits.length * 64;
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for(int i = 0; i < hashes; i++){
+            long index = ((h1 + (long)i * h2) & Long.MAX_VALUE) % bitCount;
+            if((bits[(int)(index >>> 6)] & (1L << index)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * An FNV-1a hash of the string, independent of {@link String#hashCode() }.
+     */
+    private static int secondHash(String value){
+        int h = 0x811C9DC5;
+        for(int i = 0; i < value.length(); i++){
+            h ^= value.charAt(i);
+            h *= 0x01000193;
+        }
+        //an even step would only ever visit half the bits.
+        return h | 1;
+    }
+    
+    /**
+     * Gets the number of bits set per string added to this filter.
+     * @return The number of hash functions used by this filter.
+     */
+    public int getHashes(){
+        return hashes;
+    }
+    
+    /**
+     * Encodes the bits of this filter as a hexadecimal string, which can
+     * be decoded by {@link #decode(java.lang.String, int) }.
+     * @return The bits of this filter in hexadecimal.
+     */
+    public String encode(){
+        StringBuilder sb = new StringBuilder(bits.length * 16);
+        for(long word : bits){
+            String hex = Long.toHexString(word);
+            for(int i = hex.length(); i < 16; i++){
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Decodes a bloom filter from a string created by {@link #encode() }.
+     * @param encoded The hexadecimal bits of the filter.
+     * @param hashes The number of hashes used by the encoded filter.
+     * @return A bloom filter containing the same strings as the encoded filter.
+     * @throws IllegalArgumentException if the string is not a valid encoded filter.
+     */
+    public static BloomFilter decode(String encoded, int hashes){
+        if(encoded == null || encoded.isEmpty() || encoded.length() % 16 != 0){
+            throw new IllegalArgumentException("Not an encoded bloom filter: " + encoded);
+        }
+        if(hashes < 1){
+            throw new IllegalArgumentException("hashes must be positive");
+        }
+        
+        long[] bits = new long[encoded.length() / 16];
+        try{
+            for(int i = 0; i < bits.length; i++){
+                //parse in halves, since a full word may overflow a signed long.
+                long high = Long.parseLong(encoded.substring(i * 16, i * 16 + 8), 16);
+                long low = Long.parseLong(encoded.substring(i * 16 + 8, i * 16 + 16), 16);
+                bits[i] = (high << 32) | low;
+            }
+        }catch(NumberFormatException ex){
+            throw new IllegalArgumentException("Not an encoded bloom filter: " + encoded, ex);
+        }
+        
+        return new BloomFilter(bits, hashes);
+    }
+}
@@ -0,0 +1,109 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future which completes once all of its component futures have completed,
+ * and then yields a value that was known in advance.  This is used to hand
+ * back the result of an operation that has already been performed in memory,
+ * but whose durability is still pending on one or more background writes.
+ * <p/>
+ * A CompositeFuture with no components is already complete.
+ * @author Gordon
+ */
+public class CompositeFuture<V> implements Future<V> {
+
+    private final V value;
+    
+    private final Collection<? extends Future<?>> components;
+    
+    /**
+     * Creates a CompositeFuture that completes when all the given futures complete.
+     * @param value The value to return from {@link #get() }.
+     * @param components The futures that must complete before this future completes.
+     */
+    public CompositeFuture(V value, Collection<? extends Future<?>> components){
+        this.value = value;
+        this.components = components;
+    }
+    
+    /**
+     * Creates a CompositeFuture that completes when all the given futures complete.
+     * @param value The value to return from {@link #get() }.
+     * @param components The futures that must complete before this future completes.
+     */
+    public CompositeFuture(V value, Future<?>... components){
+        this(value, Arrays.asList(components));
+    }
+    
+    /**
+     * Creates an already completed future holding the given value.
+     * @param <U> The type of the value.
+     * @param value The value to return from {@link #get() }.
+     * @return A future that is already done.
+     */
+    public static <U> CompositeFuture<U> completed(U value){
+        return new CompositeFuture<>(value);
+    }
+    
+    /**
+     * Cancelling is not supported, a background write that has begun must be
+     * allowed to complete.
+     * @return false always.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for(Future<?> f : components){
+            if(!f.isDone())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        for(Future<?> f : components){
+            f.get();
+        }
+        return value;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Future<?> f : components){
+            f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return value;
+    }
+}
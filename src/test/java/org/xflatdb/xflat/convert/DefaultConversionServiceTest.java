@@ -16,6 +16,8 @@
 package org.xflatdb.xflat.convert;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import static org.mockito.Matchers.isA;
@@ -160,4 +162,75 @@ public class DefaultConversionServiceTest {
         //ASSERT
         assertSame("Should have gotten the subFoo", toReturn, converted);
     }//end testConvert_ConverterReturnsSubclass_ConvertsCorrectly
+    
+    @Test
+    public void testRemoveConverter_OtherConvertersRemain() throws Exception {
+        System.out.println("testRemoveConverter_OtherConvertersRemain");
+        
+        Converter mockConverter = mock(Converter.class);
+        DefaultConversionService instance = new DefaultConversionService();
+        instance.addConverter(Boolean.class, Date.class, mockConverter);
+        instance.addConverter(Long.class, Date.class, mockConverter);
+        instance.addConverter(null, Date.class, mockConverter);
+        
+        //ACT
+        instance.removeConverter(Boolean.class, Date.class);
+        
+        //ASSERT
+        assertFalse("Should have removed the converter", instance.canConvert(Boolean.class, Date.class));
+        assertTrue("Should keep the other converter", instance.canConvert(Long.class, Date.class));
+        
+        instance.removeConverter(Long.class, Date.class);
+        when(mockConverter.convert(null)).thenReturn(new Date(17));
+        assertEquals("Should keep the null converter", new Date(17), instance.convert(null, Date.class));
+        
+        instance.removeConverter(null, Date.class);
+        assertNull("Should convert null to null without converters", instance.convert(null, Date.class));
+    }//end testRemoveConverter_OtherConvertersRemain
+    
+    @Test
+    public void testAddConverter_WhileConverting_ConvertsAndAddsAll() throws Exception {
+        System.out.println("testAddConverter_WhileConverting_ConvertsAndAddsAll");
+        
+        final DefaultConversionService instance = new DefaultConversionService();
+        instance.addConverter(Bar.class, Foo.class, new Converter<Bar, Foo>(){
+            @Override
+            public Foo convert(Bar source) {
+                return new Foo();
+            }
+        });
+        
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable(){
+            @Override
+            public void run() {
+                try{
+                    while(adding.get()){
+                        assertNotNull(instance.convert(new Bar(), Foo.class));
+                    }
+                }catch(Throwable t){
+                    error.set(t);
+                }
+            }
+        });
+        reader.start();
+        
+        //ACT
+        Class<?>[] targets = new Class<?>[]{ Date.class, Long.class, Integer.class, Double.class };
+        Converter mockConverter = mock(Converter.class);
+        for(int i = 0; i < 1000; i++){
+            instance.addConverter(targets[i % targets.length], Bar.class, mockConverter);
+            instance.addConverter(Foo.class, targets[i % targets.length], mockConverter);
+        }
+        adding.set(false);
+        reader.join();
+        
+        //ASSERT
+        assertNull("Should convert while converters are added", error.get());
+        for(Class<?> target : targets){
+            assertTrue(instance.canConvert(target, Bar.class));
+            assertTrue(instance.canConvert(Foo.class, target));
+        }
+    }//end testAddConverter_WhileConverting_ConvertsAndAddsAll
 }
@@ -0,0 +1,477 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.convert.converters;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAnyElement;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlEnumValue;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.XmlValue;
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.convert.ConversionNotSupportedException;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.convert.DefaultConversionService;
+import test.Baz;
+
+/**
+ *
+ * @author Gordon
+ */
+public class MappingPojoConverterTest {
+    
+    @Test
+    public void testConvert_AnnotatedClass_MarshalsLikeJAXB() throws Exception {
+        System.out.println("testConvert_AnnotatedClass_MarshalsLikeJAXB");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        
+        Baz baz = new Baz();
+        baz.setAttrInt(32);
+        baz.getTestData().add("test 1");
+        baz.getTestData().add("test 2");
+        baz.setId("test id");
+        
+        //ACT
+        Element converted = instance.convert(baz, Element.class);
+        
+        //ASSERT
+        assertEquals("should have correct name", "baz", converted.getName());
+        assertEquals("should have correct attr value", "32", converted.getAttributeValue("attrInt"));
+        
+        List<Element> children = converted.getChildren("testData");
+        assertEquals("should have list data", 2, children.size());
+        assertEquals("should have list data", "test 1", children.get(0).getText());
+        assertEquals("should have list data", "test 2", children.get(1).getText());
+        
+        assertNull("should not have ID element", converted.getChild("id"));
+    }//end testConvert_AnnotatedClass_MarshalsLikeJAXB
+    
+    @Test
+    public void testConvert_AnnotatedClass_Unmarshals() throws Exception {
+        System.out.println("testConvert_AnnotatedClass_Unmarshals");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        
+        Element baz = new Element("baz");
+        baz.setAttribute("attrInt", "56");
+        baz.addContent(new Element("testData").setText("data 1"));
+        baz.addContent(new Element("testData").setText("data 2"));
+        
+        //ACT
+        Baz converted = instance.convert(baz, Baz.class);
+        
+        //ASSERT
+        assertEquals("should have correct attr value", 56, converted.getAttrInt());
+        assertEquals("should have list data", Arrays.asList("data 1", "data 2"), converted.getTestData());
+        assertNull("should not have ID", converted.getId());
+    }//end testConvert_AnnotatedClass_Unmarshals
+    
+    @Test
+    public void testConvert_NestedTypesAndNames_RoundTrips() throws Exception {
+        System.out.println("testConvert_NestedTypesAndNames_RoundTrips");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        
+        Order order = new Order();
+        order.number = 1234L;
+        order.placed = new Date(1367414400000L);
+        order.status = Status.Shipped;
+        order.note = "fragile";
+        order.secret = "not saved";
+        order.customer = new Customer();
+        order.customer.name = "Gordon";
+        order.customer.code = new Code();
+        order.customer.code.value = "G-1";
+        order.customer.code.kind = "internal";
+        Line line = new Line();
+        line.sku = "A";
+        line.quantity = 2;
+        order.lines.add(line);
+        line = new Line();
+        line.sku = "B";
+        line.quantity = 5;
+        order.lines.add(line);
+        
+        //ACT
+        Element converted = instance.convert(order, Element.class);
+        System.out.println(new XMLOutputter().outputString(converted));
+        Order read = instance.convert(converted.clone(), Order.class);
+        
+        //ASSERT
+        assertEquals("purchase-order", converted.getName());
+        assertEquals("1234", converted.getAttributeValue("number", Namespace.getNamespace("http://www.example.com/orders")));
+        assertEquals("shipped", converted.getChildText("status"));
+        assertEquals("Should follow the prop order", "status", converted.getChildren().get(0).getName());
+        assertNull("Should not write transient fields", converted.getChild("secret"));
+        assertEquals("G-1", converted.getChild("customer").getChild("code").getText());
+        assertEquals("internal", converted.getChild("customer").getChild("code").getAttributeValue("kind"));
+        assertEquals(2, converted.getChild("items").getChildren("line").size());
+        
+        assertEquals(Long.valueOf(1234), read.number);
+        assertEquals(order.placed, read.placed);
+        assertEquals(Status.Shipped, read.status);
+        assertEquals("fragile", read.note);
+        assertNull(read.secret);
+        assertEquals("Gordon", read.customer.name);
+        assertEquals("G-1", read.customer.code.value);
+        assertEquals("internal", read.customer.code.kind);
+        assertEquals(2, read.lines.size());
+        assertEquals("B", read.lines.get(1).sku);
+        assertEquals(5, read.lines.get(1).quantity);
+    }//end testConvert_NestedTypesAndNames_RoundTrips
+    
+    @Test
+    public void testCreate_UnsupportedAnnotation_NotSupported() throws Exception {
+        System.out.println("testCreate_UnsupportedAnnotation_NotSupported");
+        
+        Map<Class<?>, ElementMapper<?>> mappers = new HashMap<>();
+        
+        boolean didThrow = false;
+        try{
+            //ACT
+            ElementMapper.create(AnyContent.class, mappers);
+        }catch(ConversionNotSupportedException ex){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should not map XmlAnyElement", didThrow);
+        assertTrue("Should not keep a partial mapper", mappers.isEmpty());
+    }//end testCreate_UnsupportedAnnotation_NotSupported
+    
+    @Test
+    public void testCreate_PropOrderMissingElement_NotSupported() throws Exception {
+        System.out.println("testCreate_PropOrderMissingElement_NotSupported");
+        
+        Map<Class<?>, ElementMapper<?>> mappers = new HashMap<>();
+        
+        boolean didThrow = false;
+        try{
+            //ACT
+            ElementMapper.create(PartlyOrdered.class, mappers);
+        }catch(ConversionNotSupportedException ex){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should not map a class JAXB would reject", didThrow);
+        assertTrue("Should not keep a partial mapper", mappers.isEmpty());
+    }//end testCreate_PropOrderMissingElement_NotSupported
+    
+    @Test
+    public void testConvert_LazyProperties_LoadedOnlyWhenAccessed() throws Exception {
+        System.out.println("testConvert_LazyProperties_LoadedOnlyWhenAccessed");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        
+        Element stored = new Element("message")
+                .addContent(new Element("subject").setText("hello"))
+                .addContent(new Element("body").setText("a very long body"))
+                .addContent(new Element("attachment")
+                    .setAttribute("fileName", "notes.txt")
+                    .addContent(new Element("content").setText("bm90ZXM=")));
+        String storedXml = new XMLOutputter().outputString(stored);
+        
+        //ACT
+        Message read = instance.convert(stored, Message.class);
+        
+        //ASSERT
+        assertEquals("hello", read.subject);
+        assertFalse("Should not have loaded body", read.body.isLoaded());
+        assertFalse("Should not have loaded attachment", read.attachment.isLoaded());
+        
+        assertEquals("notes.txt", read.attachment.get().fileName);
+        assertEquals("bm90ZXM=", read.attachment.get().content);
+        assertTrue("Should have loaded attachment", read.attachment.isLoaded());
+        assertFalse("Should not have loaded body", read.body.isLoaded());
+        
+        Element written = instance.convert(read, Element.class);
+        assertEquals("Should write unloaded and loaded properties as they were", 
+                storedXml, new XMLOutputter().outputString(written));
+        assertFalse("Should not have loaded body to write it", read.body.isLoaded());
+    }//end testConvert_LazyProperties_LoadedOnlyWhenAccessed
+    
+    @Test
+    public void testConvert_LazyPropertySet_WritesNewValue() throws Exception {
+        System.out.println("testConvert_LazyPropertySet_WritesNewValue");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        
+        Element stored = new Element("message")
+                .addContent(new Element("subject").setText("hello"))
+                .addContent(new Element("body").setText("old body"));
+        
+        Message read = instance.convert(stored, Message.class);
+        
+        //ACT
+        read.body.set("new body");
+        Element written = instance.convert(read, Element.class);
+        
+        //ASSERT
+        assertEquals("new body", written.getChildText("body"));
+        assertNull("Should not write an empty lazy property", written.getChild("attachment"));
+    }//end testConvert_LazyPropertySet_WritesNewValue
+    
+    @Test
+    public void testConvert_SimpleTypes_WritesLexicalFormsLikeJAXB() throws Exception {
+        System.out.println("testConvert_SimpleTypes_WritesLexicalFormsLikeJAXB");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        ConversionService jaxb = new JAXBPojoConverter().extend(new DefaultConversionService());
+        
+        Measurements measurements = measurements();
+        
+        //ACT
+        Element converted = instance.convert(measurements, Element.class);
+        Measurements read = instance.convert(converted.clone(), Measurements.class);
+        
+        //ASSERT
+        assertEquals("INF", converted.getChildText("high"));
+        assertEquals("-INF", converted.getChildText("low"));
+        assertEquals("NaN", converted.getChildText("ratio"));
+        assertEquals(Double.POSITIVE_INFINITY, read.high, 0);
+        assertEquals(Double.NEGATIVE_INFINITY, read.low, 0);
+        assertTrue(Float.isNaN(read.ratio));
+        assertEquals(measurements.total, read.total);
+        assertEquals(measurements.taken, read.taken);
+        
+        assertSameXml("measurements", jaxb.convert(measurements, Element.class), converted);
+    }//end testConvert_SimpleTypes_WritesLexicalFormsLikeJAXB
+    
+    @Test
+    public void testConvert_AnnotatedClasses_SameXmlAsJAXB() throws Exception {
+        System.out.println("testConvert_AnnotatedClasses_SameXmlAsJAXB");
+        
+        ConversionService instance = new MappingPojoConverter().extend(new DefaultConversionService());
+        ConversionService jaxb = new JAXBPojoConverter().extend(new DefaultConversionService());
+        
+        Baz baz = new Baz();
+        baz.setAttrInt(32);
+        baz.getTestData().add("test 1");
+        baz.getTestData().add("test 2");
+        baz.setId("test id");
+        
+        Order order = new Order();
+        order.number = 1234L;
+        order.placed = new Date(1367414400000L);
+        order.status = Status.Shipped;
+        order.note = "fragile";
+        order.secret = "not saved";
+        order.customer = new Customer();
+        order.customer.name = "Gordon";
+        order.customer.code = new Code();
+        order.customer.code.value = "G-1";
+        order.customer.code.kind = "internal";
+        Line line = new Line();
+        line.sku = "A";
+        line.quantity = 2;
+        order.lines.add(line);
+        
+        for(Object pojo : Arrays.asList(baz, order)){
+            //ACT
+            Element converted = instance.convert(pojo, Element.class);
+            Element expected = jaxb.convert(pojo, Element.class);
+            
+            //ASSERT
+            assertSameXml(expected.getName(), expected, converted);
+            
+            //each should read what the other wrote
+            assertSameXml(expected.getName(), expected, 
+                    instance.convert(jaxb.convert(converted.clone(), pojo.getClass()), Element.class));
+            assertSameXml(expected.getName(), expected, 
+                    jaxb.convert(instance.convert(expected.clone(), pojo.getClass()), Element.class));
+        }
+    }//end testConvert_AnnotatedClasses_SameXmlAsJAXB
+    
+    /**
+     * Asserts that the elements have the same names, attributes, text and children,
+     * ignoring the namespace prefixes chosen by each writer.
+     */
+    private static void assertSameXml(String path, Element expected, Element actual){
+        assertEquals("Name of " + path, expected.getName(), actual.getName());
+        assertEquals("Namespace of " + path, expected.getNamespaceURI(), actual.getNamespaceURI());
+        
+        Map<String, String> expectedAttributes = new HashMap<>();
+        for(Attribute a : expected.getAttributes()){
+            expectedAttributes.put("{" + a.getNamespaceURI() + "}" + a.getName(), a.getValue());
+        }
+        Map<String, String> actualAttributes = new HashMap<>();
+        for(Attribute a : actual.getAttributes()){
+            actualAttributes.put("{" + a.getNamespaceURI() + "}" + a.getName(), a.getValue());
+        }
+        assertEquals("Attributes of " + path, expectedAttributes, actualAttributes);
+        
+        List<Element> expectedChildren = expected.getChildren();
+        List<Element> actualChildren = actual.getChildren();
+        if(expectedChildren.isEmpty()){
+            assertEquals("Text of " + path, expected.getText(), actual.getText());
+        }
+        assertEquals("Children of " + path, expectedChildren.size(), actualChildren.size());
+        for(int i = 0; i < expectedChildren.size(); i++){
+            assertSameXml(path + "/" + expectedChildren.get(i).getName(), expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+    
+    private static Measurements measurements(){
+        Measurements ret = new Measurements();
+        ret.high = Double.POSITIVE_INFINITY;
+        ret.low = Double.NEGATIVE_INFINITY;
+        ret.ratio = Float.NaN;
+        ret.valid = true;
+        ret.flags = 7;
+        ret.total = new BigDecimal("12.50");
+        ret.count = BigInteger.TEN;
+        ret.taken = new Date(1367414400000L);
+        ret.scale = 0.5;
+        return ret;
+    }
+    
+    public enum Status {
+        @XmlEnumValue("new")
+        New,
+        @XmlEnumValue("shipped")
+        Shipped
+    }
+    
+    @XmlRootElement(name = "purchase-order")
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(propOrder = { "status", "placed", "note", "customer", "lines" })
+    public static class Order {
+        @XmlAttribute(namespace = "http://www.example.com/orders")
+        Long number;
+        
+        Date placed;
+        
+        Status status;
+        
+        @XmlElement(name = "remark")
+        String note;
+        
+        @XmlTransient
+        String secret;
+        
+        Customer customer;
+        
+        @XmlElementWrapper(name = "items")
+        @XmlElement(name = "line")
+        List<Line> lines = new ArrayList<>();
+    }
+    
+    public static class Customer {
+        private String name;
+        private Code code;
+        
+        public String getName(){
+            return name;
+        }
+        public void setName(String name){
+            this.name = name;
+        }
+        
+        public Code getCode(){
+            return code;
+        }
+        public void setCode(Code code){
+            this.code = code;
+        }
+    }
+    
+    @XmlAccessorType(XmlAccessType.NONE)
+    public static class Code {
+        @XmlValue
+        String value;
+        
+        @XmlAttribute
+        String kind;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Line {
+        String sku;
+        int quantity;
+    }
+    
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Message {
+        String subject;
+        
+        Lazy<String> body = new Lazy<>();
+        
+        Lazy<Attachment> attachment = new Lazy<>();
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Attachment {
+        @XmlAttribute
+        String fileName;
+        
+        String content;
+    }
+    
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Measurements {
+        double high;
+        Double low;
+        float ratio;
+        boolean valid;
+        byte flags;
+        BigDecimal total;
+        BigInteger count;
+        Date taken;
+        
+        @XmlAttribute
+        double scale;
+    }
+    
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    @XmlType(propOrder = { "first" })
+    public static class PartlyOrdered {
+        String first;
+        
+        String second;
+        
+        @XmlAttribute
+        String unordered;
+    }
+    
+    @XmlRootElement
+    public static class AnyContent {
+        @XmlAnyElement
+        public List<Element> content;
+    }
+}
@@ -15,15 +15,19 @@
 */
 package org.xflatdb.xflat.db;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.convert.ConversionService;
 import org.xflatdb.xflat.convert.DefaultConversionService;
 import org.xflatdb.xflat.convert.converters.JDOMConverters;
 import org.xflatdb.xflat.convert.converters.StringConverters;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 import org.hamcrest.Matchers;
@@ -333,6 +337,87 @@ public class ConvertingTableTest {
     }//end testFind_Foo_ReturnsConvertingCursor
     
     
+    @Test
+    public void testFind_Projection_QueriesProjectionAndReadsValues() throws Exception {
+        System.out.println("testFind_Projection_QueriesProjectionAndReadsValues");
+        
+        Projection<Integer> projection = Projection.value(xpath.compile("foo/fooInt"), Integer.class);
+        
+        Element row1 = new Element("row", XFlatConstants.xFlatNs)
+                .addContent(new Element("foo").addContent(new Element("fooInt").setText("32")));
+        Element row2 = new Element("row", XFlatConstants.xFlatNs)
+                .addContent(new Element("foo"));
+        
+        Cursor<Element> mockCursor = getMockCursor(projection.project(row1), projection.project(row2));
+        when(engine.queryTable(any(XPathQuery.class)))
+                .thenReturn(mockCursor);
+        
+        XPathQuery query = XPathQuery.exists(xpath.compile("foo"));
+        
+        //ACT
+        List<Integer> found = new ArrayList<>();
+        try(Cursor<Integer> cursor = getFooInstance().find(query, projection)){
+            for(Integer i : cursor){
+                found.add(i);
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should have read projected values", Arrays.asList(32, null), found);
+        
+        ArgumentCaptor<XPathQuery> queryCaptor = ArgumentCaptor.forClass(XPathQuery.class);
+        verify(engine).queryTable(queryCaptor.capture());
+        assertSame("Should have queried the projection", projection, queryCaptor.getValue().getProjection());
+        verify(mockCursor).close();
+    }//end testFind_Projection_QueriesProjectionAndReadsValues
+    
+    @Test
+    public void testFind_ParallelConversion_ConvertsInOrder() throws Exception {
+        System.out.println("testFind_ParallelConversion_ConvertsInOrder");
+        
+        when(idGenerator.idToString(anyObject()))
+                .thenAnswer(byCallingToString());
+        when(idGenerator.stringToId(any(String.class), eq(String.class)))
+                .thenAnswer(byReturningFirstParam());
+        
+        Element[] inDb = new Element[50];
+        for(int i = 0; i < inDb.length; i++){
+            inDb[i] = new Element("foo")
+                .addContent(new Element("fooInt").setText(Integer.toString(i)));
+            setId(inDb[i], "id " + i);
+        }
+        
+        XPathQuery query = XPathQuery.gte(xpath.compile("foo/fooInt"), 0);
+        
+        Cursor<Element> mockCursor = getMockCursor(inDb);
+        when(engine.queryTable(query))
+                .thenReturn(mockCursor);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            ConvertingTable<Foo> instance = getFooInstance();
+            instance.setParallelConversion(executor, 8);
+
+            //ACT
+            List<Foo> found = new ArrayList<>();
+            try(Cursor<Foo> fooCursor = instance.find(query)){
+                for(Foo foo : fooCursor){
+                    found.add(foo);
+                }
+            }
+
+            //ASSERT
+            assertEquals("Should have converted all rows", inDb.length, found.size());
+            for(int i = 0; i < inDb.length; i++){
+                assertEquals("Should have kept the order", i, found.get(i).fooInt);
+                assertEquals("Should have gotten correct IDs", "id " + i, found.get(i).getId());
+            }
+            verify(mockCursor).close();
+        }finally{
+            executor.shutdownNow();
+        }
+    }//end testFind_ParallelConversion_ConvertsInOrder
+    
     @Test
     public void testFindAll_Foo_ConvertsAllToList() throws Exception {
         System.out.println("testFindAll_Foo_ConvertsAllToList");
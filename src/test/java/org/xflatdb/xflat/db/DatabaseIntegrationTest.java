@@ -18,6 +18,8 @@ package org.xflatdb.xflat.db;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.LogFactory;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -32,11 +34,13 @@ import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.DatabaseConfig;
 import org.xflatdb.xflat.KeyValueTable;
 import org.xflatdb.xflat.Table;
 import org.xflatdb.xflat.TableConfig;
 import org.xflatdb.xflat.XFlatException;
 import org.xflatdb.xflat.query.XPathQuery;
+import org.xflatdb.xflat.transaction.TransactionScope;
 import org.xflatdb.xflat.util.DocumentFileWrapper;
 import test.Baz;
 import test.Foo;
@@ -110,6 +114,78 @@ public class DatabaseIntegrationTest {
         
     }//end testInsertAndRetrieve_Foo
     
+    @Test
+    public void testInsertAsync_Foo_OnDiskWhenFutureCompletes() throws Exception {
+        System.out.println("testInsertAsync_Foo_OnDiskWhenFutureCompletes");
+        
+        XFlatDatabase db = getDatabase("InsertAsyncFoo");
+        
+        db.getConversionService().addConverter(Foo.class, Element.class, new Foo.ToElementConverter());
+        db.getConversionService().addConverter(Element.class, Foo.class, new Foo.FromElementConverter());
+        
+        db.initialize();
+        try{
+            Table<Foo> fooTable = db.getTable(Foo.class);
+
+            Foo f = new Foo();
+            f.fooInt = 26;
+            
+            //ACT
+            Future<Void> saved = fooTable.insertAsync(f);
+            
+            //the write is visible immediately
+            assertEquals("Should retrieve equal foo", f, fooTable.find(f.getId()));
+            
+            saved.get(5, TimeUnit.SECONDS);
+            
+            //ASSERT
+            Document tableDoc = this.loadTableDoc("InsertAsyncFoo", "Foo");
+            List<Element> rows = Utils.getRows(tableDoc);
+            assertEquals("Should have 1 row on disk before shutdown", 1, rows.size());
+        }
+        finally{
+            db.shutdown();
+        }
+    }//end testInsertAsync_Foo_OnDiskWhenFutureCompletes
+    
+    @Test
+    public void testCommitAsync_Foo_OnDiskWhenFutureCompletes() throws Exception {
+        System.out.println("testCommitAsync_Foo_OnDiskWhenFutureCompletes");
+        
+        XFlatDatabase db = getDatabase("CommitAsyncFoo");
+        
+        db.getConversionService().addConverter(Foo.class, Element.class, new Foo.ToElementConverter());
+        db.getConversionService().addConverter(Element.class, Foo.class, new Foo.FromElementConverter());
+        
+        db.initialize();
+        try{
+            Table<Foo> fooTable = db.getTable(Foo.class);
+
+            Foo f = new Foo();
+            f.fooInt = 26;
+            
+            Future<?> committed;
+            try(TransactionScope tx = db.getTransactionManager().openTransaction()){
+                fooTable.insert(f);
+                
+                //ACT
+                committed = tx.commitAsync();
+            }
+            
+            committed.get(5, TimeUnit.SECONDS);
+            
+            //ASSERT
+            assertEquals("Should retrieve equal foo", f, fooTable.find(f.getId()));
+            
+            Document tableDoc = this.loadTableDoc("CommitAsyncFoo", "Foo");
+            List<Element> rows = Utils.getRows(tableDoc);
+            assertEquals("Should have 1 row on disk before shutdown", 1, rows.size());
+        }
+        finally{
+            db.shutdown();
+        }
+    }//end testCommitAsync_Foo_OnDiskWhenFutureCompletes
+    
     @Test
     public void testInsertAndDelete_Foo() throws Exception {
         System.out.println("testInsertAndDelete_Foo");
@@ -375,6 +451,105 @@ public class DatabaseIntegrationTest {
         
     }//end testInsert_Baz_UsesJaxbConversionService
     
+    @Test
+    public void testInsert_Baz_MappingPojoConverter_StoresSameXmlAsJaxb() throws Exception {
+        System.out.println("testInsert_Baz_MappingPojoConverter_StoresSameXmlAsJaxb");
+        XFlatDatabase db = getDatabase("Insert_Baz_MappingPojoConverter");
+        db.setConfig(new DatabaseConfig()
+                .withPojoConverterClass("org.xflatdb.xflat.convert.converters.MappingPojoConverter"));
+                
+        db.initialize();
+        try{
+        
+        Table<Baz> bazTable = db.getTable(Baz.class);
+        
+        Baz b = new Baz();
+        b.setAttrInt(81);
+        b.getTestData().add("test data 1");
+        b.getTestData().add("test data 2");
+        
+        bazTable.insert(b);
+        
+        Baz b2 = bazTable.find(b.getId());
+        
+        assertNotSame("Should not be the same baz", b, b2);
+        assertEquals("should be same data", b.getAttrInt(), b2.getAttrInt());
+        assertThat("should be same data", b2.getTestData(),
+                Matchers.contains("test data 1", "test data 2"));
+        
+        List<Baz> found = bazTable.findAll(XPathQuery.eq(XPathFactory.instance().compile("baz/@attrInt"), 81));
+        assertEquals("Should query the mapped attribute", 1, found.size());
+        }
+        finally{
+            db.shutdown();
+        }
+        
+        Document tableDoc = this.loadTableDoc("Insert_Baz_MappingPojoConverter", "Baz");
+        List<Element> rows = Utils.getRows(tableDoc);
+        assertEquals("Should have 1 row on disk", 1, rows.size());
+        assertEquals("Should have right data", "81",
+                rows.get(0).getChild("baz").getAttributeValue("attrInt"));
+    }//end testInsert_Baz_MappingPojoConverter_StoresSameXmlAsJaxb
+    
+    @Test
+    public void testFind_NearCache_ReturnsCachedObjectUntilNewValueCommitted() throws Exception {
+        System.out.println("testFind_NearCache_ReturnsCachedObjectUntilNewValueCommitted");
+        
+        XFlatDatabase db = getDatabase("Find_NearCache");
+        
+        db.getConversionService().addConverter(Foo.class, Element.class, new Foo.ToElementConverter());
+        db.getConversionService().addConverter(Element.class, Foo.class, new Foo.FromElementConverter());
+        
+        db.configureTable("Foo", new TableConfig()
+                .withIdGenerator(BigIntIdGenerator.class)
+                .withNearCache(10));
+        
+        db.initialize();
+        try{
+            Table<Foo> fooTable = db.getTable(Foo.class);
+            
+            Foo f = new Foo();
+            f.fooInt = 1;
+            fooTable.insert(f);
+            
+            //ACT
+            Foo found1 = fooTable.find(f.getId());
+            Foo found2 = db.getTable(Foo.class).find(f.getId());
+            
+            Foo replacement = new Foo();
+            replacement.setId(f.getId());
+            replacement.fooInt = 2;
+            Foo inTransaction;
+            try(TransactionScope tx = db.getTransactionManager().openTransaction()){
+                fooTable.replace(replacement);
+                fooTable.find(f.getId());
+                
+                //writing the row again in the same transaction gives it a new version
+                replacement.fooInt = 3;
+                fooTable.replace(replacement);
+                inTransaction = fooTable.find(f.getId());
+                tx.commit();
+            }
+            Foo afterCommit = fooTable.find(f.getId());
+            
+            //ASSERT
+            assertEquals(1, found1.fooInt);
+            assertSame("Should return the cached object", found1, found2);
+            assertEquals("Should see the transaction's own write", 3, inTransaction.fooInt);
+            assertEquals("Should see the committed value", 3, afterCommit.fooInt);
+            
+            NearCacheStatistics stats = db.getNearCacheStatistics("Foo");
+            //the value read in the transaction is the version it committed
+            assertSame("Should return the committed transaction's object", inTransaction, afterCommit);
+            assertEquals("Should have hit twice, got " + stats, 2, stats.getHits());
+            assertEquals("Should have missed for each new version, got " + stats, 3, stats.getMisses());
+            assertEquals("Should keep one object per row, got " + stats, 1, stats.getSize());
+        }
+        finally{
+            db.shutdown();
+        }
+    }//end testFind_NearCache_ReturnsCachedObjectUntilNewValueCommitted
+    
     //<editor-fold desc="key value pair table">
     
     @Test
@@ -490,6 +665,47 @@ public class DatabaseIntegrationTest {
                 rows.get(0).getChild("baz").getAttributeValue("attrInt"));
     }
     
+    @Test
+    public void testGet_NearCache_ConvertsOncePerVersion() throws Exception {
+        System.out.println("testGet_NearCache_ConvertsOncePerVersion");
+        
+        XFlatDatabase db = getDatabase("Get_NearCache");
+        
+        db.getConversionService().addConverter(Foo.class, Element.class, new Foo.ToElementConverter());
+        db.getConversionService().addConverter(Element.class, Foo.class, new Foo.FromElementConverter());
+        
+        db.configureTable("fooValues", new TableConfig()
+                .withNearCache(10));
+        
+        db.initialize();
+        try{
+            KeyValueTable table = db.getKeyValueTable("fooValues");
+            
+            Foo f = new Foo();
+            f.fooInt = 1;
+            table.add("first", f);
+            
+            //ACT
+            Foo found1 = table.get("first", Foo.class);
+            Foo found2 = table.get("first", Foo.class);
+            
+            f.fooInt = 2;
+            table.set("first", f);
+            Foo found3 = table.get("first", Foo.class);
+            
+            //ASSERT
+            assertSame("Should return the cached object", found1, found2);
+            assertEquals("Should convert the new value", 2, found3.fooInt);
+            
+            NearCacheStatistics stats = db.getNearCacheStatistics("fooValues");
+            assertEquals("Should have hit once, got " + stats, 1, stats.getHits());
+            assertEquals("Should have missed twice, got " + stats, 2, stats.getMisses());
+        }
+        finally{
+            db.shutdown();
+        }
+    }//end testGet_NearCache_ConvertsOncePerVersion
+    
     //</editor-fold>
     
     private Matcher<Integer> isEven(){
@@ -18,6 +18,7 @@ package org.xflatdb.xflat.db;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.KeyNotFoundException;
 import org.xflatdb.xflat.convert.ConversionService;
@@ -147,6 +148,37 @@ public class ElementTableTest {
         assertEquals("Should have stored foo in element", "17", data.getChild("fooInt").getValue());
     }//end testInsert_HasId_IdNotModified
     
+    @Test
+    public void testInsertAll_GeneratesIds_OneEngineCall() throws Exception {
+        System.out.println("testInsertAll_GeneratesIds_OneEngineCall");
+        
+        Element foo = new Element("foo");
+        foo.setContent(new Element("fooInt").setText("17"));
+        
+        Element bar = new Element("foo");
+        bar.setContent(new Element("fooInt").setText("18"));
+        setId(bar, "barId");
+        
+        when(idGenerator.generateNewId(String.class))
+                .thenReturn("fooId");
+        when(idGenerator.idToString(anyObject()))
+                .thenAnswer(byCallingToString());
+        
+        //ACT
+        getInstance().insertAll(Arrays.asList(foo, bar));
+        
+        //ASSERT
+        ArgumentCaptor<Map> rowsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(engine).insertRows(rowsCaptor.capture());
+        verify(engine, never()).insertRow(anyString(), any(Element.class));
+        
+        Map<String, Element> rows = rowsCaptor.getValue();
+        assertEquals("Should have inserted both rows", 2, rows.size());
+        assertEquals("Should have set ID", "fooId", getId(rows.get("fooId")));
+        assertEquals("Should have stored foo in element", "17", rows.get("fooId").getChild("fooInt").getValue());
+        assertEquals("Should have kept ID", "barId", getId(rows.get("barId")));
+    }//end testInsertAll_GeneratesIds_OneEngineCall
+    
     @Test
     public void testFind_Foo_IdDoesNotExist_ReturnsNull() throws Exception {
         System.out.println("testFind_Foo_IdDoesNotExist_ReturnsNull");
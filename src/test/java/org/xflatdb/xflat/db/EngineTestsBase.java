@@ -18,6 +18,7 @@ package org.xflatdb.xflat.db;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -40,6 +41,7 @@ import org.xflatdb.xflat.convert.DefaultConversionService;
 import org.xflatdb.xflat.convert.converters.JDOMConverters;
 import org.xflatdb.xflat.convert.converters.StringConverters;
 import org.xflatdb.xflat.db.EngineBase.SpinDownEventHandler;
+import org.xflatdb.xflat.query.Projection;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.xflatdb.xflat.query.XPathUpdate;
 import org.xflatdb.xflat.transaction.FakeThreadContextTransactionManager;
@@ -223,7 +225,7 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
         assertEquals("Should have spun down", EngineState.SpunDown, ctx.instance.getState());
     }
     
-    private TEngine setupEngine(TestContext ctx){
+    protected TEngine setupEngine(TestContext ctx){
         TEngine instance = this.createInstance(ctx);
         instance.setExecutorService(ctx.executorService);
         instance.setConversionService(conversionService);
@@ -479,6 +481,36 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
                 data.getText());
     }//end testReadRow_ReadsCorrectRow_ReturnsData
     
+    @Test
+    public void testGetRowVersion_RowReplaced_VersionChanges() throws Exception {
+        System.out.println("testGetRowVersion_RowReplaced_VersionChanges");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                new Element("data").setText("some text data"),
+                new Element("data").setText("other text data")
+            );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        //ACT
+        long before = ctx.instance.getRowVersion("1");
+        long again = ctx.instance.getRowVersion("1");
+        ctx.instance.replaceRow("1", new Element("data").setText("new text data"));
+        long after = ctx.instance.getRowVersion("1");
+        long missing = ctx.instance.getRowVersion("3");
+        
+        spinDown(ctx);
+        
+        //ASSERT
+        assertTrue("Should have a version", before != -1);
+        assertEquals("Should have the same version until written", before, again);
+        assertTrue("Should have a new version after the write", after != before && after != -1);
+        assertEquals("Should have no version for a missing row", -1, missing);
+    }//end testGetRowVersion_RowReplaced_VersionChanges
+    
     @Test
     public void testQueryTable_NoData_NoResults() throws Exception {
         System.out.println("testQueryTable_NoData_NoResults");
@@ -633,6 +665,49 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
         
     }//end testQueryTable_MultipleMatches_MultipleResults
     
+    @Test
+    public void testQueryTable_WithProjection_ReturnsOnlyProjectedValues() throws Exception {
+        System.out.println("testQueryTable_WithProjection_ReturnsOnlyProjectedValues");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                new Element("data").setText("other text data"),
+                new Element("data").setContent(Arrays.asList(
+                        new Element("fooInt").setText("17"),
+                        new Element("name").setText("seventeen"),
+                        new Element("other").setText("not projected")
+                        )),
+                new Element("data").setContent(
+                        new Element("fooInt").setText("18")
+                        )
+            );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        Projection<String[]> projection = Projection.tuple(xpath.compile("data/fooInt"), xpath.compile("data/name"));
+        
+        //ACT
+        XPathQuery query = XPathQuery.gte(xpath.compile("data/fooInt"), 17)
+                .withProjection(projection);
+        List<List<String>> values = new ArrayList<>();
+        try(Cursor<Element> cursor = ctx.instance.queryTable(query)){
+            for(Element e : cursor){
+                assertNull("Should not have returned row data", e.getChild("other"));
+                values.add(Arrays.asList(projection.read(e, conversionService)));
+            }
+        }
+        
+        //ASSERT
+        assertThat(values, Matchers.containsInAnyOrder(
+                    Arrays.asList("17", "seventeen"),
+                    Arrays.asList("18", null)
+                ));
+        
+        spinDown(ctx);
+    }//end testQueryTable_WithProjection_ReturnsOnlyProjectedValues
+    
     @Test
     public void testReplaceRow_NoData_ThrowsKeyNotFoundException() throws Exception {
         System.out.println("testReplaceRow_NoData_ThrowsKeyNotFoundException");
@@ -1248,6 +1323,149 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
                 ));
     }//end testDeleteAll_MatchesMultiple_MultipleDeleted
     
+    @Test
+    public void testInsertRows_NoDuplicates_InsertsAll() throws Exception {
+        System.out.println("testInsertRows_NoDuplicates_InsertsAll");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                new Element("data").setText("other text data")
+            );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        Map<String, Element> rows = new HashMap<>();
+        rows.put("1", new Element("data").setText("first text data"));
+        rows.put("150", new Element("data").setText("second text data"));
+        
+        //ACT
+        ctx.instance.insertRows(rows);
+        
+        //ASSERT
+        assertEquals("Should have inserted in engine", "first text data", ctx.instance.readRow("1").getText());
+        assertEquals("Should have inserted in engine", "second text data", ctx.instance.readRow("150").getText());
+        
+        spinDown(ctx);
+        
+        Document doc = getFileContents(ctx);
+        
+        List<Element> children = doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs);
+        assertEquals("Should have 3 rows", 3, children.size());
+        
+        Element data = findId(children, "150");
+        assertNotNull("doc should have the row", data);
+        assertEquals("row should have the data", "second text data", data.getChild("data").getText());
+    }//end testInsertRows_NoDuplicates_InsertsAll
+    
+    @Test
+    public void testInsertRows_OneDuplicate_ThrowsAndInsertsNone() throws Exception {
+        System.out.println("testInsertRows_OneDuplicate_ThrowsAndInsertsNone");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                new Element("data").setText("other text data")
+            );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        Map<String, Element> rows = new HashMap<>();
+        rows.put("150", new Element("data").setText("new text data"));
+        rows.put("0", new Element("data").setText("duplicate text data"));
+        
+        //ACT
+        boolean didThrow = false;
+        try {
+            ctx.instance.insertRows(rows);
+        } catch (DuplicateKeyException expected) {
+            didThrow = true;
+        }
+        assertTrue("Should have thrown DuplicateKeyException", didThrow);
+        
+        //ASSERT
+        assertNull("Should not have inserted the other row", ctx.instance.readRow("150"));
+        
+        spinDown(ctx);
+        
+        Document doc = getFileContents(ctx);
+        
+        List<Element> children = doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs);
+        assertEquals("Should have 1 row", 1, children.size());
+        assertEquals("row should have the original data", "other text data", 
+                findId(children, "0").getChild("data").getText());
+    }//end testInsertRows_OneDuplicate_ThrowsAndInsertsNone
+    
+    @Test
+    public void testUpsertRows_OneExists_ReturnsNumberInserted() throws Exception {
+        System.out.println("testUpsertRows_OneExists_ReturnsNumberInserted");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                new Element("data").setText("other text data")
+            );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        Map<String, Element> rows = new HashMap<>();
+        rows.put("0", new Element("data").setText("replaced text data"));
+        rows.put("150", new Element("data").setText("new text data"));
+        
+        //ACT
+        int inserted = ctx.instance.upsertRows(rows);
+        
+        //ASSERT
+        assertEquals("Should have inserted one row", 1, inserted);
+        assertEquals("Should have replaced in engine", "replaced text data", ctx.instance.readRow("0").getText());
+        assertEquals("Should have inserted in engine", "new text data", ctx.instance.readRow("150").getText());
+        
+        spinDown(ctx);
+        
+        Document doc = getFileContents(ctx);
+        
+        List<Element> children = doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs);
+        assertEquals("Should have 2 rows", 2, children.size());
+        assertEquals("row should have the new data", "replaced text data", 
+                findId(children, "0").getChild("data").getText());
+    }//end testUpsertRows_OneExists_ReturnsNumberInserted
+    
+    @Test
+    public void testDeleteRows_SomeDontExist_DeletesExisting() throws Exception {
+        System.out.println("testDeleteRows_SomeDontExist_DeletesExisting");
+        
+        TestContext ctx = getContext();
+        
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+                    new Element("other").setText("other text data"),
+                    new Element("third").setText("third text data")
+                );
+        
+        prepFileContents(ctx, inFile);
+        spinUp(ctx);
+        
+        //ACT
+        int deleted = ctx.instance.deleteRows(Arrays.asList("0", "150", "250"));
+        
+        //ASSERT
+        assertEquals("Should have deleted one row", 1, deleted);
+        assertNull("Row should be deleted in engine", ctx.instance.readRow("0"));
+        
+        spinDown(ctx);
+        
+        Document doc = getFileContents(ctx);
+        
+        List<Element> children = doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs);
+        
+        assertThat("Document should have correct data", children,
+                Matchers.contains(
+                    hasChildText("third", "third text data")
+                ));
+    }//end testDeleteRows_SomeDontExist_DeletesExisting
+    
     //</editor-fold>
     
     //<editor-fold desc="transactional">
@@ -1487,6 +1705,69 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
         spinDown(ctx); 
     }
     
+    @Test
+    public void testQuery_ReadOnlyTransaction_DoesNotSeeLaterCommit() throws Exception {
+        System.out.println("testQuery_ReadOnlyTransaction_DoesNotSeeLaterCommit");
+        
+        TestContext ctx = getContext();
+                
+        Document inFile = Utils.makeDocument(ctx.instance.getTableName(),
+            new Element("other")
+                .setAttribute("fooInt", "17")
+                .setText("other text data"),
+            new Element("third")
+                .setAttribute("fooInt", "17")
+                .setText("third text data")
+        );
+        prepFileContents(ctx, inFile);
+        
+        spinUp(ctx);
+        
+        XPathQuery query = XPathQuery.eq(xpath.compile("*/@fooInt"), 17);
+        
+        List<Element> fromCursor = new ArrayList<>();
+        Element readInTx;
+        try(TransactionScope tx = ctx.transactionManager.openTransaction(TransactionOptions.DEFAULT.withReadOnly(true))){
+            
+            //switch contexts and commit a change to the data
+            ((FakeThreadContextTransactionManager)ctx.transactionManager).setContextId(1L);
+            try(TransactionScope tx2 = ctx.transactionManager.openTransaction()){
+                ctx.instance.replaceRow("0", new Element("other")
+                    .setAttribute("fooInt", "17")
+                    .setText("replaced text data"));
+                ctx.instance.deleteRow("1");
+                tx2.commit();
+            }
+            
+            //ACT
+            //switch back and read
+            ((FakeThreadContextTransactionManager)ctx.transactionManager).setContextId(0L);
+            readInTx = ctx.instance.readRow("0");
+            try(Cursor<Element> cursor = ctx.instance.queryTable(query)){
+                for(Element e : cursor){
+                    fromCursor.add(e);
+                }
+            }
+        }
+        
+        assertThat("should read data as of the snapshot", readInTx, hasText("other text data"));
+        assertEquals("Should have cursored over 2 items", 2, fromCursor.size());
+        assertThat("should have correct 2 items", fromCursor, 
+                Matchers.containsInAnyOrder(
+                    Matchers.allOf(
+                        isNamed("other"), hasText("other text data")
+                    ),
+                    Matchers.allOf(
+                        isNamed("third"), hasText("third text data")
+                    )));
+        
+        //outside the transaction we see the committed data
+        assertThat("should read committed data", ctx.instance.readRow("0"), hasText("replaced text data"));
+        assertNull("should not read deleted data", ctx.instance.readRow("1"));
+        
+        spinDown(ctx); 
+    }
+    
     @Test
     public void testConflictingWrite_SnapshotIsolation_ThrowsWriteConflictException() throws Exception {
         System.out.println("testConflictingWrite_SnapshotIsolation_ThrowsWriteConflictException");
@@ -1671,6 +1952,11 @@ public abstract class EngineTestsBase<TEngine extends EngineBase> {
                 throw new UnsupportedOperationException("Not supported yet.");
             }
 
+            @Override
+            public long getRowVersion(String id) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+
             @Override
             public Cursor<Element> queryTable(XPathQuery query) {
                 throw new UnsupportedOperationException("Not supported yet.");
@@ -16,10 +16,19 @@
 package org.xflatdb.xflat.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -39,6 +48,8 @@ import org.xflatdb.xflat.transaction.Propagation;
 import org.xflatdb.xflat.transaction.TransactionOptions;
 import org.xflatdb.xflat.transaction.TransactionPropagationException;
 import org.xflatdb.xflat.transaction.TransactionScope;
+import org.xflatdb.xflat.transaction.WriteConflictException;
+import org.xflatdb.xflat.transaction.WriteConflictStatistics;
 
 /**
  *
@@ -279,6 +290,271 @@ public abstract class EngineTransactionManagerTestBase {
         }
     }
     
+    @Test
+    public void testCommitAsync_BoundEngineCommittedInBackground() throws Exception {
+        System.out.println("testCommitAsync_BoundEngineCommittedInBackground");
+        
+        try(EngineTransactionManager instance = getInstance())
+        {
+            TransactionScope scope = instance.openTransaction();
+            Transaction tx = instance.getTransaction();
+
+            EngineBase e = mock(EngineBase.class);
+            final CountDownLatch engineCommitting = new CountDownLatch(1);
+            final CountDownLatch releaseEngine = new CountDownLatch(1);
+            doAnswer(new Answer<Object>(){
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    engineCommitting.countDown();
+                    releaseEngine.await(5, TimeUnit.SECONDS);
+                    return null;
+                }
+            }).when(e).commit(any(Transaction.class), any(TransactionOptions.class));
+
+            instance.bindEngineToCurrentTransaction(e);
+
+            //ACT
+            Future<?> committed = scope.commitAsync();
+            //closing the scope must not revert the pending commit
+            scope.close();
+            
+            assertTrue("engine commit should have started", engineCommitting.await(5, TimeUnit.SECONDS));
+            assertNull("Transaction should have left the context", instance.getTransaction());
+            assertFalse("TX should not be reverted", instance.isTransactionReverted(tx.getTransactionId()));
+            assertTrue("TX should still be open", instance.anyOpenTransactions());
+            assertEquals(tx.getTransactionId(), instance.getLowestOpenTransaction());
+            
+            releaseEngine.countDown();
+            committed.get(5, TimeUnit.SECONDS);
+
+            //ASSERT
+            verify(e).commit(argThat(matchesTransaction(tx)), argThat(Matchers.equalTo(TransactionOptions.DEFAULT)));
+            verify(e, never()).revert(anyLong(), anyBoolean());
+            assertTrue("TX should be committed", scope.isCommitted());
+            assertEquals("TX should be committed", tx.getCommitId(), instance.isTransactionCommitted(tx.getTransactionId()));
+            assertFalse("Should be no open TX", instance.anyOpenTransactions());
+        }
+    }
+    
+    @Test
+    public void testCommitAsync_ExceptionDuringCommit_FutureThrowsAndEngineReverted() throws Exception {
+        System.out.println("testCommitAsync_ExceptionDuringCommit_FutureThrowsAndEngineReverted");
+        
+        try(EngineTransactionManager instance = getInstance())
+        {
+            TransactionScope scope = instance.openTransaction();
+            Transaction tx = instance.getTransaction();
+
+            EngineBase e = mock(EngineBase.class);
+            doThrow(new TransactionException("Test"){})
+                .when(e).commit(any(Transaction.class), any(TransactionOptions.class));
+
+            instance.bindEngineToCurrentTransaction(e);
+
+            //ACT
+            Future<?> committed = scope.commitAsync();
+            scope.close();
+            
+            try{
+                committed.get(5, TimeUnit.SECONDS);
+                fail("Did not throw ExecutionException");
+            }
+            catch(ExecutionException ex){
+                assertThat("Should be caused by the commit failure", ex.getCause(), Matchers.instanceOf(TransactionException.class));
+            }
+
+            //ASSERT
+            verify(e).revert(tx.getTransactionId(), false);
+            assertTrue("TX should be reverted", instance.isTransactionReverted(tx.getTransactionId()));
+        }
+    }
+    
+    
+    @Test
+    public void testExecute_WriteConflictOnce_RetriesAndReturnsValue() throws Exception {
+        System.out.println("testExecute_WriteConflictOnce_RetriesAndReturnsValue");
+        
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final EngineBase e = mock(EngineBase.class);
+            doThrow(new WriteConflictException("Test", "conflictTable", "1"))
+                .doNothing()
+                .when(e).commit(any(Transaction.class), any(TransactionOptions.class));
+            
+            final List<Long> txIds = new ArrayList<>();
+            
+            //ACT
+            Integer result = instance.execute(TransactionOptions.DEFAULT.withRetryDelay(1, 2), new Callable<Integer>(){
+                @Override
+                public Integer call() {
+                    txIds.add(instance.getTransaction().getTransactionId());
+                    instance.bindEngineToCurrentTransaction(e);
+                    return txIds.size();
+                }
+            });
+            
+            //ASSERT
+            assertEquals("Should return the value from the committed attempt", (Integer)2, result);
+            assertFalse("Should have retried in a new transaction", txIds.get(0).equals(txIds.get(1)));
+            assertTrue("First transaction should be reverted", instance.isTransactionReverted(txIds.get(0)));
+            assertTrue("Second transaction should be committed", instance.isTransactionCommitted(txIds.get(1)) > -1);
+            assertNull("Should be no current transaction", instance.getTransaction());
+            
+            WriteConflictStatistics stats = instance.getWriteConflictStatistics("conflictTable");
+            assertEquals("Should record the conflict", 1, stats.getConflicts());
+            assertEquals("Should record the retry", 1, stats.getRetries());
+            assertEquals("Should not record a failure", 0, stats.getFailures());
+        }
+    }
+    
+    @Test
+    public void testExecute_ConflictsExceedRetries_ThrowsWriteConflictException() throws Exception {
+        System.out.println("testExecute_ConflictsExceedRetries_ThrowsWriteConflictException");
+        
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final EngineBase e = mock(EngineBase.class);
+            doThrow(new WriteConflictException("Test", "conflictTable", "1"))
+                .when(e).commit(any(Transaction.class), any(TransactionOptions.class));
+            
+            final AtomicInteger attempts = new AtomicInteger();
+            
+            //ACT
+            boolean didThrow = false;
+            try{
+                instance.execute(TransactionOptions.DEFAULT.withMaxRetries(2).withRetryDelay(0, 0), new Callable<Object>(){
+                    @Override
+                    public Object call() {
+                        attempts.incrementAndGet();
+                        instance.bindEngineToCurrentTransaction(e);
+                        return null;
+                    }
+                });
+            }catch(WriteConflictException expected){
+                didThrow = true;
+            }
+            
+            //ASSERT
+            assertTrue("Should have thrown WriteConflictException", didThrow);
+            assertEquals("Should have tried once and retried twice", 3, attempts.get());
+            
+            WriteConflictStatistics stats = instance.getWriteConflictStatistics("conflictTable");
+            assertEquals("Should record each conflict", 3, stats.getConflicts());
+            assertEquals("Should record each retry", 2, stats.getRetries());
+            assertEquals("Should record the failure", 1, stats.getFailures());
+            assertEquals("Other tables should have no conflicts", 0, instance.getWriteConflictStatistics("other").getConflicts());
+        }
+    }
+    
+    @Test
+    public void testExecute_JoinedOuterTransactionConflicts_ThrowsWithoutRetry() throws Exception {
+        System.out.println("testExecute_JoinedOuterTransactionConflicts_ThrowsWithoutRetry");
+        
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final AtomicInteger attempts = new AtomicInteger();
+            
+            try(TransactionScope outer = instance.openTransaction()){
+                final long outerId = instance.getTransaction().getTransactionId();
+                
+                //ACT
+                boolean didThrow = false;
+                try{
+                    instance.execute(TransactionOptions.DEFAULT.withMaxRetries(2).withRetryDelay(0, 0), new Callable<Object>(){
+                        @Override
+                        public Object call() throws WriteConflictException {
+                            attempts.incrementAndGet();
+                            assertEquals("Should run in the outer transaction", outerId, instance.getTransaction().getTransactionId());
+                            throw new WriteConflictException("Test", "conflictTable", "1");
+                        }
+                    });
+                }catch(WriteConflictException expected){
+                    didThrow = true;
+                }
+                
+                //ASSERT
+                assertTrue("Should have thrown WriteConflictException", didThrow);
+                assertEquals("Should not retry inside the outer transaction", 1, attempts.get());
+                
+                WriteConflictStatistics stats = instance.getWriteConflictStatistics("conflictTable");
+                assertEquals("Should not record a retry", 0, stats.getRetries());
+                assertEquals("Should record the failure", 1, stats.getFailures());
+            }
+        }
+    }
+    
+    @Test
+    public void testInCurrentTransaction_RunOnOtherThread_RunsInTransaction() throws Exception {
+        System.out.println("testInCurrentTransaction_RunOnOtherThread_RunsInTransaction");
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final EngineBase e = mock(EngineBase.class);
+            
+            Callable<Transaction> getTransaction = new Callable<Transaction>(){
+                @Override
+                public Transaction call() {
+                    return instance.getTransaction();
+                }
+            };
+            
+            long txId;
+            Transaction inTx;
+            Transaction afterTx;
+            try(TransactionScope tx = instance.openTransaction()){
+                txId = instance.getTransaction().getTransactionId();
+                
+                //ACT
+                inTx = executor.submit(instance.inCurrentTransaction(new Callable<Transaction>(){
+                    @Override
+                    public Transaction call() {
+                        instance.bindEngineToCurrentTransaction(e);
+                        return instance.getTransaction();
+                    }
+                })).get();
+                afterTx = executor.submit(getTransaction).get();
+                
+                tx.commit();
+            }
+            
+            //ASSERT
+            assertNotNull("Should have run in the transaction", inTx);
+            assertEquals("Should have run in the caller's transaction", txId, inTx.getTransactionId());
+            assertNull("Should have left the transaction after the task", afterTx);
+            verify(e).commit(any(Transaction.class), any(TransactionOptions.class));
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testInCurrentTransaction_NoTransaction_RunsWithoutTransaction() throws Exception {
+        System.out.println("testInCurrentTransaction_NoTransaction_RunsWithoutTransaction");
+        
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final Callable<Transaction> getTransaction = instance.inCurrentTransaction(new Callable<Transaction>(){
+                @Override
+                public Transaction call() {
+                    return instance.getTransaction();
+                }
+            });
+            
+            Transaction inTask;
+            try(TransactionScope tx = instance.openTransaction()){
+                //ACT
+                inTask = getTransaction.call();
+                
+                //ASSERT
+                assertNotNull("Should restore the transaction after the task", instance.getTransaction());
+            }
+            
+            assertNull("Should have run outside the transaction it was not created in", inTask);
+        }
+    }
+    
     @Test
     public void testBindEngine_ExceptionDuringCommit_BoundEngineReverted() throws Exception {
         System.out.println("testBindEngine_ExceptionDuringCommit_BoundEngineReverted");
@@ -789,6 +1065,92 @@ public abstract class EngineTransactionManagerTestBase {
         }
     }
     
+    @Test
+    public void testTransactionlessCommitId_MoreThanUniquifierInOneMillisecond_StrictlyIncreasing() throws Exception {
+        System.out.println("testTransactionlessCommitId_MoreThanUniquifierInOneMillisecond_StrictlyIncreasing");
+        
+        try(EngineTransactionManager instance = getInstance())
+        {
+            //ACT
+            long start = System.nanoTime();
+            long last = instance.transactionlessCommitId();
+            for(int i = 0; i < 500000; i++){
+                long id = instance.transactionlessCommitId();
+                
+                //ASSERT
+                assertTrue("IDs should be strictly increasing", id > last);
+                last = id;
+            }
+            System.out.println(String.format("generated 500000 IDs in %dms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+    }
+    
+    @Test
+    public void testTransactionlessCommitId_ManyThreads_UniqueAndIncreasingPerThread() throws Exception {
+        System.out.println("testTransactionlessCommitId_ManyThreads_UniqueAndIncreasingPerThread");
+        
+        final int threads = 8;
+        final int idsPerThread = 200000;
+        
+        try(final EngineTransactionManager instance = getInstance())
+        {
+            final long[][] ids = new long[threads][idsPerThread];
+            final CountDownLatch go = new CountDownLatch(1);
+            final AtomicReference<AssertionError> failure = new AtomicReference<>();
+            
+            List<Thread> workers = new ArrayList<>();
+            for(int t = 0; t < threads; t++){
+                final long[] mine = ids[t];
+                Thread worker = new Thread(new Runnable(){
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        
+                        for(int i = 0; i < idsPerThread; i++){
+                            mine[i] = instance.transactionlessCommitId();
+                            if(i > 0 && mine[i] <= mine[i - 1]){
+                                failure.compareAndSet(null, new AssertionError("IDs should be increasing on each thread"));
+                                return;
+                            }
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            
+            //ACT
+            long start = System.nanoTime();
+            go.countDown();
+            for(Thread worker : workers){
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            
+            //ASSERT
+            if(failure.get() != null){
+                throw failure.get();
+            }
+            
+            long[] all = new long[threads * idsPerThread];
+            for(int t = 0; t < threads; t++){
+                System.arraycopy(ids[t], 0, all, t * idsPerThread, idsPerThread);
+            }
+            Arrays.sort(all);
+            for(int i = 1; i < all.length; i++){
+                assertTrue("IDs should be unique", all[i] != all[i - 1]);
+            }
+            
+            System.out.println(String.format("%d threads generated %d IDs in %dms (%d IDs/ms)", 
+                    threads, all.length, TimeUnit.NANOSECONDS.toMillis(elapsed), 
+                    all.length / Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed))));
+        }
+    }
+    
     
     
     //</editor-fold>
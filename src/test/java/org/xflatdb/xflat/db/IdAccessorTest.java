@@ -0,0 +1,133 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.Id;
+import test.Foo;
+
+/**
+ *
+ * @author Gordon
+ */
+public class IdAccessorTest {
+    
+    public IdAccessorTest() {
+    }
+    
+    @Test
+    public void testGetSetIdValue_Property_UsesGetterAndSetter() throws Exception {
+        System.out.println("testGetSetIdValue_Property_UsesGetterAndSetter");
+        
+        IdAccessor<Foo> instance = IdAccessor.forClass(Foo.class);
+        Foo foo = new Foo();
+        
+        //ACT
+        instance.setIdValue(foo, "test id");
+        Object id = instance.getIdValue(foo);
+        
+        //ASSERT
+        assertEquals("test id", foo.getId());
+        assertEquals("test id", id);
+        assertEquals(String.class, instance.getIdType());
+    }//end testGetSetIdValue_Property_UsesGetterAndSetter
+    
+    @Test
+    public void testGetSetIdValue_PrivatePrimitiveField_BoxesId() throws Exception {
+        System.out.println("testGetSetIdValue_PrivatePrimitiveField_BoxesId");
+        
+        IdAccessor<PrimitiveIdPojo> instance = IdAccessor.forClass(PrimitiveIdPojo.class);
+        PrimitiveIdPojo pojo = new PrimitiveIdPojo();
+        
+        //ACT
+        instance.setIdValue(pojo, 17L);
+        Object id = instance.getIdValue(pojo);
+        
+        //ASSERT
+        assertEquals(17L, pojo.id);
+        assertEquals(Long.valueOf(17), id);
+    }//end testGetSetIdValue_PrivatePrimitiveField_BoxesId
+    
+    @Test
+    public void testSetIdValue_WrongType_ThrowsIllegalArgument() throws Exception {
+        System.out.println("testSetIdValue_WrongType_ThrowsIllegalArgument");
+        
+        IdAccessor<PrimitiveIdPojo> instance = IdAccessor.forClass(PrimitiveIdPojo.class);
+        
+        boolean didThrow = false;
+        try{
+            //ACT
+            instance.setIdValue(new PrimitiveIdPojo(), "17");
+        }catch(IllegalArgumentException ex){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown IllegalArgumentException", didThrow);
+        
+        didThrow = false;
+        try{
+            instance.setIdValue(new PrimitiveIdPojo(), null);
+        }catch(IllegalArgumentException ex){
+            didThrow = true;
+        }
+        assertTrue("Should not set a primitive ID to null", didThrow);
+    }//end testSetIdValue_WrongType_ThrowsIllegalArgument
+    
+    @Test
+    public void testGetIdValue_ManyCalls_ComparedToReflection() throws Exception {
+        System.out.println("testGetIdValue_ManyCalls_ComparedToReflection");
+        
+        final int calls = 2000000;
+        IdAccessor<Foo> instance = IdAccessor.forClass(Foo.class);
+        Method getter = Foo.class.getMethod("getId");
+        Foo foo = new Foo();
+        foo.setId("id");
+        
+        //warm up both
+        int found = 0;
+        for(int i = 0; i < calls; i++){
+            found += instance.getIdValue(foo) == null ? 0 : 1;
+            found += getter.invoke(foo) == null ? 0 : 1;
+        }
+        
+        //ACT
+        long start = System.nanoTime();
+        for(int i = 0; i < calls; i++){
+            found += instance.getIdValue(foo) == null ? 0 : 1;
+        }
+        long accessorNanos = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        for(int i = 0; i < calls; i++){
+            found += getter.invoke(foo) == null ? 0 : 1;
+        }
+        long reflectionNanos = System.nanoTime() - start;
+        
+        //ASSERT
+        assertEquals(4 * calls, found);
+        System.out.println(String.format("%d ID reads: accessor %dms, reflection %dms", calls,
+                TimeUnit.NANOSECONDS.toMillis(accessorNanos), TimeUnit.NANOSECONDS.toMillis(reflectionNanos)));
+    }//end testGetIdValue_ManyCalls_ComparedToReflection
+    
+    private static class PrimitiveIdPojo {
+        @Id
+        private long id;
+    }
+}
@@ -0,0 +1,75 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gordon
+ */
+public class NearCacheTest {
+    
+    public NearCacheTest() {
+    }
+    
+    @Test
+    public void testGet_DifferentVersionOrType_Misses() throws Exception {
+        System.out.println("testGet_DifferentVersionOrType_Misses");
+        
+        NearCache instance = new NearCache(10);
+        Object value = new Object();
+        instance.put("1", 5, Object.class, value);
+        
+        //ACT
+        Object hit = instance.get("1", 5, Object.class);
+        Object newVersion = instance.get("1", 6, Object.class);
+        Object otherType = instance.get("1", 5, String.class);
+        
+        //ASSERT
+        assertSame(value, hit);
+        assertNull("Should not return an object of another version", newVersion);
+        assertNull("Should not return an object of another type", otherType);
+        
+        NearCacheStatistics stats = instance.getStatistics();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(1.0 / 3, stats.getHitRatio(), 0.0001);
+    }//end testGet_DifferentVersionOrType_Misses
+    
+    @Test
+    public void testPut_Full_EvictsLeastRecentlyRead() throws Exception {
+        System.out.println("testPut_Full_EvictsLeastRecentlyRead");
+        
+        NearCache instance = new NearCache(2);
+        instance.put("1", 1, String.class, "one");
+        instance.put("2", 1, String.class, "two");
+        instance.get("1", 1, String.class);
+        
+        //ACT
+        instance.put("3", 1, String.class, "three");
+        
+        //ASSERT
+        assertEquals("one", instance.get("1", 1, String.class));
+        assertNull("Should have evicted the least recently read row", instance.get("2", 1, String.class));
+        assertEquals("three", instance.get("3", 1, String.class));
+        
+        NearCacheStatistics stats = instance.getStatistics();
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getSize());
+    }//end testPut_Full_EvictsLeastRecentlyRead
+}
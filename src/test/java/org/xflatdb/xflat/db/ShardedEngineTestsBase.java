@@ -28,4 +28,20 @@ public abstract class ShardedEngineTestsBase<TEngine extends ShardedEngineBase>
     protected void setMetadataFactory(TEngine engine, TableMetadataFactory factory){
         engine.setMetadataFactory(factory);
     }
+    
+    protected boolean rebalance(TEngine engine){
+        return engine.rebalance();
+    }
+    
+    protected int dropExpiredShards(TEngine engine){
+        return engine.dropExpiredShards();
+    }
+    
+    protected int evictShards(TEngine engine){
+        return engine.evictShards();
+    }
+    
+    protected int warmUpShards(TEngine engine){
+        return engine.warmUpShards();
+    }
 }
@@ -0,0 +1,169 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.db;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.XFlatException;
+
+/**
+ *
+ * @author Gordon
+ */
+public class TableLockTest {
+    
+    private ExecutorService executor;
+    
+    @Before
+    public void setUp(){
+        executor = Executors.newCachedThreadPool();
+    }
+    
+    @After
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+    
+    @Test
+    public void testLockExclusive_WriteInProgress_WaitsForWrite() throws Exception {
+        System.out.println("testLockExclusive_WriteInProgress_WaitsForWrite");
+        
+        final TableLock instance = new TableLock();
+        final Object writer = new Object();
+        final Object owner = new Object();
+        
+        instance.lockShared(writer);
+        
+        //ACT
+        Future<?> exclusive = executor.submit(new Callable<Object>(){
+            @Override
+            public Object call() {
+                instance.lockExclusive(owner, 5, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        
+        boolean didTimeout = false;
+        try{
+            exclusive.get(100, TimeUnit.MILLISECONDS);
+        }catch(TimeoutException ex){
+            didTimeout = true;
+        }
+        assertTrue("Should wait for the write in progress", didTimeout);
+        
+        instance.unlockShared();
+        
+        //ASSERT
+        exclusive.get(5, TimeUnit.SECONDS);
+        assertTrue("Should hold the exclusive lock", instance.isHeldExclusivelyBy(owner));
+        assertEquals("Should have recorded the acquisition", 1, instance.getStatistics().getExclusiveAcquisitions());
+        assertTrue("Should have recorded the wait", instance.getStatistics().getMaxExclusiveWaitNanos() > 0);
+    }//end testLockExclusive_WriteInProgress_WaitsForWrite
+    
+    @Test
+    public void testLockShared_HeldExclusively_WaitsForRelease() throws Exception {
+        System.out.println("testLockShared_HeldExclusively_WaitsForRelease");
+        
+        final TableLock instance = new TableLock();
+        final Object owner = new Object();
+        
+        instance.lockExclusive(owner, 5, TimeUnit.SECONDS);
+        
+        //the owner's own writes pass through
+        instance.lockShared(owner);
+        instance.unlockShared();
+        
+        final CountDownLatch written = new CountDownLatch(1);
+        
+        //ACT
+        executor.submit(new Runnable(){
+            @Override
+            public void run() {
+                instance.lockShared(new Object());
+                try{
+                    written.countDown();
+                }finally{
+                    instance.unlockShared();
+                }
+            }
+        });
+        
+        assertFalse("Write should wait for the exclusive lock", written.await(100, TimeUnit.MILLISECONDS));
+        
+        instance.unlockExclusive(owner);
+        
+        //ASSERT
+        assertTrue("Write should proceed once released", written.await(5, TimeUnit.SECONDS));
+        assertEquals("Should have recorded the shared wait", 1, instance.getStatistics().getSharedWaits());
+    }//end testLockShared_HeldExclusively_WaitsForRelease
+    
+    @Test
+    public void testLockExclusive_Reentrant_ReleasedOnLastUnlock() throws Exception {
+        System.out.println("testLockExclusive_Reentrant_ReleasedOnLastUnlock");
+        
+        TableLock instance = new TableLock();
+        Object owner = new Object();
+        
+        //ACT
+        instance.lockExclusive(owner, 5, TimeUnit.SECONDS);
+        instance.lockExclusive(owner, 5, TimeUnit.SECONDS);
+        
+        instance.unlockExclusive(new Object());
+        instance.unlockExclusive(owner);
+        
+        //ASSERT
+        assertTrue("Should still hold the lock", instance.isHeldExclusivelyBy(owner));
+        
+        instance.unlockExclusive(owner);
+        assertFalse("Should have released the lock", instance.isHeldExclusivelyBy(owner));
+    }//end testLockExclusive_Reentrant_ReleasedOnLastUnlock
+    
+    @Test
+    public void testLockExclusive_WriteNeverCompletes_ThrowsAndReleases() throws Exception {
+        System.out.println("testLockExclusive_WriteNeverCompletes_ThrowsAndReleases");
+        
+        TableLock instance = new TableLock();
+        Object owner = new Object();
+        
+        instance.lockShared(new Object());
+        
+        //ACT
+        boolean didThrow = false;
+        try{
+            instance.lockExclusive(owner, 50, TimeUnit.MILLISECONDS);
+        }catch(XFlatException expected){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown", didThrow);
+        assertFalse("Should not hold the lock", instance.isHeldExclusivelyBy(owner));
+        assertEquals("Should have recorded the timeout", 1, instance.getStatistics().getTimeouts());
+        
+        //other writes are not blocked
+        instance.lockShared(new Object());
+        instance.unlockShared();
+    }//end testLockExclusive_WriteNeverCompletes_ThrowsAndReleases
+}
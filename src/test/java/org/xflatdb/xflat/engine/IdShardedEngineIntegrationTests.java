@@ -16,6 +16,8 @@
 package org.xflatdb.xflat.engine;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -24,14 +26,18 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import org.xflatdb.xflat.Cursor;
 import org.xflatdb.xflat.ShardsetConfig;
 import org.xflatdb.xflat.Table;
 import org.xflatdb.xflat.TableConfig;
 import org.xflatdb.xflat.db.BigIntIdGenerator;
+import org.xflatdb.xflat.db.ShardPoolStatistics;
+import org.xflatdb.xflat.db.ShardedEngineBase;
 import org.xflatdb.xflat.db.XFlatDatabase;
 import org.xflatdb.xflat.query.NumericIntervalProvider;
 import org.xflatdb.xflat.query.XPathQuery;
 import org.jdom2.Element;
+import org.jdom2.xpath.XPathFactory;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import test.Foo;
@@ -75,6 +81,14 @@ public class IdShardedEngineIntegrationTests {
     }
     
     
+    /** Shard data files, excluding the config files where each shard saves its summary. */
+    private static final FilenameFilter shardFiles = new FilenameFilter(){
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".xml") && !name.endsWith(".config.xml");
+        }
+    };
+    
     @Test
     public void testInsertRetrieve_SingleShard_OneFileCreated() throws Exception {
         String testName = "testInsertRetrieve_SingleShard_OneFileCreated";
@@ -99,7 +113,7 @@ public class IdShardedEngineIntegrationTests {
         assertTrue("shard directory should exist", shardDir.exists());
         assertTrue("shard directory should be a directory", shardDir.isDirectory());
         
-        File[] shards = shardDir.listFiles();
+        File[] shards = shardDir.listFiles(shardFiles);
         assertEquals("should be one shard", 1, shards.length);
         assertTrue("Should be named after the range of data", new File(shardDir, "-98.xml").exists());
     }
@@ -147,7 +161,7 @@ public class IdShardedEngineIntegrationTests {
         assertTrue("shard directory should exist", shardDir.exists());
         assertTrue("shard directory should be a directory", shardDir.isDirectory());
         
-        File[] shards = shardDir.listFiles();
+        File[] shards = shardDir.listFiles(shardFiles);
         assertEquals("should be two shards", 2, shards.length);
         assertTrue("Should be named after the range of data", new File(shardDir, "-98.xml").exists());
         assertTrue("Should be named after the range of data", new File(shardDir, "2.xml").exists());
@@ -179,6 +193,75 @@ public class IdShardedEngineIntegrationTests {
         db.shutdown();
     }
     
+    @Test
+    public void testInitialize_WarmUpConfigured_SpinsUpExistingShards() throws Exception {
+        String testName = "testInitialize_WarmUpConfigured_SpinsUpExistingShards";
+        System.out.println(testName);
+        
+        TableConfig config = TableConfig.DEFAULT
+                .withIdGenerator(BigIntIdGenerator.class)
+                .sharded(ShardsetConfig.by(XPathQuery.Id, Integer.class, NumericIntervalProvider.forInteger(2, 100))
+                    .withWarmUp(2, ShardsetConfig.WarmUpOrder.MostRecent));
+        
+        XFlatDatabase db = getDatabase(testName, config);
+        Table<Foo> table = db.getTable(Foo.class, tbl);
+        for(int i = 0; i < 3; i++){
+            Foo foo = new Foo();
+            foo.fooInt = i;
+            table.insert(foo);
+        }
+        db.shutdown();
+        
+        //ACT
+        db = getDatabase(testName, config);
+        
+        ShardedEngineBase<?> engine = (ShardedEngineBase<?>)db.getEngine(tbl);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(engine.getShardPoolStatistics().getWarmUps() < 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        
+        //ASSERT
+        ShardPoolStatistics stats = engine.getShardPoolStatistics();
+        assertEquals("Should have warmed up both shards, got " + stats, 2, stats.getWarmUps());
+        assertEquals("Should have both shards open, got " + stats, 2, stats.getOpenShards());
+        
+        db.shutdown();
+    }
+    
+    @Test
+    public void testFind_ConversionPrefetch_ConvertsAllShardsInOrder() throws Exception {
+        String testName = "testFind_ConversionPrefetch_ConvertsAllShardsInOrder";
+        System.out.println(testName);
+        
+        TableConfig config = TableConfig.DEFAULT
+                .withIdGenerator(BigIntIdGenerator.class)
+                .withConversionPrefetch(4)
+                .sharded(ShardsetConfig.by(XPathQuery.Id, Integer.class, NumericIntervalProvider.forInteger(2, 10)));
+        
+        XFlatDatabase db = getDatabase(testName, config);
+        Table<Foo> table = db.getTable(Foo.class, tbl);
+        List<Foo> expected = new ArrayList<>();
+        for(int i = 0; i < 35; i++){
+            Foo foo = new Foo();
+            foo.fooInt = i;
+            table.insert(foo);
+            expected.add(foo);
+        }
+        
+        //ACT
+        List<Foo> found = new ArrayList<>();
+        try(Cursor<Foo> cursor = table.find(XPathQuery.gte(XPathFactory.instance().compile("foo/fooInt"), 0).withOrderById())){
+            for(Foo foo : cursor){
+                found.add(foo);
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should have converted every row in order", expected, found);
+        
+        db.shutdown();
+    }
     
 }
 
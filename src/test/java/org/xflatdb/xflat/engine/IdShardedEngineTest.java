@@ -17,8 +17,16 @@ package org.xflatdb.xflat.engine;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,9 +38,12 @@ import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.output.XMLOutputter;
 import static org.junit.Assert.*;
+import org.junit.Test;
 import static org.mockito.Mockito.*;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.DuplicateKeyException;
 import org.xflatdb.xflat.ShardsetConfig;
 import org.xflatdb.xflat.TableConfig;
 import org.xflatdb.xflat.XFlatConstants;
@@ -41,13 +52,19 @@ import org.xflatdb.xflat.convert.PojoConverter;
 import org.xflatdb.xflat.db.EngineBase;
 import org.xflatdb.xflat.db.EngineFactory;
 import org.xflatdb.xflat.db.EngineTransactionManager;
+import org.xflatdb.xflat.db.ShardPoolStatistics;
 import org.xflatdb.xflat.db.ShardedEngineTestsBase;
 import org.xflatdb.xflat.db.TableMetadataFactory;
 import org.xflatdb.xflat.db.XFlatDatabase;
+import org.xflatdb.xflat.query.HashIntervalProvider;
 import org.xflatdb.xflat.query.Interval;
 import org.xflatdb.xflat.query.IntervalProvider;
 import org.xflatdb.xflat.query.NumericIntervalProvider;
+import org.xflatdb.xflat.query.XPathQuery;
+import org.xflatdb.xflat.query.XPathUpdate;
+import org.xflatdb.xflat.transaction.FakeThreadContextTransactionManager;
 import org.xflatdb.xflat.transaction.TransactionManager;
+import org.xflatdb.xflat.transaction.TransactionScope;
 import org.xflatdb.xflat.util.DocumentFileWrapper;
 
 /**
@@ -61,11 +78,16 @@ public class IdShardedEngineTest extends ShardedEngineTestsBase<IdShardedEngine>
     String name = "IdShardedEngineTest";
     
     XMLOutputter outputter = new XMLOutputter();
+    
+    /** Replaces the default sharding configuration when set before getting the context */
+    ShardsetConfig<Integer> shardset = null;
            
     @Override
     protected void prepContext(final TestContext ctx){
                 final Map<String, Document> docs = new ConcurrentHashMap<>();
         ctx.additionalContext.put("docs", docs);
+        final Set<String> readFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ctx.additionalContext.put("readFiles", readFiles);
         
         XFlatDatabase db = new XFlatDatabase(workspace, ctx.executorService){
             //override to always return the executor service set on the context
@@ -102,6 +124,7 @@ public class IdShardedEngineTest extends ShardedEngineTestsBase<IdShardedEngine>
                 DocumentFileWrapper wrapper = new DocumentFileWrapper(file){
                     @Override
                     public Document readFile(){
+                        readFiles.add(file.getName());
                         return docs.get(file.getName());
                     }
                     
@@ -166,7 +189,7 @@ public class IdShardedEngineTest extends ShardedEngineTestsBase<IdShardedEngine>
         IntervalProvider provider = (IntervalProvider)ctx.additionalContext.get("rangeProvider");
         XFlatDatabase db = (XFlatDatabase)ctx.additionalContext.get("db");
         
-        ShardsetConfig cfg = ShardsetConfig.byId(Integer.class, provider);
+        ShardsetConfig cfg = shardset != null ? shardset : ShardsetConfig.byId(Integer.class, provider);
         
         IdShardedEngine ret = new IdShardedEngine(file, name, cfg);
         setMetadataFactory(ret, new TableMetadataFactory(db, file));
@@ -247,5 +270,710 @@ public class IdShardedEngineTest extends ShardedEngineTestsBase<IdShardedEngine>
         
         return file.substring(0, file.length() - 4);
     }
+    
+    private void insertAcrossShards(TestContext ctx, int shards, int rowsPerShard) throws Exception {
+        for(int shard = 0; shard < shards; shard++){
+            for(int row = 0; row < rowsPerShard; row++){
+                String id = Integer.toString(shard * 100 + row + 1);
+                ctx.instance.insertRow(id, new Element("data").setAttribute("id", id, XFlatConstants.xFlatNs));
+            }
+        }
+    }
+    
+    @Test
+    public void testQueryTable_OrderedSmallPrefetch_ReturnsRowsInShardOrder() throws Exception {
+        System.out.println("testQueryTable_OrderedSmallPrefetch_ReturnsRowsInShardOrder");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withQueryParallelism(3)
+                .withQueryPrefetch(2);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 8, 10);
+        
+        //ACT
+        List<Integer> shards = new ArrayList<>();
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any())){
+            for(Element e : cursor){
+                shards.add((Integer.parseInt(getId(e)) - 1) / 100);
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should have returned every row", 80, shards.size());
+        for(int i = 1; i < shards.size(); i++){
+            assertTrue("Should return shards in interval order", shards.get(i - 1) <= shards.get(i));
+        }
+        
+        spinDown(ctx);
+    }//end testQueryTable_OrderedSmallPrefetch_ReturnsRowsInShardOrder
+    
+    @Test
+    public void testQueryTable_Unordered_ReturnsEveryRow() throws Exception {
+        System.out.println("testQueryTable_Unordered_ReturnsEveryRow");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withOrderedQueries(false)
+                .withQueryPrefetch(1);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 8, 10);
+        
+        //ACT
+        Set<String> ids = new HashSet<>();
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any())){
+            for(Element e : cursor){
+                assertTrue("Should not return a row twice", ids.add(getId(e)));
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should have returned every row", 80, ids.size());
+        
+        spinDown(ctx);
+    }//end testQueryTable_Unordered_ReturnsEveryRow
+    
+    @Test
+    public void testQueryTable_OrderedByIdWithLimit_MergesLowestIdsAcrossShards() throws Exception {
+        System.out.println("testQueryTable_OrderedByIdWithLimit_MergesLowestIdsAcrossShards");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100));
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ids spread across four shards, inserted out of order
+        int[] inserted = new int[]{ 350, 17, 205, 5, 130, 99, 301, 42, 260, 101 };
+        for(int i : inserted){
+            String id = Integer.toString(i);
+            ctx.instance.insertRow(id, new Element("data").setAttribute("id", id, XFlatConstants.xFlatNs));
+        }
+        
+        //ACT
+        List<String> limited = new ArrayList<>();
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any().withOrderById().withLimit(4))){
+            for(Element e : cursor){
+                limited.add(getId(e));
+            }
+        }
+        
+        List<String> all = new ArrayList<>();
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any().withOrderById())){
+            for(Element e : cursor){
+                all.add(getId(e));
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should return the lowest ids in numeric order",
+                Arrays.asList("5", "17", "42", "99"), limited);
+        assertEquals("Should return every row in numeric order",
+                Arrays.asList("5", "17", "42", "99", "101", "130", "205", "260", "301", "350"), all);
+        
+        spinDown(ctx);
+    }//end testQueryTable_OrderedByIdWithLimit_MergesLowestIdsAcrossShards
+    
+    @Test
+    public void testQueryTable_ClosedBeforeDrained_CancelsScansAndSpinsDown() throws Exception {
+        System.out.println("testQueryTable_ClosedBeforeDrained_CancelsScansAndSpinsDown");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withQueryParallelism(2)
+                .withQueryPrefetch(1);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 6, 5);
+        
+        //ACT
+        Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any());
+        Iterator<Element> it = cursor.iterator();
+        it.next();
+        cursor.close();
+        
+        //ASSERT
+        boolean didThrow = false;
+        try{
+            it.hasNext();
+        }catch(IllegalStateException expected){
+            didThrow = true;
+        }
+        assertTrue("Should not read from a closed cursor", didThrow);
+        
+        //spin down waits for all open cross-shard queries
+        spinDown(ctx);
+    }//end testQueryTable_ClosedBeforeDrained_CancelsScansAndSpinsDown
+    
+    @Test
+    public void testUpdateQuery_ManyShardsInTransaction_UpdatesAllOnCommit() throws Exception {
+        System.out.println("testUpdateQuery_ManyShardsInTransaction_UpdatesAllOnCommit");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withWriteParallelism(3);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 8, 5);
+        
+        //ACT
+        int count;
+        try(TransactionScope tx = ctx.transactionManager.openTransaction()){
+            count = ctx.instance.update(XPathQuery.any(), XPathUpdate.set(xpath.compile("data"), "updated"));
+            
+            tx.commit();
+        }
+        
+        //ASSERT
+        assertEquals("Should count the rows updated in every shard", 40, count);
+        int updated = 0;
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any())){
+            for(Element e : cursor){
+                if("updated".equals(e.getText())){
+                    updated++;
+                }
+            }
+        }
+        assertEquals("Should have committed every shard", 40, updated);
+        
+        spinDown(ctx);
+    }//end testUpdateQuery_ManyShardsInTransaction_UpdatesAllOnCommit
+    
+    @Test
+    public void testDeleteAll_ManyShardsInTransaction_RevertRestoresAll() throws Exception {
+        System.out.println("testDeleteAll_ManyShardsInTransaction_RevertRestoresAll");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withWriteParallelism(4);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 8, 5);
+        
+        //ACT
+        int count;
+        try(TransactionScope tx = ctx.transactionManager.openTransaction()){
+            count = ctx.instance.deleteAll(XPathQuery.any());
+            
+            assertNull("Should be deleted in the transaction", ctx.instance.readRow("701"));
+            //close without committing
+        }
+        
+        //ASSERT
+        assertEquals("Should count the rows deleted in every shard", 40, count);
+        assertNotNull("Should have reverted the deletes in every shard", ctx.instance.readRow("1"));
+        assertNotNull("Should have reverted the deletes in every shard", ctx.instance.readRow("701"));
+        
+        spinDown(ctx);
+    }//end testDeleteAll_ManyShardsInTransaction_RevertRestoresAll
+    
+    /**
+     * Spins down the engine and spins up a new one over the same shards, which
+     * loads the summaries the shards saved as they spun down.
+     */
+    private void restart(TestContext ctx) throws Exception {
+        spinDown(ctx);
+        
+        ctx.instance = setupEngine(ctx);
+        spinUp(ctx);
+        
+        ((Set<String>)ctx.additionalContext.get("readFiles")).clear();
+    }
+    
+    @Test
+    public void testReadRow_SpunDownShardSummaryExcludesId_DoesNotReadShard() throws Exception {
+        System.out.println("testReadRow_SpunDownShardSummaryExcludesId_DoesNotReadShard");
+        
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 2, 5);
+        
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        Element missing = ctx.instance.readRow("50");
+        Element missingOtherShard = ctx.instance.readRow("150");
+        Element neverCreated = ctx.instance.readRow("950");
+        
+        //ASSERT
+        assertNull("Should not find a row that was never inserted", missing);
+        assertNull("Should not find a row that was never inserted", missingOtherShard);
+        assertNull("Should not find a row in a shard that was never created", neverCreated);
+        assertTrue("Should not have read any shard", readFiles.isEmpty());
+        
+        Element found = ctx.instance.readRow("3");
+        assertNotNull("Should find a row in the summarized shard", found);
+        assertFalse("Should have read the shard containing the row", readFiles.isEmpty());
+        
+        spinDown(ctx);
+    }//end testReadRow_SpunDownShardSummaryExcludesId_DoesNotReadShard
+    
+    @Test
+    public void testReadRow_RowInsertedAfterSummary_FindsRowAfterRestart() throws Exception {
+        System.out.println("testReadRow_RowInsertedAfterSummary_FindsRowAfterRestart");
+        
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 1, 5);
+        restart(ctx);
+        
+        //ACT
+        ctx.instance.insertRow("50", new Element("data").setText("inserted later"));
+        Element beforeRestart = ctx.instance.readRow("50");
+        
+        restart(ctx);
+        Element afterRestart = ctx.instance.readRow("50");
+        
+        //ASSERT
+        assertNotNull("Should find the row while the shard is open", beforeRestart);
+        assertNotNull("Should have summarized the row when the shard spun down again", afterRestart);
+        assertEquals("inserted later", afterRestart.getText());
+        
+        spinDown(ctx);
+    }//end testReadRow_RowInsertedAfterSummary_FindsRowAfterRestart
+    
+    @Test
+    public void testQueryTable_SpunDownShardKeyRangeExcludesQuery_DoesNotReadShard() throws Exception {
+        System.out.println("testQueryTable_SpunDownShardKeyRangeExcludesQuery_DoesNotReadShard");
+        
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ids 1 to 5 and 101 to 105
+        insertAcrossShards(ctx, 2, 5);
+        
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        int count = 0;
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.gt(XPathQuery.Id, 50))){
+            for(Element e : cursor){
+                count++;
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should find only the rows in the second shard", 5, count);
+        assertEquals("Should have read only the second shard", 1, readFiles.size());
+        
+        spinDown(ctx);
+    }//end testQueryTable_SpunDownShardKeyRangeExcludesQuery_DoesNotReadShard
+   
+    
+    @Test
+    public void testInsertRow_HashProvider_SpreadsSequentialIdsAcrossShards() throws Exception {
+        System.out.println("testInsertRow_HashProvider_SpreadsSequentialIdsAcrossShards");
+        
+        shardset = ShardsetConfig.byId(Integer.class, HashIntervalProvider.forInteger(4));
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ACT
+        for(int i = 1; i <= 40; i++){
+            String id = Integer.toString(i);
+            ctx.instance.insertRow(id, new Element("data").setAttribute("id", id, XFlatConstants.xFlatNs));
+        }
+        
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        
+        //ASSERT
+        assertEquals("Should have spread sequential ids over every shard", 4, docs.size());
+        for(Document doc : docs.values()){
+            assertTrue("Should not pile ids into one shard", doc.getRootElement().getChildren().size() < 20);
+        }
+        
+        Element row = ctx.instance.readRow("17");
+        assertNotNull("Should find the row in its hash shard", row);
+        assertEquals("Should have read only the shard containing the row", 1, readFiles.size());
+        
+        restart(ctx);
+        int count = 0;
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.eq(XPathQuery.Id, 23))){
+            for(Element e : cursor){
+                count++;
+            }
+        }
+        assertEquals("Should find the row by an equality query", 1, count);
+        assertEquals("Should have pruned the equality query to its shard", 1, readFiles.size());
+        
+        spinDown(ctx);
+    }//end testInsertRow_HashProvider_SpreadsSequentialIdsAcrossShards
+   
+    
+    private int countRows(TestContext ctx){
+        int count = 0;
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.any())){
+            for(Element e : cursor){
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    @Test
+    public void testInsertRows_DuplicateInLaterShard_RevertsEarlierShards() throws Exception {
+        System.out.println("testInsertRows_DuplicateInLaterShard_RevertsEarlierShards");
+        
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        ctx.instance.insertRow("150", new Element("data").setText("existing"));
+        
+        //the first shard is written before the duplicate in the second is found
+        Map<String, Element> rows = new LinkedHashMap<>();
+        rows.put("1", new Element("data").setText("new"));
+        rows.put("150", new Element("data").setText("duplicate"));
+        
+        //ACT
+        boolean didThrow = false;
+        try{
+            ctx.instance.insertRows(rows);
+        }catch(DuplicateKeyException expected){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown DuplicateKeyException", didThrow);
+        assertNull("Should have reverted the row in the first shard", ctx.instance.readRow("1"));
+        assertEquals("existing", ctx.instance.readRow("150").getText());
+        
+        restart(ctx);
+        assertNull("Should not have saved the reverted row", ctx.instance.readRow("1"));
+        assertEquals("Should see only the existing row", 1, countRows(ctx));
+        
+        spinDown(ctx);
+    }//end testInsertRows_DuplicateInLaterShard_RevertsEarlierShards
+    
+    @Test
+    public void testInsertRows_DuplicateInLaterShardInTransaction_KeepsOtherWork() throws Exception {
+        System.out.println("testInsertRows_DuplicateInLaterShardInTransaction_KeepsOtherWork");
+        
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        ctx.instance.insertRow("150", new Element("data").setText("existing"));
+        
+        Map<String, Element> rows = new LinkedHashMap<>();
+        rows.put("1", new Element("data").setText("new"));
+        rows.put("150", new Element("data").setText("duplicate"));
+        
+        //ACT
+        boolean didThrow = false;
+        try(TransactionScope tx = ctx.transactionManager.openTransaction()){
+            ctx.instance.insertRow("2", new Element("data").setText("other work"));
+            
+            try{
+                ctx.instance.insertRows(rows);
+            }catch(DuplicateKeyException expected){
+                didThrow = true;
+            }
+            
+            tx.commit();
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown DuplicateKeyException", didThrow);
+        assertEquals("Should have committed the other work", "other work", ctx.instance.readRow("2").getText());
+        assertNull("Should not have inserted the row in the first shard", ctx.instance.readRow("1"));
+        assertEquals("existing", ctx.instance.readRow("150").getText());
+        
+        restart(ctx);
+        assertEquals("Should see the existing row and the other work", 2, countRows(ctx));
+        
+        spinDown(ctx);
+    }//end testInsertRows_DuplicateInLaterShardInTransaction_KeepsOtherWork
+    
+    @Test
+    public void testRebalance_ShardExceedsMaxRows_SplitsShard() throws Exception {
+        System.out.println("testRebalance_ShardExceedsMaxRows_SplitsShard");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withMaxShardRows(15);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ids 5 to 100, half on each side of 51
+        for(int i = 5; i <= 100; i += 5){
+            String id = Integer.toString(i);
+            ctx.instance.insertRow(id, new Element("data").setAttribute("id", id, XFlatConstants.xFlatNs));
+        }
+        
+        //summarize the shard so its row count is known
+        restart(ctx);
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        
+        //ACT
+        boolean rebalanced = rebalance(ctx.instance);
+        
+        //ASSERT
+        assertTrue("Should have split the shard", rebalanced);
+        assertTrue("Should have written the lower half", docs.containsKey("1_51.xml"));
+        assertTrue("Should have written the upper half", docs.containsKey("51_101.xml"));
+        assertEquals("Should see each row once", 20, countRows(ctx));
+        assertNotNull(ctx.instance.readRow("50"));
+        assertNotNull(ctx.instance.readRow("55"));
+        
+        ctx.instance.insertRow("77", new Element("data").setText("after split"));
+        
+        restart(ctx);
+        assertEquals("Should not load the replaced shard", 21, countRows(ctx));
+        assertEquals("after split", ctx.instance.readRow("77").getText());
+        
+        spinDown(ctx);
+    }//end testRebalance_ShardExceedsMaxRows_SplitsShard
+    
+    @Test
+    public void testRebalance_SplitDuringTransaction_TransactionStillSeesRows() throws Exception {
+        System.out.println("testRebalance_SplitDuringTransaction_TransactionStillSeesRows");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withMaxShardRows(15);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        for(int i = 5; i <= 100; i += 5){
+            String id = Integer.toString(i);
+            ctx.instance.insertRow(id, new Element("data").setAttribute("id", id, XFlatConstants.xFlatNs));
+        }
+        
+        //summarize the shard so its row count is known
+        restart(ctx);
+        
+        Element lower;
+        Element upper;
+        int count;
+        try(TransactionScope tx = ctx.transactionManager.openTransaction()){
+            
+            //ACT
+            //split the shard from another context while the transaction is open
+            ((FakeThreadContextTransactionManager)ctx.transactionManager).setContextId(1L);
+            boolean rebalanced = rebalance(ctx.instance);
+            ((FakeThreadContextTransactionManager)ctx.transactionManager).setContextId(0L);
+            assertTrue("Should have split the shard", rebalanced);
+            
+            lower = ctx.instance.readRow("50");
+            upper = ctx.instance.readRow("55");
+            count = countRows(ctx);
+            ctx.instance.replaceRow("55", new Element("data").setText("in transaction"));
+            
+            tx.commit();
+        }
+        
+        //ASSERT
+        assertNotNull("Should still see the row in the lower shard", lower);
+        assertNotNull("Should still see the row in the upper shard", upper);
+        assertEquals("Should see each row once", 20, count);
+        assertEquals("Should have committed the update", "in transaction", ctx.instance.readRow("55").getText());
+        
+        spinDown(ctx);
+    }//end testRebalance_SplitDuringTransaction_TransactionStillSeesRows
+    
+    @Test
+    public void testRebalance_UnderfilledNeighbours_MergesShards() throws Exception {
+        System.out.println("testRebalance_UnderfilledNeighbours_MergesShards");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withMinShardRows(5);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ids 1 to 3 and 101 to 103
+        insertAcrossShards(ctx, 2, 3);
+        
+        restart(ctx);
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        
+        //ACT
+        boolean rebalanced = rebalance(ctx.instance);
+        
+        //ASSERT
+        assertTrue("Should have merged the shards", rebalanced);
+        assertTrue("Should have written the merged shard", docs.containsKey("1_201.xml"));
+        assertEquals("Should see each row once", 6, countRows(ctx));
+        assertNotNull(ctx.instance.readRow("102"));
+        
+        ctx.instance.insertRow("150", new Element("data").setText("after merge"));
+        
+        restart(ctx);
+        assertEquals("Should not load the replaced shards", 7, countRows(ctx));
+        assertEquals("Should route into the merged shard", 7, docs.get("1_201.xml").getRootElement().getChildren().size());
+        assertEquals("after merge", ctx.instance.readRow("150").getText());
+        assertFalse("Should not merge again with no neighbours", rebalance(ctx.instance));
+        
+        spinDown(ctx);
+    }//end testRebalance_UnderfilledNeighbours_MergesShards
+   
+    
+    @Test
+    public void testEvictShards_MoreThanMaxOpen_SpinsDownLeastRecentlyUsed() throws Exception {
+        System.out.println("testEvictShards_MoreThanMaxOpen_SpinsDownLeastRecentlyUsed");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withMaxOpenShards(2);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 5, 3);
+        
+        //make the first shard the most recently used, then let it become idle
+        Thread.sleep(200);
+        assertNotNull(ctx.instance.readRow("1"));
+        Thread.sleep(200);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        readFiles.clear();
+        
+        //ACT
+        evictShards(ctx.instance);
+        ShardPoolStatistics stats = ctx.instance.getShardPoolStatistics();
+        
+        //ASSERT
+        assertTrue("Should have at most 2 open shards, got " + stats, stats.getOpenShards() <= 2);
+        assertTrue("Should have evicted at least 3 shards, got " + stats, stats.getEvictions() >= 3);
+        assertTrue("Should have counted every spin up, got " + stats, stats.getSpinUps() >= 5);
+        
+        assertNotNull(ctx.instance.readRow("1"));
+        assertTrue("Should not have evicted the most recently used shard", readFiles.isEmpty());
+        assertEquals("Should still see every row", 15, countRows(ctx));
+        
+        spinDown(ctx);
+    }//end testEvictShards_MoreThanMaxOpen_SpinsDownLeastRecentlyUsed
+    
+    @Test
+    public void testEvictShards_UncommittedData_DoesNotEvict() throws Exception {
+        System.out.println("testEvictShards_UncommittedData_DoesNotEvict");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withMaxOpenShards(1);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        try(TransactionScope tx = ctx.transactionManager.openTransaction()){
+            insertAcrossShards(ctx, 3, 1);
+            
+            //ACT
+            int evicted = evictShards(ctx.instance);
+            
+            //ASSERT
+            assertEquals("Should not evict shards with uncommitted data", 0, evicted);
+            assertEquals(3, ctx.instance.getShardPoolStatistics().getOpenShards());
+            
+            tx.commit();
+        }
+        
+        assertEquals(3, countRows(ctx));
+        
+        spinDown(ctx);
+    }//end testEvictShards_UncommittedData_DoesNotEvict
+    
+    /**
+     * Waits for the warm up started on the engine to spin up the given number of shards.
+     */
+    private void awaitWarmUps(TestContext ctx, int shards) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(ctx.instance.getShardPoolStatistics().getWarmUps() < shards &&
+                System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+    }
+    
+    @Test
+    public void testWarmUpShards_MostRecent_SpinsUpLatestShards() throws Exception {
+        System.out.println("testWarmUpShards_MostRecent_SpinsUpLatestShards");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withWarmUp(2, ShardsetConfig.WarmUpOrder.MostRecent);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 5, 3);
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        int warming = warmUpShards(ctx.instance);
+        awaitWarmUps(ctx, 2);
+        
+        //ASSERT
+        assertEquals("Should warm up the configured number of shards", 2, warming);
+        assertEquals("Should have warmed up the latest shards",
+                new HashSet<>(Arrays.asList("301.xml", "401.xml")), readFiles);
+        assertEquals(2, ctx.instance.getShardPoolStatistics().getOpenShards());
+        
+        spinDown(ctx);
+    }//end testWarmUpShards_MostRecent_SpinsUpLatestShards
+    
+    @Test
+    public void testWarmUpShards_MostAccessed_SpinsUpMostAccessedShardAfterRestart() throws Exception {
+        System.out.println("testWarmUpShards_MostAccessed_SpinsUpMostAccessedShardAfterRestart");
+        
+        shardset = ShardsetConfig.byId(Integer.class, NumericIntervalProvider.forInteger(1, 100))
+                .withWarmUp(1, ShardsetConfig.WarmUpOrder.MostAccessed);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        insertAcrossShards(ctx, 4, 3);
+        for(int i = 0; i < 10; i++){
+            assertNotNull(ctx.instance.readRow("102"));
+        }
+        
+        //spinning down saves the access counts
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        int warming = warmUpShards(ctx.instance);
+        awaitWarmUps(ctx, 1);
+        
+        //ASSERT
+        assertEquals(1, warming);
+        assertEquals("Should have warmed up the most accessed shard",
+                Collections.singleton("101.xml"), readFiles);
+        
+        spinDown(ctx);
+    }//end testWarmUpShards_MostAccessed_SpinsUpMostAccessedShardAfterRestart
    
 }
@@ -0,0 +1,687 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.output.XMLOutputter;
+import org.jdom2.xpath.XPathExpression;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xflatdb.xflat.Cursor;
+import org.xflatdb.xflat.DuplicateKeyException;
+import org.xflatdb.xflat.ShardsetConfig;
+import org.xflatdb.xflat.TableConfig;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.convert.PojoConverter;
+import org.xflatdb.xflat.db.EngineBase;
+import org.xflatdb.xflat.db.EngineFactory;
+import org.xflatdb.xflat.db.EngineTransactionManager;
+import org.xflatdb.xflat.db.ShardedEngineTestsBase;
+import org.xflatdb.xflat.db.TableMetadataFactory;
+import org.xflatdb.xflat.db.XFlatDatabase;
+import org.xflatdb.xflat.query.NumericIntervalProvider;
+import org.xflatdb.xflat.query.TimeIntervalProvider;
+import org.xflatdb.xflat.query.XPathQuery;
+import org.xflatdb.xflat.query.XPathUpdate;
+import org.xflatdb.xflat.transaction.FakeThreadContextTransactionManager;
+import org.xflatdb.xflat.transaction.TransactionManager;
+import org.xflatdb.xflat.transaction.TransactionScope;
+import org.xflatdb.xflat.transaction.WriteConflictException;
+import org.xflatdb.xflat.util.DocumentFileWrapper;
+import test.Utils;
+
+/**
+ *
+ * @author gordon
+ */
+public class PropertyShardedEngineTest extends ShardedEngineTestsBase<PropertyShardedEngine> {
+
+    Log log = LogFactory.getLog(getClass());
+    
+    String name = "PropertyShardedEngineTest";
+    
+    XMLOutputter outputter = new XMLOutputter();
+    
+    /**
+     * The shardset used by the common engine tests.  Most of their rows have 
+     * no common property, so shard on the length of the data element's name,
+     * which spreads them over a few shards.
+     */
+    ShardsetConfig shardset = ShardsetConfig.by(xpath.compile("string-length(name(*))"), Double.class,
+            NumericIntervalProvider.forDouble(0, 1));
+    
+    /**
+     * A shardset on a real data property, used by the tests below that need to
+     * change the shard of a row.
+     */
+    static ShardsetConfig<Integer> byFooInt(){
+        return ShardsetConfig.by(xpath.compile("data/fooInt"), Integer.class, 
+                NumericIntervalProvider.forInteger(0, 100));
+    }
+           
+    @Override
+    protected void prepContext(final TestContext ctx){
+        final Map<String, Document> docs = new ConcurrentHashMap<>();
+        ctx.additionalContext.put("docs", docs);
+        final Set<String> readFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ctx.additionalContext.put("readFiles", readFiles);
+        
+        XFlatDatabase db = new XFlatDatabase(workspace, ctx.executorService){
+            //override to always return the executor service set on the context
+            @Override
+            protected ScheduledExecutorService getExecutorService(){
+                return ctx.executorService;
+            }
+            
+            @Override
+            protected EngineTransactionManager getEngineTransactionManager(){
+                return ctx.transactionManager;
+            }
+            
+            @Override
+            public TransactionManager getTransactionManager(){
+                return ctx.transactionManager;
+            }
+            
+            @Override
+            public DatabaseState getState(){
+                return DatabaseState.Running;
+            }
+        };
+        
+        db.setPojoConverter(new PojoConverter(){
+            @Override
+            public ConversionService extend(ConversionService service) {
+                return conversionService;
+            }
+        });
+        db.setEngineFactory(new EngineFactory(){
+            @Override
+            public EngineBase newEngine(final File file, String tableName, TableConfig config) {
+                DocumentFileWrapper wrapper = new DocumentFileWrapper(file){
+                    @Override
+                    public Document readFile(){
+                        readFiles.add(file.getName());
+                        return docs.get(file.getName());
+                    }
+                    
+                    @Override
+                    public void writeFile(Document doc){
+                        log.debug("writing file " + file.getName());
+                        if(log.isTraceEnabled())
+                            log.trace(outputter.outputString(doc));
+                        docs.put(file.getName(), doc);
+                    }
+                    
+                    @Override
+                    public boolean exists(){
+                        return docs.containsKey(file.getName());
+                    }
+                    
+                    @Override
+                    public Document readFile(String fileName){
+                        fail("Should not have invoked readFile(fileName)");
+                        return null;
+                    }
+                    
+                    @Override
+                    public void writeFile(String fileName, Document doc){
+                        fail("Should not have invoked writeFile(fileName, doc)");
+                    }
+                };
+                
+                EngineBase ret = new CachedDocumentEngine(wrapper, tableName);
+                return ret;
+            }
+        });
+        ctx.additionalContext.put("db", db);        
+        
+        File file = spy(new File(ctx.workspace, name));
+        when(file.exists()).thenReturn(true);
+        when(file.isDirectory()).thenReturn(true);
+        when(file.listFiles())
+                .then(new Answer<File[]>(){
+
+            @Override
+            public File[] answer(InvocationOnMock invocation) throws Throwable {
+                File[] ret = new File[docs.size()];
+                int i = 0;
+                for(String name : docs.keySet()){
+                    ret[i++] = new File(name);
+                }
+                return ret;
+            }
+        });
+        ctx.additionalContext.put("file", file);
+    }
+    
+    @Override
+    protected PropertyShardedEngine createInstance(TestContext ctx) {
+        
+        File file = (File)ctx.additionalContext.get("file");
+        XFlatDatabase db = (XFlatDatabase)ctx.additionalContext.get("db");
+        
+        PropertyShardedEngine ret = new PropertyShardedEngine(file, name, shardset);
+        setMetadataFactory(ret, new TableMetadataFactory(db, file));
+        
+        return ret;
+    }
+
+    @Override
+    protected void prepFileContents(TestContext ctx, Document contents) throws IOException {
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        
+        if(contents == null){
+            docs.clear();
+            return;
+        }
+        
+        //shard by the configured property, the same way the engine will
+        Map<String, Document> files = new HashMap<>();
+        for(Element row : contents.getRootElement().getChildren("row", XFlatConstants.xFlatNs)){
+            String shardName = getShardName(row);
+            
+            Document shard = files.get(shardName);
+            if(shard == null){
+                shard = new Document();
+                shard.setRootElement(new Element("db", XFlatConstants.xFlatNs));
+                files.put(shardName, shard);
+            }
+            
+            shard.getRootElement().addContent(row.clone());
+        }
+        
+        //put the sharded documents in the docs collection
+        for(Map.Entry<String, Document> doc : files.entrySet()){
+            docs.put(doc.getKey() + ".xml", doc.getValue());
+        }
+    }
+    
+    private String getShardName(Element row){
+        Object selected = shardset.getShardPropertySelector().evaluateFirst(row);
+        Object value;
+        if(shardset.getShardPropertyClass() == Double.class){
+            value = selected;
+        }
+        else{
+            value = Integer.valueOf(((Element)selected).getText());
+        }
+        return shardset.getIntervalProvider().getName(shardset.getIntervalProvider().getInterval(value));
+    }
+
+    @Override
+    protected Document getFileContents(TestContext ctx) throws IOException, JDOMException {
+        log.debug("getting file contents");
+        
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        
+        Document ret = new Document();
+        ret.setRootElement(new Element("db", XFlatConstants.xFlatNs));
+        
+        SortedMap<Double, Document> sortedDocs = new TreeMap<>();
+        //will be spread across multiple documents, sort them by shard
+        for(Map.Entry<String, Document> doc : docs.entrySet()){
+            if(log.isTraceEnabled())
+                log.trace(outputter.outputString(doc.getValue()));
+            
+            if("ids.xml".equals(doc.getKey())){
+                //the ID index, not a shard
+                continue;
+            }
+            
+            Double i = Double.parseDouble(getShardNameFromFile(doc.getKey()));
+            sortedDocs.put(i, doc.getValue());
+        }
+        
+        //each range is now in order, add all the rows from each document.
+        //a row that migrated leaves its delete in the old shard, skip those.
+        for(Document d : sortedDocs.values()){
+            for(Element e : d.getRootElement().getChildren("row", XFlatConstants.xFlatNs)){
+                if(!isDeleted(e)){
+                    ret.getRootElement().addContent(e.clone());
+                }
+            }
+        }
+        
+        if(log.isTraceEnabled())
+            log.trace(outputter.outputString(ret));
+        
+        return ret;
+    }
+    
+    private boolean isDeleted(Element row){
+        Element mostRecent = null;
+        long mostRecentCommit = -1;
+        for(Element data : row.getChildren()){
+            String commit = data.getAttributeValue("commit", XFlatConstants.xFlatNs);
+            if(commit != null && Long.parseLong(commit) > mostRecentCommit){
+                mostRecentCommit = Long.parseLong(commit);
+                mostRecent = data;
+            }
+        }
+        
+        return mostRecent != null && "delete".equals(mostRecent.getName()) &&
+                XFlatConstants.xFlatNs.equals(mostRecent.getNamespace());
+    }
+    
+    private String getShardNameFromFile(String file){
+        if(!file.endsWith(".xml"))
+            throw new RuntimeException("invalid file name " + file);
+        
+        return file.substring(0, file.length() - 4);
+    }
+    
+    private List<Element> getShardRows(TestContext ctx, String shardName){
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        List<Element> ret = new ArrayList<>();
+        Document doc = docs.get(shardName + ".xml");
+        if(doc != null){
+            for(Element e : doc.getRootElement().getChildren("row", XFlatConstants.xFlatNs)){
+                if(!isDeleted(e)){
+                    ret.add(e);
+                }
+            }
+        }
+        return ret;
+    }
+    
+    private Element atData(long at){
+        return new Element("data").addContent(new Element("at").setText(Long.toString(at)));
+    }
+    
+    private void restart(TestContext ctx) throws Exception {
+        spinDown(ctx);
+        
+        ctx.instance = setupEngine(ctx);
+        spinUp(ctx);
+        
+        ((Set<String>)ctx.additionalContext.get("readFiles")).clear();
+    }
+    
+    private int count(Cursor<Element> cursor) throws Exception {
+        int count = 0;
+        try(Cursor<Element> c = cursor){
+            for(Element e : c){
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private Element fooData(int fooInt){
+        return new Element("data").addContent(new Element("fooInt").setText(Integer.toString(fooInt)));
+    }
+    
+    @Test
+    public void testInsert_ByProperty_InsertsIntoPropertyShard() throws Exception {
+        System.out.println("testInsert_ByProperty_InsertsIntoPropertyShard");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        //ACT
+        ctx.instance.insertRow("1", fooData(150));
+        ctx.instance.insertRow("2", fooData(17));
+        
+        //ASSERT
+        assertEquals("Should read the row from its shard", "150", ctx.instance.readRow("1").getChildText("fooInt"));
+        
+        spinDown(ctx);
+        
+        assertEquals("Should be in shard 100", "1", getId(getShardRows(ctx, "100").get(0)));
+        assertEquals("Should be in shard 0", "2", getId(getShardRows(ctx, "0").get(0)));
+    }//end testInsert_ByProperty_InsertsIntoPropertyShard
+    
+    @Test
+    public void testInsert_IdExistsInOtherShard_ThrowsDuplicateKeyException() throws Exception {
+        System.out.println("testInsert_IdExistsInOtherShard_ThrowsDuplicateKeyException");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), fooData(17)));
+        spinUp(ctx);
+        
+        //ACT
+        boolean didThrow = false;
+        try{
+            ctx.instance.insertRow("0", fooData(150));
+        }catch(DuplicateKeyException expected){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown DuplicateKeyException", didThrow);
+        
+        spinDown(ctx);
+        
+        assertEquals("Should not have inserted in the other shard", 0, getShardRows(ctx, "100").size());
+    }//end testInsert_IdExistsInOtherShard_ThrowsDuplicateKeyException
+    
+    @Test
+    public void testInsert_IdExistsAfterRestart_ReadsOnlyIndexedShard() throws Exception {
+        System.out.println("testInsert_IdExistsAfterRestart_ReadsOnlyIndexedShard");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), fooData(17), fooData(117)));
+        spinUp(ctx);
+        
+        //builds the index from the shards
+        ctx.instance.readRow("0");
+        
+        restart(ctx);
+        
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        boolean didThrow = false;
+        try{
+            ctx.instance.insertRow("0", fooData(250));
+        }catch(DuplicateKeyException expected){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown DuplicateKeyException", didThrow);
+        assertTrue("Should have read the index", readFiles.contains("ids.xml"));
+        assertTrue("Should have read the shard containing the row", readFiles.contains("0.xml"));
+        assertFalse("Should not have probed shard 100", readFiles.contains("100.xml"));
+        
+        spinDown(ctx);
+        
+        assertEquals("Should not have inserted in the other shard", 0, getShardRows(ctx, "200").size());
+    }//end testInsert_IdExistsAfterRestart_ReadsOnlyIndexedShard
+    
+    @Test
+    public void testInsert_ConcurrentDuplicateInOtherShard_ConflictsOnCommit() throws Exception {
+        System.out.println("testInsert_ConcurrentDuplicateInOtherShard_ConflictsOnCommit");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        FakeThreadContextTransactionManager transactionManager = (FakeThreadContextTransactionManager)ctx.transactionManager;
+        
+        //ACT
+        boolean didThrow = false;
+        try(TransactionScope tx1 = transactionManager.openTransaction()){
+            ctx.instance.insertRow("5", fooData(17));
+            
+            transactionManager.setContextId(1L);
+            try(TransactionScope tx2 = transactionManager.openTransaction()){
+                ctx.instance.insertRow("5", fooData(150));
+                tx2.commit();
+            }
+            transactionManager.setContextId(0L);
+            
+            try{
+                tx1.commit();
+            }catch(WriteConflictException expected){
+                didThrow = true;
+            }
+        }
+        
+        //ASSERT
+        assertTrue("Should have thrown WriteConflictException", didThrow);
+        assertEquals("Should have kept the committed row", "150", ctx.instance.readRow("5").getChildText("fooInt"));
+        
+        spinDown(ctx);
+        
+        assertEquals("Should not have committed the row in the other shard", 0, getShardRows(ctx, "0").size());
+    }//end testInsert_ConcurrentDuplicateInOtherShard_ConflictsOnCommit
+    
+    @Test
+    public void testReplaceRow_ShardPropertyChanges_MigratesRow() throws Exception {
+        System.out.println("testReplaceRow_ShardPropertyChanges_MigratesRow");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), fooData(17), fooData(18)));
+        spinUp(ctx);
+        
+        //ACT
+        Element old = ctx.instance.replaceRow("0", fooData(250));
+        
+        //ASSERT
+        assertEquals("Should return the old data", "17", old.getChildText("fooInt"));
+        assertEquals("Should read the migrated row", "250", ctx.instance.readRow("0").getChildText("fooInt"));
+        
+        spinDown(ctx);
+        
+        List<Element> oldShard = getShardRows(ctx, "0");
+        assertEquals("Should have removed the row from the old shard", 1, oldShard.size());
+        assertEquals("Should have left the other row", "1", getId(oldShard.get(0)));
+        List<Element> newShard = getShardRows(ctx, "200");
+        assertEquals("Should have moved the row to the new shard", 1, newShard.size());
+        assertEquals("Should have moved the row to the new shard", "0", getId(newShard.get(0)));
+    }//end testReplaceRow_ShardPropertyChanges_MigratesRow
+    
+    @Test
+    public void testUpdate_ShardPropertyChanges_MigratesRow() throws Exception {
+        System.out.println("testUpdate_ShardPropertyChanges_MigratesRow");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), fooData(17)));
+        spinUp(ctx);
+        
+        XPathExpression<Object> fooInt = xpath.compile("data/fooInt");
+        
+        //ACT
+        boolean result = ctx.instance.update("0", XPathUpdate.set(fooInt, 150));
+        
+        //ASSERT
+        assertTrue("Should have updated", result);
+        assertEquals("Should read the migrated row", "150", ctx.instance.readRow("0").getChildText("fooInt"));
+        
+        spinDown(ctx);
+        
+        assertEquals("Should have removed the row from the old shard", 0, getShardRows(ctx, "0").size());
+        assertEquals("Should have moved the row to the new shard", 1, getShardRows(ctx, "100").size());
+    }//end testUpdate_ShardPropertyChanges_MigratesRow
+    
+    @Test
+    public void testUpdateQuery_DataHasId_MigratesMatchingRows() throws Exception {
+        System.out.println("testUpdateQuery_DataHasId_MigratesMatchingRows");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), 
+                setId(fooData(17), "0"), setId(fooData(18), "1"), setId(fooData(117), "2")));
+        spinUp(ctx);
+        
+        XPathExpression<Object> fooInt = xpath.compile("data/fooInt");
+        
+        //ACT
+        int count = ctx.instance.update(XPathQuery.lt(fooInt, 100), XPathUpdate.set(fooInt, 250));
+        
+        //ASSERT
+        assertEquals("Should have updated both rows", 2, count);
+        
+        spinDown(ctx);
+        
+        assertEquals("Should have removed the rows from the old shard", 0, getShardRows(ctx, "0").size());
+        assertEquals("Should not have touched the other shard", 1, getShardRows(ctx, "100").size());
+        assertEquals("Should have moved the rows to the new shard", 2, getShardRows(ctx, "200").size());
+    }//end testUpdateQuery_DataHasId_MigratesMatchingRows
+    
+    @Test
+    public void testUpdateQuery_DataHasNoId_MigratesMatchingRows() throws Exception {
+        System.out.println("testUpdateQuery_DataHasNoId_MigratesMatchingRows");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), 
+                fooData(17), fooData(117), fooData(18)));
+        spinUp(ctx);
+        
+        XPathExpression<Object> fooInt = xpath.compile("data/fooInt");
+        
+        //ACT
+        int count = ctx.instance.update(XPathQuery.lt(fooInt, 100), XPathUpdate.set(fooInt, 250));
+        
+        //ASSERT
+        assertEquals("Should have updated both rows", 2, count);
+        assertEquals("Should read the migrated row", "250", ctx.instance.readRow("2").getChildText("fooInt"));
+        
+        spinDown(ctx);
+        
+        assertEquals("Should have removed the rows from the old shard", 0, getShardRows(ctx, "0").size());
+        assertEquals("Should not have touched the other shard", 1, getShardRows(ctx, "100").size());
+        assertEquals("Should have moved the rows to the new shard", 2, getShardRows(ctx, "200").size());
+    }//end testUpdateQuery_DataHasNoId_MigratesMatchingRows
+    
+    @Test
+    public void testQueryTable_ShardPropertyRange_OnlyReadsIntersectingShards() throws Exception {
+        System.out.println("testQueryTable_ShardPropertyRange_OnlyReadsIntersectingShards");
+        
+        shardset = byFooInt();
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, Utils.makeDocument(ctx.instance.getTableName(), 
+                fooData(17), fooData(117), fooData(217), fooData(250)));
+        spinUp(ctx);
+        
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        int count = 0;
+        try(Cursor<Element> cursor = ctx.instance.queryTable(XPathQuery.gte(xpath.compile("data/fooInt"), 200))){
+            for(Element e : cursor){
+                count++;
+            }
+        }
+        
+        //ASSERT
+        assertEquals("Should have found both rows", 2, count);
+        assertTrue("Should have read the matching shard", readFiles.contains("200.xml"));
+        assertFalse("Should not have read shard 0", readFiles.contains("0.xml"));
+        assertFalse("Should not have read shard 100", readFiles.contains("100.xml"));
+        
+        spinDown(ctx);
+    }//end testQueryTable_ShardPropertyRange_OnlyReadsIntersectingShards
+   
+    
+    @Test
+    public void testDropExpiredShards_HourPartitions_DropsShardsOlderThanRetention() throws Exception {
+        System.out.println("testDropExpiredShards_HourPartitions_DropsShardsOlderThanRetention");
+        
+        shardset = ShardsetConfig.by(xpath.compile("data/at"), Long.class, 
+                TimeIntervalProvider.forLong(TimeIntervalProvider.Partition.HOUR))
+                .withRetention(2, TimeUnit.HOURS);
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long now = System.currentTimeMillis() / hour * hour;
+        ctx.instance.insertRow("1", atData(now - 5 * hour));
+        ctx.instance.insertRow("2", atData(now - 4 * hour));
+        ctx.instance.insertRow("3", atData(now - hour));
+        ctx.instance.insertRow("4", atData(now));
+        
+        //ACT
+        int dropped = dropExpiredShards(ctx.instance);
+        
+        //ASSERT
+        assertEquals("Should have dropped both expired shards", 2, dropped);
+        assertNull("Should have dropped the expired row", ctx.instance.readRow("1"));
+        assertNotNull("Should keep the recent row", ctx.instance.readRow("3"));
+        assertEquals("Should keep only the recent rows", 2, count(ctx.instance.queryTable(XPathQuery.any())));
+        
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        assertEquals("Should not read expired rows after restart", 0, 
+                count(ctx.instance.queryTable(XPathQuery.lt(xpath.compile("data/at"), now - 3 * hour))));
+        assertTrue("Should not have read any shard", readFiles.isEmpty());
+        assertEquals("Should keep only the recent rows after restart", 2, count(ctx.instance.queryTable(XPathQuery.any())));
+        
+        spinDown(ctx);
+        
+        Map<String, Document> docs = (Map<String, Document>)ctx.additionalContext.get("docs");
+        assertEquals("Should have removed the expired rows from the ID index", 2, 
+                docs.get("ids.xml").getRootElement().getChildren("row", XFlatConstants.xFlatNs).size());
+    }//end testDropExpiredShards_HourPartitions_DropsShardsOlderThanRetention
+    
+    @Test
+    public void testQueryTable_TimeRange_OnlyReadsShardsInWindow() throws Exception {
+        System.out.println("testQueryTable_TimeRange_OnlyReadsShardsInWindow");
+        
+        shardset = ShardsetConfig.by(xpath.compile("data/at"), Long.class, 
+                TimeIntervalProvider.forLong(TimeIntervalProvider.Partition.DAY));
+        TestContext ctx = getContext();
+        
+        prepFileContents(ctx, null);
+        spinUp(ctx);
+        
+        long day = TimeUnit.DAYS.toMillis(1);
+        long start = 1367366400000L; //2013-05-01T00:00Z
+        for(int i = 0; i < 5; i++){
+            ctx.instance.insertRow(Integer.toString(i), atData(start + i * day + 1000));
+        }
+        
+        restart(ctx);
+        Set<String> readFiles = (Set<String>)ctx.additionalContext.get("readFiles");
+        
+        //ACT
+        int count = count(ctx.instance.queryTable(XPathQuery.and(
+                XPathQuery.gte(xpath.compile("data/at"), start + day),
+                XPathQuery.lt(xpath.compile("data/at"), start + 3 * day))));
+        
+        //ASSERT
+        assertEquals("Should find the rows on the 2nd and 3rd", 2, count);
+        assertEquals("Should have read only those days", 2, readFiles.size());
+        assertTrue(readFiles.contains("2013-05-02.xml"));
+        assertTrue(readFiles.contains("2013-05-03.xml"));
+        
+        spinDown(ctx);
+    }//end testQueryTable_TimeRange_OnlyReadsShardsInWindow
+   
+}
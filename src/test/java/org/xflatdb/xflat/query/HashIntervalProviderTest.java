@@ -0,0 +1,171 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gordon
+ */
+public class HashIntervalProviderTest {
+    
+    public HashIntervalProviderTest() {
+    }
+    
+    //getInterval is ambiguous on a String provider, so these pick the overload.
+    private static <T> Interval<T> valueInterval(IntervalProvider<T> provider, T value){
+        return provider.getInterval(value);
+    }
+    
+    private static <T> Interval<T> namedInterval(IntervalProvider<T> provider, String name){
+        return provider.getInterval(name);
+    }
+    
+    @Test
+    public void testInteger_SequentialValues_SpreadEvenly() throws Exception {
+        System.out.println("testInteger_SequentialValues_SpreadEvenly");
+        
+        IntervalProvider<Integer> provider = HashIntervalProvider.forInteger(8);
+        
+        //ACT
+        Map<Interval<Integer>, Integer> counts = new HashMap<>();
+        for(int i = 0; i < 8000; i++){
+            Interval<Integer> interval = provider.getInterval(i);
+            Integer count = counts.get(interval);
+            counts.put(interval, count == null ? 1 : count + 1);
+        }
+        
+        //ASSERT
+        assertEquals("Should use every bucket", 8, counts.size());
+        for(Integer count : counts.values()){
+            assertTrue("Should spread values evenly, got " + count, count > 800 && count < 1200);
+        }
+    }//end testInteger_SequentialValues_SpreadEvenly
+    
+    @Test
+    public void testUuid_RandomValues_SpreadEvenly() throws Exception {
+        System.out.println("testUuid_RandomValues_SpreadEvenly");
+        
+        IntervalProvider<UUID> provider = HashIntervalProvider.forUuid(4);
+        
+        //ACT
+        Map<Interval<UUID>, Integer> counts = new HashMap<>();
+        for(int i = 0; i < 4000; i++){
+            Interval<UUID> interval = provider.getInterval(UUID.randomUUID());
+            Integer count = counts.get(interval);
+            counts.put(interval, count == null ? 1 : count + 1);
+        }
+        
+        //ASSERT
+        assertEquals("Should use every bucket", 4, counts.size());
+        for(Integer count : counts.values()){
+            assertTrue("Should spread values evenly, got " + count, count > 800 && count < 1200);
+        }
+    }//end testUuid_RandomValues_SpreadEvenly
+    
+    @Test
+    public void testGetName_StableAndRoundTrips() throws Exception {
+        System.out.println("testGetName_StableAndRoundTrips");
+        
+        IntervalProvider<String> provider = HashIntervalProvider.forString(4);
+        
+        //ACT
+        Interval<String> interval = valueInterval(provider, "some id");
+        String name = provider.getName(interval);
+        
+        //ASSERT
+        assertEquals("Should name buckets by their hash range", "00000000-3fffffff", name);
+        assertEquals(interval, namedInterval(provider, name));
+        assertEquals("Should always hash the same value the same way", interval, valueInterval(provider, "some id"));
+        
+        assertNull("Should not parse a bad name", namedInterval(provider, "17"));
+        assertNull("Should not parse a bad name", namedInterval(provider, "bfffffff-80000000"));
+    }//end testGetName_StableAndRoundTrips
+    
+    @Test
+    public void testNextInterval_WrapsAroundHashSpace() throws Exception {
+        System.out.println("testNextInterval_WrapsAroundHashSpace");
+        
+        IntervalProvider<String> provider = HashIntervalProvider.forString(3);
+        Interval<String> first = namedInterval(provider, "00000000-55555555");
+        
+        //ACT & ASSERT
+        assertEquals(first, provider.nextInterval(first, 0));
+        assertEquals("55555556-aaaaaaaa", provider.getName(provider.nextInterval(first, 1)));
+        assertEquals("aaaaaaab-ffffffff", provider.getName(provider.nextInterval(first, 2)));
+        assertEquals(first, provider.nextInterval(first, 3));
+        assertEquals("aaaaaaab-ffffffff", provider.getName(provider.nextInterval(first, -1)));
+    }//end testNextInterval_WrapsAroundHashSpace
+    
+    @Test
+    public void testIntersects_OnlyEqualityPrunes() throws Exception {
+        System.out.println("testIntersects_OnlyEqualityPrunes");
+        
+        IntervalProvider<Integer> provider = HashIntervalProvider.forInteger(4);
+        Comparator<Integer> comparator = provider.getComparator();
+        Interval<Integer> bucket = provider.getInterval(17);
+        Interval<Integer> otherBucket = provider.nextInterval(bucket, 1);
+        
+        //ACT & ASSERT
+        assertTrue(IntervalSet.eq(17).intersects(bucket, comparator));
+        assertFalse(IntervalSet.eq(17).intersects(otherBucket, comparator));
+        
+        int inOtherBucket = 18;
+        while(!otherBucket.contains(inOtherBucket, comparator)){
+            inOtherBucket++;
+        }
+        IntervalSet<Integer> either = IntervalSet.eq(17).union(IntervalSet.eq(inOtherBucket), comparator);
+        assertTrue("Should prune to each bucket in an OR of equalities", either.intersects(bucket, comparator));
+        assertTrue("Should prune to each bucket in an OR of equalities", either.intersects(otherBucket, comparator));
+        assertFalse("Should prune to each bucket in an OR of equalities", either.intersects(provider.nextInterval(bucket, 2), comparator) &&
+                either.intersects(provider.nextInterval(bucket, 3), comparator));
+        
+        assertTrue("Should not prune range queries", IntervalSet.gt(17).intersects(otherBucket, comparator));
+        assertTrue("Should not prune not-equal queries", IntervalSet.ne(17).intersects(bucket, comparator));
+        
+        assertTrue(bucket.contains(17, comparator));
+        assertFalse(otherBucket.contains(17, comparator));
+    }//end testIntersects_OnlyEqualityPrunes
+    
+    @Test
+    public void testSplitAndMerge_CoverSameHashes() throws Exception {
+        System.out.println("testSplitAndMerge_CoverSameHashes");
+        
+        ResizableIntervalProvider<Long> provider = HashIntervalProvider.forLong(4);
+        Interval<Long> bucket = provider.getInterval(17L);
+        
+        //ACT
+        List<Interval<Long>> halves = provider.split(bucket);
+        
+        //ASSERT
+        Comparator<Long> comparator = provider.getComparator();
+        for(long i = 0; i < 100; i++){
+            if(bucket.contains(i, comparator)){
+                assertTrue("Should be in exactly one half", halves.get(0).contains(i, comparator) ^ halves.get(1).contains(i, comparator));
+            }
+        }
+        assertEquals(halves.get(1), provider.getInterval(provider.getName(halves.get(1))));
+        assertEquals(bucket, provider.merge(halves.get(1), halves.get(0)));
+        assertNull("Should not merge buckets that aren't adjacent", provider.merge(halves.get(0), provider.nextInterval(bucket, 2)));
+    }//end testSplitAndMerge_CoverSameHashes
+}
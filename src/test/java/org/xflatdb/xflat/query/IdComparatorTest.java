@@ -0,0 +1,64 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jdom2.Element;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.XFlatConstants;
+
+/**
+ *
+ * @author Gordon
+ */
+public class IdComparatorTest {
+    
+    public IdComparatorTest() {
+    }
+    
+    @Test
+    public void testCompare_MixedIds_IntegersNumericThenStrings() throws Exception {
+        System.out.println("testCompare_MixedIds_IntegersNumericThenStrings");
+        
+        List<String> ids = new ArrayList<>(Arrays.asList(
+                "b", "100", null, "-3", "99999999999999999999", "9", "a", "10"));
+        
+        //ACT
+        Collections.sort(ids, IdComparator.instance());
+        
+        //ASSERT
+        assertEquals(Arrays.asList("-3", "9", "10", "100", "99999999999999999999", "a", "b", null), ids);
+    }//end testCompare_MixedIds_IntegersNumericThenStrings
+    
+    @Test
+    public void testByRowId_ComparesIdAttribute() throws Exception {
+        System.out.println("testByRowId_ComparesIdAttribute");
+        
+        Element low = new Element("row").setAttribute("id", "20", XFlatConstants.xFlatNs);
+        Element high = new Element("row").setAttribute("id", "100", XFlatConstants.xFlatNs);
+        
+        //ACT
+        int ret = IdComparator.byRowId().compare(low, high);
+        
+        //ASSERT
+        assertTrue("20 should sort before 100", ret < 0);
+        assertTrue("Should be antisymmetric", IdComparator.byRowId().compare(high, low) > 0);
+    }//end testByRowId_ComparesIdAttribute
+}
@@ -0,0 +1,215 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.util.ComparableComparator;
+
+/**
+ *
+ * @author Gordon
+ */
+public class IntervalIndexTest {
+    
+    private static Comparator<Integer> comparator = new ComparableComparator<Integer>();
+    
+    public IntervalIndexTest() {
+    }
+    
+    private static List<Interval<Integer>> shards(int count, int width){
+        List<Interval<Integer>> ret = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            ret.add(new Interval<>(i * width, true, (i + 1) * width, false));
+        }
+        //the index should not depend on the order it is given
+        Collections.shuffle(ret);
+        return ret;
+    }
+    
+    @Test
+    public void testFind_OrderedShards_FindsContainingShard() throws Exception {
+        System.out.println("testFind_OrderedShards_FindsContainingShard");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(shards(1000, 10), comparator);
+        
+        //ACT
+        Interval<Integer> first = instance.find(0);
+        Interval<Integer> boundary = instance.find(500);
+        Interval<Integer> last = instance.find(9999);
+        Interval<Integer> outside = instance.find(10000);
+        Interval<Integer> negative = instance.find(-1);
+        
+        //ASSERT
+        assertTrue(instance.isOrdered());
+        assertEquals(new Interval<>(0, true, 10, false), first);
+        assertEquals("Should find the shard beginning at the boundary", new Interval<>(500, true, 510, false), boundary);
+        assertEquals(new Interval<>(9990, true, 10000, false), last);
+        assertNull(outside);
+        assertNull(negative);
+    }//end testFind_OrderedShards_FindsContainingShard
+    
+    @Test
+    public void testFind_GapBetweenShards_ReturnsNull() throws Exception {
+        System.out.println("testFind_GapBetweenShards_ReturnsNull");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(Arrays.asList(
+                new Interval<>(0, true, 10, false),
+                new Interval<>(20, true, 30, false)), comparator);
+        
+        //ACT
+        Interval<Integer> gap = instance.find(15);
+        Interval<Integer> end = instance.find(10);
+        
+        //ASSERT
+        assertNull(gap);
+        assertNull("Should not find a value at an exclusive end", end);
+    }//end testFind_GapBetweenShards_ReturnsNull
+    
+    @Test
+    public void testIntersecting_IntervalSet_ReturnsShardsInOrder() throws Exception {
+        System.out.println("testIntersecting_IntervalSet_ReturnsShardsInOrder");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(shards(100, 10), comparator);
+        
+        //(-∞, 15) ∪ (500, 520) ∪ (985, ∞)
+        IntervalSet<Integer> query = IntervalSet.lt(15)
+                .union(IntervalSet.between(500, 520), comparator)
+                .union(IntervalSet.gt(985), comparator);
+        
+        //ACT
+        List<Interval<Integer>> result = instance.intersecting(query);
+        
+        //ASSERT
+        List<Integer> begins = new ArrayList<>();
+        for(Interval<Integer> i : result){
+            begins.add(i.getBegin());
+        }
+        assertEquals(Arrays.asList(0, 10, 500, 510, 980, 990), begins);
+    }//end testIntersecting_IntervalSet_ReturnsShardsInOrder
+    
+    @Test
+    public void testIntersecting_Point_ReturnsOneShard() throws Exception {
+        System.out.println("testIntersecting_Point_ReturnsOneShard");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(shards(100, 10), comparator);
+        
+        //ACT
+        List<Interval<Integer>> eq = instance.intersecting(IntervalSet.eq(42));
+        List<Interval<Integer>> none = instance.intersecting(IntervalSet.gte(1000));
+        List<Interval<Integer>> all = instance.intersecting(IntervalSet.<Integer>all());
+        
+        //ASSERT
+        assertEquals(Collections.singletonList(new Interval<>(40, true, 50, false)), eq);
+        assertTrue("Should not find shards past the last", none.isEmpty());
+        assertEquals(100, all.size());
+    }//end testIntersecting_Point_ReturnsOneShard
+    
+    @Test
+    public void testIntersecting_OverlappingShards_ChecksEveryShard() throws Exception {
+        System.out.println("testIntersecting_OverlappingShards_ChecksEveryShard");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(Arrays.asList(
+                new Interval<>(0, true, 100, false),
+                new Interval<>(10, true, 20, false),
+                new Interval<>(50, true, 60, false)), comparator);
+        
+        //ACT
+        List<Interval<Integer>> result = instance.intersecting(IntervalSet.eq(55));
+        Interval<Integer> found = instance.find(15);
+        
+        //ASSERT
+        assertFalse(instance.isOrdered());
+        assertEquals(Arrays.asList(new Interval<>(0, true, 100, false), new Interval<>(50, true, 60, false)), result);
+        assertNotNull(found);
+    }//end testIntersecting_OverlappingShards_ChecksEveryShard
+    
+    @Test
+    public void testIntersecting_HashBuckets_SearchesByHash() throws Exception {
+        System.out.println("testIntersecting_HashBuckets_SearchesByHash");
+        
+        IntervalProvider<Integer> provider = HashIntervalProvider.forInteger(4);
+        List<Interval<Integer>> buckets = new ArrayList<>();
+        Interval<Integer> bucket = provider.getInterval(7);
+        for(int i = 0; i < 4; i++){
+            buckets.add(bucket);
+            bucket = provider.nextInterval(bucket, 1);
+        }
+        IntervalIndex<Integer> instance = new IntervalIndex<>(buckets, provider.getComparator());
+        
+        //ACT
+        List<Interval<Integer>> result = instance.intersecting(IntervalSet.eq(7));
+        List<Interval<Integer>> range = instance.intersecting(IntervalSet.gt(7));
+        
+        //ASSERT
+        assertTrue("Hash buckets should be binary searched by hash", instance.isOrdered());
+        assertEquals(Collections.singletonList(provider.getInterval(7)), result);
+        assertEquals(provider.getInterval(7), instance.find(7));
+        assertEquals("Any range could hash into every bucket", 4, range.size());
+    }//end testIntersecting_HashBuckets_SearchesByHash
+    
+    @Test
+    public void testFind_SplitHashBuckets_FindsBucketContainingHash() throws Exception {
+        System.out.println("testFind_SplitHashBuckets_FindsBucketContainingHash");
+        
+        ResizableIntervalProvider<Integer> provider = HashIntervalProvider.forInteger(16);
+        List<Interval<Integer>> buckets = new ArrayList<>();
+        Interval<Integer> bucket = provider.getInterval(0);
+        for(int i = 0; i < 16; i++){
+            //split every other bucket so the buckets have different widths
+            if(i % 2 == 0){
+                buckets.addAll(provider.split(bucket));
+            }
+            else{
+                buckets.add(bucket);
+            }
+            bucket = provider.nextInterval(bucket, 1);
+        }
+        Collections.shuffle(buckets);
+        IntervalIndex<Integer> instance = new IntervalIndex<>(buckets, provider.getComparator());
+        
+        //ACT
+        //ASSERT
+        assertTrue(instance.isOrdered());
+        for(int i = 0; i < 1000; i++){
+            Interval<Integer> found = instance.find(i);
+            assertNotNull("Should find a bucket for " + i, found);
+            assertTrue("Should find the bucket containing " + i, found.contains(i, provider.getComparator()));
+            assertEquals(Collections.singletonList(found), instance.intersecting(IntervalSet.eq(i)));
+        }
+    }//end testFind_SplitHashBuckets_FindsBucketContainingHash
+    
+    @Test
+    public void testGetIntervals_ShuffledShards_ReturnsAscendingOrder() throws Exception {
+        System.out.println("testGetIntervals_ShuffledShards_ReturnsAscendingOrder");
+        
+        IntervalIndex<Integer> instance = new IntervalIndex<>(shards(100, 10), comparator);
+        
+        //ACT
+        List<Interval<Integer>> result = instance.getIntervals();
+        
+        //ASSERT
+        assertEquals(100, result.size());
+        for(int i = 0; i < result.size(); i++){
+            assertEquals("Neighbours should be adjacent", new Interval<>(i * 10, true, (i + 1) * 10, false), result.get(i));
+        }
+    }//end testGetIntervals_ShuffledShards_ReturnsAscendingOrder
+}
@@ -17,6 +17,7 @@ package org.xflatdb.xflat.query;
 
 import org.xflatdb.xflat.query.IntervalProvider;
 import org.xflatdb.xflat.query.NumericIntervalProvider;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -76,4 +77,23 @@ public class NumericIntervalProviderTest {
         assertEquals("[-76, -39)", provider.getInterval(-47).toString());
     }
     
+    @Test
+    public void testInteger_SplitAndMerge_NamesRoundTrip() throws Exception {
+        System.out.println("testInteger_SplitAndMerge_NamesRoundTrip");
+        
+        ResizableIntervalProvider<Integer> provider = NumericIntervalProvider.forInteger(0, 100);
+        
+        List<Interval<Integer>> halves = provider.split(provider.getInterval(100));
+        
+        assertEquals("[100, 150)", halves.get(0).toString());
+        assertEquals("[150, 200)", halves.get(1).toString());
+        assertEquals("100_150", provider.getName(halves.get(0)));
+        assertEquals(halves.get(1), provider.getInterval(provider.getName(halves.get(1))));
+        
+        assertEquals("Should name a standard interval by its begin", "100", provider.getName(provider.merge(halves.get(1), halves.get(0))));
+        assertEquals("[0, 200)", provider.merge(provider.getInterval(0), provider.getInterval(100)).toString());
+        assertNull("Should not merge intervals that aren't adjacent", provider.merge(provider.getInterval(0), provider.getInterval(200)));
+        assertNull("Should not split a single value", provider.split(new Interval<>(5, true, 6, false)));
+    }
+    
 }
@@ -0,0 +1,93 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.Arrays;
+import org.jdom2.Element;
+import org.jdom2.filter.ElementFilter;
+import org.jdom2.xpath.XPathFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.XFlatConstants;
+import org.xflatdb.xflat.convert.ConversionService;
+import org.xflatdb.xflat.convert.DefaultConversionService;
+import org.xflatdb.xflat.convert.converters.JDOMConverters;
+import org.xflatdb.xflat.convert.converters.StringConverters;
+
+/**
+ *
+ * @author Gordon
+ */
+public class ProjectionTest {
+    
+    XPathFactory xpath = XPathFactory.instance();
+    
+    public ProjectionTest() {
+    }
+    
+    private Element makeRow(){
+        return new Element("row", XFlatConstants.xFlatNs)
+                .setAttribute("id", "1", XFlatConstants.xFlatNs)
+                .addContent(new Element("foo")
+                    .setAttribute("fooInt", "17")
+                    .addContent(new Element("name").setText("seventeen"))
+                    .addContent(new Element("bar").addContent(new Element("barText").setText("nested"))));
+    }
+    
+    @Test
+    public void testTuple_SelectsAttributesElementsAndFunctions() throws Exception {
+        System.out.println("testTuple_SelectsAttributesElementsAndFunctions");
+        
+        Projection<String[]> projection = Projection.tuple(
+                xpath.compile("foo/@fooInt"),
+                xpath.compile("foo/name"),
+                xpath.compile("count(foo/*)"),
+                xpath.compile("foo/missing"));
+        
+        //ACT
+        Element projected = projection.project(makeRow());
+        String[] ret = projection.read(projected, null);
+        
+        //ASSERT
+        assertEquals(Arrays.asList("17", "seventeen", "2.0", null), Arrays.asList(ret));
+        assertFalse("Should not copy the rest of the row", 
+                projected.getDescendants(new ElementFilter("barText")).hasNext());
+    }//end testTuple_SelectsAttributesElementsAndFunctions
+    
+    @Test
+    public void testValue_ConvertsSelectedValue() throws Exception {
+        System.out.println("testValue_ConvertsSelectedValue");
+        
+        ConversionService conversionService = new DefaultConversionService();
+        StringConverters.registerTo(conversionService);
+        JDOMConverters.registerTo(conversionService);
+        
+        Projection<Integer> fooInt = Projection.value(xpath.compile("foo/@fooInt"), Integer.class);
+        Projection<Element> bar = Projection.value(xpath.compile("foo/bar"), Element.class);
+        Projection<Integer> missing = Projection.value(xpath.compile("foo/missing"), Integer.class);
+        
+        //ACT
+        Integer intRet = fooInt.read(fooInt.project(makeRow()), conversionService);
+        Element barRet = bar.read(bar.project(makeRow()), conversionService);
+        Integer missingRet = missing.read(missing.project(makeRow()), conversionService);
+        
+        //ASSERT
+        assertEquals(Integer.valueOf(17), intRet);
+        assertEquals("nested", barRet.getChildText("barText"));
+        assertNull("Should not have a parent", barRet.getParentElement());
+        assertNull(missingRet);
+    }//end testValue_ConvertsSelectedValue
+}
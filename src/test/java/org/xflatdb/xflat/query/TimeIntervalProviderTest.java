@@ -0,0 +1,101 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.query;
+
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gordon
+ */
+public class TimeIntervalProviderTest {
+    
+    public TimeIntervalProviderTest() {
+    }
+    
+    //2013-05-01T13:25:00Z
+    private static final long TIME = 1367414700000L;
+    
+    @Test
+    public void testLong_Hour_NamedForStartOfHour() throws Exception {
+        System.out.println("testLong_Hour_NamedForStartOfHour");
+        
+        IntervalProvider<Long> provider = TimeIntervalProvider.forLong(TimeIntervalProvider.Partition.HOUR);
+        
+        //ACT
+        Interval<Long> interval = provider.getInterval(TIME);
+        String name = provider.getName(interval);
+        
+        //ASSERT
+        assertEquals("2013-05-01T13", name);
+        assertEquals(Long.valueOf(1367413200000L), interval.getBegin());
+        assertEquals(Long.valueOf(1367416800000L), interval.getEnd());
+        assertTrue(interval.getBeginInclusive());
+        assertFalse(interval.getEndInclusive());
+        assertEquals("Should get the same interval from its name", interval, provider.getInterval(name));
+    }//end testLong_Hour_NamedForStartOfHour
+    
+    @Test
+    public void testLong_Day_NextIntervalIsNextDay() throws Exception {
+        System.out.println("testLong_Day_NextIntervalIsNextDay");
+        
+        IntervalProvider<Long> provider = TimeIntervalProvider.forLong(TimeIntervalProvider.Partition.DAY);
+        
+        //ACT
+        Interval<Long> interval = provider.getInterval(TIME);
+        Interval<Long> next = provider.nextInterval(interval, 1);
+        Interval<Long> previous = provider.nextInterval(interval, -1);
+        
+        //ASSERT
+        assertEquals("2013-05-01", provider.getName(interval));
+        assertEquals("2013-05-02", provider.getName(next));
+        assertEquals("2013-04-30", provider.getName(previous));
+        assertEquals("Should be adjacent", interval.getEnd(), next.getBegin());
+    }//end testLong_Day_NextIntervalIsNextDay
+    
+    @Test
+    public void testLong_BeforeEpoch_FloorsToStartOfDay() throws Exception {
+        System.out.println("testLong_BeforeEpoch_FloorsToStartOfDay");
+        
+        IntervalProvider<Long> provider = TimeIntervalProvider.forLong(TimeIntervalProvider.Partition.DAY);
+        
+        //ACT
+        Interval<Long> interval = provider.getInterval(-1L);
+        
+        //ASSERT
+        assertEquals("1969-12-31", provider.getName(interval));
+        assertTrue(interval.contains(-1L, provider.getComparator()));
+        assertFalse(interval.contains(0L, provider.getComparator()));
+    }//end testLong_BeforeEpoch_FloorsToStartOfDay
+    
+    @Test
+    public void testDate_Hour_RoundTripsName() throws Exception {
+        System.out.println("testDate_Hour_RoundTripsName");
+        
+        IntervalProvider<Date> provider = TimeIntervalProvider.forDate(TimeIntervalProvider.Partition.HOUR);
+        
+        //ACT
+        Interval<Date> interval = provider.getInterval(new Date(TIME));
+        
+        //ASSERT
+        assertEquals("2013-05-01T13", provider.getName(interval));
+        assertEquals(interval, provider.getInterval("2013-05-01T13"));
+        assertNull("Should not parse a name from another partition", provider.getInterval("2013-05-01"));
+        assertNull("Should not parse a garbage name", provider.getInterval("pending"));
+    }//end testDate_Hour_RoundTripsName
+}
@@ -0,0 +1,114 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.transaction;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jdom2.Document;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xflatdb.xflat.db.EngineTransactionManagerTestBase;
+import org.xflatdb.xflat.util.FakeDocumentFileWrapper;
+
+/**
+ *
+ * @author Gordon
+ */
+public class ContextTransactionManagerTest extends EngineTransactionManagerTestBase {
+    
+    private AtomicReference<Document> doc = new AtomicReference<>(null);
+    
+    @After
+    @Override
+    public void tearDown(){
+        doc.set(null);
+    }
+    
+    @Override
+    public ContextTransactionManager getInstance(){
+        return new ContextTransactionManager(new FakeDocumentFileWrapper(doc));
+    }
+    
+    @Test
+    public void testOpenTransaction_InContext_VisibleFromOtherThreadInContext() throws Exception {
+        System.out.println("testOpenTransaction_InContext_VisibleFromOtherThreadInContext");
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try(final ContextTransactionManager instance = getInstance())
+        {
+            TransactionContext ctx = new TransactionContext();
+            
+            TransactionScope scope;
+            Transaction tx;
+            try(TransactionContext.Binding b = ctx.enter()){
+                scope = instance.openTransaction();
+                tx = instance.getTransaction();
+            }
+            
+            assertNull("Transaction should not be visible outside the context", instance.getTransaction());
+            
+            //ACT
+            Transaction onOtherThread = executor.submit(ctx.wrap(new Callable<Transaction>(){
+                @Override
+                public Transaction call() {
+                    return instance.getTransaction();
+                }
+            })).get(5, TimeUnit.SECONDS);
+            
+            Transaction onOtherThreadOutsideContext = executor.submit(new Callable<Transaction>(){
+                @Override
+                public Transaction call() {
+                    return instance.getTransaction();
+                }
+            }).get(5, TimeUnit.SECONDS);
+            
+            //ASSERT
+            assertNotNull("Transaction should be visible on another thread in the context", onOtherThread);
+            assertEquals("Should be the same transaction", tx.getTransactionId(), onOtherThread.getTransactionId());
+            assertNull("Transaction should not leak out of the context", onOtherThreadOutsideContext);
+            
+            try(TransactionContext.Binding b = ctx.enter()){
+                scope.close();
+            }
+            assertFalse("Should be no open TX", instance.anyOpenTransactions());
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testEnter_Nested_RestoresPreviousContext() throws Exception {
+        System.out.println("testEnter_Nested_RestoresPreviousContext");
+        
+        TransactionContext outer = new TransactionContext();
+        TransactionContext inner = new TransactionContext();
+        
+        assertFalse("contexts should have distinct IDs", outer.getId() == inner.getId());
+        
+        try(TransactionContext.Binding b = outer.enter()){
+            try(TransactionContext.Binding b2 = inner.enter()){
+                assertSame(inner, TransactionContext.current());
+            }
+            assertSame(outer, TransactionContext.current());
+        }
+        assertNull(TransactionContext.current());
+    }
+}
@@ -0,0 +1,97 @@
+/* 
+*	Copyright 2013 Gordon Burgett and individual contributors
+*
+*	Licensed under the Apache License, Version 2.0 (the "License");
+*	you may not use this file except in compliance with the License.
+*	You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*	Unless required by applicable law or agreed to in writing, software
+*	distributed under the License is distributed on an "AS IS" BASIS,
+*	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*	See the License for the specific language governing permissions and
+*	limitations under the License.
+*/
+package org.xflatdb.xflat.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gordon
+ */
+public class BloomFilterTest {
+    
+    @Test
+    public void testMightContain_AddedValues_ReturnsTrue() throws Exception {
+        System.out.println("testMightContain_AddedValues_ReturnsTrue");
+        
+        BloomFilter instance = new BloomFilter(100);
+        for(int i = 0; i < 100; i++){
+            instance.add("id" + i);
+        }
+        
+        //ACT & ASSERT
+        for(int i = 0; i < 100; i++){
+            assertTrue("Should never give a false negative", instance.mightContain("id" + i));
+        }
+    }//end testMightContain_AddedValues_ReturnsTrue
+    
+    @Test
+    public void testMightContain_OtherValues_FewFalsePositives() throws Exception {
+        System.out.println("testMightContain_OtherValues_FewFalsePositives");
+        
+        BloomFilter instance = new BloomFilter(1000);
+        for(int i = 0; i < 1000; i++){
+            instance.add(Integer.toString(i));
+        }
+        
+        //ACT
+        int falsePositives = 0;
+        for(int i = 1000; i < 11000; i++){
+            if(instance.mightContain(Integer.toString(i))){
+                falsePositives++;
+            }
+        }
+        
+        //ASSERT
+        assertTrue("Should have around 1% false positives, had " + falsePositives, falsePositives < 300);
+    }//end testMightContain_OtherValues_FewFalsePositives
+    
+    @Test
+    public void testDecode_EncodedFilter_ContainsSameValues() throws Exception {
+        System.out.println("testDecode_EncodedFilter_ContainsSameValues");
+        
+        BloomFilter instance = new BloomFilter(10);
+        instance.add("a");
+        instance.add("b");
+        instance.add("");
+        
+        //ACT
+        BloomFilter decoded = BloomFilter.decode(instance.encode(), instance.getHashes());
+        
+        //ASSERT
+        assertEquals(instance.encode(), decoded.encode());
+        assertTrue(decoded.mightContain("a"));
+        assertTrue(decoded.mightContain("b"));
+        assertTrue(decoded.mightContain(""));
+    }//end testDecode_EncodedFilter_ContainsSameValues
+    
+    @Test
+    public void testDecode_InvalidString_ThrowsIllegalArgumentException() throws Exception {
+        System.out.println("testDecode_InvalidString_ThrowsIllegalArgumentException");
+        
+        boolean didThrow = false;
+        try{
+            //ACT
+            BloomFilter.decode("not a bloom filter", 7);
+        }catch(IllegalArgumentException ex){
+            didThrow = true;
+        }
+        
+        //ASSERT
+        assertTrue("Should throw IllegalArgumentException", didThrow);
+    }//end testDecode_InvalidString_ThrowsIllegalArgumentException
+}